@@ -39,7 +39,9 @@ public class PlayerProxy implements Player {
     private final String playerName;
     private final String sessionID;
     private final Region region;
-    private int countCallsForLongRoomDescription;
+    // The cursor of the next page of players in the long room description,
+    // null to start from the first page
+    private String nextPlayerCursor;
 
     private JSONObject requestJson;
 
@@ -64,7 +66,6 @@ public class PlayerProxy implements Player {
         this.playerName = playerName;
         this.sessionID = sessionID;
         this.crh = crh;
-        this.countCallsForLongRoomDescription = 0;
         this.shortRoomDescription = shortRoomDescription;
         this.region = region;
         this.position = position;
@@ -77,51 +78,45 @@ public class PlayerProxy implements Player {
 
     @Override
     public String getShortRoomDescription() {
-        this.countCallsForLongRoomDescription = 0;
         return this.shortRoomDescription;
     }
 
     @Override
     public String getLongRoomDescription(int offset) {
-        if (offset == -1) {
-            offset = this.countCallsForLongRoomDescription++;
-        } else {
-            this.countCallsForLongRoomDescription = offset;
+        if (offset != -1) {
+            this.nextPlayerCursor = null;
+            requestJson = createRequestObject(MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, "" + offset);
+            JSONObject replyJson = requestAndAwaitReply(requestJson);
+            return replyJson.get(MarshalingKeys.RETURNVALUE_HEAD_KEY).toString();
         }
 
-        requestJson = createRequestObject(MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, ""+offset);
+        // Show the next page of players each time, starting over after the last
+        requestJson = Marshaling.createRequestObject(playerID, sessionID,
+                MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, "",
+                nextPlayerCursor == null ? "" : nextPlayerCursor);
         JSONObject replyJson = requestAndAwaitReply(requestJson);
-        String reply = replyJson.get(MarshalingKeys.RETURNVALUE_HEAD_KEY).toString();
-        String[] lines = reply.split("\n");
-        String lastLine = lines[lines.length-1];
-        if (lastLine.equals(" *** End of player list *** "))
-            this.countCallsForLongRoomDescription = 0;
-
-        return reply;
+        this.nextPlayerCursor = cursorOf(replyJson);
+        return replyJson.get(MarshalingKeys.RETURNVALUE_HEAD_KEY).toString();
     }
 
     @Override
     public String getName() {
-        this.countCallsForLongRoomDescription = 0;
         return playerName;
     }
 
     @Override
     public String getSessionID() {
-        this.countCallsForLongRoomDescription = 0;
         return sessionID;
     }
 
     @Override
     public Region getRegion() {
-        this.countCallsForLongRoomDescription = 0;
-
         return this.region;
     }
 
     @Override
     public boolean move(Direction direction) {
-        this.countCallsForLongRoomDescription = 0;
+        this.nextPlayerCursor = null;
         requestJson = createRequestObject(MarshalingKeys.MOVE_METHOD_KEY,
                 direction.toString());
         final JSONObject replyJson = requestAndAwaitReply(requestJson);
@@ -133,7 +128,6 @@ public class PlayerProxy implements Player {
 
     @Override
     public boolean digRoom(Direction direction, String description) {
-        this.countCallsForLongRoomDescription = 0;
         JSONObject requestJson =
                 Marshaling.createRequestObject(playerID,
                         sessionID,
@@ -147,13 +141,11 @@ public class PlayerProxy implements Player {
 
     @Override
     public String getPosition() {
-        this.countCallsForLongRoomDescription = 0;
         return this.position;
     }
 
     @Override
     public List<Direction> getExitSet() {
-        this.countCallsForLongRoomDescription = 0;
         requestJson = createRequestObject(MarshalingKeys.GET_EXITSET_METHOD_KEY, null);
         JSONObject replyJson = requestAndAwaitReply(requestJson);
         // The HEAD is not used, the list of player names are stored in the TAIL
@@ -168,7 +160,6 @@ public class PlayerProxy implements Player {
 
     @Override
     public List<String> getPlayersHere(int offset) {
-        this.countCallsForLongRoomDescription = 0;
         JSONObject requestJson = createRequestObject(MarshalingKeys.GET_PLAYERS_HERE_METHOD_KEY, "" + offset);
         JSONObject replyJson = requestAndAwaitReply(requestJson);
         // The HEAD is not used, the list of player names are stored in the TAIL
@@ -181,9 +172,31 @@ public class PlayerProxy implements Player {
         return playersHere;
     }
 
+    @Override
+    public PlayerListPage getPageOfPlayersHere(String cursor) {
+        JSONObject requestJson = Marshaling.createRequestObject(playerID, sessionID,
+                MarshalingKeys.GET_PLAYERS_HERE_METHOD_KEY, "", cursor == null ? "" : cursor);
+        JSONObject replyJson = requestAndAwaitReply(requestJson);
+        List<String> playersHere = new ArrayList<>();
+        JSONArray array = (JSONArray) replyJson.get(MarshalingKeys.RETURNVALUE_TAIL_KEY);
+        for (Object item : array) {
+            playersHere.add(item.toString());
+        }
+        return new PlayerListPage(playersHere, cursorOf(replyJson));
+    }
+
+    /**
+     * Get the cursor of the next page of players from a reply to a page.
+     */
+    private static String cursorOf(JSONObject replyJson) {
+        if (!Boolean.parseBoolean((String) replyJson.get(MarshalingKeys.HAS_MORE_PLAYERS_KEY))) {
+            return null;
+        }
+        return (String) replyJson.get(MarshalingKeys.PLAYER_CURSOR_KEY);
+    }
+
     @Override
     public void addMessage(String message) {
-        this.countCallsForLongRoomDescription = 0;
         JSONObject requestJson = Marshaling.createRequestObject(playerID,
                 sessionID,
                 MarshalingKeys.ADD_MESSAGE_METHOD_KEY,
@@ -198,7 +211,6 @@ public class PlayerProxy implements Player {
 
     @Override
     public List<String> getMessageList() {
-        this.countCallsForLongRoomDescription = 0;
         List<String> contents = new ArrayList<>();
 
         JSONObject requestJson = Marshaling.createRequestObject(playerID,
@@ -221,7 +233,6 @@ public class PlayerProxy implements Player {
     private long nextWeatherReadingTime = 0;
     @Override
     public String getWeather() {
-        this.countCallsForLongRoomDescription = 0;
         if (nextWeatherReadingTime < new Date().getTime()) {
             final JSONObject requestJson = Marshaling.createRequestObject(playerID, sessionID,
                     MarshalingKeys.GET_WEATHER_METHOD_KEY, null);
@@ -238,7 +249,7 @@ public class PlayerProxy implements Player {
 
     @Override
     public JSONObject execute(String commandName, String... parameters) {
-        this.countCallsForLongRoomDescription = 0;
+        this.nextPlayerCursor = null;
         final JSONObject requestJson = Marshaling.createRequestObject(playerID, sessionID,
                 MarshalingKeys.EXECUTE_METHOD_KEY, commandName, parameters);
         final JSONObject replyJson = requestAndAwaitReply(requestJson);
@@ -251,7 +262,6 @@ public class PlayerProxy implements Player {
 
     @Override
     public String toString() {
-        this.countCallsForLongRoomDescription = 0;
         return "(PlayerClientProxy: " + getID() + "/" + getName() + ")";
     }
 
@@ -264,6 +274,25 @@ public class PlayerProxy implements Player {
         return Marshaling.createRequestObject(playerID, sessionID, methodKey, parameter);
     }
 
+    /**
+     * Subscribe to the events of the room the player is in, that is new
+     * messages and players entering or leaving. The subscription follows the
+     * player around until logout. The events are pushed over the connection
+     * the subscription is made on, so this requires a client request handler
+     * with persistent connections, like the MultiplexingClientRequestHandler,
+     * which delivers the events to its event sink.
+     * <p/>
+     * Only the events caused on the app server the subscription is made on
+     * are delivered, so the feature is for single server deployments.
+     *
+     * @return true if the subscription is made
+     */
+    public boolean subscribeToRoomEvents() {
+        requestJson = createRequestObject(MarshalingKeys.SUBSCRIBE_ROOM_EVENTS_METHOD_KEY, "");
+        JSONObject replyJson = requestAndAwaitReply(requestJson);
+        return replyJson.get(MarshalingKeys.ERROR_CODE_KEY).toString().equals(StatusCode.OK);
+    }
+
     private JSONObject requestAndAwaitReply(JSONObject requestJson) {
         JSONObject replyJson = ClientCommon.requestAndAwaitReply(crh, requestJson);
         String statusCode = replyJson.get(MarshalingKeys.ERROR_CODE_KEY).toString();
@@ -273,6 +302,9 @@ public class PlayerProxy implements Player {
         } else if (statusCode.equals(StatusCode.SERVER_STORAGE_UNAVAILABLE)) {
             String errMsg = replyJson.get(MarshalingKeys.ERROR_MSG_KEY).toString();
             throw new CaveStorageException(errMsg);
+        } else if (statusCode.equals(StatusCode.SERVER_OVERLOADED)) {
+            String errMsg = replyJson.get(MarshalingKeys.ERROR_MSG_KEY).toString();
+            throw new CaveIPCException(errMsg, null);
         }
 
         return replyJson;
@@ -2,6 +2,8 @@ package cloud.cave.config;
 
 import cloud.cave.ipc.*;
 import cloud.cave.server.PlayerSessionCache;
+import cloud.cave.server.SessionTokenService;
+import cloud.cave.server.invalidation.InvalidationBus;
 import cloud.cave.service.*;
 
 /**
@@ -55,4 +57,21 @@ public interface CaveServerFactory {
     Reactor createReactor(Invoker invoker);
 
     PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService);
+
+    /**
+     * Create and return the service issuing and verifying signed session
+     * tokens, or null if the sessions are plain session ids.
+     *
+     * @param storage the storage holding the latest session of each player
+     * @return the session token service or null
+     */
+    SessionTokenService createSessionTokenService(CaveStorage storage);
+
+    /**
+     * Create and return the bus carrying cache invalidations between the
+     * app servers.
+     *
+     * @return the invalidation bus
+     */
+    InvalidationBus createInvalidationBus();
 }
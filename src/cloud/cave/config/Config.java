@@ -22,6 +22,13 @@ public class Config {
      */
     public static final String SKYCAVE_APPSERVER = "SKYCAVE_APPSERVER";
 
+    /**
+     * Environment variable that must be set to 'name:port' of the endpoint the
+     * gateway accepts client connections on. Only read by the CaveGateway,
+     * which forwards to the app servers given by SKYCAVE_APPSERVER.
+     */
+    public static final String SKYCAVE_GATEWAY = "SKYCAVE_GATEWAY";
+
     /**
      * Environment variable that must be set to the 'name:port' of the database
      * server. Separate with ';' in case of a cluster.
@@ -76,6 +83,81 @@ public class Config {
     public static final String SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION = "SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION";
     public static final String REST_REQUEST_IMPLEMENTATION = "REST_REQUEST_IMPLEMENTATION";
 
+    /**
+     * Optional environment variable with the secret used to sign session
+     * tokens. Must be the same on all app servers. If it is not set, plain
+     * session ids are used, and every request looks up the session.
+     */
+    public static final String SKYCAVE_SESSION_SECRET = "SKYCAVE_SESSION_SECRET";
+
+    /**
+     * Optional environment variable selecting the player session cache of
+     * the app server: 'bounded' for the BoundedSessionCache, or 'database'
+     * for the DatabaseCache, which is the default.
+     */
+    public static final String SKYCAVE_SESSIONCACHE = "SKYCAVE_SESSIONCACHE";
+
+    /**
+     * Optional environment variable selecting the room cache of the app
+     * server: 'caching' to decorate the cave storage with the
+     * CachingCaveStorage, or 'none', which is the default.
+     */
+    public static final String SKYCAVE_ROOMCACHE = "SKYCAVE_ROOMCACHE";
+
+    /**
+     * Optional environment variable selecting the filter of room lookups of
+     * the app server: 'bloom' to decorate the cave storage with the
+     * RoomFilterCaveStorage, answering lookups of positions without a room
+     * from a Bloom filter, or 'none', which is the default. The room cache,
+     * if any, is put in front of the filter.
+     */
+    public static final String SKYCAVE_ROOMFILTER = "SKYCAVE_ROOMFILTER";
+
+    /**
+     * Optional environment variable telling whether the app server explains
+     * the query plans of the MongoDB cave storage when it starts, to find
+     * the queries that would scan a whole collection: 'fail' to refuse to
+     * start if any does, 'log' to log them as errors, or 'off', which is the
+     * default.
+     */
+    public static final String SKYCAVE_DB_EXPLAIN = "SKYCAVE_DB_EXPLAIN";
+
+    /**
+     * Optional environment variable with the number of threads prefetching
+     * the neighbourhood of the rooms moved to into the room cache, '0' to
+     * not prefetch. Only used with the 'caching' room cache. If it is not
+     * set, NeighbourhoodPrefetcher.DEFAULT_THREADS is used.
+     */
+    public static final String SKYCAVE_PREFETCH_THREADS = "SKYCAVE_PREFETCH_THREADS";
+
+    /**
+     * Optional environment variable with the 'name:port' of the RabbitMQ
+     * server carrying cache invalidations between the app servers. If it is
+     * not set, invalidations stay within the app server.
+     */
+    public static final String SKYCAVE_INVALIDATIONSERVER = "SKYCAVE_INVALIDATIONSERVER";
+
+    /**
+     * Optional environment variable with the seconds a session may be
+     * unused before the app server logs out the player. If it is not set,
+     * SessionReaper.DEFAULT_IDLE_SECONDS is used.
+     */
+    public static final String SKYCAVE_SESSION_IDLE_SECONDS = "SKYCAVE_SESSION_IDLE_SECONDS";
+
+    /**
+     * Optional environment variable with the path of the file the app server
+     * writes snapshots of its session cache to, and warms the cache from when
+     * it starts. Only used with the 'bounded' session cache.
+     */
+    public static final String SKYCAVE_SESSIONCACHE_SNAPSHOT = "SKYCAVE_SESSIONCACHE_SNAPSHOT";
+
+    /**
+     * Optional environment variable with the number of synthetic requests
+     * the app server runs to warm up before it reports ready. If it is not
+     * set, CaveWarmup.DEFAULT_SYNTHETIC_REQUESTS is used.
+     */
+    public static final String SKYCAVE_WARMUP_REQUESTS = "SKYCAVE_WARMUP_REQUESTS";
+
     /**
      * Read an environment variable using the given reader strategy. Fail
      * immediately in case the environment variable is not set.
@@ -95,6 +177,21 @@ public class Config {
         return value;
     }
 
+    /**
+     * Read an optional environment variable using the given reader strategy.
+     *
+     * @param environmentReader   the environment reader strategy to be used to read the variable
+     * @param environmentVariable the variable to be read
+     * @return the value of the variable in the environment, or null if it is not set
+     */
+    public static String optionalRead(EnvironmentReaderStrategy environmentReader, String environmentVariable) {
+        String value = environmentReader.getEnv(environmentVariable);
+        if (value == null || value.equals("")) {
+            return null;
+        }
+        return value;
+    }
+
     /**
      * Generic method to load and instantiate object of type T which is on the path given by environment variable
      * envVariable.
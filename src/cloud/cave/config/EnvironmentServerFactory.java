@@ -1,11 +1,22 @@
 package cloud.cave.config;
 
+import cloud.cave.common.CaveConfigurationNotSetException;
+import cloud.cave.common.CaveStorageException;
 import cloud.cave.ipc.Invoker;
 import cloud.cave.ipc.Reactor;
+import cloud.cave.server.BoundedSessionCache;
+import cloud.cave.server.CachingCaveStorage;
 import cloud.cave.server.DatabaseCache;
 import cloud.cave.server.PlayerSessionCache;
+import cloud.cave.server.RoomFilterCaveStorage;
+import cloud.cave.server.SessionTokenService;
 import cloud.cave.server.SimpleInMemoryCache;
 import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.invalidation.InProcessInvalidationBus;
+import cloud.cave.server.invalidation.InvalidationBus;
+import cloud.cave.server.invalidation.RabbitInvalidationBus;
+import cloud.cave.server.service.QueryShape;
+import cloud.cave.server.service.ServerCaveStorage;
 import cloud.cave.service.CaveStorage;
 import cloud.cave.service.IRestRequest;
 import cloud.cave.service.SubscriptionService;
@@ -13,6 +24,9 @@ import cloud.cave.service.WeatherService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Concrete ServerFactory that creates server side delegates based upon dynamic class
  * loading of classes whose qualified names are defined by a set of environment
@@ -45,7 +59,52 @@ public class EnvironmentServerFactory implements CaveServerFactory {
 
         logger.info("Creating cave storage with cfg: " + config);
 
-        return caveStorage;
+        if (caveStorage instanceof ServerCaveStorage) {
+            verifyQueryPlans((ServerCaveStorage) caveStorage);
+        }
+
+        String roomFilter = Config.optionalRead(environmentReader, Config.SKYCAVE_ROOMFILTER);
+        if (roomFilter != null && roomFilter.equals("bloom")) {
+            logger.info("Filtering the room lookups of the cave storage");
+            caveStorage = new RoomFilterCaveStorage(caveStorage);
+        } else if (roomFilter != null && !roomFilter.equals("none")) {
+            throw new CaveConfigurationNotSetException("ConfigurationError: The environment variable '"
+                    + Config.SKYCAVE_ROOMFILTER + "' must be 'bloom' or 'none', not '" + roomFilter + "'.");
+        }
+
+        String roomCache = Config.optionalRead(environmentReader, Config.SKYCAVE_ROOMCACHE);
+        if (roomCache == null || roomCache.equals("none")) {
+            return caveStorage;
+        }
+        if (roomCache.equals("caching")) {
+            logger.info("Caching the rooms of the cave storage");
+            return new CachingCaveStorage(caveStorage);
+        }
+        throw new CaveConfigurationNotSetException("ConfigurationError: The environment variable '"
+                + Config.SKYCAVE_ROOMCACHE + "' must be 'caching' or 'none', not '" + roomCache + "'.");
+    }
+
+    private void verifyQueryPlans(ServerCaveStorage caveStorage) {
+        String explain = Config.optionalRead(environmentReader, Config.SKYCAVE_DB_EXPLAIN);
+        if (explain == null || explain.equals("off")) {
+            return;
+        }
+        if (!explain.equals("log") && !explain.equals("fail")) {
+            throw new CaveConfigurationNotSetException("ConfigurationError: The environment variable '"
+                    + Config.SKYCAVE_DB_EXPLAIN + "' must be 'fail', 'log' or 'off', not '" + explain + "'.");
+        }
+
+        List<QueryShape> scanning = caveStorage.findCollectionScans();
+        for (QueryShape shape : scanning) {
+            logger.error("The query " + shape + " scans the whole collection, an index is missing");
+        }
+        if (!scanning.isEmpty() && explain.equals("fail")) {
+            throw new CaveStorageException("The cave storage has " + scanning.size()
+                    + " queries scanning a whole collection, see the log");
+        }
+        if (scanning.isEmpty()) {
+            logger.info("All " + ServerCaveStorage.QUERY_SHAPES.size() + " queries of the cave storage use an index");
+        }
     }
 
     @Override
@@ -107,6 +166,43 @@ public class EnvironmentServerFactory implements CaveServerFactory {
 
     @Override
     public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
-        return new DatabaseCache(storage, weatherService);
+        String kind = Config.optionalRead(environmentReader, Config.SKYCAVE_SESSIONCACHE);
+        if (kind == null || kind.equals("database")) {
+            logger.info("Creating database session cache");
+            return new DatabaseCache(storage, weatherService);
+        }
+        if (kind.equals("bounded")) {
+            logger.info("Creating bounded session cache");
+            return new BoundedSessionCache(storage, weatherService);
+        }
+        throw new CaveConfigurationNotSetException("ConfigurationError: The environment variable '"
+                + Config.SKYCAVE_SESSIONCACHE + "' must be 'bounded' or 'database', not '" + kind + "'.");
+    }
+
+    @Override
+    public SessionTokenService createSessionTokenService(CaveStorage storage) {
+        String secret = Config.optionalRead(environmentReader, Config.SKYCAVE_SESSION_SECRET);
+        if (secret == null) {
+            logger.info("No " + Config.SKYCAVE_SESSION_SECRET + " set, using plain session ids");
+            return null;
+        }
+        logger.info("Creating session token service");
+        return new SessionTokenService(secret, storage);
+    }
+
+    @Override
+    public InvalidationBus createInvalidationBus() {
+        if (Config.optionalRead(environmentReader, Config.SKYCAVE_INVALIDATIONSERVER) == null) {
+            logger.info("No " + Config.SKYCAVE_INVALIDATIONSERVER + " set, invalidating the caches of this server only");
+            return new InProcessInvalidationBus();
+        }
+        ServerConfiguration config = new ServerConfiguration(environmentReader, Config.SKYCAVE_INVALIDATIONSERVER);
+        logger.info("Creating invalidation bus with cfg: " + config);
+        try {
+            return new RabbitInvalidationBus(config);
+        } catch (IOException e) {
+            throw new CaveConfigurationNotSetException("ConfigurationError: Cannot connect to the invalidation server "
+                    + config + ": " + e.getMessage());
+        }
     }
 }
@@ -6,4 +6,6 @@ package cloud.cave.config;
 public class RabbitMQConfig {
     public static final String RPC_QUEUE_NAME = "skycave_rcp_queue";
     public static final String RPC_EXCHANGE_NAME = "skycave_exchange";
+    public static final String INVALIDATION_EXCHANGE_NAME = "skycave_invalidation";
+    public static final String STICKY_EXCHANGE_NAME = "skycave_sticky";
 }
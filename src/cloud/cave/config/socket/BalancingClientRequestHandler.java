@@ -0,0 +1,247 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.*;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.ServerData;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client request handler that spreads the requests over ALL the app servers
+ * in the server configuration, instead of only the first one.
+ * <p/>
+ * The server is chosen by 'power of two choices': two healthy endpoints are
+ * picked at random and the one with the fewest outstanding requests gets the
+ * request. An endpoint that fails a request or a health check is ejected from
+ * the rotation, and readmitted once a later health check succeeds again.
+ * <p/>
+ * Requests hitting different servers require that the session state is
+ * shared among the servers, i.e. that the daemons use a session cache that
+ * is backed by the shared storage (like the DatabaseCache).
+ *
+ * @author Rohde Fischer
+ */
+public class BalancingClientRequestHandler implements ClientRequestHandler {
+    private static final Logger logger = LoggerFactory.getLogger(BalancingClientRequestHandler.class);
+
+    /**
+     * Seconds between the health checks of the endpoints
+     */
+    public static final int HEALTH_CHECK_PERIOD_SECONDS = 5;
+
+    private final List<Endpoint> endpoints;
+    private final Random random;
+    private ScheduledExecutorService healthChecker;
+
+    public BalancingClientRequestHandler() {
+        this.endpoints = new ArrayList<>();
+        this.random = new Random();
+    }
+
+    /**
+     * Create a balancer over the given request handlers. Should not be used
+     * except for the test code, the handlers must be initialized already.
+     *
+     * @param handlers the request handlers for the individual servers
+     */
+    public BalancingClientRequestHandler(List<ClientRequestHandler> handlers) {
+        this();
+        for (int i = 0; i < handlers.size(); i++) {
+            endpoints.add(new Endpoint("server " + (i + 1), handlers.get(i)));
+        }
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        endpoints.clear();
+        for (int i = 0; i < config.size(); i++) {
+            endpoints.add(createEndpoint(config.get(i)));
+        }
+        startHealthChecks(HEALTH_CHECK_PERIOD_SECONDS);
+    }
+
+    /**
+     * Create the endpoint for a single server. The endpoint gets its own
+     * socket request handler configured for only that server.
+     *
+     * @param serverData the host and port of the server
+     * @return the endpoint
+     */
+    Endpoint createEndpoint(ServerData serverData) {
+        ClientRequestHandler handler = createSocketHandler();
+        handler.initialize(new ServerConfiguration(serverData.getHostName(), serverData.getPortNumber()));
+        return new Endpoint(serverData.toString(), handler);
+    }
+
+    /**
+     * Create the socket request handler of an endpoint, which waits for the
+     * replies for as long as they take.
+     *
+     * @return the request handler, not initialized
+     */
+    ClientRequestHandler createSocketHandler() {
+        return new SocketClientRequestHandler();
+    }
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        return send(chooseEndpoint(null), requestJson);
+    }
+
+    /**
+     * Send the request to the given endpoint, keeping track of the
+     * outstanding requests and ejecting the endpoint in case it fails.
+     *
+     * @param endpoint    the endpoint to send to
+     * @param requestJson the request
+     * @return the reply from the server of the endpoint
+     * @throws CaveIPCException in case the request failed
+     */
+    JSONObject send(Endpoint endpoint, JSONObject requestJson) throws CaveIPCException {
+        endpoint.requestStarted();
+        try {
+            JSONObject reply = endpoint.getHandler().sendRequestAndBlockUntilReply(requestJson);
+            if (reply == null) {
+                throw new CaveIPCException("No reply from the app server " + endpoint.getName(), null);
+            }
+            return reply;
+        } catch (CaveIPCException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                // The request was cancelled, it is not the fault of the server
+                throw e;
+            }
+            logger.warn("Request to " + endpoint.getName() + " failed, ejecting it until it passes a health check", e);
+            endpoint.eject();
+            throw e;
+        } finally {
+            endpoint.requestEnded();
+        }
+    }
+
+    /**
+     * Choose the endpoint for the next request using power of two choices
+     * among the healthy endpoints. If no endpoint is healthy, the one that
+     * was ejected first is tried, rather than failing without trying.
+     *
+     * @param excluded an endpoint that must not be chosen, or null
+     * @return the endpoint to send the request to, or null if the only
+     * endpoint is the excluded one
+     */
+    Endpoint chooseEndpoint(Endpoint excluded) {
+        List<Endpoint> candidates = new ArrayList<>();
+        List<Endpoint> healthy = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == excluded) {
+                continue;
+            }
+            candidates.add(endpoint);
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (healthy.isEmpty()) {
+            Endpoint oldest = candidates.get(0);
+            for (Endpoint endpoint : candidates) {
+                if (endpoint.getEjectedAt() < oldest.getEjectedAt()) {
+                    oldest = endpoint;
+                }
+            }
+            return oldest;
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Endpoint a = healthy.get(first);
+        Endpoint b = healthy.get(second);
+        return a.getOutstanding() <= b.getOutstanding() ? a : b;
+    }
+
+    /**
+     * Run a health check on every endpoint, ejecting the ones that fail
+     * and readmitting the ones that pass.
+     */
+    public void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            if (isAlive(endpoint)) {
+                if (!endpoint.isHealthy()) {
+                    logger.info("App server " + endpoint.getName() + " passed the health check, readmitting it");
+                }
+                endpoint.readmit();
+            } else {
+                if (endpoint.isHealthy()) {
+                    logger.warn("App server " + endpoint.getName() + " failed the health check, ejecting it");
+                }
+                endpoint.eject();
+            }
+        }
+    }
+
+    /**
+     * Check the health of a single endpoint by pinging the server, which
+     * does not touch the storage, and fails while the server warms up.
+     *
+     * @param endpoint the endpoint to check
+     * @return true if the server answered properly
+     */
+    static boolean isAlive(Endpoint endpoint) {
+        JSONObject request = Marshaling.createRequestObject("", "none",
+                MarshalingKeys.PING_METHOD_KEY, "");
+        try {
+            JSONObject reply = endpoint.getHandler().sendRequestAndBlockUntilReply(request);
+            return reply != null && StatusCode.OK.equals(reply.get(MarshalingKeys.ERROR_CODE_KEY));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void startHealthChecks(int periodSeconds) {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "balancer-health-check");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkHealth();
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected exception during the health check of the app servers", e);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + ". AppServer Cfg: " + endpoints + ".";
+    }
+}
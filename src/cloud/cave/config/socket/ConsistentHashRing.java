@@ -0,0 +1,133 @@
+package cloud.cave.config.socket;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.*;
+
+/**
+ * A consistent hash ring mapping keys, like player ids, to nodes, like app
+ * servers. Each node is placed on the ring at a number of virtual node
+ * positions derived from its name, and a key belongs to the first node
+ * following the hash of the key on the ring.
+ * <p/>
+ * When a node joins or leaves, only the keys of the ring segments it takes
+ * over or gives up move to another node; about 1/n of the keys for n nodes.
+ * The virtual nodes spread the keys evenly over the nodes.
+ *
+ * @param <T> the type of the nodes
+ * @author Rohde Fischer
+ */
+public class ConsistentHashRing<T> {
+    /**
+     * The default number of ring positions per node
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final int virtualNodes;
+    private final NavigableMap<Integer, T> ring;
+    private final Map<T, String> names;
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Create an empty ring.
+     *
+     * @param virtualNodes the number of ring positions per node
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        this.ring = new TreeMap<>();
+        this.names = new LinkedHashMap<>();
+    }
+
+    /**
+     * Add a node to the ring. The positions of the node depend on its name
+     * only, so all clients with the same nodes build the same ring.
+     *
+     * @param node the node
+     * @param name the unique name of the node, like 'host:port'
+     */
+    public synchronized void add(T node, String name) {
+        names.put(node, name);
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(name + "#" + i), node);
+        }
+    }
+
+    /**
+     * Remove a node from the ring, moving its keys to the following nodes.
+     *
+     * @param node the node
+     */
+    public synchronized void remove(T node) {
+        String name = names.remove(node);
+        if (name == null) {
+            return;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            int position = hash(name + "#" + i);
+            if (node.equals(ring.get(position))) {
+                ring.remove(position);
+            }
+        }
+    }
+
+    /**
+     * Get the node owning the key.
+     *
+     * @param key the key
+     * @return the owner, or null if the ring is empty
+     */
+    public synchronized T get(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, T> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Get all the nodes in the order they take over the key, the owner
+     * first. Used to fall back to the next node when the owner fails.
+     *
+     * @param key the key
+     * @return the distinct nodes, starting with the owner of the key
+     */
+    public synchronized List<T> getPreferenceList(String key) {
+        List<T> preference = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return preference;
+        }
+        int start = hash(key);
+        Iterable<T> walk = Iterables.concat(ring.tailMap(start, true).values(), ring.headMap(start, false).values());
+        for (T node : walk) {
+            if (!preference.contains(node)) {
+                preference.add(node);
+                if (preference.size() == names.size()) {
+                    break;
+                }
+            }
+        }
+        return preference;
+    }
+
+    /**
+     * Get the number of nodes on the ring.
+     *
+     * @return the number of nodes
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+
+    private static int hash(String value) {
+        return HASH.hashString(value, Charsets.UTF_8).asInt();
+    }
+}
@@ -0,0 +1,75 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.ClientRequestHandler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single app server endpoint as seen from the client side: the request
+ * handler that talks to it, the number of requests presently outstanding on
+ * it, and whether it is currently ejected due to failing health checks.
+ * <p/>
+ * Shared by the client request handlers that spread requests over all the
+ * servers given in the ServerConfiguration.
+ *
+ * @author Rohde Fischer
+ */
+class Endpoint {
+    private final String name;
+    private final ClientRequestHandler handler;
+    private final AtomicInteger outstanding;
+    private volatile boolean healthy;
+    private volatile long ejectedAt;
+
+    Endpoint(String name, ClientRequestHandler handler) {
+        this.name = name;
+        this.handler = handler;
+        this.outstanding = new AtomicInteger(0);
+        this.healthy = true;
+        this.ejectedAt = 0;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    ClientRequestHandler getHandler() {
+        return handler;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    void requestStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    void requestEnded() {
+        outstanding.decrementAndGet();
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    long getEjectedAt() {
+        return ejectedAt;
+    }
+
+    void eject() {
+        if (healthy) {
+            ejectedAt = System.currentTimeMillis();
+        }
+        healthy = false;
+    }
+
+    void readmit() {
+        healthy = true;
+    }
+
+    @Override
+    public String toString() {
+        return name + (healthy ? "" : " (ejected)");
+    }
+}
@@ -0,0 +1,236 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.ClientRequestHandler;
+import cloud.cave.ipc.MarshalingKeys;
+import com.google.common.collect.ImmutableSet;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * A balancing client request handler that hedges the idempotent read
+ * requests to cut the tail latency: if the reply of a read has not arrived
+ * within the p95 of the recently observed latencies, a duplicate request is
+ * sent to another server, the first reply wins, and the other request is
+ * cancelled.
+ * <p/>
+ * Cancelling interrupts the thread of the losing request, which does not
+ * stop a blocked socket read. The socket request handlers of the servers
+ * therefore give up on a reply after HEDGED_READ_TIMEOUT_MILLIS, which
+ * bounds how long a losing request keeps its thread and connection.
+ * <p/>
+ * Only the methods in HEDGED_METHODS are ever hedged; all other requests are
+ * sent exactly once as in the BalancingClientRequestHandler. Hedges are paid
+ * for from a budget that is refilled by a fraction of a token for every
+ * request, so hedging can never add more than that fraction of extra load,
+ * not even when all servers are slow during an outage.
+ *
+ * @author Rohde Fischer
+ */
+public class HedgingClientRequestHandler extends BalancingClientRequestHandler {
+    private static final Logger logger = LoggerFactory.getLogger(HedgingClientRequestHandler.class);
+
+    /**
+     * The read requests that are safe to send twice
+     */
+    public static final Set<String> HEDGED_METHODS = ImmutableSet.of(
+            MarshalingKeys.GET_EXITSET_METHOD_KEY,
+            MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+            MarshalingKeys.GET_MESSAGE_LIST_METHOD_KEY);
+
+    /**
+     * The percentile of the observed latencies to wait before hedging
+     */
+    public static final double HEDGE_PERCENTILE = 95.0;
+
+    /**
+     * Lower bound on the hedging delay, also used until latencies are recorded
+     */
+    public static final long MINIMUM_HEDGE_DELAY_MILLIS = 10;
+
+    /**
+     * The fraction of a hedge earned by every request, i.e. at most
+     * one request in ten is hedged
+     */
+    public static final double HEDGE_BUDGET_RATIO = 0.1;
+
+    /**
+     * The maximal number of hedges that can be saved up
+     */
+    public static final double HEDGE_BUDGET_MAX = 10.0;
+
+    /**
+     * Milliseconds the socket request handlers of the servers wait for a
+     * reply before giving up on it
+     */
+    public static final int HEDGED_READ_TIMEOUT_MILLIS = 10000;
+
+    private final LatencyTracker latencies;
+    private final ExecutorService executor;
+    private double hedgeBudget;
+    private int hedgeCount;
+
+    public HedgingClientRequestHandler() {
+        super();
+        latencies = new LatencyTracker(256);
+        executor = createExecutor();
+        hedgeBudget = HEDGE_BUDGET_MAX;
+    }
+
+    /**
+     * Create a hedging handler over the given request handlers. Should not be
+     * used except for the test code, the handlers must be initialized already.
+     *
+     * @param handlers the request handlers for the individual servers
+     */
+    public HedgingClientRequestHandler(List<ClientRequestHandler> handlers) {
+        super(handlers);
+        latencies = new LatencyTracker(256);
+        executor = createExecutor();
+        hedgeBudget = HEDGE_BUDGET_MAX;
+    }
+
+    @Override
+    ClientRequestHandler createSocketHandler() {
+        return new SocketClientRequestHandler(HEDGED_READ_TIMEOUT_MILLIS);
+    }
+
+    private static ExecutorService createExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hedged-request");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        earnHedgeBudget();
+        final Endpoint primary = chooseEndpoint(null);
+        final Object method = requestJson.get(MarshalingKeys.METHOD_KEY);
+
+        if (!HEDGED_METHODS.contains(method)) {
+            return send(primary, requestJson);
+        }
+        return sendHedged(primary, requestJson);
+    }
+
+    private JSONObject sendHedged(Endpoint primary, JSONObject requestJson) {
+        CompletionService<JSONObject> completion = new ExecutorCompletionService<>(executor);
+        List<Future<JSONObject>> futures = new ArrayList<>(2);
+        futures.add(completion.submit(createSend(primary, requestJson)));
+
+        CaveIPCException lastFailure = null;
+        try {
+            Future<JSONObject> done = completion.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+
+            if (done == null) {
+                Endpoint secondary = chooseEndpoint(primary);
+                if (secondary != null && spendHedgeBudget()) {
+                    logger.debug("Hedging " + requestJson.get(MarshalingKeys.METHOD_KEY) + " to " + secondary.getName());
+                    futures.add(completion.submit(createSend(secondary, requestJson)));
+                }
+                done = completion.take();
+            }
+
+            // Take the first successful reply among the requests in flight
+            int remaining = futures.size();
+            while (true) {
+                remaining--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    lastFailure = asIPCException(e.getCause());
+                }
+                if (remaining == 0) {
+                    throw lastFailure;
+                }
+                done = completion.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CaveIPCException("Interrupted while waiting for the reply", e);
+        } finally {
+            for (Future<JSONObject> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Callable<JSONObject> createSend(final Endpoint endpoint, final JSONObject requestJson) {
+        return new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return timedSend(endpoint, requestJson);
+            }
+        };
+    }
+
+    /**
+     * Send a hedged read, recording its latency, so the hedging delay is
+     * computed from the latencies of the hedged reads only.
+     */
+    private JSONObject timedSend(Endpoint endpoint, JSONObject requestJson) {
+        long start = System.currentTimeMillis();
+        JSONObject reply = send(endpoint, requestJson);
+        latencies.record(System.currentTimeMillis() - start);
+        return reply;
+    }
+
+    /**
+     * Unwrap the failure of a single request. IPC failures are returned so
+     * the other request in flight still gets its chance, anything else is
+     * a programming error and is rethrown at once.
+     */
+    private static CaveIPCException asIPCException(Throwable cause) {
+        if (cause instanceof CaveIPCException) {
+            return (CaveIPCException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new Error("Unexpected failure of the request", cause);
+    }
+
+    /**
+     * Get the delay before a read is hedged, which is the HEDGE_PERCENTILE of
+     * the recently observed latencies.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getHedgeDelay() {
+        return Math.max(MINIMUM_HEDGE_DELAY_MILLIS,
+                latencies.percentile(HEDGE_PERCENTILE, MINIMUM_HEDGE_DELAY_MILLIS));
+    }
+
+    private synchronized void earnHedgeBudget() {
+        hedgeBudget = Math.min(HEDGE_BUDGET_MAX, hedgeBudget + HEDGE_BUDGET_RATIO);
+    }
+
+    private synchronized boolean spendHedgeBudget() {
+        if (hedgeBudget < 1.0) {
+            return false;
+        }
+        hedgeBudget -= 1.0;
+        hedgeCount++;
+        return true;
+    }
+
+    /**
+     * Get the number of hedged requests sent since creation.
+     *
+     * @return the number of hedges
+     */
+    public synchronized int getHedgeCount() {
+        return hedgeCount;
+    }
+}
@@ -0,0 +1,51 @@
+package cloud.cave.config.socket;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request latencies in a ring buffer and computes
+ * percentiles over them. Used to adapt timeouts and hedging delays to the
+ * latency actually observed.
+ *
+ * @author Rohde Fischer
+ */
+class LatencyTracker {
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    LatencyTracker(int capacity) {
+        samples = new long[capacity];
+        next = 0;
+        count = 0;
+    }
+
+    synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Compute the given percentile of the recorded latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @param fallback   the value to return if nothing is recorded yet
+     * @return the latency in milliseconds at the percentile
+     */
+    synchronized long percentile(double percentile, long fallback) {
+        if (count == 0) {
+            return fallback;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,248 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.ClientRequestHandler;
+import cloud.cave.ipc.EventSink;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.ServerData;
+import com.google.common.util.concurrent.SettableFuture;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client request handler that sends all requests over a small, fixed set of
+ * persistent connections to the app servers, instead of a new connection for
+ * every request. Any number of requests may be in flight on a connection at
+ * the same time: each request is tagged with a MarshalingKeys.REQUEST_ID_KEY,
+ * and a reader thread per connection hands each reply to the request with
+ * the same id.
+ * <p/>
+ * The app servers must run the MultiplexingSocketReactor. The connections are
+ * spread round robin over the servers in the configuration, and are opened
+ * lazily and reopened after a failure. A failed connection fails all the
+ * requests in flight on it.
+ * <p/>
+ * Events pushed by the server, after a subscription made through this
+ * handler, are delivered to the event sink set by setEventSink. As the
+ * subscription is tied to the connection it was made on, the events of a
+ * failed connection are lost and the subscription must be renewed.
+ *
+ * @author Rohde Fischer
+ */
+public class MultiplexingClientRequestHandler implements ClientRequestHandler {
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexingClientRequestHandler.class);
+
+    /**
+     * The default number of connections per app server
+     */
+    public static final int CONNECTIONS_PER_SERVER = 4;
+
+    /**
+     * Seconds to wait for a reply before the request fails
+     */
+    public static final int REPLY_TIMEOUT_SECONDS = 30;
+
+    private final List<Connection> connections;
+    private final AtomicInteger nextConnection;
+    private final AtomicLong nextRequestID;
+    private volatile EventSink eventSink;
+
+    public MultiplexingClientRequestHandler() {
+        connections = new ArrayList<>();
+        nextConnection = new AtomicInteger(0);
+        nextRequestID = new AtomicLong(0);
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        connections.clear();
+        for (int i = 0; i < CONNECTIONS_PER_SERVER; i++) {
+            for (int s = 0; s < config.size(); s++) {
+                connections.add(new Connection(this, config.get(s)));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        Connection connection = connections.get(
+                (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.size());
+
+        // Tag a copy, the caller may reuse the request object
+        String requestID = Long.toString(nextRequestID.incrementAndGet());
+        JSONObject tagged = new JSONObject();
+        tagged.putAll(requestJson);
+        tagged.put(MarshalingKeys.REQUEST_ID_KEY, requestID);
+
+        Future<JSONObject> reply = connection.send(requestID, tagged);
+        try {
+            JSONObject replyJson = reply.get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            replyJson.remove(MarshalingKeys.REQUEST_ID_KEY);
+            return replyJson;
+        } catch (ExecutionException e) {
+            throw new CaveIPCException("Disconnected", (Exception) e.getCause());
+        } catch (TimeoutException e) {
+            connection.forget(requestID);
+            throw new CaveIPCException("No reply within " + REPLY_TIMEOUT_SECONDS + " seconds", e);
+        } catch (InterruptedException e) {
+            connection.forget(requestID);
+            Thread.currentThread().interrupt();
+            throw new CaveIPCException("Interrupted while waiting for the reply", e);
+        }
+    }
+
+    /**
+     * Set the sink that events pushed by the servers are delivered to.
+     *
+     * @param eventSink the sink, or null to drop the events
+     */
+    public void setEventSink(EventSink eventSink) {
+        this.eventSink = eventSink;
+    }
+
+    private void deliverEvent(JSONObject event) {
+        EventSink sink = eventSink;
+        if (sink == null || !sink.offer(event)) {
+            logger.debug("Dropping pushed event " + event);
+        }
+    }
+
+    public String toString() {
+        return "MultiplexingClientRequestHandler. Connections: " + connections + ".";
+    }
+
+    /**
+     * A single persistent connection and the requests in flight on it.
+     */
+    private static class Connection {
+        private final MultiplexingClientRequestHandler owner;
+        private final ServerData serverData;
+        private final Map<String, SettableFuture<JSONObject>> pending;
+        private Socket socket;
+        private PrintWriter out;
+
+        Connection(MultiplexingClientRequestHandler owner, ServerData serverData) {
+            this.owner = owner;
+            this.serverData = serverData;
+            this.pending = new ConcurrentHashMap<>();
+        }
+
+        Future<JSONObject> send(String requestID, JSONObject request) {
+            SettableFuture<JSONObject> reply = SettableFuture.create();
+            synchronized (this) {
+                try {
+                    if (socket == null) {
+                        open();
+                    }
+                    // Registered only on the connection it is written to, so
+                    // the failure of an earlier connection cannot fail it
+                    pending.put(requestID, reply);
+                    out.println(request.toString());
+                    out.flush();
+                    if (out.checkError()) {
+                        throw new IOException("Failed writing to " + serverData);
+                    }
+                } catch (IOException e) {
+                    logger.info("The connection to " + serverData + " failed, it is reopened by the next request", e);
+                    if (socket == null) {
+                        // Could not even connect, so only this request is affected
+                        pending.remove(requestID);
+                        reply.setException(e);
+                    } else {
+                        fail(socket, e);
+                        // Unless failed with the others, as opening failed
+                        // before it was registered
+                        reply.setException(e);
+                    }
+                }
+            }
+            return reply;
+        }
+
+        void forget(String requestID) {
+            pending.remove(requestID);
+        }
+
+        private void open() throws IOException {
+            final Socket opened = new Socket(serverData.getHostName(), serverData.getPortNumber());
+            socket = opened;
+            out = new PrintWriter(new OutputStreamWriter(opened.getOutputStream(), "UTF-8"));
+            final BufferedReader in = new BufferedReader(new InputStreamReader(opened.getInputStream(), "UTF-8"));
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readReplies(opened, in);
+                }
+            }, "multiplex-client-" + serverData);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readReplies(Socket opened, BufferedReader in) {
+            JSONParser parser = new JSONParser();
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    JSONObject reply = (JSONObject) parser.parse(line);
+                    if (reply.containsKey(MarshalingKeys.EVENT_TYPE_KEY)) {
+                        owner.deliverEvent(reply);
+                        continue;
+                    }
+                    Object requestID = reply.get(MarshalingKeys.REQUEST_ID_KEY);
+                    SettableFuture<JSONObject> waiting = requestID == null ? null : pending.remove(requestID.toString());
+                    if (waiting != null) {
+                        waiting.set(reply);
+                    } else {
+                        logger.warn("Dropping reply for unknown request " + requestID + " from " + serverData);
+                    }
+                }
+                fail(opened, new IOException("Connection closed by " + serverData));
+            } catch (IOException | ParseException e) {
+                fail(opened, e);
+            }
+        }
+
+        /**
+         * Close the connection and fail the requests in flight on it, unless
+         * the connection has been replaced already.
+         */
+        private synchronized void fail(Socket failed, Exception cause) {
+            if (failed == null || failed != socket) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore, the connection is given up anyway
+            }
+            socket = null;
+            out = null;
+            for (String requestID : pending.keySet()) {
+                SettableFuture<JSONObject> waiting = pending.remove(requestID);
+                if (waiting != null) {
+                    waiting.setException(cause);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return serverData + (socket == null ? " (closed)" : "");
+        }
+    }
+}
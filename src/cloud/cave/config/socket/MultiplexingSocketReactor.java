@@ -0,0 +1,319 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.domain.Region;
+import cloud.cave.ipc.*;
+import cloud.cave.server.common.ServerConfiguration;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A reactor for persistent, multiplexed connections, as opened by the
+ * MultiplexingClientRequestHandler. Unlike the SocketReactor a connection
+ * is kept open for any number of requests, and several requests may be in
+ * flight on it at once: the requests are handled by a thread pool, and each
+ * reply carries the MarshalingKeys.REQUEST_ID_KEY of its request, so the
+ * replies may be written back in any order.
+ * <p/>
+ * Requests without a request id are also accepted, and replied to as well,
+ * but then the client must wait for each reply before sending the next
+ * request.
+ * <p/>
+ * The requests wait for a worker in a bounded queue; a request arriving
+ * while the queue is full is answered at once with SERVER_OVERLOADED, so
+ * the client retries it later instead of piling up work.
+ * <p/>
+ * Each connection is also an EventSink for events pushed to the client, if
+ * the invoker is a SubscribingInvoker. The events wait in a bounded queue
+ * and are written by the workers; a client not reading its events fast
+ * enough to keep the queue from filling up is disconnected.
+ *
+ * @author Rohde Fischer
+ */
+public class MultiplexingSocketReactor implements Reactor {
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexingSocketReactor.class);
+
+    /**
+     * The number of threads handling requests, shared by all connections
+     */
+    public static final int WORKER_THREADS = 32;
+
+    /**
+     * The maximal number of requests and event drains waiting for a worker
+     */
+    public static final int WORKER_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The maximal number of pushed events waiting to be written to a client
+     */
+    public static final int OUTBOUND_QUEUE_CAPACITY = 256;
+
+    private int portNumber;
+    private Invoker invoker;
+    private Region region;
+    private ServerSocket serverSocket = null;
+    private ThreadPoolExecutor workers;
+
+    @Override
+    public void initialize(Invoker invoker, ServerConfiguration config) {
+        portNumber = config.get(0).getPortNumber();
+        this.invoker = invoker;
+    }
+
+    @Override
+    public void setRegion(Region region) {
+        this.region = region;
+    }
+
+    @Override
+    public Region getRegion() {
+        return region;
+    }
+
+    @Override
+    public void run() {
+        openServerSocket();
+        workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_CAPACITY));
+
+        logger.info(String.format("*** Multiplexing server socket established on port %1$d ***", this.portNumber));
+
+        while (!serverSocket.isClosed()) {
+            final Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw new RuntimeException("Error accepting client connection", e);
+            }
+
+            // A connection failing before it is set up is dropped, the
+            // others are still accepted
+            try {
+                Thread reader = new Thread(new ConnectionReader(clientSocket),
+                        "multiplex-reader-" + clientSocket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (Exception e) {
+                logger.error("Could not set up the connection from " + clientSocket.getRemoteSocketAddress()
+                        + ". Continueing loop.", e);
+                try {
+                    clientSocket.close();
+                } catch (IOException closing) {
+                    logger.warn("Error closing the connection", closing);
+                }
+            }
+        }
+
+        workers.shutdown();
+        logger.info("Server Stopped.");
+    }
+
+    /**
+     * Stop accepting connections, and let the run method return.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Error closing the server socket", e);
+        }
+    }
+
+    private void openServerSocket() {
+        try {
+            this.serverSocket = new ServerSocket(this.portNumber);
+        } catch (IOException e) {
+            logger.error("Cannot open port " + portNumber, e);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Handle a single request line, always computing a reply.
+     */
+    private JSONObject handleLine(String inputLine, EventSink sink) {
+        JSONObject requestJson = null;
+        JSONObject reply;
+        try {
+            requestJson = (JSONObject) new JSONParser().parse(inputLine);
+            if (invoker instanceof SubscribingInvoker) {
+                reply = ((SubscribingInvoker) invoker).handleRequest(requestJson, sink);
+            } else {
+                reply = invoker.handleRequest(requestJson);
+            }
+        } catch (ParseException e) {
+            String errorMsg = "JSON Parse error on input: " + inputLine;
+            logger.warn(errorMsg, e);
+            reply = Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_FAILURE, errorMsg);
+        } catch (Exception e) {
+            String errorMsg = "Error when handling the input: " + inputLine;
+            logger.warn(errorMsg, e);
+            reply = Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_FAILURE, errorMsg);
+        }
+        if (reply == null) {
+            String errorMsg = "The reply from the invoker was null";
+            logger.error(errorMsg);
+            reply = Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_FAILURE, errorMsg);
+        }
+        return tag(reply, requestJson);
+    }
+
+    /**
+     * Compute the reply to a request there is no worker for.
+     */
+    private JSONObject overloaded(String inputLine) {
+        JSONObject requestJson = null;
+        try {
+            requestJson = (JSONObject) new JSONParser().parse(inputLine);
+        } catch (ParseException | ClassCastException e) {
+            // Answered untagged, as the request id cannot be read
+        }
+        return tag(Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_OVERLOADED,
+                "MultiplexingSocketReactor: All workers are busy, retry later"), requestJson);
+    }
+
+    /**
+     * Tag the reply with the request id of the request, if it has one.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject tag(JSONObject reply, JSONObject requestJson) {
+        if (requestJson == null || !requestJson.containsKey(MarshalingKeys.REQUEST_ID_KEY)) {
+            return reply;
+        }
+        // Copy, as the invoker may hand out the same reply object twice
+        JSONObject tagged = new JSONObject();
+        tagged.putAll(reply);
+        tagged.put(MarshalingKeys.REQUEST_ID_KEY, requestJson.get(MarshalingKeys.REQUEST_ID_KEY));
+        return tagged;
+    }
+
+    public String toString() {
+        return "MultiplexingSocketReactor. Assigned to port: " + portNumber;
+    }
+
+    /**
+     * Reads the requests of a single connection until it is closed, and
+     * hands them over to the workers. Also the sink of the events pushed
+     * to the connection.
+     */
+    private class ConnectionReader implements Runnable, EventSink {
+        private final Socket clientSocket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private final BlockingQueue<JSONObject> outbound;
+        private final AtomicBoolean drainScheduled;
+
+        public ConnectionReader(Socket clientSocket) throws IOException {
+            this.clientSocket = clientSocket;
+            this.out = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), "UTF-8"));
+            this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), "UTF-8"));
+            this.outbound = new ArrayBlockingQueue<>(OUTBOUND_QUEUE_CAPACITY);
+            this.drainScheduled = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String inputLine;
+                while ((inputLine = in.readLine()) != null) {
+                    final String line = inputLine;
+                    try {
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                reply(handleLine(line, ConnectionReader.this));
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        reply(overloaded(line));
+                    }
+                }
+            } catch (SocketException e) {
+                logger.debug("Connection from " + clientSocket.getRemoteSocketAddress() + " was reset", e);
+            } catch (IOException e) {
+                logger.error("IOException while reading from " + clientSocket.getRemoteSocketAddress(), e);
+            } finally {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    logger.error("Error closing the connection", e);
+                }
+            }
+        }
+
+        private void reply(JSONObject reply) {
+            synchronized (out) {
+                out.println(reply.toString());
+                out.flush();
+            }
+        }
+
+        @Override
+        public boolean offer(JSONObject event) {
+            if (!isOpen() || !outbound.offer(event)) {
+                return false;
+            }
+            if (drainScheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            drain();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The event waits, and is drained with the next one
+                    drainScheduled.set(false);
+                }
+            }
+            return true;
+        }
+
+        private void drain() {
+            // Only one drain runs at a time, so the events keep their order.
+            // The flag is cleared once the queue is empty, and an event
+            // offered in between is drained here unless its offer already
+            // scheduled another drain
+            do {
+                JSONObject event;
+                while ((event = outbound.poll()) != null) {
+                    reply(event);
+                }
+                drainScheduled.set(false);
+            } while (!outbound.isEmpty() && drainScheduled.compareAndSet(false, true));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !clientSocket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            outbound.clear();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logger.error("Error closing the connection", e);
+            }
+        }
+    }
+}
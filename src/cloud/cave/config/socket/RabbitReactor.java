@@ -51,10 +51,10 @@ public class RabbitReactor implements Reactor {
         try {
             Connection connection = connectionFactory.newConnection();
             Channel channel = connection.createChannel();
-            channel.queueDeclare(RabbitMQConfig.RPC_QUEUE_NAME, true, false, false, null);
+            String queueName = declareQueue(channel);
 
             QueueingConsumer consumer = new QueueingConsumer(channel);
-            channel.basicConsume(RabbitMQConfig.RPC_QUEUE_NAME, false, consumer);
+            channel.basicConsume(queueName, false, consumer);
             logger.info("*** Connected to RabbitMQ ***");
 
             while (true){
@@ -102,6 +102,18 @@ public class RabbitReactor implements Reactor {
 
     }
 
+    /**
+     * Declare the queue this reactor consumes the requests from.
+     *
+     * @param channel the channel to consume on
+     * @return the name of the queue
+     * @throws IOException in case the declaration fails
+     */
+    String declareQueue(Channel channel) throws IOException {
+        channel.queueDeclare(RabbitMQConfig.RPC_QUEUE_NAME, true, false, false, null);
+        return RabbitMQConfig.RPC_QUEUE_NAME;
+    }
+
     String readMessageAndReply(String message) {
         JSONObject messageJSON, reply;
         JSONParser parser = new JSONParser();
@@ -42,8 +42,7 @@ public class RabbitRequestHandler implements ClientRequestHandler {
             Channel channel = connection.createChannel();
             String callbackQueueName = channel.queueDeclare().getQueue();
             if(!Strings.isNullOrEmpty(exchangeName)){
-                channel.exchangeDeclare(exchangeName, "topic");
-                channel.queueBind(callbackQueueName, exchangeName, callbackQueueName);
+                declareExchange(channel, exchangeName, callbackQueueName);
             }
 
             String corrId = java.util.UUID.randomUUID().toString();
@@ -96,6 +95,20 @@ public class RabbitRequestHandler implements ClientRequestHandler {
         return replyJson;
     }
 
+    /**
+     * Declare the exchange the requests are published to, and bind the
+     * callback queue to it if the replies come through it too.
+     *
+     * @param channel           the channel of the request
+     * @param exchangeName      the name of the exchange
+     * @param callbackQueueName the name of the queue the reply is sent to
+     * @throws IOException in case the declaration fails
+     */
+    void declareExchange(Channel channel, String exchangeName, String callbackQueueName) throws IOException {
+        channel.exchangeDeclare(exchangeName, "topic");
+        channel.queueBind(callbackQueueName, exchangeName, callbackQueueName);
+    }
+
     @Override
     public void initialize(ServerConfiguration config) {
         this.config = config;
@@ -0,0 +1,36 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.config.RabbitMQConfig;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * A RabbitMQ reactor receiving the requests of the players it owns, as
+ * routed by the RabbitStickyRequestHandler. The reactor binds its own
+ * exclusive queue to the consistent hash exchange, which places it on the
+ * hash ring with BINDING_WEIGHT points.
+ *
+ * @author Rohde Fischer
+ */
+public class RabbitStickyReactor extends RabbitReactor {
+    /**
+     * The type of the exchange provided by the rabbitmq_consistent_hash_exchange plugin
+     */
+    static final String CONSISTENT_HASH_EXCHANGE_TYPE = "x-consistent-hash";
+
+    /**
+     * The number of points of each app server on the hash ring of the
+     * exchange, equal for all servers to give them an equal share
+     */
+    public static final String BINDING_WEIGHT = "20";
+
+    @Override
+    String declareQueue(Channel channel) throws IOException {
+        channel.exchangeDeclare(RabbitMQConfig.STICKY_EXCHANGE_NAME, CONSISTENT_HASH_EXCHANGE_TYPE);
+        // Exclusive, so the binding is removed when this server goes away
+        String queueName = channel.queueDeclare().getQueue();
+        channel.queueBind(queueName, RabbitMQConfig.STICKY_EXCHANGE_NAME, BINDING_WEIGHT);
+        return queueName;
+    }
+}
@@ -0,0 +1,44 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.config.RabbitMQConfig;
+import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.MarshalingKeys;
+import com.google.common.base.Strings;
+import com.rabbitmq.client.Channel;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A RabbitMQ request handler that sends all the requests of a player to the
+ * same app server. The requests are published to a consistent hash exchange
+ * (the rabbitmq_consistent_hash_exchange plugin must be enabled) with the
+ * player id as routing key, and every RabbitStickyReactor binds its own queue
+ * to the exchange.
+ * <p/>
+ * When an app server stops, its queue and binding go away with its
+ * connection, and only its players are moved to the other servers. Requests
+ * not belonging to a player, like login, get a random routing key.
+ *
+ * @author Rohde Fischer
+ */
+public class RabbitStickyRequestHandler extends RabbitRequestHandler {
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        String routingKey = (String) requestJson.get(MarshalingKeys.PLAYER_ID_KEY);
+        if (Strings.isNullOrEmpty(routingKey)
+                || MarshalingKeys.LOGIN_METHOD_KEY.equals(requestJson.get(MarshalingKeys.METHOD_KEY))) {
+            routingKey = UUID.randomUUID().toString();
+        }
+        return doSendRequestAndBlockUntilReply(RabbitMQConfig.STICKY_EXCHANGE_NAME, routingKey, requestJson);
+    }
+
+    @Override
+    void declareExchange(Channel channel, String exchangeName, String callbackQueueName) throws IOException {
+        // The replies come through the default exchange, binding the
+        // callback queue here would make it a member of the hash ring
+        channel.exchangeDeclare(exchangeName, RabbitStickyReactor.CONSISTENT_HASH_EXCHANGE_TYPE);
+    }
+}
@@ -0,0 +1,198 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.*;
+import cloud.cave.server.common.ServerConfiguration;
+import com.google.common.collect.ImmutableSet;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A decorator of a client request handler that retries requests failing due
+ * to transient errors, like a lost connection, an unavailable storage or
+ * an overloaded gateway.
+ * <p/>
+ * Only requests that are safe to repeat are retried: the reads, and the
+ * writes in KEYED_METHODS, which get an idempotency key added to the request
+ * so the server executes them only once however many times they are sent.
+ * The retries back off exponentially with full jitter, and are paid for from
+ * a budget that is refilled by a fraction of a retry for every request, so
+ * retries cannot multiply the load on servers that are already failing.
+ *
+ * @author Rohde Fischer
+ */
+public class RetryingClientRequestHandler implements ClientRequestHandler {
+    private static final Logger logger = LoggerFactory.getLogger(RetryingClientRequestHandler.class);
+
+    /**
+     * The reads, which can be repeated without any harm
+     */
+    public static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of(
+            MarshalingKeys.GET_POSITION_METHOD_KEY,
+            MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+            MarshalingKeys.GET_REGION_METHOD_KEY,
+            MarshalingKeys.GET_PLAYERS_HERE_METHOD_KEY,
+            MarshalingKeys.GET_EXITSET_METHOD_KEY,
+            MarshalingKeys.GET_WEATHER_METHOD_KEY,
+            MarshalingKeys.GET_MESSAGE_LIST_METHOD_KEY,
+            MarshalingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY,
+            MarshalingKeys.PING_METHOD_KEY);
+
+    /**
+     * The writes made safe to repeat by an idempotency key
+     */
+    public static final Set<String> KEYED_METHODS = ImmutableSet.of(
+            MarshalingKeys.MOVE_METHOD_KEY,
+            MarshalingKeys.DIG_ROOM_METHOD_KEY,
+            MarshalingKeys.ADD_MESSAGE_METHOD_KEY);
+
+    /**
+     * The maximal number of times a request is sent
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The backoff before the first retry, doubled for each later retry
+     */
+    public static final long BASE_BACKOFF_MILLIS = 50;
+
+    /**
+     * The maximal backoff before a retry
+     */
+    public static final long MAX_BACKOFF_MILLIS = 2000;
+
+    /**
+     * The fraction of a retry earned by every request
+     */
+    public static final double RETRY_BUDGET_RATIO = 0.1;
+
+    /**
+     * The maximal number of retries that can be saved up
+     */
+    public static final double RETRY_BUDGET_MAX = 10.0;
+
+    private final ClientRequestHandler decoratee;
+    private final Random random;
+    private double retryBudget;
+    private int retryCount;
+
+    /**
+     * Create a retrying handler over a BalancingClientRequestHandler, so a
+     * retry may be sent to another app server than the failed request.
+     */
+    public RetryingClientRequestHandler() {
+        this(new BalancingClientRequestHandler());
+    }
+
+    public RetryingClientRequestHandler(ClientRequestHandler decoratee) {
+        this.decoratee = decoratee;
+        this.random = new Random();
+        this.retryBudget = RETRY_BUDGET_MAX;
+        this.retryCount = 0;
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        earnRetryBudget();
+        final Object method = requestJson.get(MarshalingKeys.METHOD_KEY);
+        final boolean retriable;
+        if (KEYED_METHODS.contains(method)) {
+            if (!requestJson.containsKey(MarshalingKeys.IDEMPOTENCY_KEY)) {
+                requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, UUID.randomUUID().toString());
+            }
+            retriable = true;
+        } else {
+            retriable = IDEMPOTENT_METHODS.contains(method);
+        }
+
+        int attempt = 1;
+        while (true) {
+            JSONObject reply = null;
+            CaveIPCException failure = null;
+            try {
+                reply = decoratee.sendRequestAndBlockUntilReply(requestJson);
+            } catch (CaveIPCException e) {
+                failure = e;
+            }
+
+            if (!isTransientFailure(reply, failure)) {
+                return reply;
+            }
+            if (!retriable || attempt >= MAX_ATTEMPTS || !spendRetryBudget()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return reply;
+            }
+
+            logger.info("Retrying " + method + " after a transient failure, attempt " + (attempt + 1));
+            backoff(attempt);
+            attempt++;
+        }
+    }
+
+    private static boolean isTransientFailure(JSONObject reply, CaveIPCException failure) {
+        if (failure != null || reply == null) {
+            return true;
+        }
+        Object statusCode = reply.get(MarshalingKeys.ERROR_CODE_KEY);
+        return StatusCode.SERVER_STORAGE_UNAVAILABLE.equals(statusCode)
+                || StatusCode.SERVER_OVERLOADED.equals(statusCode);
+    }
+
+    /**
+     * Sleep before the next attempt, a random time up to an exponentially
+     * growing bound, so clients failing together do not retry together.
+     *
+     * @param attempt the number of the attempt that failed, starting at 1
+     */
+    private void backoff(int attempt) {
+        long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+        long sleep;
+        synchronized (random) {
+            sleep = (long) (random.nextDouble() * bound);
+        }
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CaveIPCException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    private synchronized void earnRetryBudget() {
+        retryBudget = Math.min(RETRY_BUDGET_MAX, retryBudget + RETRY_BUDGET_RATIO);
+    }
+
+    private synchronized boolean spendRetryBudget() {
+        if (retryBudget < 1.0) {
+            return false;
+        }
+        retryBudget -= 1.0;
+        retryCount++;
+        return true;
+    }
+
+    /**
+     * Get the number of retries sent since creation.
+     *
+     * @return the number of retries
+     */
+    public synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    public String toString() {
+        return "RetryingClientRequestHandler over " + decoratee;
+    }
+}
@@ -17,19 +17,40 @@ import org.slf4j.LoggerFactory;
  * request handler here uses the HTTP way of using sockets, that is, for each
  * request a client socket is created, the payload sent, and then the connection
  * is closed.
+ * <p/>
+ * A blocked read cannot be interrupted, so a handler may be given a read
+ * timeout, the longest the reply is awaited for. This bounds the life of a
+ * request that is no longer wanted, like the losing request of a hedged
+ * read. By default the reply is awaited for as long as it takes.
  *
  * @author Henrik Baerbak Christensen, University of Aarhus
  */
 public class SocketClientRequestHandler implements ClientRequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(SocketClientRequestHandler.class);
+
+    /**
+     * The read timeout that waits for the reply for as long as it takes
+     */
+    public static final int NO_READ_TIMEOUT = 0;
+
     private int portNumber;
     private String hostName;
-    private PrintWriter out;
-    private BufferedReader in;
+    private final int readTimeoutMillis;
 
     public SocketClientRequestHandler() {
+        this(NO_READ_TIMEOUT);
+    }
+
+    /**
+     * Create the request handler with a read timeout.
+     *
+     * @param readTimeoutMillis milliseconds to wait for the reply, or
+     *                          NO_READ_TIMEOUT to wait as long as it takes
+     */
+    public SocketClientRequestHandler(int readTimeoutMillis) {
         hostName = null;
         portNumber = -1;
+        this.readTimeoutMillis = readTimeoutMillis;
     }
 
     @Override
@@ -47,8 +68,9 @@ public class SocketClientRequestHandler implements ClientRequestHandler {
         // Create the socket to the host
         try {
             clientSocket = new Socket(hostName, portNumber);
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            clientSocket.setSoTimeout(readTimeoutMillis);
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 
             // Send the JSON request as a string to the app server
             out.println(requestJson.toString());
@@ -60,6 +82,9 @@ public class SocketClientRequestHandler implements ClientRequestHandler {
             replyJson = (JSONObject) parser.parse(reply);
         } catch (UnknownHostException e) {
             e.printStackTrace();
+        } catch (SocketTimeoutException e) {
+            logger.info("No reply from the cave socket within " + readTimeoutMillis + " ms, giving up.");
+            throw new CaveIPCException("Timed out", e);
         } catch (SocketException e) {
             logger.info("The cave socket threw an exception, the server is most likely out of reach. " +
                     "Check if the client is connected and if the server is running.", e);
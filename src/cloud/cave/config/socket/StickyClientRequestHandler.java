@@ -0,0 +1,100 @@
+package cloud.cave.config.socket;
+
+import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.ClientRequestHandler;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.server.common.ServerConfiguration;
+import com.google.common.base.Strings;
+import org.json.simple.JSONObject;
+
+import java.util.List;
+
+/**
+ * A client request handler that sends all the requests of a player to the
+ * same app server, so the per-server caches of the player stay warm. The
+ * server owning a player is found by consistent hashing of the player id
+ * over the servers in the server configuration.
+ * <p/>
+ * A server that is ejected, because it failed a request or a health check,
+ * hands its players over to the next server on the ring until it is
+ * readmitted; the players of the other servers are not moved. Requests not
+ * belonging to a player, like login, are balanced as by the superclass.
+ * <p/>
+ * Each request routed by player is tagged with MarshalingKeys.AFFINITY_KEY,
+ * telling the server whether it owns the player or is a fallback, which the
+ * server counts in its AffinityMonitor.
+ *
+ * @author Rohde Fischer
+ */
+public class StickyClientRequestHandler extends BalancingClientRequestHandler {
+    private ConsistentHashRing<Endpoint> ring;
+
+    public StickyClientRequestHandler() {
+        super();
+        ring = new ConsistentHashRing<>();
+    }
+
+    /**
+     * Create a sticky router over the given request handlers. Should not be
+     * used except for the test code, the handlers must be initialized
+     * already.
+     *
+     * @param handlers the request handlers for the individual servers
+     */
+    public StickyClientRequestHandler(List<ClientRequestHandler> handlers) {
+        super(handlers);
+        buildRing();
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        super.initialize(config);
+        buildRing();
+    }
+
+    private void buildRing() {
+        ConsistentHashRing<Endpoint> built = new ConsistentHashRing<>();
+        for (Endpoint endpoint : getEndpoints()) {
+            built.add(endpoint, endpoint.getName());
+        }
+        ring = built;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        String playerID = (String) requestJson.get(MarshalingKeys.PLAYER_ID_KEY);
+        Object methodKey = requestJson.get(MarshalingKeys.METHOD_KEY);
+        if (Strings.isNullOrEmpty(playerID) || MarshalingKeys.LOGIN_METHOD_KEY.equals(methodKey)) {
+            return super.sendRequestAndBlockUntilReply(requestJson);
+        }
+
+        List<Endpoint> preference = ring.getPreferenceList(playerID);
+        Endpoint owner = preference.get(0);
+        Endpoint chosen = owner;
+        for (Endpoint endpoint : preference) {
+            if (endpoint.isHealthy()) {
+                chosen = endpoint;
+                break;
+            }
+        }
+
+        // Tag a copy, the caller may reuse the request object
+        JSONObject tagged = new JSONObject();
+        tagged.putAll(requestJson);
+        tagged.put(MarshalingKeys.AFFINITY_KEY,
+                chosen == owner ? MarshalingKeys.AFFINITY_OWNER : MarshalingKeys.AFFINITY_FALLBACK);
+        return send(chosen, tagged);
+    }
+
+    /**
+     * Get the name of the server owning the player, whether it is healthy
+     * or not.
+     *
+     * @param playerID the id of the player
+     * @return the name of the owning server
+     */
+    public String getOwnerName(String playerID) {
+        return ring.get(playerID).getName();
+    }
+}
@@ -3,6 +3,13 @@
  * very simple socket technology. The connections are akin
  * the first HTTP protocol which initializes a socket, exchange
  * request and reply, and then close the socket.
+ * <p/>
+ * The BalancingClientRequestHandler spreads requests over all
+ * the app servers in the configuration, and the
+ * HedgingClientRequestHandler additionally hedges slow reads
+ * to a second server. The StickyClientRequestHandler and the
+ * RabbitStickyRequestHandler instead keep each player on one
+ * server by consistent hashing of the player id.
  */
 package cloud.cave.config.socket;
 
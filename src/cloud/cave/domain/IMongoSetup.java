@@ -9,6 +9,14 @@ import org.bson.Document;
  */
 public interface IMongoSetup {
     MongoCollection<Document> getCollection(String name);
+
+    /**
+     * Run a command on the database, like explain.
+     *
+     * @param command the command
+     * @return the answer of the database
+     */
+    Document runCommand(Document command);
     void initialize(ServerConfiguration config);
     void disconnect();
 }
@@ -126,6 +126,16 @@ public interface Player {
      */
     List<String> getPlayersHere(int offset);
 
+    /**
+     * Get a page of the in-game player names of the players in the same room
+     * as this player is in. The first page is asked for without a cursor, the
+     * next ones by the cursor of the page before.
+     *
+     * @param cursor the cursor of the page before, or null for the first page
+     * @return the page of player names, and the cursor of the next page
+     */
+    PlayerListPage getPageOfPlayersHere(String cursor);
+
     /**
      * Get a long description of the current room, which includes a textual list
      * of exits, and textual list of players in this room.
@@ -0,0 +1,50 @@
+package cloud.cave.domain;
+
+import java.util.List;
+
+/**
+ * A page of the names of the players in a room. The next page is asked for
+ * by the cursor of this one, which is opaque to the client; the last page
+ * has no cursor.
+ * <p/>
+ * A page costs the same to read however deep into the list it is, as the
+ * cursor tells where the page before it stopped, instead of how many
+ * players to skip.
+ *
+ * @author Rohde Fischer
+ */
+public final class PlayerListPage {
+    private final List<String> playerNames;
+    private final String cursor;
+
+    /**
+     * @param playerNames the names of the players on the page
+     * @param cursor      the cursor of the next page, null if this is the last
+     */
+    public PlayerListPage(List<String> playerNames, String cursor) {
+        this.playerNames = playerNames;
+        this.cursor = cursor;
+    }
+
+    public List<String> getPlayerNames() {
+        return playerNames;
+    }
+
+    /**
+     * Get the cursor to pass on to get the next page.
+     *
+     * @return the cursor, or null if this is the last page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean hasMore() {
+        return cursor != null;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerListPage [playerNames=" + playerNames + ", cursor=" + cursor + "]";
+    }
+}
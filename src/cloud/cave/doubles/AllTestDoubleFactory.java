@@ -3,8 +3,11 @@ package cloud.cave.doubles;
 import cloud.cave.config.CaveServerFactory;
 import cloud.cave.ipc.*;
 import cloud.cave.server.PlayerSessionCache;
+import cloud.cave.server.SessionTokenService;
 import cloud.cave.server.SimpleInMemoryCache;
 import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.invalidation.InProcessInvalidationBus;
+import cloud.cave.server.invalidation.InvalidationBus;
 import cloud.cave.server.service.ServerSubscriptionService;
 import cloud.cave.server.service.ServerWeatherService;
 import cloud.cave.service.*;
@@ -70,4 +73,16 @@ public class AllTestDoubleFactory implements CaveServerFactory {
     public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
         return new SimpleInMemoryCache();
     }
+
+    @Override
+    public SessionTokenService createSessionTokenService(CaveStorage storage) {
+        // Plain session ids, tests of the tokens create their own service
+        return null;
+    }
+
+    @Override
+    public InvalidationBus createInvalidationBus() {
+        // A single server, delivering at once to keep the tests deterministic
+        return new InProcessInvalidationBus(0);
+    }
 }
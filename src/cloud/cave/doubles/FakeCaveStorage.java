@@ -1,10 +1,15 @@
 package cloud.cave.doubles;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import cloud.cave.domain.*;
 import cloud.cave.server.common.*;
+import cloud.cave.server.service.ServerCaveStorage;
 import cloud.cave.service.*;
+import com.google.common.base.Ticker;
 
 /**
  * Fake object implementation of storage. Map data structures are used to
@@ -28,6 +33,7 @@ public class FakeCaveStorage implements CaveStorage {
         this.serverConfiguration = config;
         roomMap = new HashMap<>();
         playerId2PlayerSpecs = new HashMap<>(5);
+        sessionLastSeen = new HashMap<>(5);
 
         List<String> messageList = new ArrayList<>();
         messageList.add("[Mark] First Like");
@@ -84,19 +90,59 @@ public class FakeCaveStorage implements CaveStorage {
     @Override
     public List<Direction> getSetOfExitsFromRoom(String positionString) {
         List<Direction> listOfExits = new ArrayList<>();
-        Point3 pZero = Point3.parseString(positionString);
-        Point3 p;
-        for (Direction d : Direction.values()) {
-            p = new Point3(pZero.x(), pZero.y(), pZero.z());
-            p.translate(d);
-            String position = p.getPositionString();
-            if (roomMap.containsKey(position)) {
-                listOfExits.add(d);
+        Map<String, Direction> neighbours = ExitMask.neighboursOf(positionString);
+        Set<String> existing = roomsExist(neighbours.keySet());
+        for (Map.Entry<String, Direction> neighbour : neighbours.entrySet()) {
+            if (existing.contains(neighbour.getKey())) {
+                listOfExits.add(neighbour.getValue());
             }
         }
         return listOfExits;
     }
 
+    @Override
+    public Map<String, RoomRecord> getRooms(Collection<String> positionStrings) {
+        Map<String, RoomRecord> rooms = new HashMap<>();
+        for (String position : positionStrings) {
+            RoomRecord room = roomMap.get(position);
+            if (room != null) {
+                rooms.put(position, room);
+            }
+        }
+        return rooms;
+    }
+
+    @Override
+    public Set<String> roomsExist(Collection<String> positionStrings) {
+        Set<String> existing = new HashSet<>();
+        for (String position : positionStrings) {
+            if (roomMap.containsKey(position)) {
+                existing.add(position);
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public List<String> getRoomPositions(String afterPosition, int limit) {
+        List<String> positions = new ArrayList<>(new TreeSet<>(roomMap.keySet()).tailSet(
+                afterPosition == null ? "" : afterPosition, afterPosition == null));
+        return positions.subList(0, Math.min(limit, positions.size()));
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max) {
+        Map<String, RoomRecord> rooms = new HashMap<>();
+        for (Map.Entry<String, RoomRecord> room : roomMap.entrySet()) {
+            Point3 p = Point3.parseString(room.getKey());
+            if (p.x() >= min.x() && p.x() <= max.x() && p.y() >= min.y() && p.y() <= max.y()
+                    && p.z() >= min.z() && p.z() <= max.z()) {
+                rooms.put(room.getKey(), room.getValue());
+            }
+        }
+        return rooms;
+    }
+
     // === The table with primary key playerID whose columns are the
     // specifications of a given player. The private datastructure PlayerSpecs
     // represents the
@@ -110,9 +156,77 @@ public class FakeCaveStorage implements CaveStorage {
         return ps;
     }
 
+    @Override
+    public Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs) {
+        Map<String, PlayerRecord> players = new HashMap<>();
+        for (String playerID : playerIDs) {
+            PlayerRecord record = playerId2PlayerSpecs.get(playerID);
+            if (record != null) {
+                players.put(playerID, record);
+            }
+        }
+        return players;
+    }
+
     @Override
     public void updatePlayerRecord(PlayerRecord record) {
-        playerId2PlayerSpecs.put(record.getPlayerID(), record);
+        store(record, playerId2PlayerSpecs.get(record.getPlayerID()));
+    }
+
+    @Override
+    public synchronized boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion) {
+        PlayerRecord old = playerId2PlayerSpecs.get(record.getPlayerID());
+        if ((old == null ? 0 : old.getVersion()) != expectedVersion) {
+            return false;
+        }
+        store(record, old);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updatePlayerPosition(String playerID, String expectedPosition,
+                                                     String positionString) {
+        PlayerRecord old = playerId2PlayerSpecs.get(playerID);
+        if (old == null || (expectedPosition != null && !expectedPosition.equals(old.getPositionAsString()))) {
+            return false;
+        }
+        store(new PlayerRecord(old.getPlayerID(), old.getPlayerName(), old.getGroupName(), old.getRegion(),
+                positionString, old.getSessionId()), old);
+        return true;
+    }
+
+    @Override
+    public synchronized SessionStartRecord startPlayerSession(PlayerRecord record) {
+        PlayerRecord old = playerId2PlayerSpecs.get(record.getPlayerID());
+        if (old == null) {
+            store(record, null);
+        } else {
+            store(new PlayerRecord(old.getPlayerID(), old.getPlayerName(), old.getGroupName(), old.getRegion(),
+                    old.getPositionAsString(), record.getSessionId()), old);
+        }
+        return new SessionStartRecord(playerId2PlayerSpecs.get(record.getPlayerID()), old != null && old.isInCave());
+    }
+
+    @Override
+    public synchronized PlayerRecord endPlayerSession(String playerID) {
+        PlayerRecord old = playerId2PlayerSpecs.get(playerID);
+        if (old == null || !old.isInCave()) {
+            return null;
+        }
+        store(new PlayerRecord(old.getPlayerID(), old.getPlayerName(), old.getGroupName(), old.getRegion(),
+                old.getPositionAsString(), null), old);
+        return playerId2PlayerSpecs.get(playerID);
+    }
+
+    private void store(PlayerRecord record, PlayerRecord old) {
+        playerId2PlayerSpecs.put(record.getPlayerID(), new PlayerRecord(record.getPlayerID(),
+                record.getPlayerName(), record.getGroupName(), record.getRegion(),
+                record.getPositionAsString(), record.getSessionId(), old == null ? 1 : old.getVersion() + 1));
+        if (record.getSessionId() == null) {
+            sessionLastSeen.remove(record.getPlayerID());
+        } else if (old == null || !record.getSessionId().equals(old.getSessionId())) {
+            sessionLastSeen.put(record.getPlayerID(), ticker.read());
+        }
     }
 
     @Override
@@ -140,11 +254,115 @@ public class FakeCaveStorage implements CaveStorage {
         return theList.subList(start, max);
     }
 
+    @Override
+    public PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit) {
+        SortedMap<String, PlayerRecord> byID = new TreeMap<>(playerId2PlayerSpecs);
+        if (afterPlayerID != null) {
+            // The players after the given one, leaving it out
+            byID = byID.tailMap(afterPlayerID + "\0");
+        }
+
+        List<PlayerRecord> page = new ArrayList<>();
+        String lastPlayerID = null;
+        for (PlayerRecord ps : byID.values()) {
+            if (ps.isInCave() && ps.getPositionAsString().equals(positionString)) {
+                if (page.size() == limit) {
+                    return new PlayerPageRecord(page, lastPlayerID, true);
+                }
+                page.add(ps);
+                lastPlayerID = ps.getPlayerID();
+            }
+        }
+        return new PlayerPageRecord(page, lastPlayerID, false);
+    }
+
     @Override
     public long computeCountOfActivePlayers() {
         return getPlayerList().size();
     }
 
+    // === The table of sessions, the time each player in the cave was last
+    // seen, read from a ticker that the tests may control.
+
+    Map<String, Long> sessionLastSeen;
+    private Ticker ticker = Ticker.systemTicker();
+
+    @Override
+    public void touchSessions(Collection<String> playerIDs) {
+        for (String playerID : playerIDs) {
+            sessionLastSeen.put(playerID, ticker.read());
+        }
+    }
+
+    @Override
+    public List<String> computeListOfIdlePlayers(long idleSeconds) {
+        long now = ticker.read();
+        List<String> theList = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : sessionLastSeen.entrySet()) {
+            if (now - entry.getValue() > TimeUnit.SECONDS.toNanos(idleSeconds)) {
+                theList.add(entry.getKey());
+            }
+        }
+        return theList;
+    }
+
+    @Override
+    public void removeIdleSessions(Collection<String> playerIDs, long idleSeconds) {
+        long now = ticker.read();
+        for (String playerID : playerIDs) {
+            Long lastSeen = sessionLastSeen.get(playerID);
+            if (lastSeen != null && now - lastSeen > TimeUnit.SECONDS.toNanos(idleSeconds)) {
+                sessionLastSeen.remove(playerID);
+            }
+        }
+    }
+
+    // === The requests claimed, with their reply, or PENDING while executing,
+    // and the time they were claimed, read from the ticker as well
+
+    private static final String PENDING = "";
+    private final ConcurrentMap<String, String> requests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> requestClaimed = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean claimRequest(String requestKey) {
+        long now = ticker.read();
+        if (requests.putIfAbsent(requestKey, PENDING) == null) {
+            requestClaimed.put(requestKey, now);
+            return true;
+        }
+        // A claim without a reply whose lease is over is taken over
+        Long claimed = requestClaimed.get(requestKey);
+        return claimed != null && PENDING.equals(requests.get(requestKey))
+                && now - claimed > TimeUnit.SECONDS.toNanos(ServerCaveStorage.CLAIM_LEASE_SECONDS)
+                && requestClaimed.replace(requestKey, claimed, now);
+    }
+
+    @Override
+    public String getRequestReply(String requestKey) {
+        String reply = requests.get(requestKey);
+        return PENDING.equals(reply) ? null : reply;
+    }
+
+    @Override
+    public void completeRequest(String requestKey, String reply) {
+        if (reply == null) {
+            requests.remove(requestKey);
+            requestClaimed.remove(requestKey);
+        } else {
+            requests.put(requestKey, reply);
+        }
+    }
+
+    /**
+     * Set the ticker telling the time sessions are seen, for testing.
+     *
+     * @param ticker the ticker
+     */
+    public void setTicker(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
     /**
      * Compute the list of players in the cave.
      *
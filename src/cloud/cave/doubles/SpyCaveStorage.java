@@ -0,0 +1,177 @@
+package cloud.cave.doubles;
+
+import java.util.*;
+
+import cloud.cave.domain.*;
+import cloud.cave.server.common.*;
+import cloud.cave.service.CaveStorage;
+
+/**
+ * Test spy decorating a storage, counting the room reads, player reads
+ * and player writes it forwards. Tracing dumps the stack of each player
+ * read, to find out who is doing it.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ */
+public class SpyCaveStorage implements CaveStorage {
+
+    private CaveStorage decoratee;
+    private boolean traceOn;
+
+    public SpyCaveStorage(CaveStorage decoratee) {
+        super();
+        this.decoratee = decoratee;
+        traceOn = false;
+    }
+
+    public void setTracingTo(boolean b) {
+        traceOn = b;
+    }
+
+    private int roomGetCount = 0;
+
+    public RoomRecord getRoom(String positionString) {
+        roomGetCount++;
+        return decoratee.getRoom(positionString);
+    }
+
+    public int getRoomGetCount() {
+        return roomGetCount;
+    }
+
+
+    public Map<String, RoomRecord> getRooms(Collection<String> positionStrings) {
+        roomGetCount += positionStrings.size();
+        return decoratee.getRooms(positionStrings);
+    }
+
+    public Set<String> roomsExist(Collection<String> positionStrings) {
+        return decoratee.roomsExist(positionStrings);
+    }
+
+    public List<String> getRoomPositions(String afterPosition, int limit) {
+        return decoratee.getRoomPositions(afterPosition, limit);
+    }
+
+    public Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max) {
+        return decoratee.getRoomsInBox(min, max);
+    }
+
+    public boolean addRoom(String positionString, RoomRecord description) {
+        return decoratee.addRoom(positionString, description);
+    }
+
+
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+
+    public List<Direction> getSetOfExitsFromRoom(String positionString) {
+        return decoratee.getSetOfExitsFromRoom(positionString);
+    }
+
+
+    private int getCount = 0;
+
+    @SuppressWarnings("static-access")
+    public PlayerRecord getPlayerByID(String playerID) {
+        getCount++;
+        if (traceOn) Thread.currentThread().dumpStack();
+        return decoratee.getPlayerByID(playerID);
+    }
+
+    public Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs) {
+        getCount += playerIDs.size();
+        return decoratee.getPlayersByIDs(playerIDs);
+    }
+
+    public int getPlayerGetCount() {
+        return getCount;
+    }
+
+    public void disconnect() {
+        decoratee.disconnect();
+    }
+
+
+    private int updateCount = 0;
+
+    public void updatePlayerRecord(PlayerRecord record) {
+        updateCount++;
+        decoratee.updatePlayerRecord(record);
+    }
+
+    public boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion) {
+        updateCount++;
+        return decoratee.compareAndSetPlayerRecord(record, expectedVersion);
+    }
+
+    public boolean updatePlayerPosition(String playerID, String expectedPosition, String positionString) {
+        updateCount++;
+        return decoratee.updatePlayerPosition(playerID, expectedPosition, positionString);
+    }
+
+    public SessionStartRecord startPlayerSession(PlayerRecord record) {
+        updateCount++;
+        return decoratee.startPlayerSession(record);
+    }
+
+    public PlayerRecord endPlayerSession(String playerID) {
+        updateCount++;
+        return decoratee.endPlayerSession(playerID);
+    }
+
+    public int getPlayerUpdateCount() {
+        return updateCount;
+    }
+
+
+    public ServerConfiguration getConfiguration() {
+        return decoratee.getConfiguration();
+    }
+
+
+    public List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset) {
+        return decoratee.computeListOfPlayersAt(positionString, offset);
+    }
+
+
+    public PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit) {
+        return decoratee.computePageOfPlayersAt(positionString, afterPlayerID, limit);
+    }
+
+
+    public long computeCountOfActivePlayers() {
+        return decoratee.computeCountOfActivePlayers();
+    }
+
+
+    public void touchSessions(Collection<String> playerIDs) {
+        decoratee.touchSessions(playerIDs);
+    }
+
+
+    public List<String> computeListOfIdlePlayers(long idleSeconds) {
+        return decoratee.computeListOfIdlePlayers(idleSeconds);
+    }
+
+
+    public void removeIdleSessions(Collection<String> playerIDs, long idleSeconds) {
+        decoratee.removeIdleSessions(playerIDs, idleSeconds);
+    }
+
+
+    public boolean claimRequest(String requestKey) {
+        return decoratee.claimRequest(requestKey);
+    }
+
+    public String getRequestReply(String requestKey) {
+        return decoratee.getRequestReply(requestKey);
+    }
+
+    public void completeRequest(String requestKey, String reply) {
+        decoratee.completeRequest(requestKey, reply);
+    }
+
+}
@@ -28,4 +28,14 @@ public abstract class AbstractCommand implements Command {
         this.playerID = playerID;
     }
 
+    /**
+     * Move the player to the given position, writing only the position, so
+     * any other changes made to the record by concurrent writers are kept.
+     *
+     * @param position the position to move to
+     */
+    protected void movePlayerTo(final String position) {
+        storage.updatePlayerPosition(playerID, null, position);
+    }
+
 }
\ No newline at end of file
@@ -16,9 +16,7 @@ public class HomeCommand extends AbstractCommand implements Command {
     @Override
     public JSONObject execute(String... parameters) {
         Point3 home = new Point3(0, 0, 0);
-        PlayerRecord pRecord = storage.getPlayerByID(playerID);
-        pRecord.setPositionAsString(home.getPositionString());
-        storage.updatePlayerRecord(pRecord);
+        movePlayerTo(home.getPositionString());
 
         JSONObject reply;
         reply =
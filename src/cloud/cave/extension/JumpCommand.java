@@ -24,9 +24,7 @@ public class JumpCommand extends AbstractCommand implements Command {
                     + positionString + " does not exist in the cave.");
         }
 
-        PlayerRecord pRecord = storage.getPlayerByID(playerID);
-        pRecord.setPositionAsString(positionString);
-        storage.updatePlayerRecord(pRecord);
+        movePlayerTo(positionString);
 
         return Marshaling.createValidReplyWithReturnValue("true", positionString);
     }
@@ -0,0 +1,64 @@
+package cloud.cave.extension;
+
+import org.json.simple.JSONObject;
+
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.server.common.*;
+
+import java.util.Map;
+
+/**
+ * A command drawing a map of the rooms around the player on the floor he/she
+ * is on, read by a single box query. The parameter is the number of rooms
+ * shown in each direction, from 1 to MAX_RADIUS, 3 if it is not a number.
+ * <p/>
+ * The map is returned as a line per row, north at the top: '@' is the
+ * player, '#' a room and '.' a position without a room.
+ *
+ * @author Rohde Fischer
+ */
+public class MapCommand extends AbstractCommand implements Command {
+    /**
+     * The number of rooms shown in each direction if none is asked for
+     */
+    public static final int DEFAULT_RADIUS = 3;
+
+    /**
+     * The maximal number of rooms shown in each direction
+     */
+    public static final int MAX_RADIUS = 10;
+
+    @Override
+    public JSONObject execute(String... parameters) {
+        int radius;
+        try {
+            radius = Math.max(1, Math.min(MAX_RADIUS, Integer.parseInt(parameters[0])));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            radius = DEFAULT_RADIUS;
+        }
+
+        PlayerRecord player = storage.getPlayerByID(playerID);
+        Point3 here = Point3.parseString(player.getPositionAsString());
+        Point3 min = new Point3(here.x() - radius, here.y() - radius, here.z());
+        Point3 max = new Point3(here.x() + radius, here.y() + radius, here.z());
+        Map<String, RoomRecord> rooms = storage.getRoomsInBox(min, max);
+
+        String[] rows = new String[2 * radius + 1];
+        for (int y = max.y(); y >= min.y(); y--) {
+            StringBuilder row = new StringBuilder(2 * radius + 1);
+            for (int x = min.x(); x <= max.x(); x++) {
+                Point3 position = new Point3(x, y, here.z());
+                if (position.equals(here)) {
+                    row.append('@');
+                } else if (rooms.containsKey(position.getPositionString())) {
+                    row.append('#');
+                } else {
+                    row.append('.');
+                }
+            }
+            rows[max.y() - y] = row.toString();
+        }
+
+        return Marshaling.createValidReplyWithReturnValue(here.getPositionString(), rows);
+    }
+}
@@ -0,0 +1,216 @@
+package cloud.cave.gateway;
+
+import cloud.cave.ipc.*;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An invoker that does not handle the requests itself, but forwards them to
+ * the app servers through an upstream client request handler. Used by the
+ * CaveGateway to terminate the client connections at the edge.
+ * <p/>
+ * Two things are done on the way through:
+ * <ol>
+ * <li> Admission control: at most a fixed number of requests are forwarded
+ * at a time. A request that cannot be admitted within a short wait is
+ * rejected at once with StatusCode.SERVER_OVERLOADED, instead of queueing
+ * up in front of app servers that are already saturated.
+ * <li> Per player ordering: the requests of a single player are forwarded
+ * one at a time in the order they arrive, so a client pipelining its
+ * requests does not see them reordered across the upstream connections.
+ * </ol>
+ * A request waits for the turn of its player before it is admitted, so the
+ * requests queued behind a slow request of one player do not hold slots
+ * the other players could use. The requests of a player waiting at a time
+ * are capped too; beyond the cap they are rejected with
+ * StatusCode.SERVER_OVERLOADED as well.
+ *
+ * @author Rohde Fischer
+ */
+public class GatewayInvoker implements Invoker {
+    private static final Logger logger = LoggerFactory.getLogger(GatewayInvoker.class);
+
+    /**
+     * The default maximal number of requests forwarded at a time
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /**
+     * Milliseconds a request may wait to be admitted before it is rejected
+     */
+    public static final long ADMISSION_TIMEOUT_MILLIS = 100;
+
+    /**
+     * The default maximal number of requests of a single player forwarded
+     * or waiting for their turn at a time
+     */
+    public static final int DEFAULT_MAX_PENDING_PER_PLAYER = 8;
+
+    private final ClientRequestHandler upstream;
+    private final Semaphore admission;
+    private final int maxInFlight;
+    private final int maxPendingPerPlayer;
+    private final LoadingCache<String, PlayerTurn> playerTurns;
+
+    /**
+     * The turn of the requests of a player: the lock ordering them, and
+     * the number of them holding or waiting for it.
+     */
+    private static final class PlayerTurn {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private final AtomicInteger pending = new AtomicInteger();
+    }
+
+    /**
+     * Create a gateway invoker capping the requests of a player at
+     * DEFAULT_MAX_PENDING_PER_PLAYER.
+     *
+     * @param upstream    the initialized request handler for the app servers
+     * @param maxInFlight the maximal number of requests forwarded at a time
+     */
+    public GatewayInvoker(ClientRequestHandler upstream, int maxInFlight) {
+        this(upstream, maxInFlight, DEFAULT_MAX_PENDING_PER_PLAYER);
+    }
+
+    /**
+     * Create a gateway invoker.
+     *
+     * @param upstream            the initialized request handler for the app
+     *                            servers
+     * @param maxInFlight         the maximal number of requests forwarded at a
+     *                            time
+     * @param maxPendingPerPlayer the maximal number of requests of a single
+     *                            player forwarded or waiting at a time
+     */
+    public GatewayInvoker(ClientRequestHandler upstream, int maxInFlight, int maxPendingPerPlayer) {
+        this.upstream = upstream;
+        this.maxInFlight = maxInFlight;
+        this.maxPendingPerPlayer = maxPendingPerPlayer;
+        this.admission = new Semaphore(maxInFlight);
+
+        // The turns are only kept while some request of the player holds or
+        // awaits them, so idle players do not fill up the memory
+        this.playerTurns = CacheBuilder.newBuilder()
+                .weakValues()
+                .build(new CacheLoader<String, PlayerTurn>() {
+                    @Override
+                    public PlayerTurn load(String playerID) {
+                        return new PlayerTurn();
+                    }
+                });
+    }
+
+    @Override
+    public JSONObject handleRequest(JSONObject request) {
+        PlayerTurn turn = turnFor(request);
+        if (turn == null) {
+            return admitAndForward(request);
+        }
+        try {
+            if (turn.pending.incrementAndGet() > maxPendingPerPlayer) {
+                logger.warn("Rejecting " + request.get(MarshalingKeys.METHOD_KEY) + ", the player has "
+                        + maxPendingPerPlayer + " requests pending already");
+                return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_OVERLOADED,
+                        "Too many requests of the player at once, try again later");
+            }
+            // Wait for the turn of the player before taking a slot
+            turn.lock.lock();
+            try {
+                return admitAndForward(request);
+            } finally {
+                turn.lock.unlock();
+            }
+        } finally {
+            turn.pending.decrementAndGet();
+        }
+    }
+
+    private JSONObject admitAndForward(JSONObject request) {
+        boolean admitted;
+        try {
+            admitted = admission.tryAcquire(ADMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            logger.warn("Rejecting " + request.get(MarshalingKeys.METHOD_KEY) + ", "
+                    + maxInFlight + " requests are already in flight");
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_OVERLOADED,
+                    "The gateway is overloaded, try again later");
+        }
+
+        try {
+            return forward(request);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Get the turn that orders the requests of the player, or null for the
+     * requests not made on behalf of a logged in player, like the login.
+     */
+    private PlayerTurn turnFor(JSONObject request) {
+        Object method = request.get(MarshalingKeys.METHOD_KEY);
+        if (MarshalingKeys.LOGIN_METHOD_KEY.equals(method)
+                || MarshalingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY.equals(method)
+                || MarshalingKeys.PING_METHOD_KEY.equals(method)) {
+            return null;
+        }
+        Object playerID = request.get(MarshalingKeys.PLAYER_ID_KEY);
+        if (playerID == null) {
+            return null;
+        }
+        return playerTurns.getUnchecked(playerID.toString());
+    }
+
+    private JSONObject forward(JSONObject request) {
+        try {
+            JSONObject reply = upstream.sendRequestAndBlockUntilReply(request);
+            if (reply == null) {
+                return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_FAILURE,
+                        "No reply from the app server");
+            }
+            return reply;
+        } catch (CaveIPCException e) {
+            logger.error("Forwarding " + request.get(MarshalingKeys.METHOD_KEY) + " to the app server failed", e);
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_FAILURE,
+                    "The app server could not be reached: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of requests that can be admitted right now.
+     *
+     * @return the number of free slots
+     */
+    public int getAvailableSlots() {
+        return admission.availablePermits();
+    }
+
+    /**
+     * Get the number of requests of a player forwarded or waiting for
+     * their turn right now.
+     *
+     * @param playerID the id of the player
+     * @return the number of pending requests of the player
+     */
+    public int getPendingRequests(String playerID) {
+        PlayerTurn turn = playerTurns.getIfPresent(playerID);
+        return turn == null ? 0 : turn.pending.get();
+    }
+
+    public String toString() {
+        return "GatewayInvoker (max " + maxInFlight + " in flight) forwarding to " + upstream;
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * The edge gateway, which terminates the client connections and forwards
+ * the requests to the app servers over a few persistent upstream
+ * connections, see CaveGateway.
+ */
+package cloud.cave.gateway;
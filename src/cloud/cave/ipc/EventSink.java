@@ -0,0 +1,38 @@
+package cloud.cave.ipc;
+
+import org.json.simple.JSONObject;
+
+/**
+ * The receiving end of events pushed to a client, typically one per
+ * persistent connection. On the server side the reactor provides one
+ * sink per connection to the SubscribingInvoker, on the client side
+ * the client request handler delivers the pushed events to one.
+ * <p/>
+ * Offering an event must never block, as the events are fanned out
+ * by the thread that caused them.
+ *
+ * @author Rohde Fischer
+ */
+public interface EventSink {
+
+    /**
+     * Offer an event for delivery, without blocking.
+     *
+     * @param event the event encoded in JSON, see Marshaling.createRoomEvent
+     * @return false in case the event could not be accepted, because the
+     * sink is closed or it has too many events waiting already
+     */
+    boolean offer(JSONObject event);
+
+    /**
+     * Check whether the sink still accepts events.
+     *
+     * @return true if the sink is open
+     */
+    boolean isOpen();
+
+    /**
+     * Close the sink, dropping any events not yet delivered.
+     */
+    void close();
+}
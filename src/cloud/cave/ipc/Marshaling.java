@@ -119,6 +119,29 @@ public class Marshaling {
         return reply;
     }
 
+    @SuppressWarnings("unchecked")
+    /** Create an event to push to the subscribers of a room.
+     *
+     * @param eventType the type of the event, one of the event
+     * types in MarshalingKeys
+     * @param position the position of the room as a position string
+     * @param playerName the name of the player causing the event
+     * @param message the message added, or null for other events
+     * @return the event object
+     */
+    public static JSONObject createRoomEvent(String eventType, String position,
+                                             String playerName, String message) {
+        JSONObject event = new JSONObject();
+        event.put(MarshalingKeys.EVENT_TYPE_KEY, eventType);
+        event.put(MarshalingKeys.EVENT_POSITION_KEY, position);
+        event.put(MarshalingKeys.EVENT_PLAYER_NAME_KEY, playerName);
+        if (message != null) {
+            event.put(MarshalingKeys.EVENT_MESSAGE_KEY, message);
+        }
+        event.put(MarshalingKeys.VERSION_NO_KEY, MARSHALING_VERSION);
+        return event;
+    }
+
     @SuppressWarnings("unchecked")
     /** Create a reply JSON object that represents the result of
      * an operation that failed for some reason, for instance
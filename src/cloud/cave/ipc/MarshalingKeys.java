@@ -26,12 +26,44 @@ public class MarshalingKeys {
     public static final String PARAMETER_HEAD_KEY = "parameter";
     public static final String PARAMETER_TAIL_KEY = "parameter-tail";
 
+    // Optional key that makes a request safe to retry, the server returns
+    // the reply of the first request with the same key for the player
+    public static final String IDEMPOTENCY_KEY = "idempotency-key";
+
+    // Key used on multiplexed connections to match a reply to its request,
+    // the reply carries the same value as the request
+    public static final String REQUEST_ID_KEY = "request-id";
+
+    // Optional key set by sticky routing, telling whether the request was
+    // sent to the server owning the player or to a fallback server
+    public static final String AFFINITY_KEY = "affinity";
+    public static final String AFFINITY_OWNER = "owner";
+    public static final String AFFINITY_FALLBACK = "fallback";
+
     // the key for return values
     public static final String RETURNVALUE_HEAD_KEY = "reply";
     public static final String RETURNVALUE_TAIL_KEY = "reply-tail";
     public static final String ERROR_CODE_KEY = "error-code";
     public static final String ERROR_MSG_KEY = "error-message";
 
+    // Keys of the replies of a page of the players in a room, asked for by a
+    // cursor in the request tail: the cursor of the next page, and whether
+    // there is one, as "true" or "false"
+    public static final String PLAYER_CURSOR_KEY = "player-cursor";
+    public static final String HAS_MORE_PLAYERS_KEY = "has-more-players";
+
+    // Keys of the events pushed to subscribers of a room, an event is
+    // told apart from a reply by having the EVENT_TYPE_KEY
+    public static final String EVENT_TYPE_KEY = "event-type";
+    public static final String EVENT_POSITION_KEY = "event-position";
+    public static final String EVENT_PLAYER_NAME_KEY = "event-player-name";
+    public static final String EVENT_MESSAGE_KEY = "event-message";
+
+    // The types of room events
+    public static final String MESSAGE_ADDED_EVENT = "message-added";
+    public static final String PLAYER_ENTERED_EVENT = "player-entered";
+    public static final String PLAYER_LEFT_EVENT = "player-left";
+
     // Prefixes of the types/classes that have methods associated
     // Note that the Invoker depends upon these ending in a dash
     // so do not change that.
@@ -51,11 +83,13 @@ public class MarshalingKeys {
     public static final String EXECUTE_METHOD_KEY = PLAYER_TYPE_PREFIX + "execute";
     public static final String ADD_MESSAGE_METHOD_KEY = PLAYER_TYPE_PREFIX + "add-message";
     public static final String GET_MESSAGE_LIST_METHOD_KEY = PLAYER_TYPE_PREFIX + "get-message-list";
+    public static final String SUBSCRIBE_ROOM_EVENTS_METHOD_KEY = PLAYER_TYPE_PREFIX + "subscribe-room-events";
 
     // List of cave method keys
     public static final String LOGIN_METHOD_KEY = CAVE_TYPE_PREFIX + "login";
     public static final String LOGOUT_METHOD_KEY = CAVE_TYPE_PREFIX + "logout";
     public static final String DESCRIBE_CONFIGURATION_METHOD_KEY = CAVE_TYPE_PREFIX + "describe-configuration";
+    public static final String PING_METHOD_KEY = CAVE_TYPE_PREFIX + "ping";
 
 
 }
@@ -16,4 +16,6 @@ public class StatusCode {
     public static final String SERVER_UNKNOWN_METHOD_FAILURE = "SERVER_UNKNOWN_METHOD_FAILURE";
     public static final String SERVER_PLAYER_SESSION_EXPIRED_FAILURE = "SERVER_PLAYER_SESSION_EXPIRED_FAILURE";
     public static final String SERVER_STORAGE_UNAVAILABLE = "SERVER_STORAGE_UNAVAILABLE";
+    public static final String SERVER_OVERLOADED = "SERVER_OVERLOADED";
+    public static final String SERVER_NOT_READY = "SERVER_NOT_READY";
 }
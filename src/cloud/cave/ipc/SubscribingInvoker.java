@@ -0,0 +1,25 @@
+package cloud.cave.ipc;
+
+import org.json.simple.JSONObject;
+
+/**
+ * An Invoker that can also handle requests subscribing to events pushed
+ * to the client. Reactors that keep connections open for more than a
+ * single request hand the sink of the connection along with each request,
+ * so a subscription can deliver events to the connection later on.
+ *
+ * @author Rohde Fischer
+ * @see EventSink
+ */
+public interface SubscribingInvoker extends Invoker {
+
+    /**
+     * Handle the request like handleRequest(JSONObject), but with the sink
+     * that pushed events for the connection of the request must go to.
+     *
+     * @param requestJson the request object from the client
+     * @param sink        the sink of the connection the request came in on
+     * @return the returned answer from the proper server-side object
+     */
+    JSONObject handleRequest(JSONObject requestJson, EventSink sink);
+}
@@ -1,11 +1,16 @@
 package cloud.cave.main;
 
 import cloud.cave.config.*;
-import cloud.cave.domain.Cave;
 import cloud.cave.domain.Region;
 import cloud.cave.domain.ThreadCrashExeption;
-import cloud.cave.ipc.Invoker;
 import cloud.cave.ipc.Reactor;
+import cloud.cave.server.BoundedSessionCache;
+import cloud.cave.server.CachingCaveStorage;
+import cloud.cave.server.CaveWarmup;
+import cloud.cave.server.NeighbourhoodPrefetcher;
+import cloud.cave.server.ReadinessGateInvoker;
+import cloud.cave.server.SessionCacheSnapshot;
+import cloud.cave.server.SessionReaper;
 import cloud.cave.server.StandardInvoker;
 import cloud.cave.server.StandardServerCave;
 import org.slf4j.Logger;
@@ -13,6 +18,8 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
+import java.io.File;
+
 /**
  * The 'main' daemon to run on the server side. It uses a ServerFactory that
  * reads all relevant parameters to define the server side delegates
@@ -53,13 +60,40 @@ public class CaveDaemon {
         factory = new EnvironmentServerFactory(envReader);
 
         // Create the server side cave instance
-        Cave caveServer = new StandardServerCave(factory);
+        StandardServerCave caveServer = new StandardServerCave(factory);
+
+        // Prefetch the neighbourhood of the rooms moved to into the room cache
+        String prefetchThreads = Config.optionalRead(envReader, Config.SKYCAVE_PREFETCH_THREADS);
+        int threads = prefetchThreads != null ? Integer.parseInt(prefetchThreads)
+                : NeighbourhoodPrefetcher.DEFAULT_THREADS;
+        if (threads > 0 && caveServer.getStorage().getDecoratee() instanceof CachingCaveStorage) {
+            caveServer.getNeighbourhoodPrefetcher().start(threads, NeighbourhoodPrefetcher.DEFAULT_MAXIMUM_PENDING);
+        } else if (prefetchThreads != null && threads > 0) {
+            logger.warn(Config.SKYCAVE_PREFETCH_THREADS + " is ignored, as the rooms are not cached");
+        }
+
+        // Warm the session cache from the last snapshot, and keep snapshotting it
+        String snapshotPath = Config.optionalRead(envReader, Config.SKYCAVE_SESSIONCACHE_SNAPSHOT);
+        if (snapshotPath != null && caveServer.getCache() instanceof BoundedSessionCache) {
+            final SessionCacheSnapshot snapshot = new SessionCacheSnapshot(
+                    (BoundedSessionCache) caveServer.getCache(), caveServer.getStorage(), new File(snapshotPath));
+            snapshot.rehydrateInBackground();
+            snapshot.start(SessionCacheSnapshot.DEFAULT_PERIOD_SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot.stop();
+                }
+            }));
+        } else if (snapshotPath != null) {
+            logger.warn(Config.SKYCAVE_SESSIONCACHE_SNAPSHOT + " is ignored, as the session cache is not bounded");
+        }
 
         // Create the invoker on the server side, and bind it to the cave
-        Invoker serverInvoker = new StandardInvoker(caveServer);
+        StandardInvoker serverInvoker = new StandardInvoker(caveServer);
 
-        // Create the server side reactor...
-        Reactor reactor = factory.createReactor(serverInvoker);
+        // Create the server side reactor, turning players away until warmed up...
+        Reactor reactor = factory.createReactor(new ReadinessGateInvoker(caveServer, serverInvoker));
         reactor.setRegion(playerRegion);
 
         // Make a section in the log file, marking the new session
@@ -69,11 +103,27 @@ public class CaveDaemon {
         // Kept just in case the logger fails
         System.out.println("Use ctrl-c to terminate!");
 
-        // and start the daemon...
+        // and start the daemon, telling the load balancers it is not ready
+        // until it has warmed up
         try{
+        caveServer.setReady(false);
         daemon = new Thread(reactor);
         daemon.start();
 
+        String warmupRequests = Config.optionalRead(envReader, Config.SKYCAVE_WARMUP_REQUESTS);
+        new CaveWarmup(caveServer, serverInvoker).run(
+                warmupRequests != null ? Integer.parseInt(warmupRequests) : CaveWarmup.DEFAULT_SYNTHETIC_REQUESTS);
+
+        // Keep the sessions of active players alive, and log out the idle
+        // ones; started after the warmup, so no heartbeat of its synthetic
+        // players is written
+        String idleSeconds = Config.optionalRead(envReader, Config.SKYCAVE_SESSION_IDLE_SECONDS);
+        caveServer.getSessionReaper().start(
+                idleSeconds != null ? Long.parseLong(idleSeconds) : SessionReaper.DEFAULT_IDLE_SECONDS,
+                SessionReaper.DEFAULT_PERIOD_SECONDS);
+        caveServer.setReady(true);
+        logger.info("=== SkyCave Reactor ready");
+
         // Ensure that its lifetime follows that of the main process
         daemon.join();
         }catch (InterruptedException e){
@@ -0,0 +1,66 @@
+package cloud.cave.main;
+
+import cloud.cave.config.*;
+import cloud.cave.gateway.GatewayInvoker;
+import cloud.cave.ipc.ClientRequestHandler;
+import cloud.cave.ipc.Reactor;
+import cloud.cave.server.common.ServerConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The 'main' of the edge gateway. The gateway accepts the client connections
+ * on the endpoint given by SKYCAVE_GATEWAY, using the reactor given by
+ * SKYCAVE_REACTOR_IMPLEMENTATION, and forwards the requests to the app servers
+ * given by SKYCAVE_APPSERVER using the client request handler given by
+ * SKYCAVE_CLIENTREQUESTHANDLER_IMPLEMENTATION.
+ * <p/>
+ * To take the connection churn off the app servers, use the
+ * MultiplexingClientRequestHandler for the gateway, and let the app servers
+ * run the MultiplexingSocketReactor.
+ * <p/>
+ * An optional argument sets the maximal number of requests forwarded at a
+ * time, beyond which requests are rejected as overloaded.
+ *
+ * @author Rohde Fischer
+ * @see Config
+ */
+public class CaveGateway {
+
+    public static void main(String[] args) {
+        int maxInFlight = GatewayInvoker.DEFAULT_MAX_IN_FLIGHT;
+        if (args.length > 1) {
+            System.out.println("Invalid set of arguments given. The only argument is the maximal number of requests in flight.");
+            System.exit(1);
+        }
+        if (args.length == 1) {
+            try {
+                maxInFlight = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid maximal number of requests in flight.");
+                System.exit(1);
+            }
+        }
+
+        Logger logger = LoggerFactory.getLogger(CaveGateway.class);
+        EnvironmentReaderStrategy envReader = new OSEnvironmentReaderStrategy();
+
+        // The gateway is a client of the app servers...
+        CaveClientFactory clientFactory = new EnvironmentClientFactory(envReader);
+        ClientRequestHandler upstream = clientFactory.createClientRequestHandler();
+        GatewayInvoker invoker = new GatewayInvoker(upstream, maxInFlight);
+
+        // ... and a server for the clients
+        Reactor reactor = null;
+        reactor = Config.loadAndInstantiate(envReader, Config.SKYCAVE_REACTOR_IMPLEMENTATION, reactor);
+        reactor.initialize(invoker, new ServerConfiguration(envReader, Config.SKYCAVE_GATEWAY));
+
+        logger.info("=== SkyCave Gateway starting...");
+        logger.info("Gateway Configuration = " + reactor + ", " + invoker);
+
+        // Kept just in case the logger fails
+        System.out.println("Use ctrl-c to terminate!");
+
+        reactor.run();
+    }
+}
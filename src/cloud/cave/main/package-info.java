@@ -1,5 +1,5 @@
 /**
- * Main methods for execution of client and server.
+ * Main methods for execution of client, server and the edge gateway.
  */
 package cloud.cave.main;
 
@@ -0,0 +1,32 @@
+package cloud.cave.manual;
+
+import cloud.cave.config.*;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.service.ServerCaveStorage;
+
+/**
+ * Manual job giving the rooms dug before the exit masks were introduced
+ * their mask. Connects to the MongoDB given by SKYCAVE_DBSERVER, and may be
+ * run while the app servers are running. Until a room has a mask, its exits
+ * are computed from its neighbours as before.
+ *
+ * @author Rohde Fischer
+ */
+public class BackfillExitMasks {
+    public static void main(String[] args) {
+        System.out.println("*** Backfill: Set the exit masks of the rooms ***");
+
+        EnvironmentReaderStrategy envReader = new OSEnvironmentReaderStrategy();
+        ServerConfiguration config = new ServerConfiguration(envReader, Config.SKYCAVE_DBSERVER);
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        ServerCaveStorage storage = new ServerCaveStorage();
+        storage.initialize(config);
+        try {
+            long rooms = storage.backfillExitMasks(batchSize);
+            System.out.println("--> Backfilled the exit masks of " + rooms + " rooms in " + config);
+        } finally {
+            storage.disconnect();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package cloud.cave.manual;
+
+import cloud.cave.config.*;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.service.ServerCaveStorage;
+
+/**
+ * Manual job giving the rooms and players stored before the numeric
+ * coordinates were introduced the x, y and z of their position, and the
+ * players stored before the session was kept on the player documents their
+ * session and inCave flag. Connects to the MongoDB given by
+ * SKYCAVE_DBSERVER, and may be run while the app servers are running, at a
+ * rate leaving room for the players. Until all players are migrated, they
+ * are found by their position string, and their sessions joined, as before.
+ *
+ * @author Rohde Fischer
+ */
+public class MigratePositions {
+    public static void main(String[] args) {
+        System.out.println("*** Migration: Set the coordinates of the rooms and players ***");
+
+        EnvironmentReaderStrategy envReader = new OSEnvironmentReaderStrategy();
+        ServerConfiguration config = new ServerConfiguration(envReader, Config.SKYCAVE_DBSERVER);
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        double documentsPerSecond = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+
+        ServerCaveStorage storage = new ServerCaveStorage();
+        storage.initialize(config);
+        try {
+            long documents = storage.migratePositions(batchSize, documentsPerSecond);
+            System.out.println("--> Migrated the positions of " + documents + " rooms and players in " + config);
+            long players = storage.migrateSessions(batchSize, documentsPerSecond);
+            System.out.println("--> Migrated the sessions of " + players + " players in the cave in " + config);
+        } finally {
+            storage.disconnect();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cloud.cave.server;
+
+import cloud.cave.ipc.MarshalingKeys;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many of the requests routed by player affinity hit the app
+ * server owning the player, and how many were sent to a fallback server,
+ * because the owner was down or considered unhealthy by the client.
+ * <p/>
+ * A fallback server serves the request correctly, as the session caches
+ * read missing players from the storage, but its caches are colder, so a
+ * falling hit rate explains a rising storage load.
+ *
+ * @author Rohde Fischer
+ */
+public class AffinityMonitor {
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Record the affinity of a request, as given by its
+     * MarshalingKeys.AFFINITY_KEY.
+     *
+     * @param affinity the affinity of the request, or null if the request
+     *                 was not routed by affinity
+     */
+    public void record(Object affinity) {
+        if (MarshalingKeys.AFFINITY_OWNER.equals(affinity)) {
+            hits.incrementAndGet();
+        } else if (MarshalingKeys.AFFINITY_FALLBACK.equals(affinity)) {
+            misses.incrementAndGet();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the fraction of the requests routed by affinity that hit the
+     * owner of the player.
+     *
+     * @return the hit rate, or 1 if no request was routed by affinity
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "AffinityMonitor [hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+}
@@ -0,0 +1,264 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Player;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.service.CaveStorage;
+import cloud.cave.service.WeatherService;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A player session cache for production use. Unlike the SimpleInMemoryCache
+ * it is safe to use from many threads at once, as it is built on the
+ * segmented concurrent map of a Guava cache, and unlike the DatabaseCache it
+ * actually caches the players.
+ * <p/>
+ * The cache holds at most a given number of players, and a player is evicted
+ * when not used for the idle time, and in any case after the absolute time,
+ * so players that never log out do not leak. A player missing from the cache,
+ * like one logged in on another app server, is read from the storage.
+ * <p/>
+ * A later login or a move on another app server changes the player without
+ * this server knowing. So before a cached player is handed out, its session,
+ * version and position are compared to the player record in the storage, at
+ * most once per version check interval. The check reads the player record
+ * only, and builds a new player from it, reading the room when needed, only
+ * if the player changed.
+ * <p/>
+ * A client with an outdated session is told so from the cache: the storage
+ * is asked for the session of a request at most once per version check
+ * interval.
+ *
+ * @author Rohde Fischer
+ */
+public class BoundedSessionCache implements PlayerSessionCache {
+    /**
+     * The default maximal number of cached players
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    /**
+     * The default number of seconds a player may be idle before eviction
+     */
+    public static final int DEFAULT_IDLE_SECONDS = 15 * 60;
+
+    /**
+     * The default number of seconds a player is cached at most
+     */
+    public static final int DEFAULT_ABSOLUTE_SECONDS = 4 * 60 * 60;
+
+    /**
+     * The default number of milliseconds a cached session is trusted
+     * before it is compared to the storage again
+     */
+    public static final int DEFAULT_VERSION_CHECK_MILLIS = 1000;
+
+    private final CaveStorage storage;
+    private final WeatherService weatherService;
+    private final Ticker ticker;
+    private final long versionCheckNanos;
+    private final Cache<String, Entry> cache;
+    private final AtomicLong takeoverCount;
+
+    public BoundedSessionCache(CaveStorage storage, WeatherService weatherService) {
+        this(storage, weatherService, DEFAULT_MAXIMUM_SIZE, DEFAULT_IDLE_SECONDS, DEFAULT_ABSOLUTE_SECONDS,
+                DEFAULT_VERSION_CHECK_MILLIS, Ticker.systemTicker());
+    }
+
+    /**
+     * Create the cache.
+     *
+     * @param storage            the storage to read players from
+     * @param weatherService     the weather service of the players read
+     * @param maximumSize        the maximal number of cached players
+     * @param idleSeconds        seconds a player may be unused before eviction
+     * @param absoluteSeconds    seconds a player is cached at most
+     * @param versionCheckMillis milliseconds between comparing the session of
+     *                           a cached player to the storage
+     * @param ticker             the source of time
+     */
+    public BoundedSessionCache(CaveStorage storage, WeatherService weatherService,
+                               long maximumSize, long idleSeconds, long absoluteSeconds,
+                               long versionCheckMillis, Ticker ticker) {
+        this.storage = storage;
+        this.weatherService = weatherService;
+        this.ticker = ticker;
+        this.versionCheckNanos = TimeUnit.MILLISECONDS.toNanos(versionCheckMillis);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(absoluteSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        this.takeoverCount = new AtomicLong(0);
+    }
+
+    @Override
+    public Player get(String playerID) {
+        Entry entry = cache.getIfPresent(playerID);
+        if (entry == null) {
+            return load(playerID);
+        }
+
+        long now = ticker.read();
+        if (now - entry.verifiedAt < versionCheckNanos) {
+            return entry.player;
+        }
+        return verify(playerID, entry, now);
+    }
+
+    @Override
+    public Player refresh(String playerID, String sessionID) {
+        Entry entry = cache.getIfPresent(playerID);
+        if (entry == null) {
+            return load(playerID);
+        }
+
+        // A client with an outdated session is refused from the cache until
+        // the next check, however often it asks
+        long now = ticker.read();
+        if (sessionID.equals(entry.refusedSession) && now - entry.refusedAt < versionCheckNanos) {
+            return entry.player;
+        }
+        Player player = verify(playerID, entry, now);
+        if (player == entry.player) {
+            entry.refusedSession = sessionID;
+            entry.refusedAt = now;
+        }
+        return player;
+    }
+
+    /**
+     * Compare a cached player to the record in the storage, and replace the
+     * player if it changed.
+     */
+    private Player verify(String playerID, Entry entry, long now) {
+        PlayerRecord record = storage.getPlayerByID(playerID);
+        String sessionID = record == null ? null : record.getSessionId();
+        if (Strings.isNullOrEmpty(sessionID)) {
+            cache.invalidate(playerID);
+            return null;
+        }
+        if (!isUpToDate(entry.player, record)) {
+            if (!sessionID.equals(entry.player.getSessionID())) {
+                takeoverCount.incrementAndGet();
+            }
+            Player player = new StandardServerPlayer(record, null, storage, weatherService);
+            cache.put(playerID, new Entry(player, now));
+            return player;
+        }
+        entry.verifiedAt = now;
+        return entry.player;
+    }
+
+    private static boolean isUpToDate(Player player, PlayerRecord record) {
+        if (player instanceof StandardServerPlayer) {
+            return ((StandardServerPlayer) player).isUpToDateWith(record);
+        }
+        return record.getSessionId().equals(player.getSessionID());
+    }
+
+    @Override
+    public void add(String playerID, Player player) {
+        cache.put(playerID, new Entry(player, ticker.read()));
+    }
+
+    @Override
+    public void remove(String playerID) {
+        cache.invalidate(playerID);
+    }
+
+    /**
+     * Get the number of players in the cache.
+     *
+     * @return the number of players
+     */
+    public long size() {
+        cache.cleanUp();
+        return cache.size();
+    }
+
+    /**
+     * Get the hit, miss and eviction counts of the cache.
+     *
+     * @return the statistics since the cache was created
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Get the number of cached players whose session turned out to be taken
+     * over by a login on another app server.
+     *
+     * @return the number of takeovers detected
+     */
+    public long getTakeoverCount() {
+        return takeoverCount.get();
+    }
+
+    /**
+     * Get the records of the cached players, as known by the cache.
+     *
+     * @return the records of the cached players
+     */
+    public List<PlayerRecord> snapshot() {
+        List<PlayerRecord> records = new ArrayList<>();
+        for (Entry entry : cache.asMap().values()) {
+            if (entry.player instanceof StandardServerPlayer) {
+                records.add(((StandardServerPlayer) entry.player).toRecord());
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Put a player in the cache unless the player is cached already, like
+     * when warming the cache from a snapshot. The record must just have been
+     * read from the storage, as the session is trusted for the version check
+     * interval.
+     *
+     * @param record the record of the player, read from the storage
+     * @param room   the room of the player, or null to read it when needed
+     * @return true if the player was put in the cache
+     */
+    public boolean rehydrate(PlayerRecord record, RoomRecord room) {
+        if (Strings.isNullOrEmpty(record.getSessionId())) {
+            return false;
+        }
+        Player player = new StandardServerPlayer(record, room, storage, weatherService);
+        return cache.asMap().putIfAbsent(record.getPlayerID(), new Entry(player, ticker.read())) == null;
+    }
+
+    private Player load(String playerID) {
+        StandardServerPlayer player = new StandardServerPlayer(playerID, storage, weatherService, this);
+        if (Strings.isNullOrEmpty(player.getSessionID())) {
+            return null;
+        }
+        cache.put(playerID, new Entry(player, ticker.read()));
+        return player;
+    }
+
+    private static class Entry {
+        private final Player player;
+        private volatile long verifiedAt;
+        // The outdated session last refused, and when
+        private volatile String refusedSession;
+        private volatile long refusedAt;
+
+        Entry(Player player, long verifiedAt) {
+            this.player = player;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.PlayerPageRecord;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.Point3;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.SessionStartRecord;
+import cloud.cave.server.invalidation.Invalidation;
+import cloud.cave.server.invalidation.InvalidationListener;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A storage decorator caching the rooms and exit sets read from the
+ * decoratee, shared by all requests of the app server. Rooms are only ever
+ * added, so a room read stays valid; positions without a room are cached
+ * too, until a room is added there.
+ * <p/>
+ * A room missing from the cache is loaded once, however many threads ask
+ * for it at the same time, as the Guava cache blocks the others until the
+ * first one has read it. The rooms are bounded by their approximate size in
+ * memory, not by their number, as the descriptions vary a lot in length.
+ * <p/>
+ * Rooms dug on other app servers are learned from the room invalidations.
+ * Should an invalidation be lost, the cached rooms also expire after a
+ * while. The players are not cached, every player call goes through to the
+ * decoratee.
+ *
+ * @author Rohde Fischer
+ */
+public class CachingCaveStorage implements CaveStorage, InvalidationListener {
+    /**
+     * The default maximal size in bytes of the cached rooms, approximately
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 32 * 1024 * 1024;
+
+    /**
+     * The default maximal number of cached exit sets
+     */
+    public static final long DEFAULT_MAXIMUM_EXIT_SETS = 100000;
+
+    /**
+     * The default number of seconds a room or exit set is cached at most
+     */
+    public static final long DEFAULT_EXPIRE_SECONDS = 10 * 60;
+
+    // The approximate size of a room record and an empty position
+    // in bytes, apart from the characters of the description
+    private static final int ROOM_OVERHEAD = 96;
+    private static final int EMPTY_POSITION_WEIGHT = 48;
+
+    private final CaveStorage decoratee;
+    private final LoadingCache<String, Optional<RoomRecord>> rooms;
+    private final LoadingCache<String, List<Direction>> exits;
+
+    public CachingCaveStorage(CaveStorage decoratee) {
+        this(decoratee, DEFAULT_MAXIMUM_WEIGHT, DEFAULT_MAXIMUM_EXIT_SETS, DEFAULT_EXPIRE_SECONDS,
+                Ticker.systemTicker());
+    }
+
+    /**
+     * Create the decorator.
+     *
+     * @param decoratee       the storage to cache the rooms of
+     * @param maximumWeight   the maximal size in bytes of the cached rooms
+     * @param maximumExitSets the maximal number of cached exit sets
+     * @param expireSeconds   the seconds a room or exit set is cached at most
+     * @param ticker          the source of time
+     */
+    public CachingCaveStorage(final CaveStorage decoratee, long maximumWeight, long maximumExitSets,
+                              long expireSeconds, Ticker ticker) {
+        this.decoratee = decoratee;
+        this.rooms = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher(new Weigher<String, Optional<RoomRecord>>() {
+                    @Override
+                    public int weigh(String position, Optional<RoomRecord> room) {
+                        if (!room.isPresent()) {
+                            return EMPTY_POSITION_WEIGHT;
+                        }
+                        String description = room.get().description;
+                        return ROOM_OVERHEAD + 2 * (position.length() + (description == null ? 0 : description.length()));
+                    }
+                })
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build(new CacheLoader<String, Optional<RoomRecord>>() {
+                    @Override
+                    public Optional<RoomRecord> load(String position) {
+                        return Optional.fromNullable(decoratee.getRoom(position));
+                    }
+
+                    @Override
+                    public Map<String, Optional<RoomRecord>> loadAll(Iterable<? extends String> positions) {
+                        List<String> missing = new ArrayList<>();
+                        Iterables.addAll(missing, positions);
+                        Map<String, RoomRecord> read = decoratee.getRooms(missing);
+                        Map<String, Optional<RoomRecord>> loaded = new HashMap<>();
+                        for (String position : missing) {
+                            loaded.put(position, Optional.fromNullable(read.get(position)));
+                        }
+                        return loaded;
+                    }
+                });
+        this.exits = CacheBuilder.newBuilder()
+                .maximumSize(maximumExitSets)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build(new CacheLoader<String, List<Direction>>() {
+                    @Override
+                    public List<Direction> load(String position) {
+                        return Collections.unmodifiableList(decoratee.getSetOfExitsFromRoom(position));
+                    }
+                });
+    }
+
+    /**
+     * Get the statistics of the room cache, like the hit ratio and the
+     * average time spent loading a room.
+     *
+     * @return the statistics since the cache was created
+     */
+    public CacheStats getRoomStats() {
+        return rooms.stats();
+    }
+
+    /**
+     * Get the statistics of the exit set cache.
+     *
+     * @return the statistics since the cache was created
+     */
+    public CacheStats getExitStats() {
+        return exits.stats();
+    }
+
+    public CaveStorage getDecoratee() {
+        return decoratee;
+    }
+
+    @Override
+    public RoomRecord getRoom(String positionString) {
+        return load(rooms, positionString).orNull();
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRooms(Collection<String> positionStrings) {
+        Map<String, Optional<RoomRecord>> cached;
+        try {
+            cached = rooms.getAll(positionStrings);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UncheckedExecutionException(e.getCause());
+        }
+        Map<String, RoomRecord> found = new HashMap<>();
+        for (Map.Entry<String, Optional<RoomRecord>> room : cached.entrySet()) {
+            if (room.getValue().isPresent()) {
+                found.put(room.getKey(), room.getValue().get());
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Set<String> roomsExist(Collection<String> positionStrings) {
+        // Read the rooms, so later reads of them are hits
+        return new HashSet<>(getRooms(positionStrings).keySet());
+    }
+
+    @Override
+    public List<String> getRoomPositions(String afterPosition, int limit) {
+        return decoratee.getRoomPositions(afterPosition, limit);
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max) {
+        // Always read, as the empty positions of the box are not known;
+        // the rooms found are cached for the moves around the box
+        Map<String, RoomRecord> found = decoratee.getRoomsInBox(min, max);
+        for (Map.Entry<String, RoomRecord> room : found.entrySet()) {
+            rooms.put(room.getKey(), Optional.of(room.getValue()));
+        }
+        return found;
+    }
+
+    @Override
+    public boolean addRoom(String positionString, RoomRecord description) {
+        boolean added = decoratee.addRoom(positionString, description);
+        forgetRoom(positionString);
+        return added;
+    }
+
+    @Override
+    public List<Direction> getSetOfExitsFromRoom(String positionString) {
+        return load(exits, positionString);
+    }
+
+    @Override
+    public void invalidate(Collection<Invalidation> batch) {
+        for (Invalidation invalidation : batch) {
+            if (invalidation.getKind() == Invalidation.Kind.ROOM) {
+                forgetRoom(invalidation.getKey());
+            }
+        }
+        if (decoratee instanceof InvalidationListener) {
+            ((InvalidationListener) decoratee).invalidate(batch);
+        }
+    }
+
+    /**
+     * Forget the room at a position, and the exit sets of its neighbours,
+     * which may now lead to it.
+     */
+    private void forgetRoom(String positionString) {
+        rooms.invalidate(positionString);
+        exits.invalidate(positionString);
+        Point3 position;
+        try {
+            position = Point3.parseString(positionString);
+        } catch (RuntimeException e) {
+            // Not a position of the cave, so no neighbours
+            return;
+        }
+        for (Direction direction : Direction.values()) {
+            exits.invalidate(position.translate(direction).getPositionString());
+        }
+    }
+
+    private static <V> V load(LoadingCache<String, V> cache, String key) {
+        try {
+            return cache.getUnchecked(key);
+        } catch (UncheckedExecutionException e) {
+            // Let the exceptions of the decoratee through as they are
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public PlayerRecord getPlayerByID(String playerID) {
+        return decoratee.getPlayerByID(playerID);
+    }
+
+    @Override
+    public Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs) {
+        return decoratee.getPlayersByIDs(playerIDs);
+    }
+
+    @Override
+    public void updatePlayerRecord(PlayerRecord record) {
+        decoratee.updatePlayerRecord(record);
+    }
+
+    @Override
+    public boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion) {
+        return decoratee.compareAndSetPlayerRecord(record, expectedVersion);
+    }
+
+    @Override
+    public boolean updatePlayerPosition(String playerID, String expectedPosition, String positionString) {
+        return decoratee.updatePlayerPosition(playerID, expectedPosition, positionString);
+    }
+
+    @Override
+    public SessionStartRecord startPlayerSession(PlayerRecord record) {
+        return decoratee.startPlayerSession(record);
+    }
+
+    @Override
+    public PlayerRecord endPlayerSession(String playerID) {
+        return decoratee.endPlayerSession(playerID);
+    }
+
+    @Override
+    public List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset) {
+        return decoratee.computeListOfPlayersAt(positionString, offset);
+    }
+
+    @Override
+    public PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit) {
+        return decoratee.computePageOfPlayersAt(positionString, afterPlayerID, limit);
+    }
+
+    @Override
+    public long computeCountOfActivePlayers() {
+        return decoratee.computeCountOfActivePlayers();
+    }
+
+    @Override
+    public void touchSessions(Collection<String> playerIDs) {
+        decoratee.touchSessions(playerIDs);
+    }
+
+    @Override
+    public List<String> computeListOfIdlePlayers(long idleSeconds) {
+        return decoratee.computeListOfIdlePlayers(idleSeconds);
+    }
+
+    @Override
+    public void removeIdleSessions(Collection<String> playerIDs, long idleSeconds) {
+        decoratee.removeIdleSessions(playerIDs, idleSeconds);
+    }
+
+    @Override
+    public boolean claimRequest(String requestKey) {
+        return decoratee.claimRequest(requestKey);
+    }
+
+    @Override
+    public String getRequestReply(String requestKey) {
+        return decoratee.getRequestReply(requestKey);
+    }
+
+    @Override
+    public void completeRequest(String requestKey, String reply) {
+        decoratee.completeRequest(requestKey, reply);
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    @Override
+    public void disconnect() {
+        decoratee.disconnect();
+    }
+
+    @Override
+    public ServerConfiguration getConfiguration() {
+        return decoratee.getConfiguration();
+    }
+
+    @Override
+    public String toString() {
+        return decoratee.toString();
+    }
+}
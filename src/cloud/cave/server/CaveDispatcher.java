@@ -51,6 +51,15 @@ public class CaveDispatcher implements Dispatcher {
         // === DESCRIBE CONFIGURATION
         else if (methodKey.equals(MarshalingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY)) {
             reply = Marshaling.createValidReplyWithReturnValue(cave.describeConfiguration());
+        }
+        // === PING, for load balancers; must not touch the storage
+        else if (methodKey.equals(MarshalingKeys.PING_METHOD_KEY)) {
+            if (cave instanceof StandardServerCave && !((StandardServerCave) cave).isReady()) {
+                reply = Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_NOT_READY,
+                        "CaveDispatcher: The server is still warming up.");
+            } else {
+                reply = Marshaling.createValidReplyWithReturnValue("pong");
+            }
         } else {
             reply = null;
         }
@@ -0,0 +1,189 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Region;
+import cloud.cave.ipc.Invoker;
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.ipc.StatusCode;
+import cloud.cave.server.common.ExitMask;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.Point3;
+import cloud.cave.server.common.RoomRecord;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The warmup phase of an app server, run before it reports ready to the
+ * load balancers, so the first players do not pay for a cold server.
+ * <p/>
+ * The hot rooms, the origin and its neighbours, are read from the storage,
+ * and their exits in parallel, which also opens connections in the pool of
+ * the storage driver. Then a number of synthetic requests are run through the invoker,
+ * marshaled and unmarshaled as the reactor would, to have the JIT compile
+ * the request path of the players: the session lookup, the dispatch, and
+ * the room, exit and position reads. The requests are made by synthetic
+ * players, one in each hot room, whose sessions are known only to the
+ * session cache of this server, so the warmup does not touch the
+ * subscription service or write the players in the storage.
+ *
+ * @author Rohde Fischer
+ */
+public class CaveWarmup {
+    private static final Logger logger = LoggerFactory.getLogger(CaveWarmup.class);
+
+    /**
+     * The default number of synthetic requests
+     */
+    public static final int DEFAULT_SYNTHETIC_REQUESTS = 2000;
+
+    /**
+     * The prefix of the ids of the synthetic players
+     */
+    public static final String SYNTHETIC_PLAYER_PREFIX = "warmup-";
+
+    private static final String[] SYNTHETIC_METHODS = {
+            MarshalingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY,
+            MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY,
+            MarshalingKeys.GET_EXITSET_METHOD_KEY,
+            MarshalingKeys.GET_POSITION_METHOD_KEY
+    };
+
+    private final StandardServerCave cave;
+    private final Invoker invoker;
+
+    /**
+     * Create the warmup of a cave.
+     *
+     * @param cave    the cave to warm up
+     * @param invoker the invoker of the cave, behind the readiness gate if any
+     */
+    public CaveWarmup(StandardServerCave cave, Invoker invoker) {
+        this.cave = cave;
+        this.invoker = invoker;
+    }
+
+    /**
+     * Run the warmup.
+     *
+     * @param syntheticRequests the number of synthetic requests to run
+     * @return the number of synthetic requests answered
+     */
+    public int run(int syntheticRequests) {
+        long start = System.currentTimeMillis();
+        Map<String, RoomRecord> rooms = readHotRooms();
+        int answered = runSyntheticRequests(rooms, syntheticRequests);
+        logger.info("Warmup read " + rooms.size() + " hot rooms and answered " + answered + " of "
+                + syntheticRequests + " synthetic requests in " + (System.currentTimeMillis() - start) + " ms");
+        return answered;
+    }
+
+    /**
+     * Read the origin and its neighbours from the storage in one call, then
+     * their exit sets, one thread per room.
+     *
+     * @return the number of rooms found
+     */
+    public int preloadHotRooms() {
+        return readHotRooms().size();
+    }
+
+    private Map<String, RoomRecord> readHotRooms() {
+        List<String> positions = new ArrayList<>();
+        String origin = new Point3(0, 0, 0).getPositionString();
+        positions.add(origin);
+        positions.addAll(ExitMask.neighboursOf(origin).keySet());
+
+        Map<String, RoomRecord> found;
+        try {
+            found = cave.getStorage().getRooms(positions);
+        } catch (RuntimeException e) {
+            logger.warn("Preloading the hot rooms failed", e);
+            return Collections.emptyMap();
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(positions.size());
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (final String position : found.keySet()) {
+                reads.add(readers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        cave.getStorage().getSetOfExitsFromRoom(position);
+                    }
+                }));
+            }
+            for (Future<?> read : reads) {
+                try {
+                    read.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Preloading the exits of a hot room failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            readers.shutdown();
+        }
+        return found;
+    }
+
+    /**
+     * Run synthetic requests through the invoker, made by a synthetic
+     * player in each of the hot rooms.
+     *
+     * @param rooms the hot rooms, by position
+     * @param count the number of requests
+     * @return the number of requests answered OK
+     */
+    private int runSyntheticRequests(Map<String, RoomRecord> rooms, int count) {
+        if (rooms.isEmpty()) {
+            return 0;
+        }
+        List<PlayerRecord> players = new ArrayList<>();
+        List<RoomRecord> playerRooms = new ArrayList<>();
+        for (Map.Entry<String, RoomRecord> room : rooms.entrySet()) {
+            PlayerRecord player = new PlayerRecord(SYNTHETIC_PLAYER_PREFIX + players.size(), "Warmup", "warmup",
+                    Region.AARHUS, room.getKey(), UUID.randomUUID().toString());
+            cave.startSyntheticSession(player, room.getValue());
+            players.add(player);
+            playerRooms.add(room.getValue());
+        }
+
+        JSONParser parser = new JSONParser();
+        int answered = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = i % players.size();
+                PlayerRecord player = players.get(index);
+                JSONObject request = Marshaling.createRequestObject(player.getPlayerID(), player.getSessionId(),
+                        SYNTHETIC_METHODS[(i / players.size()) % SYNTHETIC_METHODS.length], "");
+                try {
+                    JSONObject unmarshaled = (JSONObject) parser.parse(request.toJSONString());
+                    JSONObject reply = invoker.handleRequest(unmarshaled);
+                    reply = (JSONObject) parser.parse(reply.toJSONString());
+                    Object status = reply.get(MarshalingKeys.ERROR_CODE_KEY);
+                    if (StatusCode.OK.equals(status)) {
+                        answered++;
+                    } else if (StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE.equals(status)) {
+                        // The session cache verifies its players against the
+                        // storage now and then, which has no synthetic players
+                        cave.startSyntheticSession(player, playerRooms.get(index));
+                    }
+                } catch (ParseException | RuntimeException e) {
+                    logger.warn("Synthetic warmup request failed", e);
+                }
+            }
+        } finally {
+            for (PlayerRecord player : players) {
+                cave.endSyntheticSession(player.getPlayerID());
+            }
+        }
+        return answered;
+    }
+}
@@ -37,6 +37,11 @@ public class DatabaseCache implements PlayerSessionCache {
             return player;
     }
 
+    @Override
+    public Player refresh(String playerID, String sessionID) {
+        return get(playerID);
+    }
+
     @Override
     public void add(String playerID, Player player) {
     }
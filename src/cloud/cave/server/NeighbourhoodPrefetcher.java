@@ -0,0 +1,229 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.ExitMask;
+import cloud.cave.service.CaveStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the neighbourhood of the room a player moved to in the background,
+ * so the rooms and exit sets of the next move or look are already in the
+ * room cache of the app server when the player asks for them.
+ * <p/>
+ * The prefetching runs on a few low priority threads with a bounded queue.
+ * When the queue is full, the prefetch of a move is dropped, so a busy app
+ * server spends no more on guessing than it can spare. When a player moves
+ * again before the prefetch of the last move has run, that prefetch is
+ * cancelled, as the player has already left its room.
+ * <p/>
+ * The prefetcher does nothing until started, which the daemon does when
+ * the rooms are cached. Prefetching into a storage without a cache just
+ * costs reads.
+ *
+ * @author Rohde Fischer
+ */
+public class NeighbourhoodPrefetcher {
+    private static final Logger logger = LoggerFactory.getLogger(NeighbourhoodPrefetcher.class);
+
+    /**
+     * The default number of threads prefetching
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The default maximal number of prefetches waiting for a thread
+     */
+    public static final int DEFAULT_MAXIMUM_PENDING = 256;
+
+    private final CaveStorage storage;
+    private final ConcurrentMap<String, Prefetch> pending;
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile ThreadPoolExecutor executor;
+
+    /**
+     * Create the prefetcher.
+     *
+     * @param storage the storage to read the neighbourhoods through, which
+     *                should be the caching one
+     */
+    public NeighbourhoodPrefetcher(CaveStorage storage) {
+        this.storage = storage;
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Start prefetching the moves reported from now on.
+     *
+     * @param threads        the number of threads prefetching
+     * @param maximumPending the maximal number of prefetches waiting for a
+     *                       thread, more are dropped
+     */
+    public synchronized void start(int threads, int maximumPending) {
+        if (executor != null) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maximumPending),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "neighbourhood-prefetch");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        Prefetch prefetch = (Prefetch) r;
+                        pending.remove(prefetch.playerID, prefetch);
+                        dropped.incrementAndGet();
+                    }
+                });
+    }
+
+    /**
+     * Stop prefetching, and wait for the prefetches already running.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        pending.clear();
+    }
+
+    /**
+     * Tell that a player moved, so the neighbourhood of the new position is
+     * prefetched, instead of that of any position the player left.
+     *
+     * @param playerID       the id of the player who moved
+     * @param positionString the position the player moved to
+     */
+    public void moved(String playerID, String positionString) {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            return;
+        }
+        Prefetch prefetch = new Prefetch(playerID, positionString);
+        Prefetch previous = pending.put(playerID, prefetch);
+        if (previous != null && current.remove(previous)) {
+            cancelled.incrementAndGet();
+        }
+        try {
+            current.execute(prefetch);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime
+            pending.remove(playerID, prefetch);
+        }
+    }
+
+    /**
+     * Get the number of neighbourhoods prefetched.
+     *
+     * @return the number of prefetches run to the end
+     */
+    public long getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    /**
+     * Get the number of prefetches cancelled, as the player moved on before
+     * or while they ran.
+     *
+     * @return the number of prefetches cancelled
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Get the number of prefetches dropped, as too many were waiting.
+     *
+     * @return the number of prefetches dropped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private class Prefetch implements Runnable {
+        private final String playerID;
+        private final String positionString;
+
+        Prefetch(String playerID, String positionString) {
+            this.playerID = playerID;
+            this.positionString = positionString;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (prefetch()) {
+                    prefetched.incrementAndGet();
+                } else {
+                    cancelled.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                // Only a guess failed, the player will read it when needed
+                logger.warn("Failed prefetching the neighbourhood of " + positionString, e);
+            } finally {
+                pending.remove(playerID, this);
+            }
+        }
+
+        /**
+         * Read the rooms next to the position and their exit sets, giving up
+         * between the reads if the player has moved on.
+         *
+         * @return true if the neighbourhood was read to the end
+         */
+        private boolean prefetch() {
+            if (isSuperseded()) {
+                return false;
+            }
+            List<Direction> exits = storage.getSetOfExitsFromRoom(positionString);
+            List<String> neighbours = new ArrayList<>();
+            for (Map.Entry<String, Direction> neighbour : ExitMask.neighboursOf(positionString).entrySet()) {
+                if (exits.contains(neighbour.getValue())) {
+                    neighbours.add(neighbour.getKey());
+                }
+            }
+            if (neighbours.isEmpty()) {
+                return true;
+            }
+            if (isSuperseded()) {
+                return false;
+            }
+            storage.getRooms(neighbours);
+            for (String neighbour : neighbours) {
+                if (isSuperseded()) {
+                    return false;
+                }
+                storage.getSetOfExitsFromRoom(neighbour);
+            }
+            return true;
+        }
+
+        private boolean isSuperseded() {
+            return pending.get(playerID) != this || Thread.currentThread().isInterrupted();
+        }
+    }
+}
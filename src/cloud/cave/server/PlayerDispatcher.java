@@ -10,6 +10,8 @@ import org.json.simple.*;
 import cloud.cave.common.PlayerSessionExpiredException;
 import cloud.cave.domain.*;
 import cloud.cave.ipc.*;
+import cloud.cave.server.common.Point3;
+import cloud.cave.server.invalidation.Invalidation;
 
 /**
  * Dispatcher implementation covering all the methods
@@ -18,14 +20,16 @@ import cloud.cave.ipc.*;
  * @author Henrik Baerbak Christensen, Aarhus University.
  */
 public class PlayerDispatcher implements Dispatcher {
-    private final PlayerSessionCache cache;
+    private final StandardServerCave cave;
+    private final RoomEventHub eventHub;
 
     public PlayerDispatcher(Cave cave) {
         //
         // TODO Empty stub, to be implemented by students TODO: Nasty hack - but we need to get that cache; and the
         // dispatcher is of course only used on the server side...
         StandardServerCave scave = (StandardServerCave) cave;
-        cache = scave.getCache();
+        this.cave = scave;
+        eventHub = scave.getEventHub();
     }
 
     @Override
@@ -36,18 +40,8 @@ public class PlayerDispatcher implements Dispatcher {
                                final JSONArray parameterList) {
         JSONObject reply;
         try {
-            // Fetch the server side player object from cache
-            final Player player = cache.get(playerID);
-
-            // Access control of the 'Blizzard' variant: the last login (= session) is the one winning. If the session id
-            // coming from the client differs from the one cached here in the server means two different clients are accessing
-            // the same player object. However we assign a new session id upon each login thus if they differ, the client
-            // calling us has the 'old session' and must thus be told that he/she cannot control the avatar any more.
-            if (!sessionID.equals(player.getSessionID())) {
-                throw new PlayerSessionExpiredException("PlayerDispatcher: The session for player " + player.getID()
-                                + " is no longer valid (Client session=" + sessionID + "/Server cached session="
-                                + player.getSessionID() + ").");
-            }
+            final Player player = cave.getPlayerOfSession(playerID, sessionID);
+            cave.getSessionReaper().seen(playerID);
 
             // === SHORT ROOM
             switch (methodKey) {
@@ -56,6 +50,14 @@ public class PlayerDispatcher implements Dispatcher {
                     break;
                 // === LONG ROOM
                 case MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY:
+                    if (isPageRequest(parameterList)) {
+                        final PlayerListPage page = player.getPageOfPlayersHere(cursorOf(parameterList));
+                        reply = Marshaling.createValidReplyWithReturnValue(StandardServerPlayer.describeRoom(
+                                player.getShortRoomDescription(), player.getExitSet(), page.getPlayerNames(),
+                                !page.hasMore()));
+                        putPage(reply, page);
+                        break;
+                    }
                     final int offset;
                     if (Strings.isNullOrEmpty(parameter1))
                         offset = 0;
@@ -74,6 +76,14 @@ public class PlayerDispatcher implements Dispatcher {
                     break;
                 // === PLAYERS HERE
                 case MarshalingKeys.GET_PLAYERS_HERE_METHOD_KEY: {
+                    if (isPageRequest(parameterList)) {
+                        final PlayerListPage page = player.getPageOfPlayersHere(cursorOf(parameterList));
+                        final List<String> names = page.getPlayerNames();
+                        reply = Marshaling.createValidReplyWithReturnValue("notused",
+                                names.toArray(new String[names.size()]));
+                        putPage(reply, page);
+                        break;
+                    }
                     if (Strings.isNullOrEmpty(parameter1))
                         offset = 0;
                     else
@@ -104,11 +114,27 @@ public class PlayerDispatcher implements Dispatcher {
                 case MarshalingKeys.MOVE_METHOD_KEY: {
                     // move(direction)
                     final Direction direction = Direction.valueOf(parameter1);
+                    // Only look up the room left if anybody may be told about it
+                    final String oldPosition = eventHub.hasSubscribers() ? player.getPosition() : null;
                     final boolean isValid = player.move(direction);
+                    final String newPosition = player.getPosition();
 
                     reply = Marshaling.createValidReplyWithReturnValue("" + isValid);
                     reply.put("shortRoomDescription", player.getShortRoomDescription());
-                    reply.put("position", player.getPosition());
+                    reply.put("position", newPosition);
+
+                    if (isValid) {
+                        // The other servers must not move the player from their cached position
+                        cave.publishInvalidation(Invalidation.player(playerID));
+                        cave.getNeighbourhoodPrefetcher().moved(playerID, newPosition);
+                    }
+                    if (isValid && oldPosition != null) {
+                        eventHub.moveSubscription(playerID, newPosition);
+                        eventHub.publish(oldPosition, Marshaling.createRoomEvent(MarshalingKeys.PLAYER_LEFT_EVENT,
+                                oldPosition, player.getName(), null), playerID);
+                        eventHub.publish(newPosition, Marshaling.createRoomEvent(MarshalingKeys.PLAYER_ENTERED_EVENT,
+                                newPosition, player.getName(), null), playerID);
+                    }
                     break;
                 }
                 // === DIG
@@ -117,6 +143,12 @@ public class PlayerDispatcher implements Dispatcher {
                     final String description = parameterList.get(0).toString();
                     final boolean isValid = player.digRoom(direction, description);
 
+                    if (isValid) {
+                        // The new room changes the exit sets cached by the other servers
+                        final Point3 dug = Point3.parseString(player.getPosition()).translate(direction);
+                        cave.publishInvalidation(Invalidation.room(dug.getPositionString()));
+                    }
+
                     reply = Marshaling.createValidReplyWithReturnValue("" + isValid);
                     break;
                 }
@@ -129,9 +161,15 @@ public class PlayerDispatcher implements Dispatcher {
                         i++;
                     }
 
+                    final String positionBefore = player.getPosition();
                     reply = player.execute(parameter1, parameters);
+                    final String positionAfter = player.getPosition();
+                    if (!positionAfter.equals(positionBefore)) {
+                        // The command moved the player, like the Home command
+                        cave.publishInvalidation(Invalidation.player(playerID));
+                    }
                     reply.put("shortRoomDescription", player.getShortRoomDescription());
-                    reply.put("position", player.getPosition());
+                    reply.put("position", positionAfter);
                     break;
                 }
                 // == WEATHER
@@ -149,6 +187,12 @@ public class PlayerDispatcher implements Dispatcher {
                 case MarshalingKeys.ADD_MESSAGE_METHOD_KEY: {
                     player.addMessage(parameter1);
 
+                    if (eventHub.hasSubscribers()) {
+                        final String position = player.getPosition();
+                        eventHub.publish(position, Marshaling.createRoomEvent(MarshalingKeys.MESSAGE_ADDED_EVENT,
+                                position, player.getName(), parameter1), playerID);
+                    }
+
                     reply = Marshaling.createValidReplyWithReturnValue(StatusCode.OK);
                     break;
                 }
@@ -167,4 +211,22 @@ public class PlayerDispatcher implements Dispatcher {
 
         return reply;
     }
+
+    /**
+     * Tell whether a listing of the players here asks for a page by a cursor,
+     * given in the tail, rather than by an offset, as older clients do.
+     */
+    private static boolean isPageRequest(JSONArray parameterList) {
+        return parameterList != null && !parameterList.isEmpty();
+    }
+
+    private static String cursorOf(JSONArray parameterList) {
+        final Object cursor = parameterList.get(0);
+        return cursor == null ? null : cursor.toString();
+    }
+
+    private static void putPage(JSONObject reply, PlayerListPage page) {
+        reply.put(MarshalingKeys.PLAYER_CURSOR_KEY, page.getCursor());
+        reply.put(MarshalingKeys.HAS_MORE_PLAYERS_KEY, "" + page.hasMore());
+    }
 }
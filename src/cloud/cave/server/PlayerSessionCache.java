@@ -20,6 +20,19 @@ public interface PlayerSessionCache {
      */
     Player get(String playerID);
 
+    /**
+     * Get the player object corresponding to the given player id, for a
+     * request whose session differs from the cached session. The cached copy
+     * is replaced if the storage has the session of the request, like after
+     * a login on another server.
+     *
+     * @param playerID  the id of the player
+     * @param sessionID the session of the request
+     * @return null if the player has no session, otherwise the player object,
+     * which still has another session if the one of the request is outdated
+     */
+    Player refresh(String playerID, String sessionID);
+
     /**
      * Add a player instance under the given player id
      *
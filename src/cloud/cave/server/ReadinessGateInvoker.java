@@ -0,0 +1,49 @@
+package cloud.cave.server;
+
+import cloud.cave.ipc.*;
+import org.json.simple.JSONObject;
+
+/**
+ * An invoker in front of the invoker of an app server, turning away the
+ * requests of the players while the server is not ready, so no player is
+ * served by a server still warming up. Pings pass, so the load balancers
+ * learn when the server is ready.
+ * <p/>
+ * The warmup runs its synthetic requests on the invoker behind the gate.
+ *
+ * @author Rohde Fischer
+ */
+public class ReadinessGateInvoker implements SubscribingInvoker {
+    private final StandardServerCave cave;
+    private final SubscribingInvoker invoker;
+
+    public ReadinessGateInvoker(StandardServerCave cave, SubscribingInvoker invoker) {
+        this.cave = cave;
+        this.invoker = invoker;
+    }
+
+    @Override
+    public JSONObject handleRequest(JSONObject requestJson) {
+        if (isTurnedAway(requestJson)) {
+            return notReady();
+        }
+        return invoker.handleRequest(requestJson);
+    }
+
+    @Override
+    public JSONObject handleRequest(JSONObject requestJson, EventSink sink) {
+        if (isTurnedAway(requestJson)) {
+            return notReady();
+        }
+        return invoker.handleRequest(requestJson, sink);
+    }
+
+    private boolean isTurnedAway(JSONObject requestJson) {
+        return !cave.isReady() && !MarshalingKeys.PING_METHOD_KEY.equals(requestJson.get(MarshalingKeys.METHOD_KEY));
+    }
+
+    private static JSONObject notReady() {
+        return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_NOT_READY,
+                "ReadinessGateInvoker: The server is still warming up.");
+    }
+}
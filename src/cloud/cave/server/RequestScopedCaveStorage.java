@@ -0,0 +1,383 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.PlayerPageRecord;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.Point3;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.common.SessionStartRecord;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Optional;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A storage decorator remembering what is read during a unit of work, that
+ * is the handling of a single request by the invoker. Within a unit of work
+ * each room, exit set, player and list of players is read from the
+ * decoratee at most once; the writes go through to the decoratee at once,
+ * and update or forget what is remembered.
+ * <p/>
+ * Outside a unit of work, like on the threads of the session reaper, every
+ * call goes to the decoratee. Units of work are per thread, so nothing read
+ * is shared between requests.
+ *
+ * @author Rohde Fischer
+ */
+public class RequestScopedCaveStorage implements CaveStorage {
+    private final CaveStorage decoratee;
+    private final ThreadLocal<UnitOfWork> unitOfWork;
+    private final AtomicLong avoidedCalls;
+
+    public RequestScopedCaveStorage(CaveStorage decoratee) {
+        this.decoratee = decoratee;
+        this.unitOfWork = new ThreadLocal<>();
+        this.avoidedCalls = new AtomicLong();
+    }
+
+    /**
+     * Begin a unit of work on the calling thread. Units of work may be
+     * nested, the outermost one decides when the reads are forgotten.
+     */
+    public void beginUnitOfWork() {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            work = new UnitOfWork();
+            unitOfWork.set(work);
+        }
+        work.depth++;
+    }
+
+    /**
+     * End the unit of work on the calling thread, forgetting what was read
+     * when it is the outermost one.
+     */
+    public void endUnitOfWork() {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null && --work.depth == 0) {
+            unitOfWork.remove();
+        }
+    }
+
+    /**
+     * Get the number of calls answered from a unit of work instead of the
+     * decoratee.
+     *
+     * @return the number of avoided storage calls
+     */
+    public long getAvoidedCallCount() {
+        return avoidedCalls.get();
+    }
+
+    public CaveStorage getDecoratee() {
+        return decoratee;
+    }
+
+    @Override
+    public RoomRecord getRoom(String positionString) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.getRoom(positionString);
+        }
+        Optional<RoomRecord> room = work.rooms.get(positionString);
+        if (room != null) {
+            avoidedCalls.incrementAndGet();
+            return room.orNull();
+        }
+        RoomRecord read = decoratee.getRoom(positionString);
+        work.rooms.put(positionString, Optional.fromNullable(read));
+        return read;
+    }
+
+    @Override
+    public boolean addRoom(String positionString, RoomRecord description) {
+        boolean added = decoratee.addRoom(positionString, description);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // The new room is an exit of its neighbours
+            work.rooms.remove(positionString);
+            work.exits.clear();
+        }
+        return added;
+    }
+
+    @Override
+    public List<Direction> getSetOfExitsFromRoom(String positionString) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.getSetOfExitsFromRoom(positionString);
+        }
+        List<Direction> exits = work.exits.get(positionString);
+        if (exits != null) {
+            avoidedCalls.incrementAndGet();
+            return exits;
+        }
+        exits = decoratee.getSetOfExitsFromRoom(positionString);
+        work.exits.put(positionString, exits);
+        return exits;
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRooms(Collection<String> positionStrings) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.getRooms(positionStrings);
+        }
+        Map<String, RoomRecord> rooms = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String position : positionStrings) {
+            Optional<RoomRecord> room = work.rooms.get(position);
+            if (room == null) {
+                missing.add(position);
+            } else if (room.isPresent()) {
+                rooms.put(position, room.get());
+            }
+        }
+        avoidedCalls.addAndGet(positionStrings.size() - missing.size());
+        if (!missing.isEmpty()) {
+            Map<String, RoomRecord> read = decoratee.getRooms(missing);
+            for (String position : missing) {
+                work.rooms.put(position, Optional.fromNullable(read.get(position)));
+            }
+            rooms.putAll(read);
+        }
+        return rooms;
+    }
+
+    @Override
+    public Set<String> roomsExist(Collection<String> positionStrings) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.roomsExist(positionStrings);
+        }
+        Set<String> existing = new HashSet<>();
+        List<String> unknown = new ArrayList<>();
+        for (String position : positionStrings) {
+            Optional<RoomRecord> room = work.rooms.get(position);
+            if (room == null) {
+                unknown.add(position);
+            } else if (room.isPresent()) {
+                existing.add(position);
+            }
+        }
+        avoidedCalls.addAndGet(positionStrings.size() - unknown.size());
+        if (!unknown.isEmpty()) {
+            existing.addAll(decoratee.roomsExist(unknown));
+        }
+        return existing;
+    }
+
+    @Override
+    public List<String> getRoomPositions(String afterPosition, int limit) {
+        return decoratee.getRoomPositions(afterPosition, limit);
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max) {
+        Map<String, RoomRecord> found = decoratee.getRoomsInBox(min, max);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            for (Map.Entry<String, RoomRecord> room : found.entrySet()) {
+                work.rooms.put(room.getKey(), Optional.of(room.getValue()));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public PlayerRecord getPlayerByID(String playerID) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.getPlayerByID(playerID);
+        }
+        Optional<PlayerRecord> player = work.players.get(playerID);
+        if (player != null) {
+            avoidedCalls.incrementAndGet();
+            return player.orNull();
+        }
+        PlayerRecord read = decoratee.getPlayerByID(playerID);
+        work.players.put(playerID, Optional.fromNullable(read));
+        return read;
+    }
+
+    @Override
+    public Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.getPlayersByIDs(playerIDs);
+        }
+        Map<String, PlayerRecord> players = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String playerID : playerIDs) {
+            Optional<PlayerRecord> player = work.players.get(playerID);
+            if (player == null) {
+                missing.add(playerID);
+            } else if (player.isPresent()) {
+                players.put(playerID, player.get());
+            }
+        }
+        avoidedCalls.addAndGet(playerIDs.size() - missing.size());
+        if (!missing.isEmpty()) {
+            Map<String, PlayerRecord> read = decoratee.getPlayersByIDs(missing);
+            for (String playerID : missing) {
+                work.players.put(playerID, Optional.fromNullable(read.get(playerID)));
+            }
+            players.putAll(read);
+        }
+        return players;
+    }
+
+    @Override
+    public void updatePlayerRecord(PlayerRecord record) {
+        decoratee.updatePlayerRecord(record);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // The version written is not known, so read the record again
+            work.players.remove(record.getPlayerID());
+            work.playersAt.clear();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion) {
+        boolean updated = decoratee.compareAndSetPlayerRecord(record, expectedVersion);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            if (updated) {
+                work.players.put(record.getPlayerID(), Optional.of(new PlayerRecord(record.getPlayerID(),
+                        record.getPlayerName(), record.getGroupName(), record.getRegion(),
+                        record.getPositionAsString(), record.getSessionId(), expectedVersion + 1)));
+            } else {
+                // Somebody else wrote the record, so read it again
+                work.players.remove(record.getPlayerID());
+            }
+            work.playersAt.clear();
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean updatePlayerPosition(String playerID, String expectedPosition, String positionString) {
+        boolean updated = decoratee.updatePlayerPosition(playerID, expectedPosition, positionString);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // The version written is not known, so read the record again
+            work.players.remove(playerID);
+            work.playersAt.clear();
+        }
+        return updated;
+    }
+
+    @Override
+    public SessionStartRecord startPlayerSession(PlayerRecord record) {
+        SessionStartRecord started = decoratee.startPlayerSession(record);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            work.players.put(record.getPlayerID(), Optional.of(started.getPlayer()));
+            work.playersAt.clear();
+        }
+        return started;
+    }
+
+    @Override
+    public PlayerRecord endPlayerSession(String playerID) {
+        PlayerRecord ended = decoratee.endPlayerSession(playerID);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            if (ended != null) {
+                work.players.put(playerID, Optional.of(ended));
+            } else {
+                work.players.remove(playerID);
+            }
+            work.playersAt.clear();
+        }
+        return ended;
+    }
+
+    @Override
+    public List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            return decoratee.computeListOfPlayersAt(positionString, offset);
+        }
+        String key = positionString + "#" + offset;
+        List<PlayerRecord> players = work.playersAt.get(key);
+        if (players != null) {
+            avoidedCalls.incrementAndGet();
+            return players;
+        }
+        players = decoratee.computeListOfPlayersAt(positionString, offset);
+        work.playersAt.put(key, players);
+        return players;
+    }
+
+    @Override
+    public PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit) {
+        return decoratee.computePageOfPlayersAt(positionString, afterPlayerID, limit);
+    }
+
+    @Override
+    public long computeCountOfActivePlayers() {
+        return decoratee.computeCountOfActivePlayers();
+    }
+
+    @Override
+    public void touchSessions(Collection<String> playerIDs) {
+        decoratee.touchSessions(playerIDs);
+    }
+
+    @Override
+    public List<String> computeListOfIdlePlayers(long idleSeconds) {
+        return decoratee.computeListOfIdlePlayers(idleSeconds);
+    }
+
+    @Override
+    public void removeIdleSessions(Collection<String> playerIDs, long idleSeconds) {
+        decoratee.removeIdleSessions(playerIDs, idleSeconds);
+    }
+
+    @Override
+    public boolean claimRequest(String requestKey) {
+        return decoratee.claimRequest(requestKey);
+    }
+
+    @Override
+    public String getRequestReply(String requestKey) {
+        return decoratee.getRequestReply(requestKey);
+    }
+
+    @Override
+    public void completeRequest(String requestKey, String reply) {
+        decoratee.completeRequest(requestKey, reply);
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    @Override
+    public void disconnect() {
+        decoratee.disconnect();
+    }
+
+    @Override
+    public ServerConfiguration getConfiguration() {
+        return decoratee.getConfiguration();
+    }
+
+    @Override
+    public String toString() {
+        return decoratee.toString();
+    }
+
+    private static class UnitOfWork {
+        private int depth;
+        private final Map<String, Optional<RoomRecord>> rooms = new HashMap<>();
+        private final Map<String, List<Direction>> exits = new HashMap<>();
+        private final Map<String, Optional<PlayerRecord>> players = new HashMap<>();
+        private final Map<String, List<PlayerRecord>> playersAt = new HashMap<>();
+    }
+}
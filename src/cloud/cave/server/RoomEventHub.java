@@ -0,0 +1,190 @@
+package cloud.cave.server;
+
+import cloud.cave.ipc.EventSink;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fans out the events of a room to the players subscribing to it. A player
+ * subscribes to the room he/she is in, and the subscription follows the
+ * player when he/she moves.
+ * <p/>
+ * Fan out never blocks: an event is offered to the sink of every subscriber,
+ * and a subscriber whose sink does not accept it, because it has too many
+ * events waiting, is a slow consumer and is disconnected by closing the sink.
+ * <p/>
+ * Room events are a single server feature. The hub is local to its app
+ * server, and the events are not relayed to the other app servers, so only
+ * the events caused by requests to the same server as the subscription are
+ * delivered. With several app servers behind a load balancer, a subscriber
+ * misses the events caused on the others. The invalidation bus is no way to
+ * relay them, as it batches and coalesces equal messages, which would delay
+ * and drop events.
+ *
+ * @author Rohde Fischer
+ */
+public class RoomEventHub {
+    private static final Logger logger = LoggerFactory.getLogger(RoomEventHub.class);
+
+    private final ConcurrentMap<String, Set<Subscription>> subscriptionsByRoom;
+    private final ConcurrentMap<String, Subscription> subscriptionsByPlayer;
+
+    public RoomEventHub() {
+        subscriptionsByRoom = new ConcurrentHashMap<>();
+        subscriptionsByPlayer = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Subscribe the player to the events of a room, replacing any earlier
+     * subscription of the player.
+     *
+     * @param playerID the id of the subscribing player
+     * @param position the position of the room
+     * @param sink     the sink to deliver the events to
+     */
+    public void subscribe(String playerID, String position, EventSink sink) {
+        unsubscribe(playerID);
+        Subscription subscription = new Subscription(playerID, sink);
+        subscriptionsByPlayer.put(playerID, subscription);
+        join(subscription, position);
+    }
+
+    /**
+     * Remove the subscription of the player, if any.
+     *
+     * @param playerID the id of the player
+     */
+    public void unsubscribe(String playerID) {
+        Subscription subscription = subscriptionsByPlayer.remove(playerID);
+        if (subscription != null) {
+            leave(subscription);
+        }
+    }
+
+    /**
+     * Move the subscription of the player to another room, if the player
+     * has a subscription.
+     *
+     * @param playerID    the id of the player that moved
+     * @param newPosition the position of the room the player moved to
+     */
+    public void moveSubscription(String playerID, String newPosition) {
+        Subscription subscription = subscriptionsByPlayer.get(playerID);
+        if (subscription != null) {
+            leave(subscription);
+            join(subscription, newPosition);
+        }
+    }
+
+    /**
+     * Deliver the event to all the subscribers of the room, except the
+     * player who caused it.
+     *
+     * @param position       the position of the room
+     * @param event          the event, see Marshaling.createRoomEvent
+     * @param causedByPlayer the id of the player who caused the event
+     */
+    public void publish(String position, JSONObject event, String causedByPlayer) {
+        Set<Subscription> subscribers = subscriptionsByRoom.get(position);
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscription subscription : subscribers) {
+            if (subscription.playerID.equals(causedByPlayer)) {
+                continue;
+            }
+            if (!subscription.sink.offer(event)) {
+                if (subscription.sink.isOpen()) {
+                    logger.warn("Disconnecting " + subscription.playerID + " as a slow consumer of room events");
+                    subscription.sink.close();
+                }
+                subscriptionsByPlayer.remove(subscription.playerID, subscription);
+                leave(subscription);
+            }
+        }
+    }
+
+    /**
+     * Check whether anybody subscribes to any room, to avoid the work of
+     * computing events nobody receives.
+     *
+     * @return true if there is at least one subscription
+     */
+    public boolean hasSubscribers() {
+        return !subscriptionsByPlayer.isEmpty();
+    }
+
+    /**
+     * Get the number of subscribers of a room.
+     *
+     * @param position the position of the room
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount(String position) {
+        Set<Subscription> subscribers = subscriptionsByRoom.get(position);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    /**
+     * Get the number of rooms that have subscribers.
+     *
+     * @return the number of rooms
+     */
+    public int getRoomCount() {
+        return subscriptionsByRoom.size();
+    }
+
+    private void join(Subscription subscription, String position) {
+        subscription.position = position;
+        while (true) {
+            Set<Subscription> subscribers = subscriptionsByRoom.get(position);
+            if (subscribers == null) {
+                Set<Subscription> created = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+                subscribers = subscriptionsByRoom.putIfAbsent(position, created);
+                if (subscribers == null) {
+                    subscribers = created;
+                }
+            }
+            // Unless the set was removed as empty meanwhile, join it;
+            // otherwise join the set replacing it
+            synchronized (subscribers) {
+                if (subscriptionsByRoom.get(position) == subscribers) {
+                    subscribers.add(subscription);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void leave(Subscription subscription) {
+        String position = subscription.position;
+        Set<Subscription> subscribers = subscriptionsByRoom.get(position);
+        if (subscribers == null) {
+            return;
+        }
+        // The set of a room is removed when it becomes empty, so rooms once
+        // visited do not keep an entry for the lifetime of the server
+        synchronized (subscribers) {
+            if (subscribers.remove(subscription) && subscribers.isEmpty()) {
+                subscriptionsByRoom.remove(position, subscribers);
+            }
+        }
+    }
+
+    private static class Subscription {
+        private final String playerID;
+        private final EventSink sink;
+        private volatile String position;
+
+        Subscription(String playerID, EventSink sink) {
+            this.playerID = playerID;
+            this.sink = sink;
+        }
+    }
+}
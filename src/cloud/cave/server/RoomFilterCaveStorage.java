@@ -0,0 +1,425 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.PlayerPageRecord;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.Point3;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.common.ScalableBloomFilter;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.SessionStartRecord;
+import cloud.cave.server.invalidation.Invalidation;
+import cloud.cave.server.invalidation.InvalidationListener;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A storage decorator keeping a Bloom filter of the positions that have a
+ * room, so looking up a position without a room, like probing a move or
+ * validating a jump, is answered without asking the decoratee. Only the
+ * positions the filter wrongly believes to have a room go through.
+ * <p/>
+ * The filter is built from the positions in the decoratee when the
+ * decorator is created, and learns the rooms added through it, and those
+ * added on other app servers from the room invalidations. As the
+ * invalidations may be lost, or not be sent at all when no invalidation
+ * server is configured, a position the filter says has no room is still
+ * looked up in the decoratee once per expiry interval. A room found that
+ * way is learned; a position without a room is remembered until the
+ * interval ends, and answered without the decoratee meanwhile. A room dug
+ * elsewhere is thus missed for one interval at most.
+ *
+ * @author Rohde Fischer
+ */
+public class RoomFilterCaveStorage implements CaveStorage, InvalidationListener {
+    private static final Logger logger = LoggerFactory.getLogger(RoomFilterCaveStorage.class);
+
+    /**
+     * The default number of positions the filter is first made for
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 100000;
+
+    /**
+     * The default false positive probability of the filter
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * The number of positions read at once when building the filter
+     */
+    public static final int BUILD_PAGE_SIZE = 1000;
+
+    /**
+     * The default number of seconds a position verified to have no room is
+     * answered without the decoratee
+     */
+    public static final long DEFAULT_NEGATIVE_EXPIRE_SECONDS = 60;
+
+    /**
+     * The default maximal number of positions remembered to have no room
+     */
+    public static final long DEFAULT_MAXIMUM_NEGATIVES = 100000;
+
+    private final CaveStorage decoratee;
+    private final ScalableBloomFilter positions;
+    private final Cache<String, Boolean> verifiedNegatives;
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong missedRooms = new AtomicLong();
+
+    public RoomFilterCaveStorage(CaveStorage decoratee) {
+        this(decoratee, DEFAULT_INITIAL_CAPACITY, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+    }
+
+    public RoomFilterCaveStorage(CaveStorage decoratee, int initialCapacity, double falsePositiveProbability) {
+        this(decoratee, initialCapacity, falsePositiveProbability, DEFAULT_NEGATIVE_EXPIRE_SECONDS,
+                Ticker.systemTicker());
+    }
+
+    /**
+     * Create the decorator, and build its filter from the decoratee.
+     *
+     * @param decoratee                the storage to filter the room lookups of
+     * @param initialCapacity          the number of positions the filter is first
+     *                                 made for, it grows beyond that as needed
+     * @param falsePositiveProbability the false positive probability of the
+     *                                 filter
+     * @param negativeExpireSeconds    the seconds a position verified to have
+     *                                 no room is answered without the decoratee
+     * @param ticker                   the source of time
+     */
+    public RoomFilterCaveStorage(CaveStorage decoratee, int initialCapacity, double falsePositiveProbability,
+                                 long negativeExpireSeconds, Ticker ticker) {
+        this.decoratee = decoratee;
+        this.positions = new ScalableBloomFilter(initialCapacity, falsePositiveProbability);
+        this.verifiedNegatives = CacheBuilder.newBuilder()
+                .maximumSize(DEFAULT_MAXIMUM_NEGATIVES)
+                .expireAfterWrite(negativeExpireSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+
+        String after = null;
+        List<String> page;
+        do {
+            page = decoratee.getRoomPositions(after, BUILD_PAGE_SIZE);
+            for (String position : page) {
+                positions.put(position);
+            }
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1);
+            }
+        } while (page.size() == BUILD_PAGE_SIZE);
+        logger.info("Built the room filter: " + positions);
+    }
+
+    /**
+     * Get the number of lookups answered by the filter, as the position
+     * certainly has no room.
+     *
+     * @return the number of lookups not passed to the decoratee
+     */
+    public long getNegativeCount() {
+        return negatives.get();
+    }
+
+    /**
+     * Get the number of lookups passed to the decoratee for a position
+     * without a room, as the filter wrongly believed it had one.
+     *
+     * @return the number of false positives seen
+     */
+    public long getFalsePositiveCount() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Get the number of rooms the filter did not know of, found when
+     * verifying a position it said had no room, as their invalidation was
+     * lost.
+     *
+     * @return the number of rooms learned from the decoratee
+     */
+    public long getMissedRoomCount() {
+        return missedRooms.get();
+    }
+
+    /**
+     * Get the share of the lookups of positions without a room that the
+     * filter failed to answer.
+     *
+     * @return the false positive rate seen, 0 if no such lookup was made
+     */
+    public double getFalsePositiveRate() {
+        long wrong = falsePositives.get();
+        long total = wrong + negatives.get();
+        return total == 0 ? 0.0 : (double) wrong / total;
+    }
+
+    /**
+     * Get the false positive probability the filter is expected to have,
+     * given the number of positions in it.
+     *
+     * @return the expected false positive probability
+     */
+    public double getExpectedFalsePositiveProbability() {
+        return positions.getExpectedFalsePositiveProbability();
+    }
+
+    /**
+     * Get the size in memory of the filter.
+     *
+     * @return the approximate number of bytes used by the filter
+     */
+    public long getFilterSizeInBytes() {
+        return positions.getSizeInBytes();
+    }
+
+    public CaveStorage getDecoratee() {
+        return decoratee;
+    }
+
+    @Override
+    public RoomRecord getRoom(String positionString) {
+        boolean mightContain = positions.mightContain(positionString);
+        if (!mightContain && verifiedNegatives.getIfPresent(positionString) != null) {
+            negatives.incrementAndGet();
+            return null;
+        }
+        RoomRecord room = decoratee.getRoom(positionString);
+        if (!mightContain) {
+            verified(positionString, room != null);
+        } else if (room == null) {
+            falsePositives.incrementAndGet();
+        }
+        return room;
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRooms(Collection<String> positionStrings) {
+        List<String> unverified = new ArrayList<>();
+        List<String> lookups = lookups(positionStrings, unverified);
+        if (lookups.isEmpty()) {
+            return new HashMap<>();
+        }
+        Map<String, RoomRecord> rooms = decoratee.getRooms(lookups);
+        learn(unverified, lookups, rooms.keySet());
+        return rooms;
+    }
+
+    @Override
+    public Set<String> roomsExist(Collection<String> positionStrings) {
+        List<String> unverified = new ArrayList<>();
+        List<String> lookups = lookups(positionStrings, unverified);
+        if (lookups.isEmpty()) {
+            return new HashSet<>();
+        }
+        Set<String> existing = decoratee.roomsExist(lookups);
+        learn(unverified, lookups, existing);
+        return existing;
+    }
+
+    /**
+     * Get the positions to look up in the decoratee: those that may have a
+     * room, and those the filter says have none but that are not verified
+     * recently. The others are counted as answered by the filter.
+     *
+     * @param positionStrings the positions asked for
+     * @param unverified      receives the positions the filter says have no
+     *                        room, but that are to be verified
+     * @return the positions to look up
+     */
+    private List<String> lookups(Collection<String> positionStrings, List<String> unverified) {
+        List<String> lookups = new ArrayList<>();
+        for (String position : positionStrings) {
+            if (positions.mightContain(position)) {
+                lookups.add(position);
+            } else if (verifiedNegatives.getIfPresent(position) == null) {
+                lookups.add(position);
+                unverified.add(position);
+            }
+        }
+        negatives.addAndGet(positionStrings.size() - lookups.size());
+        return lookups;
+    }
+
+    /**
+     * Learn from the answer of the decoratee: the rooms the filter missed
+     * are put in it, the positions verified to have no room are remembered,
+     * and the lookups in vain of positions the filter had are counted.
+     *
+     * @param unverified the positions looked up that the filter said have no
+     *                   room
+     * @param lookups    all positions looked up
+     * @param found      the positions found to have a room
+     */
+    private void learn(List<String> unverified, List<String> lookups, Set<String> found) {
+        int missed = 0;
+        for (String position : unverified) {
+            boolean exists = found.contains(position);
+            verified(position, exists);
+            if (exists) {
+                missed++;
+            }
+        }
+        falsePositives.addAndGet((lookups.size() - unverified.size()) - (found.size() - missed));
+    }
+
+    /**
+     * Learn the answer of the decoratee for a position the filter said had
+     * no room.
+     *
+     * @param position the position looked up
+     * @param exists   true if the decoratee has a room there
+     */
+    private void verified(String position, boolean exists) {
+        if (exists) {
+            positions.put(position);
+            missedRooms.incrementAndGet();
+            logger.info("Learned the room at " + position + ", missing from the room filter");
+        } else {
+            verifiedNegatives.put(position, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public List<String> getRoomPositions(String afterPosition, int limit) {
+        return decoratee.getRoomPositions(afterPosition, limit);
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max) {
+        return decoratee.getRoomsInBox(min, max);
+    }
+
+    @Override
+    public boolean addRoom(String positionString, RoomRecord description) {
+        // Put the position first, so it is never filtered away once added.
+        // If the room was already there, it is learned here too.
+        positions.put(positionString);
+        verifiedNegatives.invalidate(positionString);
+        return decoratee.addRoom(positionString, description);
+    }
+
+    @Override
+    public List<Direction> getSetOfExitsFromRoom(String positionString) {
+        return decoratee.getSetOfExitsFromRoom(positionString);
+    }
+
+    @Override
+    public void invalidate(Collection<Invalidation> batch) {
+        for (Invalidation invalidation : batch) {
+            if (invalidation.getKind() == Invalidation.Kind.ROOM) {
+                positions.put(invalidation.getKey());
+                verifiedNegatives.invalidate(invalidation.getKey());
+            }
+        }
+    }
+
+    @Override
+    public PlayerRecord getPlayerByID(String playerID) {
+        return decoratee.getPlayerByID(playerID);
+    }
+
+    @Override
+    public Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs) {
+        return decoratee.getPlayersByIDs(playerIDs);
+    }
+
+    @Override
+    public void updatePlayerRecord(PlayerRecord record) {
+        decoratee.updatePlayerRecord(record);
+    }
+
+    @Override
+    public boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion) {
+        return decoratee.compareAndSetPlayerRecord(record, expectedVersion);
+    }
+
+    @Override
+    public boolean updatePlayerPosition(String playerID, String expectedPosition, String positionString) {
+        return decoratee.updatePlayerPosition(playerID, expectedPosition, positionString);
+    }
+
+    @Override
+    public SessionStartRecord startPlayerSession(PlayerRecord record) {
+        return decoratee.startPlayerSession(record);
+    }
+
+    @Override
+    public PlayerRecord endPlayerSession(String playerID) {
+        return decoratee.endPlayerSession(playerID);
+    }
+
+    @Override
+    public List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset) {
+        return decoratee.computeListOfPlayersAt(positionString, offset);
+    }
+
+    @Override
+    public PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit) {
+        return decoratee.computePageOfPlayersAt(positionString, afterPlayerID, limit);
+    }
+
+    @Override
+    public long computeCountOfActivePlayers() {
+        return decoratee.computeCountOfActivePlayers();
+    }
+
+    @Override
+    public void touchSessions(Collection<String> playerIDs) {
+        decoratee.touchSessions(playerIDs);
+    }
+
+    @Override
+    public List<String> computeListOfIdlePlayers(long idleSeconds) {
+        return decoratee.computeListOfIdlePlayers(idleSeconds);
+    }
+
+    @Override
+    public void removeIdleSessions(Collection<String> playerIDs, long idleSeconds) {
+        decoratee.removeIdleSessions(playerIDs, idleSeconds);
+    }
+
+    @Override
+    public boolean claimRequest(String requestKey) {
+        return decoratee.claimRequest(requestKey);
+    }
+
+    @Override
+    public String getRequestReply(String requestKey) {
+        return decoratee.getRequestReply(requestKey);
+    }
+
+    @Override
+    public void completeRequest(String requestKey, String reply) {
+        decoratee.completeRequest(requestKey, reply);
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    @Override
+    public void disconnect() {
+        decoratee.disconnect();
+    }
+
+    @Override
+    public ServerConfiguration getConfiguration() {
+        return decoratee.getConfiguration();
+    }
+
+    @Override
+    public String toString() {
+        return decoratee.toString();
+    }
+}
@@ -0,0 +1,249 @@
+package cloud.cave.server;
+
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Charsets;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshots of the bounded session cache on local disk, so a restarted app
+ * server starts with a warm cache instead of reading every active player
+ * from the storage on their next request, all at once.
+ * <p/>
+ * A snapshot is a gzipped JSON document with the id, session and position
+ * of each cached player, and the positions of the rooms with most players.
+ * It is written to a temporary file which then replaces the snapshot, so a
+ * crash while writing leaves the previous snapshot.
+ * <p/>
+ * Rehydrating reads the hot rooms in one go, then reads the records of the
+ * players of the snapshot in batches and puts each player in the cache if
+ * the session is still the one of the snapshot. This is meant to run in the background
+ * while the server starts serving; players not rehydrated yet are loaded
+ * by the cache as usual.
+ *
+ * @author Rohde Fischer
+ */
+public class SessionCacheSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(SessionCacheSnapshot.class);
+
+    /**
+     * The default seconds between snapshots
+     */
+    public static final long DEFAULT_PERIOD_SECONDS = 60;
+
+    /**
+     * The maximal number of hot rooms in a snapshot
+     */
+    public static final int MAX_HOT_ROOMS = 256;
+
+    /**
+     * The number of players read from the storage at a time when rehydrating
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private static final long VERSION = 1;
+
+    private final BoundedSessionCache cache;
+    private final CaveStorage storage;
+    private final File file;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create the snapshots of a cache.
+     *
+     * @param cache   the cache to snapshot and rehydrate
+     * @param storage the storage to validate the players of a snapshot against
+     * @param file    the file of the snapshot
+     */
+    public SessionCacheSnapshot(BoundedSessionCache cache, CaveStorage storage, File file) {
+        this.cache = cache;
+        this.storage = storage;
+        this.file = file;
+    }
+
+    /**
+     * Write a snapshot of the cache, replacing the previous one.
+     *
+     * @return the number of players in the snapshot
+     * @throws IOException in case the snapshot could not be written
+     */
+    @SuppressWarnings("unchecked")
+    public int write() throws IOException {
+        List<PlayerRecord> records = cache.snapshot();
+
+        JSONArray players = new JSONArray();
+        final Map<String, Integer> playersPerRoom = new HashMap<>();
+        for (PlayerRecord record : records) {
+            JSONArray player = new JSONArray();
+            player.add(record.getPlayerID());
+            player.add(record.getSessionId());
+            player.add(record.getPositionAsString());
+            players.add(player);
+
+            Integer count = playersPerRoom.get(record.getPositionAsString());
+            playersPerRoom.put(record.getPositionAsString(), count == null ? 1 : count + 1);
+        }
+
+        List<String> hottest = new ArrayList<>(playersPerRoom.keySet());
+        Collections.sort(hottest, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return playersPerRoom.get(b) - playersPerRoom.get(a);
+            }
+        });
+        JSONArray hotRooms = new JSONArray();
+        hotRooms.addAll(hottest.subList(0, Math.min(MAX_HOT_ROOMS, hottest.size())));
+
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("version", VERSION);
+        snapshot.put("writtenAt", System.currentTimeMillis());
+        snapshot.put("players", players);
+        snapshot.put("hotRooms", hotRooms);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temporary)),
+                Charsets.UTF_8)) {
+            snapshot.writeJSONString(writer);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return records.size();
+    }
+
+    /**
+     * Put the players of the snapshot whose sessions are still valid in the
+     * cache. Does nothing if there is no snapshot, or it cannot be read.
+     *
+     * @return the number of players put in the cache
+     */
+    public int rehydrate() {
+        JSONObject snapshot = read();
+        if (snapshot == null) {
+            return 0;
+        }
+
+        List<String> hotPositions = new ArrayList<>();
+        for (Object position : (JSONArray) snapshot.get("hotRooms")) {
+            hotPositions.add((String) position);
+        }
+        Map<String, RoomRecord> hotRooms = storage.getRooms(hotPositions);
+
+        // Read the players of the snapshot a batch at a time
+        Map<String, String> sessions = new LinkedHashMap<>();
+        for (Object player : (JSONArray) snapshot.get("players")) {
+            JSONArray fields = (JSONArray) player;
+            sessions.put((String) fields.get(0), (String) fields.get(1));
+        }
+        int rehydrated = 0;
+        List<String> playerIDs = new ArrayList<>(sessions.keySet());
+        for (int start = 0; start < playerIDs.size(); start += BATCH_SIZE) {
+            Map<String, PlayerRecord> records =
+                    storage.getPlayersByIDs(playerIDs.subList(start, Math.min(start + BATCH_SIZE, playerIDs.size())));
+            for (PlayerRecord record : records.values()) {
+                if (!sessions.get(record.getPlayerID()).equals(record.getSessionId())) {
+                    continue;
+                }
+                if (cache.rehydrate(record, hotRooms.get(record.getPositionAsString()))) {
+                    rehydrated++;
+                }
+            }
+        }
+        logger.info("Rehydrated " + rehydrated + " of " + ((JSONArray) snapshot.get("players")).size()
+                + " players from " + file);
+        return rehydrated;
+    }
+
+    /**
+     * Rehydrate the cache on a background thread.
+     */
+    public void rehydrateInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rehydrate();
+                } catch (RuntimeException e) {
+                    logger.error("Rehydrating the session cache from " + file + " failed", e);
+                }
+            }
+        }, "session-cache-rehydration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start writing snapshots in the background.
+     *
+     * @param periodSeconds the seconds between snapshots
+     */
+    public synchronized void start(long periodSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeQuietly();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop writing snapshots in the background, and write a last one.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        writeQuietly();
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Writing the session cache snapshot to " + file + " failed", e);
+        }
+    }
+
+    private JSONObject read() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),
+                Charsets.UTF_8)) {
+            JSONObject snapshot = (JSONObject) new JSONParser().parse(reader);
+            if (!Long.valueOf(VERSION).equals(snapshot.get("version"))) {
+                logger.warn("Ignoring session cache snapshot " + file + " of version " + snapshot.get("version"));
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | ParseException | ClassCastException e) {
+            logger.warn("Ignoring unreadable session cache snapshot " + file, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Cave;
+import cloud.cave.domain.LogoutResult;
+import cloud.cave.service.CaveStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the sessions of the players alive while they make requests, and
+ * logs out the players whose sessions have been idle too long, like players
+ * whose client crashed without logging out.
+ * <p/>
+ * The login writes the first heartbeat of a session. After that, a request
+ * only marks its player as seen in memory; the seen players are written to
+ * the storage as one batch per period, so the heartbeats cost a single
+ * write per period rather than one per request. A heartbeat left by a
+ * player no longer in the cave, like one batched just after the player
+ * logged out on another app server, is removed when found idle.
+ * <p/>
+ * The reaper does nothing until started, which the daemon does. Several app
+ * servers may reap at once, logging out a player twice is harmless.
+ *
+ * @author Rohde Fischer
+ */
+public class SessionReaper {
+    private static final Logger logger = LoggerFactory.getLogger(SessionReaper.class);
+
+    /**
+     * The default seconds a session may be unused before the player is
+     * logged out
+     */
+    public static final long DEFAULT_IDLE_SECONDS = 30 * 60;
+
+    /**
+     * The default seconds between heartbeat batches and reaps
+     */
+    public static final long DEFAULT_PERIOD_SECONDS = 30;
+
+    private final CaveStorage storage;
+    private final Cave cave;
+    private final Set<String> seen;
+    private ScheduledExecutorService scheduler;
+
+    public SessionReaper(CaveStorage storage, Cave cave) {
+        this.storage = storage;
+        this.cave = cave;
+        this.seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Mark the player as seen, keeping the session alive.
+     *
+     * @param playerID the id of the player making a request
+     */
+    public void seen(String playerID) {
+        seen.add(playerID);
+    }
+
+    /**
+     * Forget that the player was seen, as the player logged out, so no
+     * heartbeat brings the session back.
+     *
+     * @param playerID the id of the player logging out
+     */
+    public void left(String playerID) {
+        seen.remove(playerID);
+    }
+
+    /**
+     * Write the heartbeats of the players seen since the last flush.
+     *
+     * @return the number of players written
+     */
+    public int flushHeartbeats() {
+        if (seen.isEmpty()) {
+            return 0;
+        }
+        List<String> batch = new ArrayList<>();
+        for (Iterator<String> iterator = seen.iterator(); iterator.hasNext(); ) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+        storage.touchSessions(batch);
+        return batch.size();
+    }
+
+    /**
+     * Log out the players not seen for the given time. The pending
+     * heartbeats are written first, so no player seen is logged out.
+     *
+     * @param idleSeconds the seconds a session may be unused
+     * @return the number of players logged out
+     */
+    public int reap(long idleSeconds) {
+        flushHeartbeats();
+        int reaped = 0;
+        List<String> notInCave = new ArrayList<>();
+        for (String playerID : storage.computeListOfIdlePlayers(idleSeconds)) {
+            LogoutResult result = cave.logout(playerID);
+            if (result == LogoutResult.SUCCESS) {
+                reaped++;
+            } else if (result == LogoutResult.PLAYER_NOT_IN_CAVE) {
+                notInCave.add(playerID);
+            }
+        }
+        storage.removeIdleSessions(notInCave, idleSeconds);
+        if (reaped > 0) {
+            logger.info("Logged out " + reaped + " players idle for more than " + idleSeconds + " seconds");
+        }
+        return reaped;
+    }
+
+    /**
+     * Start flushing the heartbeats and reaping the idle players in the
+     * background.
+     *
+     * @param idleSeconds   the seconds a session may be unused
+     * @param periodSeconds the seconds between the runs
+     */
+    public synchronized void start(final long idleSeconds, long periodSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap(idleSeconds);
+                } catch (RuntimeException e) {
+                    logger.error("Reaping the idle sessions failed", e);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the background runs, writing the pending heartbeats.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        flushHeartbeats();
+    }
+}
@@ -0,0 +1,171 @@
+package cloud.cave.server;
+
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and verifies signed session tokens, so the session of a request can
+ * be checked without reading the player record from the storage.
+ * <p/>
+ * A token carries the player id, a random session nonce and the time of
+ * issue, signed with HMAC-SHA256 using a secret shared by all app servers.
+ * The token is handed out as the session id at login, so the clients need
+ * no change.
+ * <p/>
+ * A valid signature is not enough, as a later login of the same player
+ * overrules the earlier session. The latest session of each player is kept
+ * in a small cache, updated at once by logins and logouts on this server, and
+ * refreshed from the player record in the shared storage when it is older
+ * than REVOCATION_REFRESH_SECONDS. Logins on other servers thus revoke the
+ * tokens on this server as soon as the invalidation bus tells, and at the
+ * latest within that time.
+ *
+ * @author Rohde Fischer
+ */
+public class SessionTokenService {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+    private static final String NO_SESSION = "";
+
+    /**
+     * Seconds the latest session of a player is trusted before it is read
+     * from the storage again
+     */
+    public static final int REVOCATION_REFRESH_SECONDS = 10;
+
+    /**
+     * The maximal number of players whose latest session is kept
+     */
+    public static final int REVOCATION_CACHE_SIZE = 100000;
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final LoadingCache<String, String> latestSessions;
+
+    /**
+     * Create the service.
+     *
+     * @param secret  the secret shared by all app servers
+     * @param storage the storage to read the latest session of a player from
+     */
+    public SessionTokenService(String secret, final CaveStorage storage) {
+        this.key = new SecretKeySpec(secret.getBytes(Charsets.UTF_8), ALGORITHM);
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("The JVM does not support " + ALGORITHM, e);
+                }
+            }
+        };
+        this.latestSessions = CacheBuilder.newBuilder()
+                .maximumSize(REVOCATION_CACHE_SIZE)
+                .expireAfterWrite(REVOCATION_REFRESH_SECONDS, TimeUnit.SECONDS)
+                .build(new CacheLoader<String, String>() {
+                    @Override
+                    public String load(String playerID) {
+                        PlayerRecord record = storage.getPlayerByID(playerID);
+                        return record == null ? NO_SESSION : Strings.nullToEmpty(record.getSessionId());
+                    }
+                });
+    }
+
+    /**
+     * Issue a new token for a session of the player.
+     *
+     * @param playerID the id of the player logging in
+     * @return the token, to be used as the session id
+     */
+    public String issue(String playerID) {
+        String payload = ENCODING.encode(playerID.getBytes(Charsets.UTF_8))
+                + "." + UUID.randomUUID().toString()
+                + "." + System.currentTimeMillis();
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Check whether a session id has the form of a token at all. Session
+     * ids issued before tokens were enabled are plain UUIDs.
+     *
+     * @param sessionID the session id of a request
+     * @return true if the session id may be a token
+     */
+    public static boolean isToken(String sessionID) {
+        return sessionID != null && sessionID.indexOf('.') > 0;
+    }
+
+    /**
+     * Verify that the token is signed by this service for the given player,
+     * and that it is the latest session of the player.
+     *
+     * @param playerID the id of the player of the request
+     * @param token    the token given as session id in the request
+     * @return true if the token is valid for the player
+     */
+    public boolean verify(String playerID, String token) {
+        int lastDot = token.lastIndexOf('.');
+        if (lastDot < 0) {
+            return false;
+        }
+        String payload = token.substring(0, lastDot);
+        byte[] signature = sign(payload).getBytes(Charsets.US_ASCII);
+        if (!MessageDigest.isEqual(signature, token.substring(lastDot + 1).getBytes(Charsets.US_ASCII))) {
+            return false;
+        }
+
+        String[] fields = payload.split("\\.");
+        if (fields.length != 3 || !ENCODING.encode(playerID.getBytes(Charsets.UTF_8)).equals(fields[0])) {
+            return false;
+        }
+
+        try {
+            return token.equals(latestSessions.getUnchecked(playerID));
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Record the latest session of the player, revoking all earlier tokens
+     * of the player at once.
+     *
+     * @param playerID  the id of the player
+     * @param sessionID the latest session, or null if the player logged out
+     */
+    public void recordLatestSession(String playerID, String sessionID) {
+        latestSessions.put(playerID, Strings.nullToEmpty(sessionID));
+    }
+
+    /**
+     * Forget the latest session of the player, so it is read from the
+     * storage on the next verification, like when another app server tells
+     * that the player logged in or out there.
+     *
+     * @param playerID the id of the player
+     */
+    public void forgetLatestSession(String playerID) {
+        latestSessions.invalidate(playerID);
+    }
+
+    private String sign(String payload) {
+        return ENCODING.encode(macs.get().doFinal(payload.getBytes(Charsets.UTF_8)));
+    }
+}
@@ -21,6 +21,12 @@ public class SimpleInMemoryCache implements PlayerSessionCache {
         return cacheOfOnlinePlayer.get(sessionID);
     }
 
+    @Override
+    public Player refresh(String sessionID, String requestSessionID) {
+        // This cache is the only copy, so it is never outdated
+        return get(sessionID);
+    }
+
     @Override
     public void add(String sessionID, Player player) {
         cacheOfOnlinePlayer.put(sessionID, player);
@@ -1,22 +1,63 @@
 package cloud.cave.server;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.json.simple.*;
 import org.slf4j.*;
 
+import cloud.cave.common.CaveStorageException;
+import cloud.cave.common.PlayerSessionExpiredException;
 import cloud.cave.domain.*;
 import cloud.cave.ipc.*;
 
 /**
  * Standard implementation of the Invoker.
+ * <p/>
+ * Requests carrying an idempotency key are executed at most once per player
+ * and key: the request is claimed and its reply kept in the storage shared
+ * by the app servers, so a retry reaching any server is answered with the
+ * reply instead of being executed again. A retry arriving while the request
+ * is still executing elsewhere is told the server is overloaded, so the
+ * client retries it later. A bounded, expiring dedupe table in front of the
+ * storage answers the retries reaching this server without the storage.
+ * <p/>
+ * Subscriptions to room events are handled here rather than by a dispatcher,
+ * as they need the event sink of the connection the request came in on.
+ * <p/>
+ * Requests routed by player affinity are counted by the AffinityMonitor.
+ * <p/>
+ * Each request to a StandardServerCave is handled as a unit of work of its
+ * RequestScopedCaveStorage, so the storage is read at most once per key
+ * while handling it.
  *
  * @author Henrik Baerbak Christensen, University of Aarhus
  */
-public class StandardInvoker implements Invoker {
+public class StandardInvoker implements SubscribingInvoker {
     private static final Logger logger = LoggerFactory.getLogger(StandardInvoker.class);
+    private final Cave cave;
     private final Map<String, Dispatcher> mapKey2Dispatch;
+    private final AffinityMonitor affinityMonitor = new AffinityMonitor();
+
+    /**
+     * The maximal number of replies kept for deduplication
+     */
+    public static final int DEDUPE_TABLE_SIZE = 10000;
+
+    /**
+     * Seconds a reply is kept for deduplication, which must be well beyond
+     * the time a client keeps retrying a request
+     */
+    public static final int DEDUPE_EXPIRY_SECONDS = 300;
+
+    private final Cache<String, JSONObject> dedupeTable = CacheBuilder.newBuilder()
+            .maximumSize(DEDUPE_TABLE_SIZE)
+            .expireAfterWrite(DEDUPE_EXPIRY_SECONDS, TimeUnit.SECONDS)
+            .build();
 
     /**
      * Create an invoker that dispatches requests using default dispatching, that is the
@@ -31,6 +72,7 @@ public class StandardInvoker implements Invoker {
         mapKey2Dispatch.put(MarshalingKeys.CAVE_TYPE_PREFIX, new CaveDispatcher(cave));
         mapKey2Dispatch.put(MarshalingKeys.PLAYER_TYPE_PREFIX, new PlayerDispatcher(cave));
 
+        this.cave = cave;
         this.mapKey2Dispatch = ImmutableMap.copyOf(mapKey2Dispatch);
     }
 
@@ -42,12 +84,171 @@ public class StandardInvoker implements Invoker {
      *                                   be one of the type prefixes, like "player-", defined in the MarshalingKeys.
      */
     public StandardInvoker(Cave cave, Map<String, Dispatcher> mapTypePrefixToDispatchers) {
+        this.cave = cave;
         mapKey2Dispatch = ImmutableMap.copyOf(mapTypePrefixToDispatchers);
     }
 
+    @Override
+    public JSONObject handleRequest(final JSONObject request, final EventSink sink) {
+        final Object methodKey = request.get(MarshalingKeys.METHOD_KEY);
+        if (!MarshalingKeys.SUBSCRIBE_ROOM_EVENTS_METHOD_KEY.equals(methodKey)) {
+            return handleRequest(request);
+        }
+        if (!(cave instanceof StandardServerCave)) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_UNKNOWN_METHOD_FAILURE,
+                    "StandardInvoker.handleRequest: This cave does not support room event subscriptions");
+        }
+
+        final String playerID = request.get(MarshalingKeys.PLAYER_ID_KEY).toString();
+        final String sessionID = request.get(MarshalingKeys.PLAYER_SESSION_ID_KEY).toString();
+        try {
+            ((StandardServerCave) cave).subscribeToRoomEvents(playerID, sessionID, sink);
+            return Marshaling.createValidReplyWithReturnValue(StatusCode.OK);
+        } catch (PlayerSessionExpiredException e) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE,
+                    e.getMessage());
+        } catch (CaveStorageException e) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_STORAGE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
 
     @Override
     public JSONObject handleRequest(final JSONObject request) {
+        affinityMonitor.record(request.get(MarshalingKeys.AFFINITY_KEY));
+
+        final RequestScopedCaveStorage storage =
+                cave instanceof StandardServerCave ? ((StandardServerCave) cave).getStorage() : null;
+        if (storage == null) {
+            return handleRequestOnce(request);
+        }
+        storage.beginUnitOfWork();
+        try {
+            return handleRequestOnce(request);
+        } finally {
+            storage.endUnitOfWork();
+        }
+    }
+
+    /**
+     * Handle the request, unless it is a retry of a request already handled.
+     *
+     * @param request the request from the client
+     * @return the reply to the client
+     */
+    private JSONObject handleRequestOnce(final JSONObject request) {
+        final Object idempotencyKey = request.get(MarshalingKeys.IDEMPOTENCY_KEY);
+        if (idempotencyKey == null) {
+            return dispatchRequest(request);
+        }
+
+        // Concurrent requests with the same key wait for the first one,
+        // so a retry racing the original is not executed twice either
+        final String dedupeKey = request.get(MarshalingKeys.PLAYER_ID_KEY) + ":" + idempotencyKey;
+        final boolean[] dispatched = {false};
+        final JSONObject reply;
+        try {
+            reply = dedupeTable.get(dedupeKey, new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() {
+                    dispatched[0] = true;
+                    return dispatchClaimedRequest(request, dedupeKey);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+        if (!dispatched[0]) {
+            final JSONObject expired = checkSessionOfRetry(request);
+            if (expired != null) {
+                return expired;
+            }
+        }
+
+        // Failures are not remembered, a retry must get the chance to succeed
+        if (!StatusCode.OK.equals(reply.get(MarshalingKeys.ERROR_CODE_KEY))) {
+            dedupeTable.invalidate(dedupeKey);
+        }
+        return reply;
+    }
+
+    /**
+     * Dispatch the request if its claim in the shared storage succeeds,
+     * otherwise answer it with the reply stored by the server executing it.
+     *
+     * @param request    the request from the client
+     * @param dedupeKey  the player id and idempotency key of the request
+     * @return the reply to the client
+     */
+    private JSONObject dispatchClaimedRequest(final JSONObject request, final String dedupeKey) {
+        final RequestScopedCaveStorage storage =
+                cave instanceof StandardServerCave ? ((StandardServerCave) cave).getStorage() : null;
+        if (storage == null) {
+            return dispatchRequest(request);
+        }
+
+        try {
+            if (!storage.claimRequest(dedupeKey)) {
+                final String stored = storage.getRequestReply(dedupeKey);
+                if (stored != null) {
+                    final JSONObject expired = checkSessionOfRetry(request);
+                    return expired != null ? expired : (JSONObject) JSONValue.parse(stored);
+                }
+                return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_OVERLOADED,
+                        "StandardInvoker.handleRequest: The request " + dedupeKey + " is still executing");
+            }
+        } catch (CaveStorageException e) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_STORAGE_UNAVAILABLE, e.getMessage());
+        }
+
+        JSONObject reply = null;
+        try {
+            reply = dispatchRequest(request);
+            return reply;
+        } finally {
+            // Failures are released, a retry must get the chance to succeed
+            final boolean succeeded = reply != null && StatusCode.OK.equals(reply.get(MarshalingKeys.ERROR_CODE_KEY));
+            try {
+                storage.completeRequest(dedupeKey, succeeded ? reply.toJSONString() : null);
+            } catch (CaveStorageException e) {
+                logger.error("Could not store the reply of request " + dedupeKey, e);
+            }
+        }
+    }
+
+    /**
+     * Check that the session of a retried player request is still the one
+     * of the player, as the reply to the original request is only for that
+     * session.
+     *
+     * @param request the retried request
+     * @return the reply telling why the retry is not answered, or null if it
+     * may be answered by the reply to the original request
+     */
+    private JSONObject checkSessionOfRetry(final JSONObject request) {
+        if (!(cave instanceof StandardServerCave)
+                || !request.get(MarshalingKeys.METHOD_KEY).toString().startsWith(MarshalingKeys.PLAYER_TYPE_PREFIX)) {
+            return null;
+        }
+        try {
+            ((StandardServerCave) cave).getPlayerOfSession(request.get(MarshalingKeys.PLAYER_ID_KEY).toString(),
+                    request.get(MarshalingKeys.PLAYER_SESSION_ID_KEY).toString());
+            return null;
+        } catch (PlayerSessionExpiredException e) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE,
+                    e.getMessage());
+        } catch (CaveStorageException e) {
+            return Marshaling.createInvalidReplyWithExplantion(StatusCode.SERVER_STORAGE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    /**
+     * Dispatch the request to the proper dispatcher and compute the reply.
+     *
+     * @param request the request from the client
+     * @return the reply to the client
+     */
+    private JSONObject dispatchRequest(final JSONObject request) {
         final JSONObject reply, dispatcherResponse;
 
         // Extract the common parameters from the request object and assign
@@ -110,4 +311,8 @@ public class StandardInvoker implements Invoker {
         final String key = methodKey.substring(0, firstDash + 1);
         return mapKey2Dispatch.get(key);
     }
+
+    public AffinityMonitor getAffinityMonitor() {
+        return affinityMonitor;
+    }
 }
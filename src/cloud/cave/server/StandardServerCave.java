@@ -1,21 +1,32 @@
 package cloud.cave.server;
 
 import cloud.cave.common.LoginRecord;
+import cloud.cave.common.PlayerSessionExpiredException;
 import cloud.cave.config.CaveServerFactory;
 import cloud.cave.domain.*;
 import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.EventSink;
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.ipc.MarshalingKeys;
 import cloud.cave.server.common.PlayerRecord;
 import cloud.cave.server.common.Point3;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.common.SessionStartRecord;
 import cloud.cave.server.common.SubscriptionRecord;
+import cloud.cave.server.invalidation.Invalidation;
+import cloud.cave.server.invalidation.InvalidationBus;
+import cloud.cave.server.invalidation.InvalidationListener;
 import cloud.cave.service.CaveStorage;
 import cloud.cave.service.SubscriptionService;
 import cloud.cave.service.WeatherService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.*;
 
 /**
  * The standard server side implementation of the Cave. Just as the server side
@@ -25,25 +36,162 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author Henrik Baerbak Christensen, Aarhus University.
  */
 public class StandardServerCave implements Cave {
-    private final CaveStorage storage;
+    private final RequestScopedCaveStorage storage;
     private final SubscriptionService subscriptionService;
     private final WeatherService weatherService;
     private final PlayerSessionCache sessionCache;
+    private final RoomEventHub eventHub;
+    private final SessionTokenService sessionTokens;
+    private final InvalidationBus invalidationBus;
+    private final String serverID;
+    private final SessionReaper sessionReaper;
+    private final NeighbourhoodPrefetcher neighbourhoodPrefetcher;
+    private volatile boolean ready = true;
+
+    /**
+     * The maximal number of login names remembered for prefetching
+     */
+    public static final int MAX_KNOWN_LOGINS = 10000;
+
+    /**
+     * The number of threads prefetching the rooms of logins
+     */
+    public static final int PREFETCH_THREADS = 4;
+
+    /**
+     * The maximal number of room prefetches waiting for a thread, more are
+     * dropped and their room read by the login itself
+     */
+    public static final int MAX_PENDING_PREFETCHES = 64;
+
+    /**
+     * The maximal number of players of verified session tokens kept
+     */
+    public static final int MAX_TOKEN_PLAYERS = 10000;
+
+    /**
+     * The minutes a player of a verified session token is kept unused
+     */
+    public static final int TOKEN_PLAYER_IDLE_MINUTES = 15;
+
+    // The player ids of the login names seen, and the last positions known
+    // of these players, to prefetch the room of a player while the
+    // subscription is looked up
+    private final Cache<String, String> knownLogins = CacheBuilder.newBuilder()
+            .maximumSize(MAX_KNOWN_LOGINS)
+            .build();
+    private final Cache<String, String> knownPositions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_KNOWN_LOGINS)
+            .build();
+    // The players of the session tokens verified, so the requests of a
+    // player reuse the record and room read for the ones before. Dropped
+    // when the player logs out, or is changed by another server
+    private final Cache<String, StandardServerPlayer> tokenPlayers = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TOKEN_PLAYERS)
+            .expireAfterAccess(TOKEN_PLAYER_IDLE_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private final ThreadPoolExecutor prefetching = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+            30L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_PREFETCHES),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "login-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-    private final ReentrantLock lock = new ReentrantLock();
     private static final Logger logger = LoggerFactory.getLogger(StandardServerCave.class);
 
-    public StandardServerCave(CaveServerFactory factory) {
-        storage = factory.createCaveStorage();
-        subscriptionService = factory.createSubscriptionServiceConnector();
-        weatherService = factory.createWeatherServiceConnector();
+    public StandardServerCave(final CaveServerFactory factory) {
+        prefetching.allowCoreThreadTimeOut(true);
+
+        // The connectors are independent, so connect them in parallel
+        final ExecutorService connecting = Executors.newFixedThreadPool(3);
+        try {
+            final Future<CaveStorage> storageConnector = connecting.submit(new Callable<CaveStorage>() {
+                @Override
+                public CaveStorage call() {
+                    return factory.createCaveStorage();
+                }
+            });
+            final Future<SubscriptionService> subscriptionConnector =
+                    connecting.submit(new Callable<SubscriptionService>() {
+                        @Override
+                        public SubscriptionService call() {
+                            return factory.createSubscriptionServiceConnector();
+                        }
+                    });
+            final Future<WeatherService> weatherConnector = connecting.submit(new Callable<WeatherService>() {
+                @Override
+                public WeatherService call() {
+                    return factory.createWeatherServiceConnector();
+                }
+            });
+            storage = new RequestScopedCaveStorage(await(storageConnector));
+            subscriptionService = await(subscriptionConnector);
+            weatherService = await(weatherConnector);
+        } finally {
+            connecting.shutdown();
+        }
         sessionCache = factory.createPlayerSessionCache(storage, weatherService);
+        eventHub = new RoomEventHub();
+        sessionTokens = factory.createSessionTokenService(storage);
+        sessionReaper = new SessionReaper(storage, this);
+        // Prefetch around the rooms moved to through the shared storage, as
+        // the request scoped one forgets its reads after each request
+        neighbourhoodPrefetcher = new NeighbourhoodPrefetcher(storage.getDecoratee());
+
+        // Drop the cached copies of what is changed by the other servers
+        serverID = UUID.randomUUID().toString();
+        invalidationBus = factory.createInvalidationBus();
+        invalidationBus.subscribe(serverID, new InvalidationListener() {
+            @Override
+            public void invalidate(Collection<Invalidation> batch) {
+                for (Invalidation invalidation : batch) {
+                    if (invalidation.getKind() == Invalidation.Kind.SESSION) {
+                        sessionCache.remove(invalidation.getKey());
+                        tokenPlayers.invalidate(invalidation.getKey());
+                        if (sessionTokens != null) {
+                            sessionTokens.forgetLatestSession(invalidation.getKey());
+                        }
+                    } else if (invalidation.getKind() == Invalidation.Kind.PLAYER) {
+                        sessionCache.remove(invalidation.getKey());
+                        tokenPlayers.invalidate(invalidation.getKey());
+                    }
+                }
+            }
+        });
+        if (storage.getDecoratee() instanceof InvalidationListener) {
+            invalidationBus.subscribe(serverID, (InvalidationListener) storage.getDecoratee());
+        }
+    }
+
+    private static <T> T await(Future<T> connector) {
+        try {
+            return connector.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while connecting the services of the cave", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed connecting the services of the cave", e.getCause());
+        }
     }
 
     /**
      * Given a loginName and password (like '201017201','123') contact the
      * subscription storage to validate that the player is registered. If valid,
      * create the player avatar. Return the result of the login
+     * <p/>
+     * The session is started by a single write to the storage, which also
+     * returns the record of the player; the heartbeat of the new session is
+     * written with the next batch of the session reaper. The room is the
+     * only read: for a player who logged in on this server before, it is
+     * read at the last position known while the subscription is looked up,
+     * so only a player who moved elsewhere since reads it again.
      *
      * @param loginName the loginName which the player uses to identify his/her account in
      *                  the cave
@@ -52,7 +200,7 @@ public class StandardServerCave implements Cave {
      */
     @Override
     public Login login(final String loginName, final String password) {
-        final Login result;
+        final Future<RoomPrefetch> prefetch = prefetchRoom(loginName);
 
         // Fetch the subscription for the given loginName
         final SubscriptionRecord subscription;
@@ -62,153 +210,335 @@ public class StandardServerCave implements Cave {
         } catch (CaveIPCException e) {
             String errorMsg = "Lookup failed on subscription service due to IPC exception:" + e.getMessage();
             logger.error(errorMsg, e);
+            cancel(prefetch);
             return new LoginRecord(LoginResult.LOGIN_FAILED_SERVER_ERROR);
         }
 
         if (subscription == null) {
+            cancel(prefetch);
             return new LoginRecord(LoginResult.LOGIN_FAILED_SERVER_ERROR);
         }
         // Check all the error conditions and 'fail fast' on them...
         switch (subscription.getErrorCode()) {
             case LOGIN_NAME_OR_PASSWORD_IS_UNKNOWN:
+                cancel(prefetch);
                 return new LoginRecord(LoginResult.LOGIN_FAILED_UNKNOWN_SUBSCRIPTION);
             case LOGIN_SERVICE_UNAVAILABLE_CLOSED:
             case LOGIN_SERVICE_UNAVAILABLE_OPEN:
+                cancel(prefetch);
                 return new LoginRecord(LoginResult.LOGIN_FAILED_SERVER_ERROR);
             case LOGIN_NAME_HAS_VALID_SUBSCRIPTION:
                 break;
             default:
                 logger.error("An unknown errorCode for login was recieved and thus rejected. The recieved code is: "
                         + subscription.getErrorCode().name());
+                cancel(prefetch);
                 return new LoginRecord(LoginResult.LOGIN_FAILED_SERVER_ERROR);
         }
 
         // Now the subscription is assumed to be a valid player
         final String playerID = subscription.getPlayerID();
+        knownLogins.put(loginName, playerID);
 
-        // Create id of session as a random UUID
-        final String sessionID = UUID.randomUUID().toString();
+        // Create id of session as a signed token if enabled, otherwise as a random UUID
+        final String sessionID = sessionTokens != null ? sessionTokens.issue(playerID) : UUID.randomUUID().toString();
 
         // Enter the player, creating the player's session in the cave
         // (which may overwrite an already ongoing session which is then
-        // implicitly invalidated).
-        final LoginResult theResult = startPlayerSession(subscription, sessionID);
+        // implicitly invalidated). A newly registered player starts in
+        // the entry room.
+        final SessionStartRecord started = storage.startPlayerSession(new PlayerRecord(playerID,
+                subscription.getPlayerName(),
+                subscription.getGroupName(),
+                subscription.getRegion(),
+                new Point3(0, 0, 0).getPositionString(),
+                sessionID));
+        final LoginResult theResult = started.wasAlreadyInCave()
+                ? LoginResult.LOGIN_SUCCESS_PLAYER_ALREADY_LOGGED_IN
+                : LoginResult.LOGIN_SUCCESS;
 
-        final boolean validLogin = LoginResult.isValidLogin(theResult);
-        if (!validLogin) {
-            return new LoginRecord(theResult);
+        if (sessionTokens != null) {
+            sessionTokens.recordLatestSession(playerID, sessionID);
         }
+        invalidationBus.publish(serverID, Invalidation.session(playerID));
 
-        // Create player domain object
-        final Player player = new StandardServerPlayer(playerID, storage, weatherService, sessionCache);
+        // Create player domain object, reading the room unless prefetched
+        final PlayerRecord record = started.getPlayer();
+        knownPositions.put(playerID, record.getPositionAsString());
+        RoomRecord room = awaitPrefetch(prefetch, record.getPositionAsString());
+        if (room == null) {
+            room = storage.getRoom(record.getPositionAsString());
+        }
+        final StandardServerPlayer player = new StandardServerPlayer(record, room, storage, weatherService);
 
         // Cache the player session for faster lookups
         sessionCache.add(playerID, player);
+        if (sessionTokens != null) {
+            tokenPlayers.put(playerID, player);
+        }
+
+        if (eventHub.hasSubscribers()) {
+            final String position = player.getPosition();
+            eventHub.publish(position, Marshaling.createRoomEvent(MarshalingKeys.PLAYER_ENTERED_EVENT,
+                    position, player.getName(), null), playerID);
+        }
 
         // And finalize the login result
-        result = new LoginRecord(player, theResult);
+        return new LoginRecord(player, theResult);
+    }
 
-        return result;
+    /**
+     * The room of a player read ahead of the login, and the position it was
+     * read for.
+     */
+    private static final class RoomPrefetch {
+        private final String position;
+        private final RoomRecord room;
+
+        RoomPrefetch(String position, RoomRecord room) {
+            this.position = position;
+            this.room = room;
+        }
     }
 
     /**
-     * Initialize a player session by updating/preparing the storage system
-     * and potentially clear the cache of previous sessions.
+     * Start reading the room at the last known position of the player of
+     * the given login name, if the player has logged in on this server
+     * before.
      *
-     * @param subscription the record of the subscription to start a session on
-     * @param sessionID    ID of the session assigned to this login
-     * @return result of the login which is always a valid login, but
-     * may signal a 'second login' that overrules a previous one.
+     * @param loginName the login name of the player
+     * @return the prefetch, or null if the player is not known, or too many
+     * prefetches are pending
      */
-    private LoginResult startPlayerSession(final SubscriptionRecord subscription,
-                                           final String sessionID) {
-        final LoginResult result;
-
-        // get the record of the player from storage
+    private Future<RoomPrefetch> prefetchRoom(String loginName) {
+        final String playerID = knownLogins.getIfPresent(loginName);
+        final String position = playerID != null ? knownPositions.getIfPresent(playerID) : null;
+        if (position == null) {
+            return null;
+        }
         try {
-            lock.tryLock(5, TimeUnit.SECONDS);
-
-            final PlayerRecord playerRecord = storage.getPlayerByID(subscription.getPlayerID());
-            final PlayerRecord playerRecordCreated;
-
-            if (playerRecord == null) {
-                // Apparently a newly registered player, so create the record and add it to the cave storage
-                final String position = new Point3(0, 0, 0).getPositionString();
-                playerRecordCreated = new PlayerRecord(subscription.getPlayerID(),
-                        subscription.getPlayerName(),
-                        subscription.getGroupName(),
-                        subscription.getRegion(),
-                        position,
-                        sessionID);
-                result = LoginResult.LOGIN_SUCCESS;
-            } else {
-                // Player has been seen before; if he/she has an existing
-                // session ("= is in cave") we flag this as a warning,
-                // and clear the cache entry
-                if (playerRecord.isInCave()) {
-                    result = LoginResult.LOGIN_SUCCESS_PLAYER_ALREADY_LOGGED_IN;
-                } else {
-                    result = LoginResult.LOGIN_SUCCESS;
+            return prefetching.submit(new Callable<RoomPrefetch>() {
+                @Override
+                public RoomPrefetch call() {
+                    return new RoomPrefetch(position, storage.getRoom(position));
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
 
-                playerRecordCreated = new PlayerRecord(playerRecord.getPlayerID(),
-                        playerRecord.getPlayerName(),
-                        playerRecord.getGroupName(),
-                        playerRecord.getRegion(),
-                        playerRecord.getPositionAsString(),
-                        sessionID);
+    /**
+     * Get the prefetched room, if it is the room at the given position.
+     *
+     * @param prefetch the prefetch, or null if none was started
+     * @param position the position of the player
+     * @return the room, or null if it was not prefetched or the player has
+     * moved since
+     */
+    private static RoomRecord awaitPrefetch(Future<RoomPrefetch> prefetch, String position) {
+        if (prefetch == null) {
+            return null;
+        }
+        try {
+            final RoomPrefetch prefetched = prefetch.get();
+            if (prefetched != null && position.equals(prefetched.position)) {
+                return prefetched.room;
             }
-            storage.updatePlayerRecord(playerRecordCreated);
-
-            return result;
         } catch (InterruptedException e) {
-            return LoginResult.LOGIN_FAILED_SERVER_ERROR;
-        } finally {
-            lock.unlock();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Prefetching the room of a login failed", e.getCause());
+        }
+        return null;
+    }
+
+    private static void cancel(Future<?> prefetch) {
+        if (prefetch != null) {
+            prefetch.cancel(false);
         }
     }
 
     @Override
     public LogoutResult logout(final String playerID) {
-        try {
-            lock.tryLock(5, TimeUnit.SECONDS);
-
-            final PlayerRecord player = storage.getPlayerByID(playerID);
+        // reset the session to indicate the player is no longer around
+        final PlayerRecord player = storage.endPlayerSession(playerID);
 
-            if (!player.isInCave()) {
-                return LogoutResult.PLAYER_NOT_IN_CAVE;
-            }
+        if (player == null) {
+            return LogoutResult.PLAYER_NOT_IN_CAVE;
+        }
 
-            // reset the session  to indicate the player is no longer around
-            PlayerRecord playerRecordCreated = new PlayerRecord(player.getPlayerID(),
-                    player.getPlayerName(),
-                    player.getGroupName(),
-                    player.getRegion(),
-                    player.getPositionAsString(),
-                    null);
+        knownPositions.put(playerID, player.getPositionAsString());
+        sessionReaper.left(playerID);
+        sessionCache.remove(playerID);
+        tokenPlayers.invalidate(playerID);
+        if (sessionTokens != null) {
+            sessionTokens.recordLatestSession(playerID, null);
+        }
+        invalidationBus.publish(serverID, Invalidation.session(playerID));
 
-            // and update the record in the storage
-            storage.updatePlayerRecord(playerRecordCreated);
-            sessionCache.remove(playerID);
+        eventHub.unsubscribe(playerID);
+        eventHub.publish(player.getPositionAsString(), Marshaling.createRoomEvent(MarshalingKeys.PLAYER_LEFT_EVENT,
+                player.getPositionAsString(), player.getPlayerName(), null), playerID);
 
-            return LogoutResult.SUCCESS;
-        } catch (InterruptedException e) {
-            return LogoutResult.SERVER_FAILURE;
-        } finally {
-            lock.unlock();
-        }
+        return LogoutResult.SUCCESS;
     }
 
     @Override
     public String describeConfiguration() {
         String cfg = "StandardServerCave configuration:\n";
-        cfg += "  CaveStorage: " + storage.getClass().getName() + " / cfg: " + storage.getConfiguration() + "\n";
+        cfg += "  CaveStorage: " + storage.getDecoratee().getClass().getName() + " / cfg: " + storage.getConfiguration() + "\n";
         cfg += "  SubscriptionService: " + subscriptionService.getClass().getName() + " / cfg: " + subscriptionService.getConfiguration() + "\n";
         cfg += "  WeatherService: " + weatherService.getClass().getName() + " / cfg: " + weatherService.getConfiguration() + "\n";
         return cfg;
     }
 
+    /**
+     * Subscribe the player to the events of the room he/she is in. The
+     * subscription follows the player around until logout. Only the events
+     * caused on this app server are delivered, see RoomEventHub.
+     *
+     * @param playerID  the id of the subscribing player
+     * @param sessionID the session of the player
+     * @param sink      the sink to push the events to
+     * @throws PlayerSessionExpiredException in case the session is no longer valid
+     */
+    public void subscribeToRoomEvents(String playerID, String sessionID, EventSink sink) {
+        final Player player = sessionCache.get(playerID);
+        if (player == null || !sessionID.equals(player.getSessionID())) {
+            throw new PlayerSessionExpiredException("StandardServerCave: The session for player " + playerID
+                    + " is no longer valid, cannot subscribe to room events.");
+        }
+        eventHub.subscribe(playerID, player.getPosition(), sink);
+    }
+
+    /**
+     * Get the player of a request authenticated by a signed session token,
+     * without reading the storage. The player of the token is kept for the
+     * following requests, so the player record and room are only read when
+     * the first request of the token needs them.
+     *
+     * @param playerID  the id of the player of the request
+     * @param sessionID the session of the request
+     * @return the player, or null if session tokens are disabled or the
+     * session is not a token, in which case the session cache must be used
+     * @throws PlayerSessionExpiredException in case the token is invalid or revoked
+     */
+    public Player getPlayerByToken(String playerID, String sessionID) {
+        if (sessionTokens == null || !SessionTokenService.isToken(sessionID)) {
+            return null;
+        }
+        if (!sessionTokens.verify(playerID, sessionID)) {
+            throw new PlayerSessionExpiredException("StandardServerCave: The session token for player " + playerID
+                    + " is invalid or no longer valid.");
+        }
+        final StandardServerPlayer known = tokenPlayers.getIfPresent(playerID);
+        if (known != null && sessionID.equals(known.getSessionID())) {
+            return known;
+        }
+        final StandardServerPlayer player = new StandardServerPlayer(playerID, sessionID, storage, weatherService);
+        tokenPlayers.put(playerID, player);
+        return player;
+    }
+
+    /**
+     * Get the player of a session, if the session is still the one of the
+     * player.
+     *
+     * @param playerID  the id of the player
+     * @param sessionID the session the client claims
+     * @return the player
+     * @throws PlayerSessionExpiredException in case the session is no longer
+     *                                       the one of the player
+     */
+    public Player getPlayerOfSession(String playerID, String sessionID) {
+        // A signed session token is verified without the storage, and
+        // then the player is only read from the storage when needed
+        final Player tokenPlayer = getPlayerByToken(playerID, sessionID);
+
+        // Otherwise fetch the server side player object from cache
+        Player player = tokenPlayer != null ? tokenPlayer : sessionCache.get(playerID);
+
+        // A cached player may have an outdated session if the player logged in on another server
+        if (tokenPlayer == null && player != null && !sessionID.equals(player.getSessionID())) {
+            player = sessionCache.refresh(playerID, sessionID);
+        }
+
+        // Access control of the 'Blizzard' variant: the last login (= session) is the one winning. If the session id
+        // coming from the client differs from the one cached here in the server means two different clients are accessing
+        // the same player object. However we assign a new session id upon each login thus if they differ, the client
+        // calling us has the 'old session' and must thus be told that he/she cannot control the avatar any more.
+        if (player == null || !sessionID.equals(player.getSessionID())) {
+            throw new PlayerSessionExpiredException("StandardServerCave: The session for player " + playerID
+                    + " is no longer valid (Client session=" + sessionID + "/Server cached session="
+                    + (player == null ? null : player.getSessionID()) + ").");
+        }
+        return player;
+    }
+
+    /**
+     * Tell the caches of the other servers that something changed here.
+     *
+     * @param invalidation what is outdated
+     */
+    public void publishInvalidation(Invalidation invalidation) {
+        invalidationBus.publish(serverID, invalidation);
+    }
+
+    /**
+     * Start a session known only to this server, for a player that is not
+     * in the storage, like the synthetic players of the warmup. Nothing is
+     * written to the storage.
+     *
+     * @param record the record of the player, with its session
+     * @param room   the room of the player, or null to read it when needed
+     */
+    void startSyntheticSession(PlayerRecord record, RoomRecord room) {
+        sessionCache.add(record.getPlayerID(), new StandardServerPlayer(record, room, storage, weatherService));
+    }
+
+    /**
+     * End a session started by startSyntheticSession, and forget its
+     * heartbeat before it is written.
+     *
+     * @param playerID the id of the synthetic player
+     */
+    void endSyntheticSession(String playerID) {
+        sessionCache.remove(playerID);
+        sessionReaper.left(playerID);
+    }
+
     public PlayerSessionCache getCache() {
         return sessionCache;
     }
+
+    public RoomEventHub getEventHub() {
+        return eventHub;
+    }
+
+    public RequestScopedCaveStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Tell whether the server is ready to serve players, as answered to
+     * pings from the load balancers.
+     *
+     * @return false while the server is warming up
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public SessionReaper getSessionReaper() {
+        return sessionReaper;
+    }
+
+    public NeighbourhoodPrefetcher getNeighbourhoodPrefetcher() {
+        return neighbourhoodPrefetcher;
+    }
 }
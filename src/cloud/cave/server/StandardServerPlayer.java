@@ -1,10 +1,8 @@
 package cloud.cave.server;
 
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
 
-import cloud.cave.common.CaveStorageException;
 import cloud.cave.server.service.ServerWeatherService;
 import com.google.common.base.Strings;
 import org.json.simple.JSONObject;
@@ -28,20 +26,27 @@ public class StandardServerPlayer implements Player {
      * The classpath used to search for Command objects
      */
     public static final String EXTENSION_CLASSPATH = "cloud.cave.extension";
+
+    /**
+     * The number of players on the first page of the players in a room
+     */
+    public static final int FIRST_PLAYER_PAGE_SIZE = 10;
+
+    /**
+     * The number of players on the following pages of the players in a room
+     */
+    public static final int PLAYER_PAGE_SIZE = 20;
     private static final Logger logger = LoggerFactory.getLogger(StandardServerPlayer.class);
 
     private final CaveStorage storage;
     private final String ID;
 
-    // These attributes of the player are essentially
-    // caching of the 'true' information which is stored in
-    // the underlying cave storage.
-    private String name;
-    private String groupName;
-    private Region region;
-    private RoomRecord currentRoom;
-    private String position;
-    private String sessionId;
+    // The player record and room are essentially caching of the 'true'
+    // information which is stored in the underlying cave storage. A cached
+    // player serves concurrent requests, so they are kept as an immutable
+    // snapshot, replaced as a whole, and null until first needed.
+    private final AtomicReference<Snapshot> state = new AtomicReference<>();
+    private volatile String sessionId;
 
     private WeatherService weatherService;
 
@@ -64,63 +69,109 @@ public class StandardServerPlayer implements Player {
         refreshFromStorage();
     }
 
+    /**
+     * Never call this constructor directly! Create a player instance for a
+     * session that is already verified, like by a signed session token. The
+     * player record and the room are not read from the storage until a
+     * method needs them.
+     *
+     * @param playerID       the player's id
+     * @param sessionID      the verified session of the player
+     * @param storage        the storage service connector for the cave and players
+     * @param weatherService the weather service connector
+     */
+    StandardServerPlayer(String playerID, String sessionID, CaveStorage storage, WeatherService weatherService) {
+        super();
+        this.ID = playerID;
+        this.sessionId = sessionID;
+        this.storage = storage;
+        this.weatherService = weatherService;
+    }
+
+    /**
+     * Never call this constructor directly! Create a player instance from a
+     * player record read earlier, like from a snapshot of a session cache.
+     * The room is read from the storage when needed, unless given.
+     *
+     * @param record         the record of the player
+     * @param room           the room of the player, or null if not known
+     * @param storage        the storage service connector for the cave and players
+     * @param weatherService the weather service connector
+     */
+    StandardServerPlayer(PlayerRecord record, RoomRecord room, CaveStorage storage, WeatherService weatherService) {
+        this(record.getPlayerID(), record.getSessionId(), storage, weatherService);
+        state.set(new Snapshot(record, room, room != null));
+    }
+
+    /**
+     * Get the attributes of this player as a player record, as cached by
+     * this instance.
+     *
+     * @return the record of the player
+     */
+    PlayerRecord toRecord() {
+        return ensurePlayerLoaded().record;
+    }
+
+    /**
+     * Tell whether this instance is up to date with a player record just
+     * read from the storage: it has the same session, and unless the record
+     * was never read, the same version and position.
+     *
+     * @param record the record of the player in the storage
+     * @return true if this instance may still be used
+     */
+    boolean isUpToDateWith(PlayerRecord record) {
+        if (record.getSessionId() == null || !record.getSessionId().equals(sessionId)) {
+            return false;
+        }
+        Snapshot current = state.get();
+        return current == null || (current.record.getVersion() == record.getVersion()
+                && current.record.getPositionAsString().equals(record.getPositionAsString()));
+    }
+
     @Override
     public void addMessage(String message) {
-        final String formattedMessage = String.format("[%s] %s", this.name, message.trim());
-        currentRoom.addMessage(formattedMessage);
+        final Snapshot current = ensureRoomLoaded();
+        final String formattedMessage = String.format("[%s] %s", current.record.getPlayerName(), message.trim());
+        current.room.addMessage(formattedMessage);
     }
 
-
-    private final ReentrantLock lock = new ReentrantLock();
     @Override
     public boolean move(Direction direction) {
-        // Calculate the offsets in the given direction
-        final Point3 p = Point3.parseString(position);
-        p.translate(direction);
-        // convert to the new position in string format
-        final String newPosition = p.getPositionString();
-        // get the room in that direction
-        final RoomRecord newRoom = storage.getRoom(newPosition);
-        // if it is null, then there is no room in that direction
-        if (newRoom == null) {
-            return false;
-        }
-        // otherwise update internal state
-        position = p.getPositionString();
-        currentRoom = newRoom;
+        // Move from the position known here. If another server moved the
+        // player meanwhile the write is refused, so move from where the
+        // player really is instead
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final Snapshot current = ensurePlayerLoaded();
+            final String oldPosition = current.record.getPositionAsString();
+            // Calculate the new position in the given direction
+            final String newPosition = Point3.parseString(oldPosition).translate(direction).getPositionString();
+            // get the room in that direction
+            final RoomRecord newRoom = storage.getRoom(newPosition);
+            // if it is null, then there is no room in that direction
+            if (newRoom == null) {
+                return false;
+            }
 
-        try {
-            lock.tryLock(5, TimeUnit.SECONDS);
-
-            // and update this player's position in the storage
-            final PlayerRecord pRecord = storage.getPlayerByID(this.getID());
-            final PlayerRecord newRecord = new PlayerRecord(pRecord.getPlayerID(),
-                    pRecord.getPlayerName(),
-                    pRecord.getGroupName(),
-                    pRecord.getRegion(),
-                    position,
-                    pRecord.getSessionId());
-
-            try {
-                storage.updatePlayerRecord(newRecord);
+            // Update this player's position in the storage, writing only the
+            // position, provided it is still the one moved from
+            if (storage.updatePlayerPosition(getID(), oldPosition, newPosition)) {
+                final PlayerRecord record = current.record;
+                state.set(new Snapshot(new PlayerRecord(ID, record.getPlayerName(), record.getGroupName(),
+                        record.getRegion(), newPosition, record.getSessionId(), record.getVersion() + 1),
+                        newRoom, true));
                 return true;
-            } catch (CaveStorageException e) {
-                throw e;
-            } catch (RuntimeException e) {
-                return false;
             }
-        } catch (InterruptedException e) {
-            return false;
-        } finally {
-            lock.unlock();
+            state.set(null);
         }
+        return false;
     }
 
     @Override
     public boolean digRoom(Direction direction, String description) {
         // Calculate the offsets in the given direction
-        final Point3 p = Point3.parseString(position);
-        p.translate(direction);
+        final Point3 p = Point3.parseString(getPosition()).translate(direction);
         final RoomRecord room = new RoomRecord(description, new ArrayList<String>());
         return storage.addRoom(p.getPositionString(), room);
     }
@@ -148,25 +199,16 @@ public class StandardServerPlayer implements Player {
                     "Player.execute failed to instantiate Command object: " + commandName);
         }
 
-        final JSONObject reply;
-        try  {
-            lock.tryLock(5, TimeUnit.SECONDS);
+        // Initialize the command object
+        command.setPlayerID(getID());
+        command.setStorageService(storage);
 
-            // Initialize the command object
-            command.setPlayerID(getID());
-            command.setStorageService(storage);
+        // And execute the command...
+        final JSONObject reply = command.execute(parameters);
 
-            // And execute the command...
-            reply = command.execute(parameters);
-
-            // as the command may update any aspect of the player' data
-            // and as we cache it here locally, invalidate the caching
-            refreshFromStorage();
-        } catch (InterruptedException e) {
-            return null;
-        } finally {
-            lock.unlock();
-        }
+        // as the command may update any aspect of the player' data
+        // and as we cache it here locally, invalidate the caching
+        refreshFromStorage();
 
         return reply;
     }
@@ -177,17 +219,17 @@ public class StandardServerPlayer implements Player {
 
     @Override
     public List<Direction> getExitSet() {
-        return storage.getSetOfExitsFromRoom(position);
+        return storage.getSetOfExitsFromRoom(getPosition());
     }
 
     @Override
     public Region getRegion() {
-        return region;
+        return ensurePlayerLoaded().record.getRegion();
     }
 
     @Override
     public String getPosition() {
-        return storage.getPlayerByID(getID()).getPositionAsString();
+        return ensurePlayerLoaded().record.getPositionAsString();
     }
 
     @Override
@@ -200,6 +242,20 @@ public class StandardServerPlayer implements Player {
         return playerNameList;
     }
 
+    @Override
+    public PlayerListPage getPageOfPlayersHere(String cursor) {
+        String here = getPosition();
+        String afterPlayerID = PlayerCursor.decode(cursor, here);
+        PlayerPageRecord page = storage.computePageOfPlayersAt(here, afterPlayerID,
+                afterPlayerID == null ? FIRST_PLAYER_PAGE_SIZE : PLAYER_PAGE_SIZE);
+        List<String> playerNameList = new ArrayList<>();
+        for (PlayerRecord record : page.getPlayers()) {
+            playerNameList.add(record.getPlayerName());
+        }
+        return new PlayerListPage(playerNameList,
+                page.hasMore() ? PlayerCursor.encode(here, page.getLastPlayerID()) : null);
+    }
+
     @Override
     public String getSessionID() {
         return sessionId;
@@ -207,17 +263,17 @@ public class StandardServerPlayer implements Player {
 
     @Override
     public List<String> getMessageList() {
-        return currentRoom.getMessageList();
+        return ensureRoomLoaded().room.getMessageList();
     }
 
 
     @Override
     public String getName() {
-        return name;
+        return ensurePlayerLoaded().record.getPlayerName();
     }
 
     public String getGroupName() {
-        return groupName;
+        return ensurePlayerLoaded().record.getGroupName();
     }
 
     @Override
@@ -227,28 +283,43 @@ public class StandardServerPlayer implements Player {
 
     @Override
     public String getShortRoomDescription() {
-        return currentRoom.description;
+        return ensureRoomLoaded().room.description;
     }
 
     @Override
     public String getLongRoomDescription(int offset) {
         if (offset == -1) offset = 0;
 
-        String allOfIt = getShortRoomDescription() + "\nThere are exits in directions:\n";
-        for (Direction dir : getExitSet()) {
+        List<String> playerNameList = getPlayersHere(offset);
+        int count = playerNameList.size();
+        boolean endOfList = (offset == 0 && count < FIRST_PLAYER_PAGE_SIZE) || (offset > 0 && count < PLAYER_PAGE_SIZE);
+        return describeRoom(getShortRoomDescription(), getExitSet(), playerNameList, endOfList);
+    }
+
+    /**
+     * Write the long description of a room, from its short description, its
+     * exits and a page of the players in it.
+     *
+     * @param shortDescription the short description of the room
+     * @param exits            the exits of the room
+     * @param playerNameList   the names of the players on the page
+     * @param endOfList        true if the page is the last one
+     * @return the long description of the room
+     */
+    static String describeRoom(String shortDescription, List<Direction> exits, List<String> playerNameList,
+                               boolean endOfList) {
+        String allOfIt = shortDescription + "\nThere are exits in directions:\n";
+        for (Direction dir : exits) {
             allOfIt += "  " + dir + " ";
         }
         allOfIt += "\nYou see other players:\n";
-        List<String> playerNameList = getPlayersHere(offset);
         int count = 0;
         for (String p : playerNameList) {
             allOfIt += "  [" + count + "] " + p + "\n";
             count++;
         }
 
-        if (offset == 0 && count < 10)
-            allOfIt += " *** End of player list *** \n";
-        else if (offset > 0 && count < 20)
+        if (endOfList)
             allOfIt += " *** End of player list *** \n";
 
         return allOfIt;
@@ -308,19 +379,55 @@ public class StandardServerPlayer implements Player {
 
     private void refreshFromStorage() {
         PlayerRecord pr = storage.getPlayerByID(ID);
-        name = pr.getPlayerName();
-        groupName = pr.getGroupName();
-        position = pr.getPositionAsString();
-        region = pr.getRegion();
         sessionId = pr.getSessionId();
+        state.set(new Snapshot(pr, storage.getRoom(pr.getPositionAsString()), true));
+    }
 
-        currentRoom = storage.getRoom(position);
+    private Snapshot ensurePlayerLoaded() {
+        Snapshot current = state.get();
+        if (current == null) {
+            state.compareAndSet(null, new Snapshot(storage.getPlayerByID(ID), null, false));
+            current = state.get();
+        }
+        return current;
+    }
+
+    private Snapshot ensureRoomLoaded() {
+        Snapshot current = ensurePlayerLoaded();
+        if (!current.roomLoaded) {
+            Snapshot loaded = new Snapshot(current.record,
+                    storage.getRoom(current.record.getPositionAsString()), true);
+            // Unless a move replaced the snapshot meanwhile, keep the room
+            state.compareAndSet(current, loaded);
+            current = loaded;
+        }
+        return current;
     }
 
     @Override
     public String toString() {
-        return "StandardServerPlayer [storage=" + storage + ", name=" + name
-                + ", ID=" + ID + ", region=" + region + ", currentRoom=" + currentRoom
-                + ", position=" + position + ", sessionId=" + sessionId + "]";
+        Snapshot current = state.get();
+        PlayerRecord record = current == null ? null : current.record;
+        return "StandardServerPlayer [storage=" + storage + ", name=" + (record == null ? null : record.getPlayerName())
+                + ", ID=" + ID + ", region=" + (record == null ? null : record.getRegion())
+                + ", currentRoom=" + (current == null ? null : current.room)
+                + ", position=" + (record == null ? null : record.getPositionAsString())
+                + ", sessionId=" + sessionId + "]";
+    }
+
+    /**
+     * The player record and the room of a player as read together, never
+     * changed once made.
+     */
+    private static final class Snapshot {
+        private final PlayerRecord record;
+        private final RoomRecord room;
+        private final boolean roomLoaded;
+
+        Snapshot(PlayerRecord record, RoomRecord room, boolean roomLoaded) {
+            this.record = record;
+            this.room = room;
+            this.roomLoaded = roomLoaded;
+        }
     }
 }
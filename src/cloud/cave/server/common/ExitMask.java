@@ -0,0 +1,86 @@
+package cloud.cave.server.common;
+
+import cloud.cave.domain.Direction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The exits of a room encoded as a mask of six bits, one per direction, so
+ * the exits can be stored with the room and read in one go. The bit of a
+ * direction is set if there is a room next to the room in that direction.
+ *
+ * @author Rohde Fischer
+ */
+public final class ExitMask {
+    private ExitMask() {
+    }
+
+    /**
+     * Get the bit of a direction.
+     *
+     * @param direction the direction
+     * @return the bit of the direction in a mask
+     */
+    public static int bit(Direction direction) {
+        return 1 << direction.ordinal();
+    }
+
+    /**
+     * Get the direction leading back, like south for north.
+     *
+     * @param direction the direction
+     * @return the opposite direction
+     */
+    public static Direction opposite(Direction direction) {
+        switch (direction) {
+            case NORTH:
+                return Direction.SOUTH;
+            case SOUTH:
+                return Direction.NORTH;
+            case EAST:
+                return Direction.WEST;
+            case WEST:
+                return Direction.EAST;
+            case UP:
+                return Direction.DOWN;
+            default:
+                return Direction.UP;
+        }
+    }
+
+    /**
+     * Decode a mask to the list of directions with an exit, in the order of
+     * the directions.
+     *
+     * @param mask the mask
+     * @return the directions whose bits are set
+     */
+    public static List<Direction> toDirections(int mask) {
+        List<Direction> directions = new ArrayList<>();
+        for (Direction direction : Direction.values()) {
+            if ((mask & bit(direction)) != 0) {
+                directions.add(direction);
+            }
+        }
+        return directions;
+    }
+
+    /**
+     * Compute the positions next to a position.
+     *
+     * @param positionString the position
+     * @return the direction of each neighbour by its position string, in
+     * the order of the directions
+     */
+    public static Map<String, Direction> neighboursOf(String positionString) {
+        Point3 position = Point3.parseString(positionString);
+        Map<String, Direction> neighbours = new LinkedHashMap<>();
+        for (Direction direction : Direction.values()) {
+            neighbours.put(position.translate(direction).getPositionString(), direction);
+        }
+        return neighbours;
+    }
+}
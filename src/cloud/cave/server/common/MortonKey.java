@@ -0,0 +1,243 @@
+package cloud.cave.server.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The Morton key, or Z-order key, of a position: the bits of its three
+ * coordinates interleaved into one number. Positions close to each other
+ * mostly have keys close to each other, so the rooms in a box are found by
+ * a few ranges of keys, each read in one go from an index on the key.
+ * <p/>
+ * Each coordinate has 21 bits, so only the positions with coordinates from
+ * MIN_COORDINATE to MAX_COORDINATE have a key.
+ *
+ * @author Rohde Fischer
+ */
+public final class MortonKey {
+    /**
+     * The number of bits of each coordinate in a key
+     */
+    public static final int BITS = 21;
+
+    /**
+     * The smallest coordinate of a position with a key
+     */
+    public static final int MIN_COORDINATE = -(1 << (BITS - 1));
+
+    /**
+     * The largest coordinate of a position with a key
+     */
+    public static final int MAX_COORDINATE = (1 << (BITS - 1)) - 1;
+
+    private MortonKey() {
+    }
+
+    /**
+     * Tell whether a position has a key.
+     *
+     * @param position the position
+     * @return true if all coordinates are within the range of a key
+     */
+    public static boolean fits(Point3 position) {
+        return fits(position.x()) && fits(position.y()) && fits(position.z());
+    }
+
+    private static boolean fits(int coordinate) {
+        return coordinate >= MIN_COORDINATE && coordinate <= MAX_COORDINATE;
+    }
+
+    /**
+     * Compute the key of a position.
+     *
+     * @param position the position
+     * @return the key, a positive number
+     * @throws IllegalArgumentException in case the position has no key
+     */
+    public static long encode(Point3 position) {
+        if (!fits(position)) {
+            throw new IllegalArgumentException("The position " + position + " is out of range of a Morton key");
+        }
+        return interleave(position.x() - MIN_COORDINATE, position.y() - MIN_COORDINATE,
+                position.z() - MIN_COORDINATE);
+    }
+
+    /**
+     * Compute the position of a key.
+     *
+     * @param key the key
+     * @return the position with the key
+     */
+    public static Point3 decode(long key) {
+        return new Point3(compact(key) + MIN_COORDINATE, compact(key >>> 1) + MIN_COORDINATE,
+                compact(key >>> 2) + MIN_COORDINATE);
+    }
+
+    /**
+     * Split a box into ranges of keys. Every position in the box has a key
+     * in one of the ranges. When the box does not split into at most
+     * maximumRanges exact ranges, some ranges also hold keys of positions
+     * outside the box, which the caller must leave out.
+     *
+     * @param min           the corner of the box with the smallest coordinates
+     * @param max           the corner of the box with the largest coordinates
+     * @param maximumRanges the maximal number of ranges wanted
+     * @return the ranges, sorted and apart from each other
+     * @throws IllegalArgumentException in case the box is empty, or has
+     *                                  positions without a key
+     */
+    public static List<Range> ranges(Point3 min, Point3 max, int maximumRanges) {
+        if (!fits(min) || !fits(max) || min.x() > max.x() || min.y() > max.y() || min.z() > max.z()) {
+            throw new IllegalArgumentException("The box from " + min + " to " + max
+                    + " is empty or out of range of a Morton key");
+        }
+        if (maximumRanges < 1) {
+            throw new IllegalArgumentException("At least one range is needed, not " + maximumRanges);
+        }
+        final long[] low = {min.x() - MIN_COORDINATE, min.y() - MIN_COORDINATE, min.z() - MIN_COORDINATE};
+        final long[] high = {max.x() - MIN_COORDINATE, max.y() - MIN_COORDINATE, max.z() - MIN_COORDINATE};
+
+        // Go down the octree of cells a level at a time, keeping the cells
+        // inside the box as exact ranges, and splitting those crossing its
+        // border, until the border cells are single positions or too many
+        List<Range> ranges = new ArrayList<>();
+        List<long[]> crossing = new ArrayList<>();
+        crossing.add(new long[]{0, 0, 0});
+        for (int level = BITS; level >= 0 && !crossing.isEmpty(); level--) {
+            final long size = 1L << level;
+            final List<long[]> next = new ArrayList<>();
+            for (long[] cell : crossing) {
+                if (isInside(cell, size, low, high) || level == 0) {
+                    ranges.add(rangeOf(cell, level));
+                } else if (overlaps(cell, size, low, high)) {
+                    long half = size >> 1;
+                    for (int child = 0; child < 8; child++) {
+                        next.add(new long[]{cell[0] + ((child & 1) != 0 ? half : 0),
+                                cell[1] + ((child & 2) != 0 ? half : 0),
+                                cell[2] + ((child & 4) != 0 ? half : 0)});
+                    }
+                }
+            }
+            crossing = new ArrayList<>();
+            for (long[] cell : next) {
+                if (overlaps(cell, size >> 1, low, high)) {
+                    crossing.add(cell);
+                }
+            }
+            if (ranges.size() + crossing.size() > 8 * maximumRanges) {
+                // Enough detail, take the crossing cells whole
+                for (long[] cell : crossing) {
+                    ranges.add(rangeOf(cell, level - 1));
+                }
+                crossing.clear();
+            }
+        }
+        return coalesce(ranges, maximumRanges);
+    }
+
+    /**
+     * Sort the ranges and join the adjacent ones, then join the ones with
+     * the smallest gaps between them, until at most maximumRanges are left.
+     */
+    private static List<Range> coalesce(List<Range> ranges, int maximumRanges) {
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                return Long.compare(a.from, b.from);
+            }
+        });
+        List<Range> joined = new ArrayList<>();
+        for (Range range : ranges) {
+            Range last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+            if (last != null && range.from <= last.to + 1) {
+                joined.set(joined.size() - 1, new Range(last.from, Math.max(last.to, range.to)));
+            } else {
+                joined.add(range);
+            }
+        }
+        while (joined.size() > maximumRanges) {
+            int smallest = 0;
+            for (int i = 1; i < joined.size() - 1; i++) {
+                if (joined.get(i + 1).from - joined.get(i).to < joined.get(smallest + 1).from - joined.get(smallest).to) {
+                    smallest = i;
+                }
+            }
+            joined.set(smallest, new Range(joined.get(smallest).from, joined.get(smallest + 1).to));
+            joined.remove(smallest + 1);
+        }
+        return joined;
+    }
+
+    private static boolean isInside(long[] cell, long size, long[] low, long[] high) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (cell[axis] < low[axis] || cell[axis] + size - 1 > high[axis]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean overlaps(long[] cell, long size, long[] low, long[] high) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (cell[axis] > high[axis] || cell[axis] + size - 1 < low[axis]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Range rangeOf(long[] cell, int level) {
+        long from = interleave(cell[0], cell[1], cell[2]);
+        return new Range(from, from + ((1L << (3 * level)) - 1));
+    }
+
+    private static long interleave(long x, long y, long z) {
+        return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+    }
+
+    /**
+     * Spread the 21 low bits of a number to every third bit.
+     */
+    private static long spread(long v) {
+        v &= 0x1fffffL;
+        v = (v | (v << 32)) & 0x1f00000000ffffL;
+        v = (v | (v << 16)) & 0x1f0000ff0000ffL;
+        v = (v | (v << 8)) & 0x100f00f00f00f00fL;
+        v = (v | (v << 4)) & 0x10c30c30c30c30c3L;
+        v = (v | (v << 2)) & 0x1249249249249249L;
+        return v;
+    }
+
+    /**
+     * Gather every third bit of a number into its 21 low bits.
+     */
+    private static int compact(long v) {
+        v &= 0x1249249249249249L;
+        v = (v | (v >>> 2)) & 0x10c30c30c30c30c3L;
+        v = (v | (v >>> 4)) & 0x100f00f00f00f00fL;
+        v = (v | (v >>> 8)) & 0x1f0000ff0000ffL;
+        v = (v | (v >>> 16)) & 0x1f00000000ffffL;
+        v = (v | (v >>> 32)) & 0x1fffffL;
+        return (int) v;
+    }
+
+    /**
+     * A range of keys, both ends included.
+     */
+    public static final class Range {
+        public final long from;
+        public final long to;
+
+        public Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + from + ", " + to + "]";
+        }
+    }
+}
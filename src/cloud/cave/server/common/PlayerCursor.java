@@ -0,0 +1,61 @@
+package cloud.cave.server.common;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The cursors handed to clients paging through the players in a room. A
+ * cursor holds the room and the id of the last player read, so the next
+ * page is read from the index on the players after that id. It is encoded
+ * as URL safe base64, as the clients are not to look into it.
+ * <p/>
+ * A cursor which cannot be read, or is for another room than the one the
+ * player is in now, starts over from the first page.
+ *
+ * @author Rohde Fischer
+ */
+public final class PlayerCursor {
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = "\n";
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    private PlayerCursor() {
+    }
+
+    /**
+     * Make the cursor of the page after a player.
+     *
+     * @param positionString the position of the room paged through
+     * @param lastPlayerID   the id of the last player read
+     * @return the cursor
+     */
+    public static String encode(String positionString, String lastPlayerID) {
+        String plain = VERSION + SEPARATOR + positionString + SEPARATOR + lastPlayerID;
+        return ENCODING.encode(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the id of the player the page of a cursor starts after.
+     *
+     * @param cursor         the cursor, null or empty for the first page
+     * @param positionString the position of the room paged through
+     * @return the id of the last player read, or null to start from the
+     * first page
+     */
+    public static String decode(String cursor, String positionString) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        String[] parts;
+        try {
+            parts = new String(ENCODING.decode(cursor), StandardCharsets.UTF_8).split(SEPARATOR, 3);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (parts.length != 3 || !parts[0].equals(VERSION) || !parts[1].equals(positionString)) {
+            return null;
+        }
+        return parts[2];
+    }
+}
@@ -0,0 +1,48 @@
+package cloud.cave.server.common;
+
+import java.util.List;
+
+/**
+ * This is a record type representing a page of the players in a room, read
+ * in the order of their ids: the players in the cave on the page, the id of
+ * the last player read, and whether more players may follow it.
+ * <p/>
+ * The last id read is where the next page starts, even when that player
+ * is not in the cave and so not on the page.
+ *
+ * @author Rohde Fischer
+ */
+public class PlayerPageRecord {
+    private final List<PlayerRecord> players;
+    private final String lastPlayerID;
+    private final boolean hasMore;
+
+    public PlayerPageRecord(List<PlayerRecord> players, String lastPlayerID, boolean hasMore) {
+        this.players = players;
+        this.lastPlayerID = lastPlayerID;
+        this.hasMore = hasMore;
+    }
+
+    public List<PlayerRecord> getPlayers() {
+        return players;
+    }
+
+    /**
+     * Get the id of the last player read for the page.
+     *
+     * @return the id to read the next page after, null if no player was read
+     */
+    public String getLastPlayerID() {
+        return lastPlayerID;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerPageRecord [players=" + players + ", lastPlayerID=" + lastPlayerID
+                + ", hasMore=" + hasMore + "]";
+    }
+}
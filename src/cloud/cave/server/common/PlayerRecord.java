@@ -8,6 +8,10 @@ import cloud.cave.domain.Region;
  * <p/>
  * A record is a pure data object without any behavior, very suitable for
  * networking and persistence as it only contains data.
+ * <p/>
+ * The version of a record read from the storage is the number of times the
+ * stored record has been written, used for compare-and-set updates. Records
+ * created by the domain have version 0.
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  */
@@ -19,8 +23,13 @@ public class PlayerRecord {
 
     private String positionAsString;
     private final String sessionID;
+    private final long version;
 
     public PlayerRecord(String playerID, String playerName, String groupName, Region region, String positionAsString, String sessionID) {
+        this(playerID, playerName, groupName, region, positionAsString, sessionID, 0);
+    }
+
+    public PlayerRecord(String playerID, String playerName, String groupName, Region region, String positionAsString, String sessionID, long version) {
         super();
         this.playerID = playerID;
         this.playerName = playerName;
@@ -28,6 +37,7 @@ public class PlayerRecord {
         this.region = region;
         this.positionAsString = positionAsString;
         this.sessionID = sessionID;
+        this.version = version;
     }
 
     public String getPlayerID() {
@@ -65,6 +75,15 @@ public class PlayerRecord {
         return sessionID != null;
     }
 
+    /**
+     * get the version of the stored record this record was read from
+     *
+     * @return the version, or 0 for a record not read from the storage
+     */
+    public long getVersion() {
+        return version;
+    }
+
     @Deprecated
     public void setPositionAsString(String positionAsString) {
         this.positionAsString = positionAsString;
@@ -0,0 +1,55 @@
+package cloud.cave.server.common;
+
+import cloud.cave.common.CaveStorageException;
+import cloud.cave.service.CaveStorage;
+
+/**
+ * A read-modify-write cycle of a player record, made safe against
+ * concurrent writers by optimistic concurrency: the record is read, the new
+ * record computed from it, and written by a compare-and-set on the version
+ * read. If another writer got in between, the cycle starts over with the
+ * record written by that writer, at most MAX_ATTEMPTS times.
+ * <p/>
+ * As the new record may be computed several times, computing it must not
+ * have other effects than remembering the last result.
+ *
+ * @author Rohde Fischer
+ */
+public abstract class PlayerRecordUpdate {
+    /**
+     * The maximal number of attempts before giving up
+     */
+    public static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * Compute the new record of the player.
+     *
+     * @param current the record stored, or null if the player has none
+     * @return the record to write, or null to leave the record as it is
+     */
+    protected abstract PlayerRecord apply(PlayerRecord current);
+
+    /**
+     * Run the update.
+     *
+     * @param storage  the storage of the player record
+     * @param playerID the id of the player
+     * @return the record written, or null if apply chose not to write
+     * @throws CaveStorageException in case the update conflicted with
+     *                              other writers MAX_ATTEMPTS times
+     */
+    public PlayerRecord run(CaveStorage storage, String playerID) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            PlayerRecord current = storage.getPlayerByID(playerID);
+            PlayerRecord updated = apply(current);
+            if (updated == null) {
+                return null;
+            }
+            if (storage.compareAndSetPlayerRecord(updated, current == null ? 0 : current.getVersion())) {
+                return updated;
+            }
+        }
+        throw new CaveStorageException("Gave up updating the record of player " + playerID + " after "
+                + MAX_ATTEMPTS + " conflicting updates");
+    }
+}
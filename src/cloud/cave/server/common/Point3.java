@@ -6,13 +6,21 @@ import cloud.cave.domain.Direction;
  * This class represents a position in the 3D space of the cave (x,y,z) as a
  * normal Cartesian coordinate system. It is mostly used for conversion to and
  * from the position string which is the 'primary key' in the storage layer.
+ * <p/>
+ * A position is an immutable value: moving in a direction gives a new
+ * position, and two positions with the same coordinates are equal.
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  */
-public class Point3 {
-    private int x;
-    private int y;
-    private int z;
+public final class Point3 {
+    // The offsets of x, y and z of each direction, by direction ordinal
+    private static final int[] OFFSET_X = {0, 0, +1, -1, 0, 0};
+    private static final int[] OFFSET_Y = {1, -1, 0, 0, 0, 0};
+    private static final int[] OFFSET_Z = {0, 0, 0, 0, 1, -1};
+
+    private final int x;
+    private final int y;
+    private final int z;
 
     public Point3(int x, int y, int z) {
         this.x = x;
@@ -20,10 +28,15 @@ public class Point3 {
         this.z = z;
     }
 
-    public void translate(Direction direction) {
-        x += offset[0][direction.ordinal()];
-        y += offset[1][direction.ordinal()];
-        z += offset[2][direction.ordinal()];
+    /**
+     * Get the position next to this one in a direction.
+     *
+     * @param direction the direction to move in
+     * @return the neighbouring position
+     */
+    public Point3 translate(Direction direction) {
+        int i = direction.ordinal();
+        return new Point3(x + OFFSET_X[i], y + OFFSET_Y[i], z + OFFSET_Z[i]);
     }
 
     public int x() {
@@ -38,17 +51,6 @@ public class Point3 {
         return z;
     }
 
-    @SuppressWarnings("CloneDoesntCallSuperClone")
-    public Object clone() {
-        return new Point3(x, y, z);
-    }
-
-    private int[][] offset = {
-            {0, 0, +1, -1, 0, 0},
-            {1, -1, 0, 0, 0, 0},
-            {0, 0, 0, 0, 1, -1}
-    };
-
     /**
      * return the position string which encodes a Point3 as a string useful as
      * primary key into a database table/ collection of rooms.
@@ -59,6 +61,23 @@ public class Point3 {
         return "(" + x + "," + y + "," + z + ")";
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Point3)) {
+            return false;
+        }
+        Point3 other = (Point3) o;
+        return x == other.x && y == other.y && z == other.z;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * x + y) + z;
+    }
+
     public String toString() {
         return getPositionString();
     }
@@ -68,16 +87,48 @@ public class Point3 {
      *
      * @param positionString the string representing a position
      * @return a Point3 of the same position
+     * @throws IllegalArgumentException in case the string is not a position
      */
     public static Point3 parseString(String positionString) {
-        // Yes, really inefficient, but what the heck... -HBC
-        String changed = positionString.replace("(", "").replace(")", "").replace(",", " ");
-        String[] tokens = changed.split("\\s");
-        assert tokens.length == 3;
-        int x = Integer.parseInt(tokens[0]);
-        int y = Integer.parseInt(tokens[1]);
-        int z = Integer.parseInt(tokens[2]);
-        return new Point3(x, y, z);
+        int length = positionString.length();
+        if (length < 7 || positionString.charAt(0) != '(' || positionString.charAt(length - 1) != ')') {
+            throw new IllegalArgumentException("Not a position string: " + positionString);
+        }
+        int firstComma = positionString.indexOf(',', 1);
+        int secondComma = firstComma < 0 ? -1 : positionString.indexOf(',', firstComma + 1);
+        if (secondComma < 0 || positionString.indexOf(',', secondComma + 1) >= 0) {
+            throw new IllegalArgumentException("Not a position string: " + positionString);
+        }
+        return new Point3(parseCoordinate(positionString, 1, firstComma),
+                parseCoordinate(positionString, firstComma + 1, secondComma),
+                parseCoordinate(positionString, secondComma + 1, length - 1));
     }
 
+    /**
+     * Parse the decimal integer between two indices of a string, without
+     * the substring.
+     */
+    private static int parseCoordinate(String s, int begin, int end) {
+        boolean negative = begin < end && s.charAt(begin) == '-';
+        int i = negative ? begin + 1 : begin;
+        if (i == end) {
+            throw new IllegalArgumentException("Not a position string: " + s);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Not a position string: " + s);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new IllegalArgumentException("Coordinate out of range in position string: " + s);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Coordinate out of range in position string: " + s);
+        }
+        return (int) value;
+    }
 }
@@ -0,0 +1,182 @@
+package cloud.cave.server.common;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A Bloom filter of strings that grows with the strings put in it, so it
+ * needs not be sized for the largest set up front. It answers whether a
+ * string may have been put in it: a no is certain, a yes is wrong with a
+ * small probability.
+ * <p/>
+ * The filter is a list of Guava Bloom filters. When the last one holds as
+ * many strings as it was made for, a new one twice as large is added, with
+ * half the false positive probability, so the false positive probability
+ * of the whole filter stays below twice that of the first one, however many
+ * strings are put in it.
+ * <p/>
+ * Safe to use from several threads.
+ *
+ * @author Rohde Fischer
+ */
+public class ScalableBloomFilter {
+    private final double falsePositiveProbability;
+    private final List<Stage> stages = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long count;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param initialCapacity          the number of strings the first stage is
+     *                                 made for
+     * @param falsePositiveProbability the false positive probability of the
+     *                                 first stage
+     */
+    public ScalableBloomFilter(int initialCapacity, double falsePositiveProbability) {
+        if (initialCapacity < 1 || falsePositiveProbability <= 0.0 || falsePositiveProbability >= 1.0) {
+            throw new IllegalArgumentException("A Bloom filter needs a positive capacity and a false positive "
+                    + "probability between 0 and 1, not " + initialCapacity + " and " + falsePositiveProbability);
+        }
+        this.falsePositiveProbability = falsePositiveProbability;
+        stages.add(new Stage(initialCapacity, falsePositiveProbability));
+    }
+
+    /**
+     * Put a string in the filter.
+     *
+     * @param value the string
+     */
+    public void put(String value) {
+        lock.writeLock().lock();
+        try {
+            Stage last = stages.get(stages.size() - 1);
+            if (last.count >= last.capacity) {
+                last = new Stage(last.capacity * 2, last.falsePositiveProbability / 2);
+                stages.add(last);
+            }
+            if (last.filter.put(value)) {
+                last.count++;
+                count++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tell whether a string may have been put in the filter.
+     *
+     * @param value the string
+     * @return false if the string was certainly not put in the filter
+     */
+    public boolean mightContain(String value) {
+        lock.readLock().lock();
+        try {
+            for (Stage stage : stages) {
+                if (stage.filter.mightContain(value)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the approximate number of strings put in the filter. Strings that
+     * were already there, or collided with those that were, are not counted.
+     *
+     * @return the number of strings
+     */
+    public long getCount() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the probability that the filter wrongly answers that a string
+     * was put in it, given the strings put in it so far.
+     *
+     * @return the expected false positive probability
+     */
+    public double getExpectedFalsePositiveProbability() {
+        lock.readLock().lock();
+        try {
+            double allNegative = 1.0;
+            for (Stage stage : stages) {
+                allNegative *= 1.0 - stage.filter.expectedFpp();
+            }
+            return 1.0 - allNegative;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the size in memory of the bits of the filter.
+     *
+     * @return the number of bytes of the bit arrays
+     */
+    public long getSizeInBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Stage stage : stages) {
+                bytes += stage.bytes;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of stages the filter has grown to.
+     *
+     * @return the number of Bloom filters in the list
+     */
+    public int getStageCount() {
+        lock.readLock().lock();
+        try {
+            return stages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScalableBloomFilter{count=" + getCount() + ", bytes=" + getSizeInBytes()
+                + ", fpp=" + getExpectedFalsePositiveProbability() + ", target=" + falsePositiveProbability + "}";
+    }
+
+    private static final class Stage {
+        final BloomFilter<CharSequence> filter;
+        final long capacity;
+        final double falsePositiveProbability;
+        final long bytes;
+        long count;
+
+        Stage(long capacity, double falsePositiveProbability) {
+            this.filter = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8),
+                    (int) Math.min(capacity, Integer.MAX_VALUE), falsePositiveProbability);
+            this.capacity = capacity;
+            this.falsePositiveProbability = falsePositiveProbability;
+            // The number of bits Guava chooses, stored in longs
+            long bits = (long) (-capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+            this.bytes = 8 * ((bits + 63) / 64);
+        }
+    }
+}
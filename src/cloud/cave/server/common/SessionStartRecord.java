@@ -0,0 +1,31 @@
+package cloud.cave.server.common;
+
+/**
+ * This is a record type representing the outcome of starting a session of a
+ * player in the storage: the record of the player with the new session, and
+ * whether the player had a session already, which the new one overrules.
+ *
+ * @author Rohde Fischer
+ */
+public class SessionStartRecord {
+    private final PlayerRecord player;
+    private final boolean alreadyInCave;
+
+    public SessionStartRecord(PlayerRecord player, boolean alreadyInCave) {
+        this.player = player;
+        this.alreadyInCave = alreadyInCave;
+    }
+
+    public PlayerRecord getPlayer() {
+        return player;
+    }
+
+    public boolean wasAlreadyInCave() {
+        return alreadyInCave;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionStartRecord [player=" + player + ", alreadyInCave=" + alreadyInCave + "]";
+    }
+}
@@ -0,0 +1,168 @@
+package cloud.cave.server.invalidation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Base of the invalidation buses, batching and coalescing the published
+ * invalidations. The first invalidation of a batch schedules a flush after
+ * the flush delay, and the batch is flushed at once when it reaches the
+ * maximal batch size. Equal invalidations in a batch are delivered once.
+ * <p/>
+ * With a flush delay of zero every invalidation is delivered at once, on
+ * the publishing thread.
+ *
+ * @author Rohde Fischer
+ */
+public abstract class BatchingInvalidationBus implements InvalidationBus {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingInvalidationBus.class);
+
+    /**
+     * The default milliseconds an invalidation may wait for others to be
+     * delivered with it
+     */
+    public static final int DEFAULT_FLUSH_DELAY_MILLIS = 20;
+
+    /**
+     * The maximal number of invalidations in a batch
+     */
+    public static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * The origin of invalidations published by several origins in the
+     * same batch, delivered to all listeners
+     */
+    protected static final String ANY_ORIGIN = "";
+
+    private final long flushDelayMillis;
+    private final List<Subscription> subscriptions;
+    private final ScheduledExecutorService flusher;
+    private Map<Invalidation, String> pending;
+
+    protected BatchingInvalidationBus(long flushDelayMillis) {
+        this.flushDelayMillis = flushDelayMillis;
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.pending = new LinkedHashMap<>();
+        if (flushDelayMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "invalidation-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            flusher = null;
+        }
+    }
+
+    @Override
+    public void publish(String origin, Invalidation invalidation) {
+        boolean flushNow;
+        synchronized (this) {
+            boolean first = pending.isEmpty();
+            String earlier = pending.put(invalidation, origin);
+            if (earlier != null && !earlier.equals(origin)) {
+                pending.put(invalidation, ANY_ORIGIN);
+            }
+            flushNow = flusher == null || pending.size() >= MAX_BATCH_SIZE;
+            if (first && !flushNow) {
+                flusher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, flushDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    @Override
+    public void subscribe(String origin, InvalidationListener listener) {
+        subscriptions.add(new Subscription(origin, listener));
+    }
+
+    @Override
+    public void flush() {
+        Map<Invalidation, String> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+
+        // Group by origin, so each listener can skip its own invalidations
+        Map<String, List<Invalidation>> byOrigin = new HashMap<>();
+        for (Map.Entry<Invalidation, String> entry : batch.entrySet()) {
+            List<Invalidation> invalidations = byOrigin.get(entry.getValue());
+            if (invalidations == null) {
+                invalidations = new ArrayList<>();
+                byOrigin.put(entry.getValue(), invalidations);
+            }
+            invalidations.add(entry.getKey());
+        }
+        for (Map.Entry<String, List<Invalidation>> entry : byOrigin.entrySet()) {
+            try {
+                deliver(entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                logger.error("Failed delivering " + entry.getValue().size() + " invalidations", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+    }
+
+    /**
+     * Deliver a batch of invalidations to the listeners of all the app
+     * servers, except the origin.
+     *
+     * @param origin the id of the publishing app server, or ANY_ORIGIN
+     * @param batch  the coalesced invalidations
+     */
+    protected abstract void deliver(String origin, Collection<Invalidation> batch);
+
+    /**
+     * Deliver a batch of invalidations to the listeners subscribed to this
+     * bus object, except those of the origin.
+     *
+     * @param origin the id of the publishing app server, or ANY_ORIGIN
+     * @param batch  the coalesced invalidations
+     */
+    protected void deliverLocally(String origin, Collection<Invalidation> batch) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.origin.equals(origin)) {
+                continue;
+            }
+            try {
+                subscription.listener.invalidate(batch);
+            } catch (RuntimeException e) {
+                logger.error("Invalidation listener of " + subscription.origin + " failed", e);
+            }
+        }
+    }
+
+    private static class Subscription {
+        private final String origin;
+        private final InvalidationListener listener;
+
+        Subscription(String origin, InvalidationListener listener) {
+            this.origin = origin;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package cloud.cave.server.invalidation;
+
+import java.util.Collection;
+
+/**
+ * An invalidation bus within a single JVM, delivering the invalidations to
+ * the listeners subscribed to the same bus object. Enough for a single app
+ * server, and for running several caves in one JVM, like in tests.
+ *
+ * @author Rohde Fischer
+ */
+public class InProcessInvalidationBus extends BatchingInvalidationBus {
+
+    public InProcessInvalidationBus() {
+        this(DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Create the bus.
+     *
+     * @param flushDelayMillis milliseconds an invalidation may wait for
+     *                         others, or zero to deliver it at once
+     */
+    public InProcessInvalidationBus(long flushDelayMillis) {
+        super(flushDelayMillis);
+    }
+
+    @Override
+    protected void deliver(String origin, Collection<Invalidation> batch) {
+        deliverLocally(origin, batch);
+    }
+}
@@ -0,0 +1,115 @@
+package cloud.cave.server.invalidation;
+
+/**
+ * A compact event telling the caches that the cached copy of a session, a
+ * player or a room is outdated. Invalidations are values, so equal invalidations
+ * published close in time are coalesced into one.
+ *
+ * @author Rohde Fischer
+ */
+public final class Invalidation {
+    /**
+     * What is outdated
+     */
+    public enum Kind {
+        /**
+         * The session of the player with the key as id, like after a login
+         * or logout
+         */
+        SESSION('S'),
+        /**
+         * The record of the player with the key as id, but not the
+         * session, like after a move
+         */
+        PLAYER('P'),
+        /**
+         * The room at the key as position, and thus also the exit sets of
+         * its neighbours, like after a dig
+         */
+        ROOM('R');
+
+        private final char code;
+
+        Kind(char code) {
+            this.code = code;
+        }
+    }
+
+    private final Kind kind;
+    private final String key;
+
+    public Invalidation(Kind kind, String key) {
+        this.kind = kind;
+        this.key = key;
+    }
+
+    public static Invalidation session(String playerID) {
+        return new Invalidation(Kind.SESSION, playerID);
+    }
+
+    public static Invalidation player(String playerID) {
+        return new Invalidation(Kind.PLAYER, playerID);
+    }
+
+    public static Invalidation room(String positionString) {
+        return new Invalidation(Kind.ROOM, positionString);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Encode the invalidation for the wire, like 'S:mikkel'.
+     *
+     * @return the encoded invalidation
+     */
+    public String encode() {
+        return kind.code + ":" + key;
+    }
+
+    /**
+     * Decode an invalidation encoded by encode.
+     *
+     * @param encoded the encoded invalidation
+     * @return the invalidation
+     * @throws IllegalArgumentException in case the encoding is invalid
+     */
+    public static Invalidation decode(String encoded) {
+        if (encoded.length() < 2 || encoded.charAt(1) != ':') {
+            throw new IllegalArgumentException("Not an invalidation: " + encoded);
+        }
+        for (Kind kind : Kind.values()) {
+            if (kind.code == encoded.charAt(0)) {
+                return new Invalidation(kind, encoded.substring(2));
+            }
+        }
+        throw new IllegalArgumentException("Unknown kind of invalidation: " + encoded);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Invalidation)) {
+            return false;
+        }
+        Invalidation other = (Invalidation) o;
+        return kind == other.kind && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * kind.hashCode() + key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,44 @@
+package cloud.cave.server.invalidation;
+
+/**
+ * The role of a bus carrying invalidations between the app servers. When an
+ * app server changes a session or a room, it publishes an invalidation, and
+ * the bus delivers it to the listeners on all the other app servers, so they
+ * drop their cached copies.
+ * <p/>
+ * A bus may batch the invalidations, delivering them a little later to save
+ * messages under heavy write load, and coalesce equal invalidations in a
+ * batch into one. So a cache may be stale for a short while, and must
+ * tolerate that, like by checking versions on use.
+ *
+ * @author Rohde Fischer
+ */
+public interface InvalidationBus {
+
+    /**
+     * Publish an invalidation to the listeners of all other origins.
+     *
+     * @param origin       the id of the publishing app server
+     * @param invalidation what is outdated
+     */
+    void publish(String origin, Invalidation invalidation);
+
+    /**
+     * Subscribe a listener to the invalidations published by all other
+     * origins than its own.
+     *
+     * @param origin   the id of the app server of the listener
+     * @param listener the listener
+     */
+    void subscribe(String origin, InvalidationListener listener);
+
+    /**
+     * Deliver the invalidations waiting in the current batch at once.
+     */
+    void flush();
+
+    /**
+     * Flush and release the resources of the bus.
+     */
+    void close();
+}
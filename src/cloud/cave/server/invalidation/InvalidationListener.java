@@ -0,0 +1,20 @@
+package cloud.cave.server.invalidation;
+
+import java.util.Collection;
+
+/**
+ * A cache, or the owner of caches, subscribing to the invalidation bus.
+ *
+ * @author Rohde Fischer
+ */
+public interface InvalidationListener {
+
+    /**
+     * Drop the cached copies of everything in the batch. Called by a thread
+     * of the bus, so it must be safe to call concurrently with the other
+     * uses of the caches.
+     *
+     * @param batch the coalesced invalidations
+     */
+    void invalidate(Collection<Invalidation> batch);
+}
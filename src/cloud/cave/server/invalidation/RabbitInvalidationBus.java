@@ -0,0 +1,114 @@
+package cloud.cave.server.invalidation;
+
+import cloud.cave.config.RabbitMQConfig;
+import cloud.cave.server.common.ServerConfiguration;
+import com.google.common.base.Charsets;
+import com.rabbitmq.client.*;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An invalidation bus between app servers, using a RabbitMQ fanout
+ * exchange. Each batch is published as a single message, and each app
+ * server consumes the batches through its own exclusive queue bound to the
+ * exchange, and delivers them to its local listeners.
+ * <p/>
+ * The queues are not durable: an app server that is down misses the
+ * invalidations, but it also starts with empty caches.
+ *
+ * @author Rohde Fischer
+ */
+public class RabbitInvalidationBus extends BatchingInvalidationBus {
+    private static final Logger logger = LoggerFactory.getLogger(RabbitInvalidationBus.class);
+
+    private static final String ORIGIN_KEY = "origin";
+    private static final String INVALIDATIONS_KEY = "invalidations";
+
+    private final Connection connection;
+    private final Channel publishChannel;
+
+    /**
+     * Create the bus, connecting to the RabbitMQ server.
+     *
+     * @param config the RabbitMQ server to connect to
+     * @throws IOException in case the connection fails
+     */
+    public RabbitInvalidationBus(ServerConfiguration config) throws IOException {
+        super(DEFAULT_FLUSH_DELAY_MILLIS);
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(config.get(0).getHostName());
+        factory.setPort(config.get(0).getPortNumber());
+        try {
+            connection = factory.newConnection();
+        } catch (TimeoutException e) {
+            throw new IOException("Timeout connecting to " + config, e);
+        }
+        publishChannel = connection.createChannel();
+        publishChannel.exchangeDeclare(RabbitMQConfig.INVALIDATION_EXCHANGE_NAME, "fanout");
+
+        Channel consumeChannel = connection.createChannel();
+        String queue = consumeChannel.queueDeclare().getQueue();
+        consumeChannel.queueBind(queue, RabbitMQConfig.INVALIDATION_EXCHANGE_NAME, "");
+        consumeChannel.basicConsume(queue, true, new DefaultConsumer(consumeChannel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope,
+                                       AMQP.BasicProperties properties, byte[] body) {
+                receive(new String(body, Charsets.UTF_8));
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void deliver(String origin, Collection<Invalidation> batch) {
+        JSONArray encoded = new JSONArray();
+        for (Invalidation invalidation : batch) {
+            encoded.add(invalidation.encode());
+        }
+        JSONObject message = new JSONObject();
+        message.put(ORIGIN_KEY, origin);
+        message.put(INVALIDATIONS_KEY, encoded);
+        try {
+            // Channels must not be shared between publishing threads
+            synchronized (publishChannel) {
+                publishChannel.basicPublish(RabbitMQConfig.INVALIDATION_EXCHANGE_NAME, "", null,
+                        message.toJSONString().getBytes(Charsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.error("Failed publishing " + batch.size() + " invalidations, caches may be stale", e);
+        }
+    }
+
+    private void receive(String body) {
+        try {
+            JSONObject message = (JSONObject) new JSONParser().parse(body);
+            List<Invalidation> batch = new ArrayList<>();
+            for (Object encoded : (JSONArray) message.get(INVALIDATIONS_KEY)) {
+                batch.add(Invalidation.decode(encoded.toString()));
+            }
+            deliverLocally(message.get(ORIGIN_KEY).toString(), batch);
+        } catch (ParseException | RuntimeException e) {
+            logger.error("Dropping invalid invalidation message: " + body, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.warn("Error closing the connection to RabbitMQ", e);
+        }
+    }
+}
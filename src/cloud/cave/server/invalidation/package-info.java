@@ -0,0 +1,6 @@
+/**
+ * The invalidation bus, which tells the caches of all app servers when a
+ * cached session or room is outdated by a change made on one of them, see
+ * InvalidationBus.
+ */
+package cloud.cave.server.invalidation;
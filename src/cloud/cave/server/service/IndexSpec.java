@@ -0,0 +1,44 @@
+package cloud.cave.server.service;
+
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+
+/**
+ * The declaration of an index of a collection, created when the storage is
+ * initialized. Creating an index that exists already does nothing, so
+ * every app server creates all of them when it starts.
+ *
+ * @author Rohde Fischer
+ */
+public final class IndexSpec {
+    private final String collection;
+    private final Document keys;
+    private final IndexOptions options;
+
+    public IndexSpec(String collection, Document keys) {
+        this(collection, keys, new IndexOptions());
+    }
+
+    public IndexSpec(String collection, Document keys, IndexOptions options) {
+        this.collection = collection;
+        this.keys = keys;
+        this.options = options;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public Document getKeys() {
+        return keys;
+    }
+
+    public IndexOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return collection + keys.toJson();
+    }
+}
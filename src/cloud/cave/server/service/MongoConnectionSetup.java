@@ -25,6 +25,11 @@ public class MongoConnectionSetup implements IMongoSetup {
         return database.getCollection(name);
     }
 
+    @Override
+    public Document runCommand(Document command) {
+        return database.runCommand(command);
+    }
+
     @Override
     public void initialize(ServerConfiguration config) {
         List<ServerAddress> serverAddresses = new ArrayList<>();
@@ -0,0 +1,55 @@
+package cloud.cave.server.service;
+
+import org.bson.Document;
+
+/**
+ * The shape of a query made by the storage: its collection, filter and
+ * sort, with example values. The query plans of the shapes are explained
+ * to verify that each query is answered from an index instead of by
+ * scanning the collection.
+ *
+ * @author Rohde Fischer
+ */
+public final class QueryShape {
+    private final String name;
+    private final String collection;
+    private final Document filter;
+    private final Document sort;
+
+    public QueryShape(String name, String collection, Document filter) {
+        this(name, collection, filter, null);
+    }
+
+    public QueryShape(String name, String collection, Document filter, Document sort) {
+        this.name = name;
+        this.collection = collection;
+        this.filter = filter;
+        this.sort = sort;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Get the command explaining the query plan of the query.
+     *
+     * @return the explain command of a find with the filter and sort
+     */
+    public Document toExplainCommand() {
+        final Document find = new Document("find", collection).append("filter", filter);
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        return new Document("explain", find).append("verbosity", "queryPlanner");
+    }
+
+    @Override
+    public String toString() {
+        return name + " on " + collection + " " + filter.toJson() + (sort != null ? " sorted by " + sort.toJson() : "");
+    }
+}
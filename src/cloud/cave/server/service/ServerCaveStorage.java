@@ -4,30 +4,73 @@ import cloud.cave.common.CaveStorageException;
 import cloud.cave.domain.Direction;
 import cloud.cave.domain.IMongoSetup;
 import cloud.cave.domain.Region;
+import cloud.cave.server.common.ExitMask;
+import cloud.cave.server.common.MortonKey;
+import cloud.cave.server.common.PlayerPageRecord;
 import cloud.cave.server.common.PlayerRecord;
 import cloud.cave.server.common.Point3;
 import cloud.cave.server.common.RoomRecord;
 import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.SessionStartRecord;
 import cloud.cave.service.CaveStorage;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
 import com.mongodb.*;
 import com.mongodb.annotations.Immutable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.exists;
-import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
 
 
 /**
  * License MIT
+ * <p/>
+ * The player documents carry the session and an inCave flag, written by
+ * logins and logouts only, so a login is a single write, and a player is
+ * read, and the players in a room are listed and paged, from the player
+ * collection alone. The heartbeats are kept apart, in a small collection of
+ * {_id: playerID, lastSeen} upserted by the login and by the batches of the
+ * SessionReaper, so they do not write the player documents. A login also
+ * stamps the player with the time it was made, so a player in the cave
+ * whose heartbeat is missing, like when the app server died between the
+ * two writes of the login, is found idle by that time instead. A TTL index
+ * on lastSeen removes the heartbeats long forgotten, and the players in the
+ * cave they leave behind are found by the login time just the same. Players
+ * stored before the inCave flag have their sessionID in that collection
+ * too, until migrated.
+ * <p/>
+ * The requests with an idempotency key are claimed in the requests
+ * collection, keyed by player and key, and their replies kept there for
+ * their retries, whichever app server these reach.
  *
  * @author Rohde Fischer
  */
@@ -35,10 +78,139 @@ public class ServerCaveStorage implements CaveStorage {
     public static final String COLLECTION_PLAYERS = "droogs";
     public static final String COLLECTION_ROOMS = "rooms";
     public static final String COLLECTION_MESSAGES = "messages";
+    public static final String COLLECTION_SESSIONS = "sessions";
+    public static final String COLLECTION_REQUESTS = "requests";
+
+    /**
+     * Seconds an unused session is kept before Mongo removes it
+     */
+    public static final long SESSION_TTL_SECONDS = 6 * 60 * 60;
+
+    /**
+     * Seconds the claim and reply of a request with an idempotency key are
+     * kept, well beyond the time a client keeps retrying it
+     */
+    public static final long REQUEST_TTL_SECONDS = 5 * 60;
+
+    /**
+     * Seconds a claim of a request may go without a reply before a retry
+     * may take it over, well beyond the time a request takes
+     */
+    public static final long CLAIM_LEASE_SECONDS = 10;
+
+    /**
+     * The indexes of the collections, created when the storage is
+     * initialized
+     */
+    public static final List<IndexSpec> INDEXES = Collections.unmodifiableList(Arrays.asList(
+            // Sessions not seen for long are removed by Mongo, and the
+            // idle ones found for the reaper
+            new IndexSpec(COLLECTION_SESSIONS, new Document("lastSeen", 1),
+                    new IndexOptions().expireAfter(SESSION_TTL_SECONDS, TimeUnit.SECONDS)),
+            // The rooms by the coordinates and Morton key of their position
+            new IndexSpec(COLLECTION_ROOMS, new Document("x", 1).append("y", 1).append("z", 1)),
+            new IndexSpec(COLLECTION_ROOMS, new Document("morton", 1)),
+            // The players in the cave in a room in the order listed, by
+            // coordinates and, until all players are migrated, by position
+            // string
+            new IndexSpec(COLLECTION_PLAYERS, new Document("x", 1).append("y", 1).append("z", 1)
+                    .append("inCave", 1).append("_id", 1)),
+            new IndexSpec(COLLECTION_PLAYERS, new Document("positionAsString", 1)
+                    .append("inCave", 1).append("_id", 1)),
+            // The players in the cave, counted, and by the time of their
+            // login, for those whose heartbeat is missing
+            new IndexSpec(COLLECTION_PLAYERS, new Document("inCave", 1).append("loggedIn", 1)),
+            // The messages of a room in the order posted
+            new IndexSpec(COLLECTION_MESSAGES, new Document("room", 1).append("timestamp", 1)),
+            // The requests claimed are forgotten by Mongo, the unique _id
+            // of player and idempotency key makes a claim succeed only once
+            new IndexSpec(COLLECTION_REQUESTS, new Document("claimed", 1),
+                    new IndexOptions().expireAfter(REQUEST_TTL_SECONDS, TimeUnit.SECONDS))));
+
+    /**
+     * The shapes of the queries made while players are playing, which must
+     * all be answered from an index. The jobs run by hand, like the
+     * backfills, scan on purpose and are left out.
+     */
+    public static final List<QueryShape> QUERY_SHAPES = Collections.unmodifiableList(Arrays.asList(
+            new QueryShape("getRoom", COLLECTION_ROOMS, new Document("_id", "(0,0,0)")),
+            new QueryShape("getRooms", COLLECTION_ROOMS,
+                    new Document("_id", new Document("$in", Arrays.asList("(0,0,0)", "(0,1,0)")))),
+            new QueryShape("getRoomPositions", COLLECTION_ROOMS,
+                    new Document("_id", new Document("$gt", "(0,0,0)")), new Document("_id", 1)),
+            new QueryShape("getRoomsInBox", COLLECTION_ROOMS, new Document("$or", Arrays.asList(
+                    new Document("morton", new Document("$gte", 0L).append("$lte", 7L)),
+                    new Document("morton", new Document("$gte", 64L).append("$lte", 71L))))),
+            new QueryShape("getPlayerByID", COLLECTION_PLAYERS, new Document("_id", "player")),
+            new QueryShape("computeListOfPlayersAt", COLLECTION_PLAYERS,
+                    new Document("x", 0).append("y", 0).append("z", 0).append("inCave", true),
+                    new Document("_id", 1)),
+            new QueryShape("computeListOfPlayersAt by position string", COLLECTION_PLAYERS,
+                    new Document("positionAsString", "(0,0,0)").append("inCave", true), new Document("_id", 1)),
+            new QueryShape("computePageOfPlayersAt", COLLECTION_PLAYERS,
+                    new Document("x", 0).append("y", 0).append("z", 0).append("inCave", true)
+                            .append("_id", new Document("$gt", "player")), new Document("_id", 1)),
+            new QueryShape("getRequestReply", COLLECTION_REQUESTS, new Document("_id", "player:key")),
+            new QueryShape("getSession", COLLECTION_SESSIONS, new Document("_id", "player")),
+            new QueryShape("computeListOfIdlePlayers", COLLECTION_SESSIONS,
+                    new Document("lastSeen", new Document("$lt", new Date(0)))),
+            new QueryShape("computeCountOfActivePlayers", COLLECTION_PLAYERS, new Document("inCave", true)),
+            new QueryShape("computeListOfIdlePlayers without heartbeat", COLLECTION_PLAYERS,
+                    new Document("inCave", true).append("loggedIn", new Document("$lt", new Date(0)))),
+            new QueryShape("getMessages", COLLECTION_MESSAGES,
+                    new Document("room", "(0,0,0)"), new Document("timestamp", 1))));
+
+    /**
+     * The maximal number of key ranges a box is read by
+     */
+    public static final int MAXIMUM_BOX_RANGES = 8;
+
+    /**
+     * The maximal number of positions a box is read by, one by one, until
+     * all rooms have their Morton key; the largest map is 21 by 21 rooms
+     */
+    public static final int MAXIMUM_BOX_POSITIONS = 441;
+
+    /**
+     * The maximal number of reads for a page of players, when players not
+     * in the cave must be read past before all are migrated
+     */
+    public static final int MAXIMUM_PAGE_READS = 4;
+
+    /**
+     * The maximal number of players in the cave whose heartbeat is looked
+     * up at once, when looking for those without one
+     */
+    public static final int HEARTBEAT_LOOKUP_BATCH = 500;
+
+    /**
+     * The seconds between the checks of whether the rooms and players are
+     * migrated, while some are not
+     */
+    public static final long MIGRATION_CHECK_SECONDS = 60;
+
     private static final Logger logger = LoggerFactory.getLogger(ServerCaveStorage.class);
     private ServerConfiguration config;
     private final IMongoSetup mongoSetup;
 
+    // Whether all players have the numeric coordinates of their position,
+    // so the players in a room are found by them instead of the string
+    private volatile boolean numericPositions;
+
+    // Whether all rooms have the Morton key and coordinates of their
+    // position, so the rooms in a box are found by key ranges instead of
+    // by their positions
+    private volatile boolean mortonKeys;
+
+    // Whether all players have the inCave flag and session on their
+    // document, so the players in a room are found by the flag instead
+    // of joining their sessions
+    private volatile boolean inCaveFlags;
+
+    // Checks the flags above again while some are false, so the servers
+    // switch to the migrated queries once the jobs run elsewhere are done
+    private ScheduledExecutorService migrationChecker;
+
     public ServerCaveStorage() {
         this(new MongoConnectionSetup());
     }
@@ -105,22 +277,45 @@ public class ServerCaveStorage implements CaveStorage {
 
     @Override
     public boolean addRoom(final String positionString, final RoomRecord roomRecord) {
-        executeSafe(new Delegate<Void>() {
+        return executeSafe(new Delegate<Boolean>() {
             @Override
-            public Void run() {
+            public Boolean run() {
                 final MongoCollection<Document> collection = mongoSetup.getCollection(COLLECTION_ROOMS);
+                final Map<String, Direction> neighbours = ExitMask.neighboursOf(positionString);
 
+                final int exits = computeExitMask(collection, neighbours);
                 final Document room = new Document()
                         .append("_id", positionString)
-                        .append("description", roomRecord.description.trim());
-                collection.insertOne(room);
+                        .append("description", roomRecord.description.trim())
+                        .append("exits", exits);
+                room.putAll(roomPositionFields(positionString));
+                try {
+                    collection.insertOne(room);
+                } catch (MongoWriteException e) {
+                    if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                        return false;
+                    }
+                    throw e;
+                }
 
-                return null;
+                // The new room is an exit of its neighbours; rooms without
+                // a mask yet are left to the backfill
+                final List<WriteModel<Document>> updates = new ArrayList<>();
+                for (Map.Entry<String, Direction> neighbour : neighbours.entrySet()) {
+                    updates.add(new UpdateOneModel<Document>(
+                            and(eq("_id", neighbour.getKey()), exists("exits")),
+                            exitBitOr(ExitMask.bit(ExitMask.opposite(neighbour.getValue())))));
+                }
+                collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+
+                // A neighbour dug meanwhile may not have seen the new room
+                final int exitsAfter = computeExitMask(collection, neighbours);
+                if (exitsAfter != exits) {
+                    collection.updateOne(eq("_id", positionString), exitBitOr(exitsAfter));
+                }
+                return true;
             }
         });
-
-
-        return true;
     }
 
     @Override
@@ -148,23 +343,390 @@ public class ServerCaveStorage implements CaveStorage {
             @Override
             public List<Direction> run() {
                 final MongoCollection<Document> roomCollection = mongoSetup.getCollection(COLLECTION_ROOMS);
-                final List<Direction> listOfExits = new ArrayList<>();
-                final Point3 pZero = Point3.parseString(positionString);
+                final Document room = roomCollection.find(eq("_id", positionString))
+                        .projection(Projections.include("exits"))
+                        .first();
+                if (room != null && room.get("exits") != null) {
+                    return ExitMask.toDirections(((Number) room.get("exits")).intValue());
+                }
 
-                for (Direction d : Direction.values()) {
-                    final Point3 p = new Point3(pZero.x(), pZero.y(), pZero.z());
-                    p.translate(d);
-                    final String position = p.getPositionString();
+                // No room, or not backfilled yet, so ask the neighbours
+                return ExitMask.toDirections(computeExitMask(roomCollection, ExitMask.neighboursOf(positionString)));
+            }
+        });
+    }
 
-                    if(roomCollection.count(new Document("_id", position)) > 0)
-                        listOfExits.add(d);
+    @Override
+    public Map<String, RoomRecord> getRooms(final Collection<String> positionStrings) {
+        return executeSafe(new Delegate<Map<String, RoomRecord>>() {
+            @Override
+            public Map<String, RoomRecord> run() {
+                if (positionStrings.isEmpty()) {
+                    return new HashMap<>();
+                }
+                return readRooms(mongoSetup.getCollection(COLLECTION_ROOMS), positionStrings);
+            }
+        });
+    }
+
+    private Map<String, RoomRecord> readRooms(final MongoCollection<Document> roomCollection,
+                                              final Collection<String> positionStrings) {
+        final Set<String> wanted = new HashSet<>(positionStrings);
+        final Map<String, RoomRecord> rooms = new HashMap<>();
+        roomCollection.find(in("_id", positionStrings))
+                .projection(Projections.include("description"))
+                .forEach(new Block<Document>() {
+                    @Override
+                    public void apply(Document room) {
+                        // Only the positions asked for, whatever the query returns
+                        final String position = room.getString("_id");
+                        if (wanted.contains(position)) {
+                            rooms.put(position, new RoomRecord(room.getString("description"),
+                                    new MongoMessageList(position)));
+                        }
+                    }
+                });
+        return rooms;
+    }
 
+    @Override
+    public Set<String> roomsExist(final Collection<String> positionStrings) {
+        return executeSafe(new Delegate<Set<String>>() {
+            @Override
+            public Set<String> run() {
+                return existingRooms(mongoSetup.getCollection(COLLECTION_ROOMS), positionStrings);
+            }
+        });
+    }
+
+    @Override
+    public List<String> getRoomPositions(final String afterPosition, final int limit) {
+        return executeSafe(new Delegate<List<String>>() {
+            @Override
+            public List<String> run() {
+                final List<String> positions = new ArrayList<>();
+                mongoSetup.getCollection(COLLECTION_ROOMS)
+                        .find(afterPosition == null ? new Document() : gt("_id", afterPosition))
+                        .projection(Projections.include("_id"))
+                        .sort(Sorts.ascending("_id"))
+                        .limit(limit)
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document room) {
+                                positions.add(room.getString("_id"));
+                            }
+                        });
+                return positions;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, RoomRecord> getRoomsInBox(final Point3 min, final Point3 max) {
+        return executeSafe(new Delegate<Map<String, RoomRecord>>() {
+            @Override
+            public Map<String, RoomRecord> run() {
+                // Rooms without a key are not in any range, so until all
+                // are migrated, a box is read by its positions, like the
+                // exits are read from the neighbours until backfilled
+                final long volume = (long) (max.x() - min.x() + 1) * (max.y() - min.y() + 1) * (max.z() - min.z() + 1);
+                if (!mortonKeys && volume <= MAXIMUM_BOX_POSITIONS) {
+                    final List<String> positions = new ArrayList<>();
+                    for (int x = min.x(); x <= max.x(); x++) {
+                        for (int y = min.y(); y <= max.y(); y++) {
+                            for (int z = min.z(); z <= max.z(); z++) {
+                                positions.add(new Point3(x, y, z).getPositionString());
+                            }
+                        }
+                    }
+                    return readRooms(mongoSetup.getCollection(COLLECTION_ROOMS), positions);
+                }
+
+                final List<Bson> keyRanges = new ArrayList<>();
+                for (MortonKey.Range range : MortonKey.ranges(min, max, MAXIMUM_BOX_RANGES)) {
+                    keyRanges.add(and(gte("morton", range.from), lte("morton", range.to)));
+                }
+                final Map<String, RoomRecord> rooms = new HashMap<>();
+                mongoSetup.getCollection(COLLECTION_ROOMS)
+                        .find(keyRanges.size() == 1 ? keyRanges.get(0) : or(keyRanges))
+                        .projection(Projections.include("description", "x", "y", "z"))
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document room) {
+                                // The ranges may hold rooms just outside the box
+                                final Integer x = room.getInteger("x");
+                                final Integer y = room.getInteger("y");
+                                final Integer z = room.getInteger("z");
+                                if (x != null && y != null && z != null
+                                        && x >= min.x() && x <= max.x() && y >= min.y() && y <= max.y()
+                                        && z >= min.z() && z <= max.z()) {
+                                    final String position = room.getString("_id");
+                                    rooms.put(position, new RoomRecord(room.getString("description"),
+                                            new MongoMessageList(position)));
+                                }
+                            }
+                        });
+                return rooms;
+            }
+        });
+    }
+
+    /**
+     * Set the exit masks of the rooms that have none, like those dug
+     * before the masks were introduced. Safe to run while the cave is in
+     * use, and to run again.
+     *
+     * @param batchSize the number of rooms handled at once
+     * @return the number of rooms given a mask
+     */
+    public long backfillExitMasks(final int batchSize) {
+        return executeSafe(new Delegate<Long>() {
+            @Override
+            public Long run() {
+                final MongoCollection<Document> roomCollection = mongoSetup.getCollection(COLLECTION_ROOMS);
+                final List<String> batch = new ArrayList<>();
+                final long[] count = {0};
+                roomCollection.find(exists("exits", false))
+                        .projection(Projections.include("_id"))
+                        .batchSize(batchSize)
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document room) {
+                                batch.add(room.getString("_id"));
+                                if (batch.size() == batchSize) {
+                                    count[0] += backfillExitMasks(roomCollection, batch);
+                                    batch.clear();
+                                }
+                            }
+                        });
+                if (!batch.isEmpty()) {
+                    count[0] += backfillExitMasks(roomCollection, batch);
+                }
+                logger.info("Backfilled the exit masks of " + count[0] + " rooms");
+                return count[0];
+            }
+        });
+    }
+
+    /**
+     * Give the rooms and players stored with only the position string the
+     * numeric coordinates of their position, at a limited rate. Safe to run
+     * while the cave is in use, and to run again. Once all players have
+     * them, the players in a room are found by the coordinates.
+     *
+     * @param batchSize          the number of documents written at once
+     * @param documentsPerSecond the maximal number of documents written per
+     *                           second
+     * @return the number of rooms and players migrated
+     */
+    public long migratePositions(final int batchSize, final double documentsPerSecond) {
+        return executeSafe(new Delegate<Long>() {
+            @Override
+            public Long run() {
+                final RateLimiter rateLimiter = RateLimiter.create(documentsPerSecond);
+                long count = migratePositions(mongoSetup.getCollection(COLLECTION_ROOMS), "_id", true,
+                        batchSize, rateLimiter);
+                mortonKeys = true;
+                count += migratePositions(mongoSetup.getCollection(COLLECTION_PLAYERS), "positionAsString", false,
+                        batchSize, rateLimiter);
+                numericPositions = true;
+                logger.info("Migrated the positions of " + count + " rooms and players");
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Give the players stored before the session was kept on the player
+     * documents their session and inCave flag, from the sessions
+     * collection, at a limited rate. Safe to run while the cave is in use,
+     * as players logging in or out meanwhile are left alone, and to run
+     * again. Once all players have the flag, the players in a room are
+     * found by it.
+     *
+     * @param batchSize          the number of documents written at once
+     * @param documentsPerSecond the maximal number of documents written per
+     *                           second
+     * @return the number of players in the cave migrated
+     */
+    public long migrateSessions(final int batchSize, final double documentsPerSecond) {
+        return executeSafe(new Delegate<Long>() {
+            @Override
+            public Long run() {
+                final RateLimiter rateLimiter = RateLimiter.create(documentsPerSecond);
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final List<WriteModel<Document>> batch = new ArrayList<>();
+                final long[] count = {0};
+                mongoSetup.getCollection(COLLECTION_SESSIONS).find()
+                        .batchSize(batchSize)
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document session) {
+                                // The last heartbeat stands in for the login time
+                                final Date lastSeen = session.getDate("lastSeen");
+                                batch.add(new UpdateOneModel<Document>(
+                                        and(eq("_id", session.getString("_id")), exists("inCave", false)),
+                                        new Document("$set", new Document("inCave", true)
+                                                .append("sessionID", session.getString("sessionID"))
+                                                .append("loggedIn", lastSeen != null ? lastSeen : new Date()))));
+                                if (batch.size() == batchSize) {
+                                    count[0] += writeThrottled(playerCollection, batch, rateLimiter);
+                                }
+                            }
+                        });
+                if (!batch.isEmpty()) {
+                    count[0] += writeThrottled(playerCollection, batch, rateLimiter);
                 }
-                return listOfExits;
+                // The players left without the flag are not in the cave
+                playerCollection.updateMany(exists("inCave", false),
+                        new Document("$set", new Document("inCave", false).append("sessionID", null)));
+                inCaveFlags = true;
+                logger.info("Migrated the sessions of " + count[0] + " players in the cave");
+                return count[0];
             }
         });
     }
 
+    private long migratePositions(final MongoCollection<Document> collection, final String positionField,
+                                  final boolean rooms, final int batchSize, final RateLimiter rateLimiter) {
+        final List<WriteModel<Document>> batch = new ArrayList<>();
+        final long[] count = {0};
+        collection.find(exists(rooms ? "morton" : "x", false))
+                .projection(Projections.include(positionField))
+                .batchSize(batchSize)
+                .forEach(new Block<Document>() {
+                    @Override
+                    public void apply(Document document) {
+                        final String position = document.getString(positionField);
+                        final Document coordinates = rooms ? roomPositionFields(position) : positionFields(position);
+                        if (coordinates.isEmpty()) {
+                            logger.warn("Cannot migrate " + document.getString("_id") + ", its position "
+                                    + position + " is not a position string");
+                            return;
+                        }
+                        // Unless the position was changed meanwhile, then
+                        // the coordinates were written with it
+                        batch.add(new UpdateOneModel<Document>(
+                                and(eq("_id", document.get("_id")), eq(positionField, position)),
+                                new Document("$set", coordinates)));
+                        if (batch.size() == batchSize) {
+                            count[0] += writeThrottled(collection, batch, rateLimiter);
+                        }
+                    }
+                });
+        if (!batch.isEmpty()) {
+            count[0] += writeThrottled(collection, batch, rateLimiter);
+        }
+        return count[0];
+    }
+
+    private int writeThrottled(MongoCollection<Document> collection, List<WriteModel<Document>> batch,
+                               RateLimiter rateLimiter) {
+        final int size = batch.size();
+        rateLimiter.acquire(size);
+        collection.bulkWrite(new ArrayList<>(batch), new BulkWriteOptions().ordered(false));
+        batch.clear();
+        return size;
+    }
+
+    /**
+     * Get the numeric coordinates of a position to store next to the
+     * position string.
+     *
+     * @return the x, y and z of the position, or nothing if the string is
+     * not a position
+     */
+    private static Document positionFields(String positionString) {
+        final Document fields = new Document();
+        try {
+            final Point3 position = Point3.parseString(positionString);
+            fields.append("x", position.x()).append("y", position.y()).append("z", position.z());
+        } catch (RuntimeException e) {
+            // Like the made up places of the tests, stored by the string only
+        }
+        return fields;
+    }
+
+    /**
+     * Get the coordinates of the position of a room to store next to the
+     * position string, with its Morton key for the box queries.
+     */
+    private static Document roomPositionFields(String positionString) {
+        final Document fields = positionFields(positionString);
+        if (!fields.isEmpty()) {
+            final Point3 position = new Point3(fields.getInteger("x"), fields.getInteger("y"), fields.getInteger("z"));
+            if (MortonKey.fits(position)) {
+                fields.append("morton", MortonKey.encode(position));
+            }
+        }
+        return fields;
+    }
+
+    private int backfillExitMasks(MongoCollection<Document> roomCollection, List<String> positions) {
+        // Give the rooms an empty mask first, so rooms dug from now on
+        // set their bits, and any dug before are found below
+        roomCollection.updateMany(and(in("_id", positions), exists("exits", false)),
+                new Document("$set", new Document("exits", 0)));
+
+        final Set<String> neighbours = new HashSet<>();
+        for (String position : positions) {
+            neighbours.addAll(ExitMask.neighboursOf(position).keySet());
+        }
+        final Set<String> existing = existingRooms(roomCollection, neighbours);
+
+        final List<WriteModel<Document>> updates = new ArrayList<>();
+        for (String position : positions) {
+            int exits = 0;
+            for (Map.Entry<String, Direction> neighbour : ExitMask.neighboursOf(position).entrySet()) {
+                if (existing.contains(neighbour.getKey())) {
+                    exits |= ExitMask.bit(neighbour.getValue());
+                }
+            }
+            if (exits != 0) {
+                updates.add(new UpdateOneModel<Document>(eq("_id", position), exitBitOr(exits)));
+            }
+        }
+        if (!updates.isEmpty()) {
+            roomCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+        return positions.size();
+    }
+
+    /**
+     * Compute the exit mask of a position by asking which of its neighbours
+     * exist, in a single query.
+     */
+    private int computeExitMask(MongoCollection<Document> roomCollection, Map<String, Direction> neighbours) {
+        int exits = 0;
+        for (String position : existingRooms(roomCollection, neighbours.keySet())) {
+            exits |= ExitMask.bit(neighbours.get(position));
+        }
+        return exits;
+    }
+
+    private Set<String> existingRooms(MongoCollection<Document> roomCollection, final Collection<String> positions) {
+        final Set<String> existing = new HashSet<>();
+        if (positions.isEmpty()) {
+            return existing;
+        }
+        roomCollection.find(in("_id", positions))
+                .projection(Projections.include("_id"))
+                .forEach(new Block<Document>() {
+                    @Override
+                    public void apply(Document room) {
+                        // Only the positions asked for, whatever the query returns
+                        if (positions.contains(room.getString("_id"))) {
+                            existing.add(room.getString("_id"));
+                        }
+                    }
+                });
+        return existing;
+    }
+
+    private static Document exitBitOr(int bits) {
+        return new Document("$bit", new Document("exits", new Document("or", bits)));
+    }
+
     @Override
     public PlayerRecord getPlayerByID(final String playerID) {
         return executeSafe(new Delegate<PlayerRecord>() {
@@ -172,30 +734,279 @@ public class ServerCaveStorage implements CaveStorage {
             public PlayerRecord run() {
                 final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
                 final Document players = playerCollection.find(new Document("_id", playerID)).first();
-                return documentToPlayerRecord(players);
+                if (players == null) {
+                    return null;
+                }
+                if (hasSession(players)) {
+                    return documentToPlayerRecord(players, sessionOf(players));
+                }
+                final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+                final Document session = sessionCollection.find(new Document("_id", playerID)).first();
+                return documentToPlayerRecord(players, session != null ? session.getString("sessionID") : null);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, PlayerRecord> getPlayersByIDs(final Collection<String> playerIDs) {
+        return executeSafe(new Delegate<Map<String, PlayerRecord>>() {
+            @Override
+            public Map<String, PlayerRecord> run() {
+                final Map<String, PlayerRecord> players = new HashMap<>();
+                if (playerIDs.isEmpty()) {
+                    return players;
+                }
+                final List<Document> playerDocuments = new ArrayList<>();
+                mongoSetup.getCollection(COLLECTION_PLAYERS).find(in("_id", playerIDs)).forEach(new Block<Document>() {
+                    @Override
+                    public void apply(Document document) {
+                        playerDocuments.add(document);
+                    }
+                });
+
+                for (PlayerRecord player : withSessions(playerDocuments)) {
+                    players.put(player.getPlayerID(), player);
+                }
+                return players;
             }
         });
     }
 
+    /**
+     * Get the records of the players read, with their session. The
+     * sessions of the players not migrated yet are joined in a single
+     * query.
+     */
+    private List<PlayerRecord> withSessions(List<Document> playerDocuments) {
+        final List<String> notMigrated = new ArrayList<>();
+        for (Document document : playerDocuments) {
+            if (!hasSession(document)) {
+                notMigrated.add(document.getString("_id"));
+            }
+        }
+        final Map<String, String> sessions = sessionsOf(notMigrated);
+
+        final List<PlayerRecord> players = new ArrayList<>();
+        for (Document document : playerDocuments) {
+            final String sessionID = hasSession(document)
+                    ? sessionOf(document) : sessions.get(document.getString("_id"));
+            players.add(documentToPlayerRecord(document, sessionID));
+        }
+        return players;
+    }
+
+    /**
+     * Tell whether the player document carries the session of the player,
+     * as all documents written since the inCave flag was introduced do.
+     */
+    private static boolean hasSession(Document player) {
+        return player.containsKey("inCave");
+    }
+
+    private static String sessionOf(Document player) {
+        return Boolean.TRUE.equals(player.getBoolean("inCave")) ? player.getString("sessionID") : null;
+    }
+
+    /**
+     * Read the sessions of the given players in a single query.
+     *
+     * @return the session of each player in the cave, by id
+     */
+    private Map<String, String> sessionsOf(Collection<String> playerIDs) {
+        final Map<String, String> sessions = new HashMap<>();
+        if (!playerIDs.isEmpty()) {
+            final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+            sessionCollection.find(in("_id", playerIDs)).forEach(new Block<Document>() {
+                @Override
+                public void apply(Document document) {
+                    sessions.put(document.getString("_id"), document.getString("sessionID"));
+                }
+            });
+        }
+        return sessions;
+    }
+
     @Override
     public void updatePlayerRecord(final PlayerRecord record) {
         executeSafe(new Delegate<Void>() {
             @Override
             public Void run() {
                 final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
-                final Document player = new Document()
-                        .append("_id", record.getPlayerID())
-                        .append("playerName", record.getPlayerName())
-                        .append("groupName", record.getGroupName())
-                        .append("region", record.getRegion().toString())
-                        .append("positionAsString", record.getPositionAsString())
-                        .append("sessionID", record.getSessionId());
-                playerCollection.replaceOne(new Document("_id", record.getPlayerID()), player, new UpdateOptions().upsert(true));
+                final Document update = new Document()
+                        .append("$set", playerFields(record))
+                        .append("$inc", new Document("version", 1L));
+                playerCollection.updateOne(new Document("_id", record.getPlayerID()), update, new UpdateOptions().upsert(true));
+
+                writeSession(record);
                 return null;
             }
         });
     }
 
+    @Override
+    public boolean compareAndSetPlayerRecord(final PlayerRecord record, final long expectedVersion) {
+        return executeSafe(new Delegate<Boolean>() {
+            @Override
+            public Boolean run() {
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final Document player = playerFields(record)
+                        .append("_id", record.getPlayerID())
+                        .append("version", expectedVersion + 1);
+
+                // Records written before versioning count as version 0
+                final Bson filter = expectedVersion == 0
+                        ? and(eq("_id", record.getPlayerID()), or(eq("version", 0L), exists("version", false)))
+                        : and(eq("_id", record.getPlayerID()), eq("version", expectedVersion));
+                try {
+                    final UpdateResult result = playerCollection.replaceOne(filter, player,
+                            new UpdateOptions().upsert(expectedVersion == 0));
+                    if (result.getMatchedCount() == 0 && result.getUpsertedId() == null) {
+                        return false;
+                    }
+                } catch (MongoWriteException e) {
+                    // The upsert of version 0 collided with a record of another version
+                    if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                        return false;
+                    }
+                    throw e;
+                }
+
+                writeSession(record);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean updatePlayerPosition(final String playerID, final String expectedPosition,
+                                        final String positionString) {
+        return executeSafe(new Delegate<Boolean>() {
+            @Override
+            public Boolean run() {
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final Document position = new Document("positionAsString", positionString);
+                position.putAll(positionFields(positionString));
+                final Document update = new Document()
+                        .append("$set", position)
+                        .append("$inc", new Document("version", 1L));
+                final Bson filter = expectedPosition == null ? eq("_id", playerID)
+                        : and(eq("_id", playerID), eq("positionAsString", expectedPosition));
+                return playerCollection.updateOne(filter, update).getMatchedCount() > 0;
+            }
+        });
+    }
+
+    @Override
+    public SessionStartRecord startPlayerSession(final PlayerRecord record) {
+        return executeSafe(new Delegate<SessionStartRecord>() {
+            @Override
+            public SessionStartRecord run() {
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final Bson id = eq("_id", record.getPlayerID());
+
+                // Create the player unless known, set the session and the
+                // login time, and bump the version as the session is part
+                // of the record. The document as it was before tells if a
+                // session is overruled
+                final Document fields = playerFields(record);
+                final Document session = new Document("sessionID", fields.remove("sessionID"))
+                        .append("inCave", fields.remove("inCave"));
+                final Document playerUpdate = new Document()
+                        .append("$setOnInsert", fields)
+                        .append("$set", session)
+                        .append("$currentDate", new Document("loggedIn", true))
+                        .append("$inc", new Document("version", 1L));
+                final Document before = playerCollection.findOneAndUpdate(id, playerUpdate,
+                        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+
+                final SessionStartRecord started;
+                if (before == null) {
+                    started = new SessionStartRecord(new PlayerRecord(record.getPlayerID(), record.getPlayerName(),
+                            record.getGroupName(), record.getRegion(), record.getPositionAsString(),
+                            record.getSessionId(), 1), false);
+                } else {
+                    // Until the player is migrated, the session is only in
+                    // the sessions collection
+                    final boolean alreadyInCave = hasSession(before) ? sessionOf(before) != null
+                            : mongoSetup.getCollection(COLLECTION_SESSIONS).find(id).first() != null;
+                    final PlayerRecord previous = documentToPlayerRecord(before, null);
+                    started = new SessionStartRecord(new PlayerRecord(previous.getPlayerID(),
+                            previous.getPlayerName(), previous.getGroupName(), previous.getRegion(),
+                            previous.getPositionAsString(), record.getSessionId(), previous.getVersion() + 1),
+                            alreadyInCave);
+                }
+
+                // The first heartbeat, should the app server die before
+                // this, the player is found idle by the login time
+                mongoSetup.getCollection(COLLECTION_SESSIONS).updateOne(id,
+                        new Document("$currentDate", new Document("lastSeen", true)),
+                        new UpdateOptions().upsert(true));
+                return started;
+            }
+        });
+    }
+
+    @Override
+    public PlayerRecord endPlayerSession(final String playerID) {
+        return executeSafe(new Delegate<PlayerRecord>() {
+            @Override
+            public PlayerRecord run() {
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+                final Bson id = eq("_id", playerID);
+
+                // Only the session is written, the profile and position
+                // are left as they are. Players not migrated yet may be in
+                // the cave by their session in the sessions collection
+                final Document sessionUpdate = new Document()
+                        .append("$set", new Document("sessionID", null).append("inCave", false))
+                        .append("$inc", new Document("version", 1L));
+                final Document before = playerCollection.findOneAndUpdate(
+                        and(id, or(eq("inCave", true), exists("inCave", false))), sessionUpdate,
+                        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+                if (before == null) {
+                    return null;
+                }
+                final boolean wasInCave = hasSession(before) ? sessionOf(before) != null
+                        : sessionCollection.find(id).first() != null;
+                if (!wasInCave) {
+                    return null;
+                }
+                sessionCollection.deleteOne(id);
+
+                final PlayerRecord previous = documentToPlayerRecord(before, null);
+                return new PlayerRecord(previous.getPlayerID(), previous.getPlayerName(), previous.getGroupName(),
+                        previous.getRegion(), previous.getPositionAsString(), null, previous.getVersion() + 1);
+            }
+        });
+    }
+
+    private Document playerFields(PlayerRecord record) {
+        final Document fields = new Document()
+                .append("playerName", record.getPlayerName())
+                .append("groupName", record.getGroupName())
+                .append("region", record.getRegion().toString())
+                .append("positionAsString", record.getPositionAsString())
+                .append("sessionID", record.getSessionId())
+                .append("inCave", record.getSessionId() != null);
+        fields.putAll(positionFields(record.getPositionAsString()));
+        return fields;
+    }
+
+    private void writeSession(PlayerRecord record) {
+        // Writing the session counts as a heartbeat too
+        final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+        final Document id = new Document("_id", record.getPlayerID());
+        if (record.getSessionId() == null) {
+            sessionCollection.deleteOne(id);
+        } else {
+            final Document session = new Document()
+                    .append("$set", new Document("sessionID", record.getSessionId()))
+                    .append("$currentDate", new Document("lastSeen", true));
+            sessionCollection.updateOne(id, session, new UpdateOptions().upsert(true));
+        }
+    }
+
     @Override
     public List<PlayerRecord> computeListOfPlayersAt(final String positionString, final int offset) {
         return executeSafe(new Delegate<List<PlayerRecord>>() {
@@ -213,33 +1024,253 @@ public class ServerCaveStorage implements CaveStorage {
                 }
 
                 final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
-                final FindIterable<Document> playersAt = playerCollection.find(new Document("positionAsString", positionString))
+                final FindIterable<Document> playersAt = playerCollection.find(playersIn(positionString))
                         .sort(Sorts.ascending("_id"))
                         .skip(start)
                         .limit(limit);
-                final LinkedList<PlayerRecord> playersAtLocationList = new LinkedList<>();
-
+                final List<Document> playerDocuments = new ArrayList<>();
                 playersAt.forEach(new Block<Document>() {
                     @Override
                     public void apply(Document document) {
-                        playersAtLocationList.add(documentToPlayerRecord(document));
+                        playerDocuments.add(document);
                     }
                 });
 
+                // Until all players are migrated, those not in the cave are
+                // read too, and left out here, leaving the page short
+                final LinkedList<PlayerRecord> playersAtLocationList = new LinkedList<>();
+                for (PlayerRecord player : withSessions(playerDocuments)) {
+                    if (player.isInCave()) {
+                        playersAtLocationList.add(player);
+                    }
+                }
+
                 return ImmutableList.copyOf(playersAtLocationList);
             }
         });
     }
 
+    @Override
+    public PlayerPageRecord computePageOfPlayersAt(final String positionString, final String afterPlayerID,
+                                                   final int limit) {
+        return executeSafe(new Delegate<PlayerPageRecord>() {
+            @Override
+            public PlayerPageRecord run() {
+                final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+                final Bson here = playersIn(positionString);
+                final List<PlayerRecord> page = new ArrayList<>();
+                String lastPlayerID = afterPlayerID;
+
+                // Read a player more than asked for to tell whether there are
+                // more. Only until all players are migrated, players not in
+                // the cave may leave the page short, then read on a few times,
+                // each read seeking from the last id in the index
+                for (int reads = 0; reads < MAXIMUM_PAGE_READS; reads++) {
+                    final FindIterable<Document> playersAt = playerCollection.find(
+                            lastPlayerID == null ? here : and(here, gt("_id", lastPlayerID)))
+                            .sort(Sorts.ascending("_id"))
+                            .limit(limit + 1);
+                    final List<Document> playerDocuments = new ArrayList<>();
+                    playersAt.forEach(new Block<Document>() {
+                        @Override
+                        public void apply(Document document) {
+                            playerDocuments.add(document);
+                        }
+                    });
+                    final List<PlayerRecord> players = withSessions(playerDocuments);
+
+                    for (int i = 0; i < players.size(); i++) {
+                        if (page.size() == limit) {
+                            return new PlayerPageRecord(ImmutableList.copyOf(page), lastPlayerID, true);
+                        }
+                        if (i == limit) {
+                            // Only read to know there are more, read it again
+                            break;
+                        }
+                        final PlayerRecord player = players.get(i);
+                        if (player.isInCave()) {
+                            page.add(player);
+                        }
+                        lastPlayerID = player.getPlayerID();
+                    }
+                    if (players.size() <= limit) {
+                        return new PlayerPageRecord(ImmutableList.copyOf(page), lastPlayerID, false);
+                    }
+                }
+                // A short page, the next continues where this one stopped
+                return new PlayerPageRecord(ImmutableList.copyOf(page), lastPlayerID, true);
+            }
+        });
+    }
+
+    /**
+     * Get the filter of the players in the cave at a position, by the
+     * coordinates and the inCave flag once all players have them.
+     */
+    private Bson playersIn(String positionString) {
+        final Document numeric = numericPositions ? positionFields(positionString) : new Document();
+        final Bson here = numeric.isEmpty() ? eq("positionAsString", positionString) : numeric;
+        return inCaveFlags ? and(here, eq("inCave", true)) : here;
+    }
+
     @Override
     public long computeCountOfActivePlayers() {
         return executeSafe(new Delegate<Long>() {
             @Override
             public Long run() {
+                // The players are in the cave by their flag, the heartbeats
+                // may lag behind or outlive it. Until all players have the
+                // flag, the heartbeats are counted instead
+                if (!inCaveFlags) {
+                    return mongoSetup.getCollection(COLLECTION_SESSIONS).count();
+                }
                 final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
-                final long activePlayers = playerCollection.count(ne("sessionID", null));
+                return playerCollection.count(eq("inCave", true));
+            }
+        });
+    }
+
+    @Override
+    public void touchSessions(final Collection<String> playerIDs) {
+        if (playerIDs.isEmpty()) {
+            return;
+        }
+        executeSafe(new Delegate<Void>() {
+            @Override
+            public Void run() {
+                // Upserted, as the sessions of the players logged in since
+                // the last batch are created here
+                final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+                final Document touch = new Document("$currentDate", new Document("lastSeen", true));
+                final List<WriteModel<Document>> batch = new ArrayList<>();
+                for (String playerID : playerIDs) {
+                    batch.add(new UpdateOneModel<Document>(eq("_id", playerID), touch,
+                            new UpdateOptions().upsert(true)));
+                }
+                sessionCollection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<String> computeListOfIdlePlayers(final long idleSeconds) {
+        return executeSafe(new Delegate<List<String>>() {
+            @Override
+            public List<String> run() {
+                final MongoCollection<Document> sessionCollection = mongoSetup.getCollection(COLLECTION_SESSIONS);
+                final Date idleSince = new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(idleSeconds));
+                final Set<String> idlePlayers = new LinkedHashSet<>();
+
+                sessionCollection.find(lt("lastSeen", idleSince))
+                        .projection(Projections.include("_id"))
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document document) {
+                                idlePlayers.add(document.getString("_id"));
+                            }
+                        });
+
+                // The players in the cave since before then, whose heartbeat
+                // is missing, are idle too
+                final List<String> loggedInBefore = new ArrayList<>();
+                mongoSetup.getCollection(COLLECTION_PLAYERS)
+                        .find(and(eq("inCave", true), lt("loggedIn", idleSince)))
+                        .projection(Projections.include("_id"))
+                        .forEach(new Block<Document>() {
+                            @Override
+                            public void apply(Document document) {
+                                loggedInBefore.add(document.getString("_id"));
+                            }
+                        });
+                for (int i = 0; i < loggedInBefore.size(); i += HEARTBEAT_LOOKUP_BATCH) {
+                    final Set<String> withoutHeartbeat = new LinkedHashSet<>(
+                            loggedInBefore.subList(i, Math.min(i + HEARTBEAT_LOOKUP_BATCH, loggedInBefore.size())));
+                    sessionCollection.find(in("_id", withoutHeartbeat))
+                            .projection(Projections.include("_id"))
+                            .forEach(new Block<Document>() {
+                                @Override
+                                public void apply(Document document) {
+                                    withoutHeartbeat.remove(document.getString("_id"));
+                                }
+                            });
+                    idlePlayers.addAll(withoutHeartbeat);
+                }
 
-                return activePlayers;
+                return new ArrayList<>(idlePlayers);
+            }
+        });
+    }
+
+    @Override
+    public void removeIdleSessions(final Collection<String> playerIDs, final long idleSeconds) {
+        if (playerIDs.isEmpty()) {
+            return;
+        }
+        executeSafe(new Delegate<Void>() {
+            @Override
+            public Void run() {
+                // Only while still idle, a heartbeat written meanwhile stays
+                final Date idleSince = new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(idleSeconds));
+                mongoSetup.getCollection(COLLECTION_SESSIONS).deleteMany(
+                        and(in("_id", playerIDs), lt("lastSeen", idleSince)));
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean claimRequest(final String requestKey) {
+        return executeSafe(new Delegate<Boolean>() {
+            @Override
+            public Boolean run() {
+                final MongoCollection<Document> requestCollection = mongoSetup.getCollection(COLLECTION_REQUESTS);
+                try {
+                    requestCollection.insertOne(new Document("_id", requestKey).append("claimed", new Date()));
+                    return true;
+                } catch (MongoWriteException e) {
+                    if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+                // A claim without a reply whose lease is over is taken over,
+                // as the server executing it may have crashed
+                final Date now = new Date();
+                final UpdateResult takeover = requestCollection.updateOne(and(eq("_id", requestKey),
+                        exists("reply", false),
+                        lt("claimed", new Date(now.getTime() - TimeUnit.SECONDS.toMillis(CLAIM_LEASE_SECONDS)))),
+                        new Document("$set", new Document("claimed", now)));
+                return takeover.getModifiedCount() == 1;
+            }
+        });
+    }
+
+    @Override
+    public String getRequestReply(final String requestKey) {
+        return executeSafe(new Delegate<String>() {
+            @Override
+            public String run() {
+                final MongoCollection<Document> requestCollection = mongoSetup.getCollection(COLLECTION_REQUESTS);
+                final Document request = requestCollection.find(eq("_id", requestKey))
+                        .projection(Projections.include("reply"))
+                        .first();
+                return request == null ? null : request.getString("reply");
+            }
+        });
+    }
+
+    @Override
+    public void completeRequest(final String requestKey, final String reply) {
+        executeSafe(new Delegate<Void>() {
+            @Override
+            public Void run() {
+                final MongoCollection<Document> requestCollection = mongoSetup.getCollection(COLLECTION_REQUESTS);
+                if (reply == null) {
+                    requestCollection.deleteOne(eq("_id", requestKey));
+                } else {
+                    requestCollection.updateOne(eq("_id", requestKey), new Document("$set", new Document("reply", reply)));
+                }
+                return null;
             }
         });
     }
@@ -255,13 +1286,143 @@ public class ServerCaveStorage implements CaveStorage {
                 final MongoCollection<Document> roomCollection = mongoSetup.getCollection(COLLECTION_ROOMS);
                 if (roomCollection.count() == 0)
                     createBaseData();
+
+                for (IndexSpec index : INDEXES) {
+                    mongoSetup.getCollection(index.getCollection()).createIndex(index.getKeys(), index.getOptions());
+                }
+
+                mortonKeys = false;
+                numericPositions = false;
+                inCaveFlags = false;
+                countUnmigrated();
                 return null;
             }
         });
+        if (!isMigrated()) {
+            startMigrationChecks();
+        }
+    }
+
+    /**
+     * Check whether the rooms and players not migrated when last checked
+     * are migrated now, like by a job run by another process, and switch
+     * to the queries of the migrated documents if so.
+     *
+     * @return true if all rooms and players are migrated
+     */
+    public boolean checkMigrations() {
+        return executeSafe(new Delegate<Boolean>() {
+            @Override
+            public Boolean run() {
+                countUnmigrated();
+                return isMigrated();
+            }
+        });
+    }
+
+    private void countUnmigrated() {
+        if (!mortonKeys) {
+            mortonKeys = mongoSetup.getCollection(COLLECTION_ROOMS).count(exists("morton", false)) == 0;
+        }
+        final MongoCollection<Document> playerCollection = mongoSetup.getCollection(COLLECTION_PLAYERS);
+        if (!numericPositions) {
+            numericPositions = playerCollection.count(exists("x", false)) == 0;
+        }
+        if (!inCaveFlags) {
+            inCaveFlags = playerCollection.count(exists("inCave", false)) == 0;
+        }
+    }
+
+    private boolean isMigrated() {
+        return mortonKeys && numericPositions && inCaveFlags;
+    }
+
+    private synchronized void startMigrationChecks() {
+        if (migrationChecker != null) {
+            return;
+        }
+        migrationChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "migration-check");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        migrationChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (checkMigrations()) {
+                        logger.info("All rooms and players are migrated");
+                        stopMigrationChecks();
+                    }
+                } catch (CaveStorageException e) {
+                    logger.warn("Checking the migrations failed", e);
+                }
+            }
+        }, MIGRATION_CHECK_SECONDS, MIGRATION_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized void stopMigrationChecks() {
+        if (migrationChecker != null) {
+            migrationChecker.shutdown();
+            migrationChecker = null;
+        }
+    }
+
+    /**
+     * Explain the query plan of each of the QUERY_SHAPES, to find the
+     * queries that would scan their whole collection.
+     *
+     * @return the query shapes whose plan scans a collection, empty if all
+     * queries use an index
+     */
+    public List<QueryShape> findCollectionScans() {
+        return executeSafe(new Delegate<List<QueryShape>>() {
+            @Override
+            public List<QueryShape> run() {
+                final List<QueryShape> scanning = new ArrayList<>();
+                for (QueryShape shape : QUERY_SHAPES) {
+                    final Document explained = mongoSetup.runCommand(shape.toExplainCommand());
+                    final Document queryPlanner = (Document) explained.get("queryPlanner");
+                    if (queryPlanner == null || hasCollectionScan(queryPlanner.get("winningPlan"))) {
+                        scanning.add(shape);
+                    }
+                }
+                return scanning;
+            }
+        });
+    }
+
+    /**
+     * Look through a plan, and the plans of its stages and shards, for a
+     * stage scanning a collection.
+     */
+    private static boolean hasCollectionScan(Object plan) {
+        if (plan instanceof Document) {
+            final Document stage = (Document) plan;
+            if ("COLLSCAN".equals(stage.get("stage"))) {
+                return true;
+            }
+            for (Object value : stage.values()) {
+                if (hasCollectionScan(value)) {
+                    return true;
+                }
+            }
+        } else if (plan instanceof List) {
+            for (Object value : (List<?>) plan) {
+                if (hasCollectionScan(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     @Override
     public void disconnect() {
+        stopMigrationChecks();
         this.mongoSetup.disconnect();
     }
 
@@ -270,17 +1431,18 @@ public class ServerCaveStorage implements CaveStorage {
         return this.config;
     }
 
-    private PlayerRecord documentToPlayerRecord(Document document){
+    private PlayerRecord documentToPlayerRecord(Document document, String sessionID){
         if(document != null){
             final String playerID = document.getString("_id");
             final String playerName = document.getString("playerName");
             final String groupName = document.getString("groupName");
             final String positionAsString = document.getString("positionAsString");
             final Region region = Region.valueOf(document.getString("region"));
-            final String sessionID = document.getString("sessionID");
+            final Number version = (Number) document.get("version");
 
 
-            return new PlayerRecord(playerID, playerName, groupName, region, positionAsString, sessionID);
+            return new PlayerRecord(playerID, playerName, groupName, region, positionAsString, sessionID,
+                    version != null ? version.longValue() : 0);
         } else {
             return null;
         }
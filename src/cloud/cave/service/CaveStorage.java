@@ -46,6 +46,47 @@ public interface CaveStorage extends ExternalService {
      */
     List<Direction> getSetOfExitsFromRoom(String positionString);
 
+    /**
+     * Get the rooms at the given positions in a single call, instead of a
+     * call per room.
+     *
+     * @param positionStrings the positions of the rooms
+     * @return the room of each of the positions that has one, by position
+     */
+    Map<String, RoomRecord> getRooms(Collection<String> positionStrings);
+
+    /**
+     * Find the positions that have a room among the given ones, in a single
+     * call, without reading the rooms.
+     *
+     * @param positionStrings the positions to look at
+     * @return the positions that have a room
+     */
+    Set<String> roomsExist(Collection<String> positionStrings);
+
+    /**
+     * Get a page of the positions that have a room, in the order of the
+     * position strings, to go through all the rooms without reading them
+     * all at once.
+     *
+     * @param afterPosition the last position of the previous page, or null
+     *                      for the first page
+     * @param limit         the maximal number of positions of the page
+     * @return the positions after the given one, at most limit of them
+     */
+    List<String> getRoomPositions(String afterPosition, int limit);
+
+    /**
+     * Get the rooms in a box of positions in a single call, like the rooms
+     * around a player.
+     *
+     * @param min the corner of the box with the smallest coordinates
+     * @param max the corner of the box with the largest coordinates
+     * @return the room of each of the positions in the box that has one,
+     * by position
+     */
+    Map<String, RoomRecord> getRoomsInBox(Point3 min, Point3 max);
+
     // === Player record related
 
     /**
@@ -59,6 +100,15 @@ public interface CaveStorage extends ExternalService {
      */
     PlayerRecord getPlayerByID(String playerID);
 
+    /**
+     * Get the records of the given players in a single call, instead of a
+     * call per player.
+     *
+     * @param playerIDs the ids of the players
+     * @return the record of each player registered in the cave, by id
+     */
+    Map<String, PlayerRecord> getPlayersByIDs(Collection<String> playerIDs);
+
     /**
      * Given a player record, update the existing stored record with the contents
      * of the provided one, or create a record if none already exists.
@@ -67,6 +117,64 @@ public interface CaveStorage extends ExternalService {
      */
     void updatePlayerRecord(PlayerRecord record);
 
+    /**
+     * Given a player record, update the stored record with the contents of
+     * the provided one, but only if the stored record is still of the
+     * expected version, that is it has not been written since it was read.
+     * The version of the stored record is incremented by the update. Use
+     * PlayerRecordUpdate to retry on conflicts.
+     *
+     * @param record          the record to overwrite the old one
+     * @param expectedVersion the version of the record when read; 0 also
+     *                        matches a player without a record, which is
+     *                        then created
+     * @return true if the record was updated, false if the stored record
+     * had another version
+     */
+    boolean compareAndSetPlayerRecord(PlayerRecord record, long expectedVersion);
+
+    /**
+     * Set the position of a player, leaving the rest of the record and the
+     * session as they are. Unlike the other updates the record is not read
+     * first, and only the position is written, provided the player is still
+     * at the expected position. The version of the stored record is
+     * incremented, so a concurrent compare-and-set retries on top of the new
+     * position.
+     *
+     * @param playerID         the id of the player
+     * @param expectedPosition the position the player is moved from, or null
+     *                         to move the player from wherever he/she is
+     * @param positionString   the new position of the player
+     * @return true if the position was set, false if the player has no
+     * record or is not at the expected position
+     */
+    boolean updatePlayerPosition(String playerID, String expectedPosition, String positionString);
+
+    /**
+     * Start a session of a player in a single write of the record: set the
+     * session of the stored record of the player, or create the record from
+     * the given one if the player has none. Any other attribute of a stored
+     * record is kept as it is. The first heartbeat of the session is
+     * written too.
+     *
+     * @param record the record of the player with the new session
+     * @return the stored record with the new session, and whether the
+     * player had a session before
+     */
+    SessionStartRecord startPlayerSession(PlayerRecord record);
+
+    /**
+     * End the session of a player in a single write of the session only,
+     * provided the player is in the cave. The rest of the record is not
+     * read first nor written, and the version of the stored record is
+     * incremented. The heartbeat of the session is removed too.
+     *
+     * @param playerID the id of the player
+     * @return the stored record without the session, or null if the player
+     * has no record or is not in the cave
+     */
+    PlayerRecord endPlayerSession(String playerID);
+
     /**
      * Compute a list of players that are located in a given room
      *
@@ -76,6 +184,20 @@ public interface CaveStorage extends ExternalService {
      */
     List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset);
 
+    /**
+     * Compute a page of the players that are located in a given room, in the
+     * order of their ids, starting after the last player of the page before.
+     * Unlike skipping by an offset, every page costs the same to read.
+     *
+     * @param positionString position of the room
+     * @param afterPlayerID  the id of the last player read for the page
+     *                       before, or null for the first page
+     * @param limit          the maximal number of players read for the page
+     * @return the players in the cave on the page, the id to read the next
+     * page after, and whether there may be more players
+     */
+    PlayerPageRecord computePageOfPlayersAt(String positionString, String afterPlayerID, int limit);
+
     /**
      * Compute the number of players that are present in the cave ('has an active
      * session')
@@ -84,4 +206,72 @@ public interface CaveStorage extends ExternalService {
      */
     long computeCountOfActivePlayers();
 
+    // === Session related
+
+    /**
+     * Mark the sessions of the given players as seen now. A session with no
+     * heartbeat, like one lost with an app server, gets it back here. Used
+     * to batch the heartbeats of many requests into a single write; the
+     * login writes the first heartbeat of the session itself.
+     *
+     * @param playerIDs the ids of the players seen since the last call
+     */
+    void touchSessions(Collection<String> playerIDs);
+
+    /**
+     * Compute the list of players that have a session, but have not been
+     * seen for the given time, like players whose client crashed. A player
+     * in the cave whose heartbeat is missing counts as seen at the login.
+     * The heartbeats left by players no longer in the cave, like one
+     * written just after the player logged out on another app server, are
+     * listed too.
+     *
+     * @param idleSeconds the seconds a session must have been unused
+     * @return the ids of the idle players
+     */
+    List<String> computeListOfIdlePlayers(long idleSeconds);
+
+    /**
+     * Remove the heartbeats of the given players, unless seen within the
+     * given time. Used for the heartbeats left by players no longer in the
+     * cave.
+     *
+     * @param playerIDs   the ids of the players
+     * @param idleSeconds the seconds a heartbeat must have been unused
+     */
+    void removeIdleSessions(Collection<String> playerIDs, long idleSeconds);
+
+    // === Request related
+
+    /**
+     * Claim the execution of a request carrying an idempotency key, so it is
+     * executed only once, whichever app server its retries reach. A claim is
+     * forgotten some minutes after it was made. A claim not completed within
+     * its lease may be taken over by a retry, as the server executing it may
+     * have crashed.
+     *
+     * @param requestKey the player id and the idempotency key of the request
+     * @return true if the request was claimed by this call, false if it was
+     * claimed before and the claim is completed or its lease is not over
+     */
+    boolean claimRequest(String requestKey);
+
+    /**
+     * Get the reply stored for a request claimed before.
+     *
+     * @param requestKey the player id and the idempotency key of the request
+     * @return the reply as JSON, or null if the request is still executing
+     * or was never claimed
+     */
+    String getRequestReply(String requestKey);
+
+    /**
+     * Store the reply of a claimed request, to answer its retries with. If
+     * the request failed, the claim is released, so a retry may execute it.
+     *
+     * @param requestKey the player id and the idempotency key of the request
+     * @param reply      the reply as JSON, or null to release the claim
+     */
+    void completeRequest(String requestKey, String reply);
+
 }
@@ -0,0 +1,103 @@
+package cloud.cave.client;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.config.socket.BalancingClientRequestHandler;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.service.*;
+
+/**
+ * Test the client side load balancing over several app servers that
+ * share the same storage, and thus the same session state.
+ *
+ * @author Rohde Fischer
+ */
+public class TestBalancingClientRequestHandler {
+    private CountingClientRequestHandler server1;
+    private CountingClientRequestHandler server2;
+    private SaboteurCRHDecorator saboteur2;
+    private BalancingClientRequestHandler crh;
+    private Player player;
+
+    @Before
+    public void setup() {
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        CaveServerFactory factory = new FactoryWithSharedStorage(storage);
+
+        server1 = new CountingClientRequestHandler(
+                new LocalMethodCallClientRequestHandler(new StandardInvoker(new StandardServerCave(factory))));
+        saboteur2 = new SaboteurCRHDecorator(
+                new LocalMethodCallClientRequestHandler(new StandardInvoker(new StandardServerCave(factory))));
+        server2 = new CountingClientRequestHandler(saboteur2);
+
+        List<ClientRequestHandler> handlers = new ArrayList<>();
+        handlers.add(server1);
+        handlers.add(server2);
+        crh = new BalancingClientRequestHandler(handlers);
+
+        Cave cave = new CaveProxy(crh);
+        player = cave.login("mikkel_aarskort", "123").getPlayer();
+    }
+
+    @Test
+    public void shouldSpreadRequestsOverAllServers() {
+        for (int i = 0; i < 50; i++) {
+            assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+        }
+
+        assertThat(server1.getCount(), is(not(0)));
+        assertThat(server2.getCount(), is(not(0)));
+    }
+
+    @Test
+    public void shouldEjectFailingServerAndReadmitIt() {
+        saboteur2.throwNextTime("Server 2 is down");
+        crh.checkHealth();
+        assertThat(crh.toString(), containsString("server 2 (ejected)"));
+
+        server2.reset();
+        for (int i = 0; i < 20; i++) {
+            assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+        }
+        assertThat(server2.getCount(), is(0));
+
+        // the server recovers and passes the next health check
+        saboteur2.throwNextTime(null);
+        crh.checkHealth();
+        assertThat(crh.toString(), not(containsString("ejected")));
+
+        for (int i = 0; i < 50; i++) {
+            player.getLongRoomDescription(0);
+        }
+        assertThat(server2.getCount(), is(not(0)));
+    }
+
+    @Test
+    public void shouldEjectServerWhoseRequestFails() {
+        saboteur2.throwNextTime("Server 2 is down");
+
+        int failures = 0;
+        for (int i = 0; i < 50; i++) {
+            try {
+                player.getExitSet();
+            } catch (CaveIPCException e) {
+                failures++;
+            }
+        }
+
+        // Only the first request hitting server 2 fails, then it is ejected
+        assertThat(failures, is(1));
+        assertThat(crh.toString(), containsString("server 2 (ejected)"));
+    }
+}
@@ -0,0 +1,176 @@
+package cloud.cave.client;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.junit.*;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.config.socket.HedgingClientRequestHandler;
+import cloud.cave.config.socket.SocketClientRequestHandler;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.service.*;
+
+/**
+ * Test that the idempotent reads are hedged to another server when one
+ * server is slow, and that writes are never hedged.
+ *
+ * @author Rohde Fischer
+ */
+public class TestHedgingClientRequestHandler {
+    private SlowClientRequestHandler server1;
+    private SlowClientRequestHandler server2;
+    private HedgingClientRequestHandler crh;
+    private Player player;
+
+    @Before
+    public void setup() {
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        CaveServerFactory factory = new FactoryWithSharedStorage(storage);
+
+        server1 = new SlowClientRequestHandler(
+                new LocalMethodCallClientRequestHandler(new StandardInvoker(new StandardServerCave(factory))));
+        server2 = new SlowClientRequestHandler(
+                new LocalMethodCallClientRequestHandler(new StandardInvoker(new StandardServerCave(factory))));
+
+        List<ClientRequestHandler> handlers = new ArrayList<>();
+        handlers.add(server1);
+        handlers.add(server2);
+        crh = new HedgingClientRequestHandler(handlers);
+
+        Cave cave = new CaveProxy(crh);
+        player = cave.login("mikkel_aarskort", "123").getPlayer();
+    }
+
+    @Test
+    public void shouldHedgeReadsAwayFromSlowServer() {
+        server2.setDelay(2000);
+        server1.reset();
+        server2.reset();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+            assertThat(player.getExitSet().size(), is(not(0)));
+        }
+
+        // Every read completes once, and every hedged read hitting the slow
+        // server is answered by the fast one while the slow send is cut off
+        assertThat(crh.getHedgeCount(), is(not(0)));
+        assertThat(server1.getCompleted() + server2.getCompleted(), is(20));
+        assertThat(server2.getCompleted(), is(server2.getCount() - crh.getHedgeCount()));
+    }
+
+    @Test
+    public void shouldGiveUpOnServerThatNeverReplies() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            ClientRequestHandler socketHandler = new SocketClientRequestHandler(100);
+            socketHandler.initialize(new ServerConfiguration("localhost", silentServer.getLocalPort()));
+
+            try {
+                socketHandler.sendRequestAndBlockUntilReply(Marshaling.createRequestObject("", "",
+                        MarshalingKeys.PING_METHOD_KEY, ""));
+                fail("The read should time out");
+            } catch (CaveIPCException e) {
+                assertThat(e.getCause(), instanceOf(SocketTimeoutException.class));
+            }
+        }
+    }
+
+    @Test
+    public void shouldNeverHedgeWrites() {
+        server1.setDelay(50);
+        server2.setDelay(50);
+        server1.reset();
+        server2.reset();
+
+        for (int i = 0; i < 5; i++) {
+            player.move(Direction.NORTH);
+            player.move(Direction.SOUTH);
+            player.addMessage("hello " + i);
+        }
+
+        assertThat(crh.getHedgeCount(), is(0));
+        assertThat(server1.getCount() + server2.getCount(), is(15));
+    }
+
+    @Test
+    public void shouldComputeHedgeDelayFromHedgedReadsOnly() {
+        server1.setDelay(50);
+        server2.setDelay(50);
+
+        // Slow writes do not make the reads wait longer before hedging
+        for (int i = 0; i < 5; i++) {
+            player.addMessage("hello " + i);
+        }
+        assertThat(crh.getHedgeDelay(), is(HedgingClientRequestHandler.MINIMUM_HEDGE_DELAY_MILLIS));
+    }
+}
+
+/**
+ * A decorator that delays the requests sent through it, and counts them
+ * as they are sent and as they complete.
+ */
+class SlowClientRequestHandler implements ClientRequestHandler {
+    private final ClientRequestHandler decoratee;
+    private volatile long delay;
+    private int count;
+    private int completed;
+
+    public SlowClientRequestHandler(ClientRequestHandler decoratee) {
+        this.decoratee = decoratee;
+        this.delay = 0;
+        this.count = 0;
+        this.completed = 0;
+    }
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        synchronized (this) {
+            count++;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CaveIPCException("Request was cancelled", e);
+        }
+        JSONObject reply = decoratee.sendRequestAndBlockUntilReply(requestJson);
+        synchronized (this) {
+            completed++;
+        }
+        return reply;
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        completed = 0;
+    }
+}
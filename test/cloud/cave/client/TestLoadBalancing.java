@@ -3,8 +3,6 @@ package cloud.cave.client;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
-import cloud.cave.server.service.ServerSubscriptionService;
-import cloud.cave.server.service.ServerWeatherService;
 import org.json.simple.JSONObject;
 import org.junit.*;
 
@@ -105,70 +103,6 @@ public class TestLoadBalancing {
     }
 }
 
-/**
- * A factory that creates test doubles but in case of the
- * storage, returns the SAME storage to allow different caves
- * access to the same underlying storage.
- *
- * @author Henrik Baerbak Christensen, Aarhus University.
- */
-class FactoryWithSharedStorage implements CaveServerFactory {
-    private CaveStorage storage;
-
-    public FactoryWithSharedStorage(CaveStorage storage) {
-        this.storage = storage;
-    }
-
-    @Override
-    public CaveStorage createCaveStorage() {
-        // Return the SAME for both caves
-        return storage;
-    }
-
-    @Override
-    public SubscriptionService createSubscriptionServiceConnector() {
-        String host = "is-there-anybody-out-there";
-        int port = 57005;
-        ServerConfiguration serverConfiguration = new ServerConfiguration(host, port);
-
-        SubscriptionService service = new ServerSubscriptionService();
-        service.setRestRequester(new SubscriptionServiceRequestFake());
-        service.initialize(serverConfiguration);
-        return service;
-    }
-
-    @Override
-    public IRestRequest createRestRequester() {
-        return null;
-    }
-
-    @Override
-    public WeatherService createWeatherServiceConnector() {
-        String host = "is-there-anybody-out-there";
-        int port = 57005;
-        ServerConfiguration serverConfiguration = new ServerConfiguration(host, port);
-
-        WeatherService service = new ServerWeatherService();
-        service.initialize(serverConfiguration); // no config object required
-        service.setRestRequester(new WeatherServiceRequestFake());
-        service.setSecondsDelay(1);
-
-        return service;
-    }
-
-    @Override
-    public Reactor createReactor(Invoker invoker) {
-        // Not used...
-        return null;
-    }
-
-    @Override
-    public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
-        return new DatabaseCache(storage, weatherService);
-    }
-}
-
-
 /**
  * A test double request handler which simulates load balancing
  * requests over two servers, by allowing to choose which
@@ -6,8 +6,10 @@ import static org.hamcrest.Matchers.*;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.json.simple.JSONObject;
 import org.junit.*;
@@ -315,6 +317,31 @@ public class TestPlayerProxy {
         assertThat(playerParts.length, is(10));
     }
 
+    @Test
+    public void shouldPagePlayersHereByCursor() {
+        enterBothPlayers();
+        doMassLogin();
+
+        PlayerListPage page = p1.getPageOfPlayersHere(null);
+        assertThat(page.getPlayerNames().size(), is(10));
+        assertThat(page.hasMore(), is(true));
+
+        PlayerListPage next = p1.getPageOfPlayersHere(page.getCursor());
+        assertThat(next.hasMore(), is(false));
+        assertThat(next.getCursor(), is(nullValue()));
+
+        // No player is on both pages
+        Set<String> seen = new HashSet<>(page.getPlayerNames());
+        for (String name : next.getPlayerNames()) {
+            assertThat(seen.add(name), is(true));
+        }
+        assertThat(seen.size(), is(p1.getPlayersHere(0).size() + p1.getPlayersHere(1).size()));
+
+        // A cursor for another room starts over
+        p1.move(Direction.NORTH);
+        assertThat(p1.getPageOfPlayersHere(page.getCursor()).getPlayerNames().size(), is(1));
+    }
+
     @Test
     public void shouldPreventCallsFromDualLogins() {
         enterBothPlayers();
@@ -0,0 +1,105 @@
+package cloud.cave.client;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.json.simple.JSONObject;
+import org.junit.*;
+
+import cloud.cave.config.socket.RetryingClientRequestHandler;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.server.common.ServerConfiguration;
+
+/**
+ * Test that requests failing on transient errors are retried, and that
+ * the idempotency key prevents retried writes from being executed twice.
+ *
+ * @author Rohde Fischer
+ */
+public class TestRetryingClientRequestHandler {
+    private ReplyLosingClientRequestHandler loser;
+    private SaboteurCRHDecorator saboteur;
+    private RetryingClientRequestHandler crh;
+    private Player player;
+
+    @Before
+    public void setup() {
+        Cave caveServer = new StandardServerCave(new AllTestDoubleFactory());
+        loser = new ReplyLosingClientRequestHandler(
+                new LocalMethodCallClientRequestHandler(new StandardInvoker(caveServer)));
+        saboteur = new SaboteurCRHDecorator(loser);
+        crh = new RetryingClientRequestHandler(saboteur);
+
+        Cave cave = new CaveProxy(crh);
+        player = cave.login("mikkel_aarskort", "123").getPlayer();
+    }
+
+    @Test
+    public void shouldNotDuplicateMessageWhenReplyIsLost() {
+        int before = player.getMessageList().size();
+
+        // The message reaches the server, but the reply is lost on the way back
+        loser.loseNextReply();
+        player.addMessage("Only once please");
+
+        assertThat(crh.getRetryCount(), is(1));
+        assertThat(player.getMessageList().size(), is(before + 1));
+    }
+
+    @Test
+    public void shouldNotRepeatMoveWhenReplyIsLost() {
+        player.move(Direction.EAST);
+        loser.loseNextReply();
+        assertThat(player.move(Direction.WEST), is(true));
+
+        // Moving west twice would have taken the player on to (-1,0,0)
+        assertThat(player.getPosition(), is("(0,0,0)"));
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() {
+        saboteur.throwNextTime("Server is down");
+        try {
+            player.getExitSet();
+            fail("The request should fail when the server stays down");
+        } catch (CaveIPCException e) {
+            assertThat(crh.getRetryCount(), is(RetryingClientRequestHandler.MAX_ATTEMPTS - 1));
+        }
+    }
+}
+
+/**
+ * A decorator that can let a request be executed by the server and then
+ * throw as if the connection broke before the reply arrived.
+ */
+class ReplyLosingClientRequestHandler implements ClientRequestHandler {
+    private final ClientRequestHandler decoratee;
+    private boolean loseNextReply;
+
+    public ReplyLosingClientRequestHandler(ClientRequestHandler decoratee) {
+        this.decoratee = decoratee;
+        this.loseNextReply = false;
+    }
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        JSONObject reply = decoratee.sendRequestAndBlockUntilReply(requestJson);
+        if (loseNextReply) {
+            loseNextReply = false;
+            throw new CaveIPCException("Connection reset", null);
+        }
+        return reply;
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    public void loseNextReply() {
+        loseNextReply = true;
+    }
+}
@@ -0,0 +1,162 @@
+package cloud.cave.client;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.config.socket.ConsistentHashRing;
+import cloud.cave.config.socket.StickyClientRequestHandler;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.service.*;
+
+/**
+ * Test that the requests of a player stick to the server owning the player
+ * by consistent hashing, and fall back to the next server when the owner
+ * fails.
+ *
+ * @author Rohde Fischer
+ */
+public class TestStickyClientRequestHandler {
+    private StandardInvoker invoker1;
+    private StandardInvoker invoker2;
+    private CountingClientRequestHandler server1;
+    private CountingClientRequestHandler server2;
+    private SaboteurCRHDecorator saboteur1;
+    private SaboteurCRHDecorator saboteur2;
+    private StickyClientRequestHandler crh;
+    private Player player;
+
+    @Before
+    public void setup() {
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        CaveServerFactory factory = new FactoryWithSharedStorage(storage);
+
+        invoker1 = new StandardInvoker(new StandardServerCave(factory));
+        invoker2 = new StandardInvoker(new StandardServerCave(factory));
+        saboteur1 = new SaboteurCRHDecorator(new LocalMethodCallClientRequestHandler(invoker1));
+        saboteur2 = new SaboteurCRHDecorator(new LocalMethodCallClientRequestHandler(invoker2));
+        server1 = new CountingClientRequestHandler(saboteur1);
+        server2 = new CountingClientRequestHandler(saboteur2);
+
+        List<ClientRequestHandler> handlers = new ArrayList<>();
+        handlers.add(server1);
+        handlers.add(server2);
+        crh = new StickyClientRequestHandler(handlers);
+
+        Cave cave = new CaveProxy(crh);
+        player = cave.login("mikkel_aarskort", "123").getPlayer();
+        server1.reset();
+        server2.reset();
+    }
+
+    @Test
+    public void shouldSendAllRequestsOfPlayerToOwner() {
+        for (int i = 0; i < 20; i++) {
+            assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+        }
+
+        boolean ownedBy1 = crh.getOwnerName(player.getID()).equals("server 1");
+        assertThat((ownedBy1 ? server1 : server2).getCount(), is(20));
+        assertThat((ownedBy1 ? server2 : server1).getCount(), is(0));
+        assertThat((ownedBy1 ? invoker1 : invoker2).getAffinityMonitor().getHitCount(), is(20L));
+    }
+
+    @Test
+    public void shouldFallBackToNextServerAndReturn() {
+        boolean ownedBy1 = crh.getOwnerName(player.getID()).equals("server 1");
+        SaboteurCRHDecorator ownerSaboteur = ownedBy1 ? saboteur1 : saboteur2;
+        StandardInvoker fallbackInvoker = ownedBy1 ? invoker2 : invoker1;
+
+        // The owner fails a request, and is ejected
+        ownerSaboteur.throwNextTime("The owner is down");
+        try {
+            player.getLongRoomDescription(0);
+            fail("The request to the failing owner should fail");
+        } catch (CaveIPCException e) {
+            // expected
+        }
+
+        // The other server serves the player correctly, and marks the misses
+        for (int i = 0; i < 5; i++) {
+            assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+        }
+        assertThat(fallbackInvoker.getAffinityMonitor().getMissCount(), is(5L));
+        assertThat(fallbackInvoker.getAffinityMonitor().getHitRate(), is(0.0));
+
+        // Once the owner is healthy again the player returns to it
+        ownerSaboteur.throwNextTime(null);
+        crh.checkHealth();
+        player.getLongRoomDescription(0);
+        assertThat(fallbackInvoker.getAffinityMonitor().getMissCount(), is(5L));
+    }
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (int n = 0; n < 4; n++) {
+            ring.add("node" + n, "node" + n);
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            String owner = ring.get("player" + i);
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        assertThat(counts.size(), is(4));
+        for (int count : counts.values()) {
+            assertTrue("Uneven share of the keys: " + counts, count > 600 && count < 1400);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOfLeavingNode() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (int n = 0; n < 4; n++) {
+            ring.add("node" + n, "node" + n);
+        }
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            before.put("player" + i, ring.get("player" + i));
+        }
+
+        ring.remove("node2");
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String now = ring.get(entry.getKey());
+            if (entry.getValue().equals("node2")) {
+                // Moved to the next node in the preference list
+                assertThat(now, is(not("node2")));
+            } else {
+                assertThat(now, is(entry.getValue()));
+            }
+        }
+
+        // And they come back when the node rejoins
+        ring.add("node2", "node2");
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            assertThat(ring.get(entry.getKey()), is(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void shouldListEachNodeOnceOwnerFirst() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (int n = 0; n < 3; n++) {
+            ring.add("node" + n, "node" + n);
+        }
+        List<String> preference = ring.getPreferenceList("mikkel");
+        assertThat(preference.size(), is(3));
+        assertThat(preference.get(0), is(ring.get("mikkel")));
+        assertThat(new HashSet<>(preference).size(), is(3));
+
+        // The second in the list takes over when the owner leaves
+        ring.remove(preference.get(0));
+        assertThat(ring.get("mikkel"), is(preference.get(1)));
+    }
+}
@@ -82,6 +82,20 @@ public class Common {
                 is("JumpCommand failed, room (700,10,-42) does not exist in the cave."));
     }
 
+    public static void shouldExecuteMapCommand(Player player) {
+        JSONObject result = player.execute("MapCommand", "1");
+        assertNotNull("The execute did not return a reply which it must do.", result);
+        assertThat(result.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+        assertThat(result.get(MarshalingKeys.RETURNVALUE_HEAD_KEY).toString(), is("(0,0,0)"));
+
+        // The rooms north, east and west of the entry, with north at the top
+        JSONArray rows = (JSONArray) result.get(MarshalingKeys.RETURNVALUE_TAIL_KEY);
+        assertThat(rows.size(), is(3));
+        assertThat(rows.get(0).toString(), is(".#."));
+        assertThat(rows.get(1).toString(), is("#@#"));
+        assertThat(rows.get(2).toString(), is("..."));
+    }
+
     public static void shouldExecuteUnknownCommand(Player player) {
         JSONObject result = player.execute("BimseCommand", "really has not clue here", "more nonsense");
         assertNotNull("The execute did not return a reply which it must do.", result);
@@ -33,6 +33,11 @@ public class TestNewCommand {
         Common.shouldExecuteJumpCommand(player);
     }
 
+    @Test
+    public void shouldExecuteMapCommand() {
+        Common.shouldExecuteMapCommand(player);
+    }
+
     @Test
     public void shouldNotExecuteUnknownCommand() {
         Common.shouldExecuteUnknownCommand(player);
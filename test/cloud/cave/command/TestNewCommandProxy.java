@@ -48,6 +48,11 @@ public class TestNewCommandProxy {
         Common.shouldExecuteJumpCommand(player);
     }
 
+    @Test
+    public void shouldExecuteMapCommand() {
+        Common.shouldExecuteMapCommand(player);
+    }
+
     @Test
     public void shouldNotExecuteUnknownCommand() {
         Common.shouldExecuteUnknownCommand(player);
@@ -8,6 +8,8 @@ import org.junit.*;
 import cloud.cave.common.*;
 import cloud.cave.doubles.StubEnvironmentReaderStrategy;
 import cloud.cave.ipc.*;
+import cloud.cave.server.CachingCaveStorage;
+import cloud.cave.server.RoomFilterCaveStorage;
 import cloud.cave.server.common.ServerConfiguration;
 import cloud.cave.service.*;
 
@@ -28,6 +30,8 @@ public class TestFactoryDynamicCreation {
                 "cloud.cave.doubles.FakeCaveStorage");
         envReader.setNextExpectation(Config.SKYCAVE_DBSERVER,
                 "192.168.237.130:27017");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMFILTER, null);
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMCACHE, null);
         CaveStorage storage = factory.createCaveStorage();
         assertThat(storage.toString(), containsString("FakeCaveStorage"));
 
@@ -37,6 +41,33 @@ public class TestFactoryDynamicCreation {
         assertThat(config.get(0).getPortNumber(), is(27017));
     }
 
+    @Test
+    public void shouldDecorateCaveWithRoomCache() {
+        envReader.setNextExpectation(Config.SKYCAVE_CAVESTORAGE_IMPLEMENTATION,
+                "cloud.cave.doubles.FakeCaveStorage");
+        envReader.setNextExpectation(Config.SKYCAVE_DBSERVER,
+                "192.168.237.130:27017");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMFILTER, null);
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMCACHE, "caching");
+        CaveStorage storage = factory.createCaveStorage();
+        assertThat(storage, is(instanceOf(CachingCaveStorage.class)));
+        assertThat(storage.getRoom("(0,0,0)"), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldPutRoomCacheInFrontOfRoomFilter() {
+        envReader.setNextExpectation(Config.SKYCAVE_CAVESTORAGE_IMPLEMENTATION,
+                "cloud.cave.doubles.FakeCaveStorage");
+        envReader.setNextExpectation(Config.SKYCAVE_DBSERVER,
+                "192.168.237.130:27017");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMFILTER, "bloom");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMCACHE, "caching");
+        CaveStorage storage = factory.createCaveStorage();
+        assertThat(storage, is(instanceOf(CachingCaveStorage.class)));
+        assertThat(((CachingCaveStorage) storage).getDecoratee(), is(instanceOf(RoomFilterCaveStorage.class)));
+        assertThat(storage.getRoom("(0,0,0)"), is(notNullValue()));
+    }
+
     @Test
     public void shouldCreateProperSubscriptionInstances() {
         envReader.setNextExpectation(Config.SKYCAVE_SUBSCRIPTION_IMPLEMENTATION,
@@ -82,6 +113,8 @@ public class TestFactoryDynamicCreation {
                 "cloud.cave.doubles.FakeCaveStorage");
         envReader.setNextExpectation(Config.SKYCAVE_DBSERVER,
                 "192.168.237.130:27017,192.168.237.131:27018,192.168.237.132:27019");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMFILTER, null);
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMCACHE, null);
         CaveStorage storage = factory.createCaveStorage();
         assertThat(storage.toString(), containsString("FakeCaveStorage"));
 
@@ -125,6 +158,8 @@ public class TestFactoryDynamicCreation {
                 "cloud.cave.doubles.FakeCaveStorage");
         envReader.setNextExpectation(Config.SKYCAVE_DBSERVER,
                 "192.168.237.130:27017,192.168.237.131:27018,192.168.237.132:27019");
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMFILTER, null);
+        envReader.setNextExpectation(Config.SKYCAVE_ROOMCACHE, null);
         CaveStorage storage = factory.createCaveStorage();
 
         ServerConfiguration config = storage.getConfiguration();
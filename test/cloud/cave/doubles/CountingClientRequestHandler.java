@@ -0,0 +1,39 @@
+package cloud.cave.doubles;
+
+import org.json.simple.JSONObject;
+
+import cloud.cave.ipc.CaveIPCException;
+import cloud.cave.ipc.ClientRequestHandler;
+import cloud.cave.server.common.ServerConfiguration;
+
+/**
+ * A decorator that counts the requests sent through it.
+ */
+public class CountingClientRequestHandler implements ClientRequestHandler {
+    private final ClientRequestHandler decoratee;
+    private int count;
+
+    public CountingClientRequestHandler(ClientRequestHandler decoratee) {
+        this.decoratee = decoratee;
+        this.count = 0;
+    }
+
+    @Override
+    public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) throws CaveIPCException {
+        count++;
+        return decoratee.sendRequestAndBlockUntilReply(requestJson);
+    }
+
+    @Override
+    public void initialize(ServerConfiguration config) {
+        decoratee.initialize(config);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+}
@@ -0,0 +1,86 @@
+package cloud.cave.doubles;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.invalidation.*;
+import cloud.cave.server.service.ServerSubscriptionService;
+import cloud.cave.server.service.ServerWeatherService;
+import cloud.cave.service.*;
+
+/**
+ * A factory that creates test doubles but in case of the
+ * storage, returns the SAME storage to allow different caves
+ * access to the same underlying storage.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ */
+public class FactoryWithSharedStorage implements CaveServerFactory {
+    private CaveStorage storage;
+    private InvalidationBus invalidationBus;
+
+    public FactoryWithSharedStorage(CaveStorage storage) {
+        this.storage = storage;
+        this.invalidationBus = new InProcessInvalidationBus(0);
+    }
+
+    @Override
+    public CaveStorage createCaveStorage() {
+        // Return the SAME for both caves
+        return storage;
+    }
+
+    @Override
+    public SubscriptionService createSubscriptionServiceConnector() {
+        String host = "is-there-anybody-out-there";
+        int port = 57005;
+        ServerConfiguration serverConfiguration = new ServerConfiguration(host, port);
+
+        SubscriptionService service = new ServerSubscriptionService();
+        service.setRestRequester(new SubscriptionServiceRequestFake());
+        service.initialize(serverConfiguration);
+        return service;
+    }
+
+    @Override
+    public IRestRequest createRestRequester() {
+        return null;
+    }
+
+    @Override
+    public WeatherService createWeatherServiceConnector() {
+        String host = "is-there-anybody-out-there";
+        int port = 57005;
+        ServerConfiguration serverConfiguration = new ServerConfiguration(host, port);
+
+        WeatherService service = new ServerWeatherService();
+        service.initialize(serverConfiguration); // no config object required
+        service.setRestRequester(new WeatherServiceRequestFake());
+        service.setSecondsDelay(1);
+
+        return service;
+    }
+
+    @Override
+    public Reactor createReactor(Invoker invoker) {
+        // Not used...
+        return null;
+    }
+
+    @Override
+    public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
+        return new DatabaseCache(storage, weatherService);
+    }
+
+    @Override
+    public SessionTokenService createSessionTokenService(CaveStorage storage) {
+        return null;
+    }
+
+    @Override
+    public InvalidationBus createInvalidationBus() {
+        // Return the SAME for both caves
+        return invalidationBus;
+    }
+}
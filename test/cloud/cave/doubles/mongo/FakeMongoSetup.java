@@ -12,6 +12,7 @@ import org.bson.Document;
  */
 public class FakeMongoSetup implements IMongoSetup {
     private RuntimeException nextException = null;
+    private String unindexedCollection = null;
 
     @Override
     public MongoCollection<Document> getCollection(String name) {
@@ -28,6 +29,10 @@ public class FakeMongoSetup implements IMongoSetup {
                 return new PlayerMongoCollection();
             case ServerCaveStorage.COLLECTION_ROOMS:
                 return new RoomMongoCollection();
+            case ServerCaveStorage.COLLECTION_SESSIONS:
+                return new SessionMongoCollection();
+            case ServerCaveStorage.COLLECTION_REQUESTS:
+                return new RequestMongoCollection();
             default:
                 return null;
         }
@@ -37,6 +42,28 @@ public class FakeMongoSetup implements IMongoSetup {
         this.nextException = nextException;
     }
 
+    /**
+     * Make the query plans explained for a collection scan it, as if it
+     * had no indexes.
+     *
+     * @param collection the name of the collection
+     */
+    public void setUnindexedCollection(String collection) {
+        unindexedCollection = collection;
+    }
+
+    @Override
+    public Document runCommand(Document command) {
+        Document explained = (Document) command.get("explain");
+        Document plan;
+        if (explained.getString("find").equals(unindexedCollection)) {
+            plan = new Document("stage", "SORT").append("inputStage", new Document("stage", "COLLSCAN"));
+        } else {
+            plan = new Document("stage", "FETCH").append("inputStage", new Document("stage", "IXSCAN"));
+        }
+        return new Document("queryPlanner", new Document("winningPlan", plan)).append("ok", 1.0);
+    }
+
     @Override
     public void initialize(ServerConfiguration config) {
         // Ignore this, ain't needed
@@ -1,7 +1,13 @@
 package cloud.cave.doubles.mongo;
 
 import cloud.cave.domain.Region;
+import com.mongodb.MongoClient;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
@@ -14,10 +20,11 @@ import java.util.List;
  * @author Rohde Fischer
  */
 public class PlayerMongoCollection extends AbstractMongoCollection {
+    private List<Document> documentList;
     private FindIterable<Document> documentFindIterable;
 
     public PlayerMongoCollection() {
-        List<Document> documentList = new LinkedList<>();
+        documentList = new LinkedList<>();
         Document player = new Document()
                 .append("_id", "jabbeerwocky")
                 .append("playerName", "Jabberwocky")
@@ -33,7 +40,8 @@ public class PlayerMongoCollection extends AbstractMongoCollection {
                 .append("groupName", "evil")
                 .append("region", Region.COPENHAGEN.toString())
                 .append("positionAsString", "Croquet court")
-                .append("sessionID", "12");
+                .append("sessionID", "12")
+                .append("inCave", false);
         documentList.add(player);
 
         player = new Document()
@@ -42,7 +50,8 @@ public class PlayerMongoCollection extends AbstractMongoCollection {
                 .append("groupName", "curious")
                 .append("region", Region.AARHUS.toString())
                 .append("positionAsString", "Wonderland")
-                .append("sessionID", "42");
+                .append("sessionID", "42")
+                .append("inCave", true);
         documentList.add(player);
 
         documentFindIterable = new ListFindIterable(documentList);
@@ -50,6 +59,17 @@ public class PlayerMongoCollection extends AbstractMongoCollection {
 
     @Override
     public long count(Bson filter) {
+        // Only the count of the players in the cave honours its filter
+        BsonDocument rendered = filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+        if (rendered.equals(new BsonDocument("inCave", BsonBoolean.TRUE))) {
+            long inCave = 0;
+            for (Document player : documentList) {
+                if (Boolean.TRUE.equals(player.getBoolean("inCave"))) {
+                    inCave++;
+                }
+            }
+            return inCave;
+        }
         return 3;
     }
 
@@ -62,4 +82,19 @@ public class PlayerMongoCollection extends AbstractMongoCollection {
     public FindIterable<Document> find(Bson filter) {
         return documentFindIterable;
     }
+
+    @Override
+    public UpdateResult replaceOne(Bson bson, Document document, UpdateOptions updateOptions) {
+        return UpdateResult.acknowledged(0, 0L, null);
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson bson, Bson bson1) {
+        return UpdateResult.acknowledged(1, 1L, null);
+    }
+
+    @Override
+    public Document findOneAndUpdate(Bson bson, Bson bson1, FindOneAndUpdateOptions findOneAndUpdateOptions) {
+        return documentFindIterable.first();
+    }
 }
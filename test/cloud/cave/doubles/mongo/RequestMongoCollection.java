@@ -0,0 +1,46 @@
+package cloud.cave.doubles.mongo;
+
+import com.mongodb.client.FindIterable;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * License MIT
+ *
+ * @author Rohde Fischer
+ */
+public class RequestMongoCollection extends AbstractMongoCollection {
+    private FindIterable<Document> documentFindIterable;
+
+    public RequestMongoCollection() {
+        List<Document> documentList = new LinkedList<>();
+        documentList.add(new Document()
+                .append("_id", "alice:key")
+                .append("reply", "{\"error-code\":\"OK\"}"));
+
+        documentFindIterable = new ListFindIterable(documentList);
+    }
+
+    @Override
+    public long count() {
+        return 1;
+    }
+
+    @Override
+    public long count(Bson filter) {
+        return 1;
+    }
+
+    @Override
+    public FindIterable<Document> find() {
+        return documentFindIterable;
+    }
+
+    @Override
+    public FindIterable<Document> find(Bson filter) {
+        return documentFindIterable;
+    }
+}
@@ -24,7 +24,11 @@ public class RoomMongoCollection extends AbstractMongoCollection {
         List<Document> documentList = new LinkedList<>();
         Document room = new Document()
                 .append("_id", "(0,0,0)")
-                .append("description", "First room");
+                .append("description", "First room")
+                .append("exits", 5)
+                .append("x", 0)
+                .append("y", 0)
+                .append("z", 0);
         documentList.add(room);
 
         room = new Document()
@@ -0,0 +1,61 @@
+package cloud.cave.doubles.mongo;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * License MIT
+ *
+ * @author Rohde Fischer
+ */
+public class SessionMongoCollection extends AbstractMongoCollection {
+    private FindIterable<Document> documentFindIterable;
+
+    public SessionMongoCollection() {
+        List<Document> documentList = new LinkedList<>();
+        Document session = new Document()
+                .append("_id", "jabbeerwocky")
+                .append("sessionID", "318")
+                .append("lastSeen", new Date(0));
+        documentList.add(session);
+
+        session = new Document()
+                .append("_id", "alice")
+                .append("sessionID", "42")
+                .append("lastSeen", new Date());
+        documentList.add(session);
+
+        documentFindIterable = new ListFindIterable(documentList);
+    }
+
+    @Override
+    public long count() {
+        return 2;
+    }
+
+    @Override
+    public long count(Bson filter) {
+        return 2;
+    }
+
+    @Override
+    public FindIterable<Document> find() {
+        return documentFindIterable;
+    }
+
+    @Override
+    public FindIterable<Document> find(Bson filter) {
+        return documentFindIterable;
+    }
+
+    @Override
+    public Document findOneAndUpdate(Bson bson, Bson bson1, FindOneAndUpdateOptions findOneAndUpdateOptions) {
+        return documentFindIterable.first();
+    }
+}
@@ -0,0 +1,242 @@
+package cloud.cave.gateway;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.json.simple.JSONObject;
+import org.junit.*;
+
+import cloud.cave.client.CaveProxy;
+import cloud.cave.client.PlayerProxy;
+import cloud.cave.config.socket.MultiplexingClientRequestHandler;
+import cloud.cave.config.socket.MultiplexingSocketReactor;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.server.*;
+import cloud.cave.server.common.ServerConfiguration;
+
+/**
+ * Test the gateway that forwards client requests to the app servers,
+ * and the multiplexed connections between them.
+ *
+ * @author Rohde Fischer
+ */
+public class TestCaveGateway {
+    private static final int MULTIPLEX_TEST_PORT = 37123;
+    private static final int PUSH_TEST_PORT = 37124;
+
+    private Invoker serverInvoker;
+
+    @Before
+    public void setup() {
+        serverInvoker = new StandardInvoker(new StandardServerCave(new AllTestDoubleFactory()));
+    }
+
+    @Test
+    public void shouldForwardRequestsToAppServer() {
+        GatewayInvoker gateway = new GatewayInvoker(new LocalMethodCallClientRequestHandler(serverInvoker), 10);
+        Cave cave = new CaveProxy(new LocalMethodCallClientRequestHandler(gateway));
+
+        Player player = cave.login("mikkel_aarskort", "123").getPlayer();
+        assertThat(player.getLongRoomDescription(0), containsString("Mikkel"));
+        assertThat(player.move(Direction.NORTH), is(true));
+        assertThat(player.getPosition(), is("(0,1,0)"));
+        assertThat(gateway.getAvailableSlots(), is(10));
+    }
+
+    @Test
+    public void shouldRejectRequestsBeyondAdmissionLimit() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ClientRequestHandler blockingUpstream = new LocalMethodCallClientRequestHandler(serverInvoker) {
+            @Override
+            public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.sendRequestAndBlockUntilReply(requestJson);
+            }
+        };
+        final GatewayInvoker gateway = new GatewayInvoker(blockingUpstream, 1);
+        final JSONObject request = Marshaling.createRequestObject("", "none",
+                MarshalingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY, "");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<JSONObject> first = executor.submit(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() {
+                return gateway.handleRequest(request);
+            }
+        });
+        entered.await();
+
+        // The only slot is taken, so the next request is turned away
+        JSONObject rejected = gateway.handleRequest(request);
+        assertThat(rejected.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.SERVER_OVERLOADED));
+
+        release.countDown();
+        assertThat(first.get().get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+        assertThat(gateway.getAvailableSlots(), is(1));
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldNotLetTheQueuedRequestsOfOnePlayerStarveTheOthers() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ClientRequestHandler blockingUpstream = new LocalMethodCallClientRequestHandler(serverInvoker) {
+            @Override
+            public JSONObject sendRequestAndBlockUntilReply(JSONObject requestJson) {
+                if ("slow".equals(requestJson.get(MarshalingKeys.PLAYER_ID_KEY))) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.sendRequestAndBlockUntilReply(requestJson);
+            }
+        };
+        final GatewayInvoker gateway = new GatewayInvoker(blockingUpstream, 2, 2);
+        final JSONObject slowRequest = Marshaling.createRequestObject("slow", "none",
+                MarshalingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY, "");
+        JSONObject otherRequest = Marshaling.createRequestObject("other", "none",
+                MarshalingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY, "");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<JSONObject>> slow = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            slow.add(executor.submit(new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() {
+                    return gateway.handleRequest(slowRequest);
+                }
+            }));
+        }
+        entered.await();
+        while (gateway.getPendingRequests("slow") < 2) {
+            Thread.sleep(10);
+        }
+
+        // The second request of the slow player waits for its turn without a slot
+        assertThat(gateway.getAvailableSlots(), is(1));
+        JSONObject beyondCap = gateway.handleRequest(slowRequest);
+        assertThat(beyondCap.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.SERVER_OVERLOADED));
+        JSONObject other = gateway.handleRequest(otherRequest);
+        assertThat(other.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(not(StatusCode.SERVER_OVERLOADED)));
+
+        release.countDown();
+        for (Future<JSONObject> reply : slow) {
+            assertThat(reply.get().get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(not(StatusCode.SERVER_OVERLOADED)));
+        }
+        assertThat(gateway.getAvailableSlots(), is(2));
+        assertThat(gateway.getPendingRequests("slow"), is(0));
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldMultiplexConcurrentRequestsOverFewConnections() throws Exception {
+        MultiplexingSocketReactor reactor = new MultiplexingSocketReactor();
+        reactor.initialize(serverInvoker, new ServerConfiguration("localhost", MULTIPLEX_TEST_PORT));
+        Thread reactorThread = new Thread(reactor);
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+
+        try {
+            final MultiplexingClientRequestHandler crh = new MultiplexingClientRequestHandler();
+            crh.initialize(new ServerConfiguration("localhost", MULTIPLEX_TEST_PORT));
+            final Cave cave = new CaveProxy(crh);
+            awaitReactor(crh);
+
+            String[][] logins = {{"mikkel_aarskort", "123"}, {"mathilde_aarskort", "321"}, {"magnus_aarskort", "312"}};
+            ExecutorService executor = Executors.newFixedThreadPool(logins.length);
+            List<Future<String>> names = new ArrayList<>();
+            for (final String[] login : logins) {
+                names.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        Player player = cave.login(login[0], login[1]).getPlayer();
+                        for (int i = 0; i < 20; i++) {
+                            assertThat(player.getLongRoomDescription(0), containsString(player.getName()));
+                        }
+                        return player.getName();
+                    }
+                }));
+            }
+
+            // Every thread got the replies to its own requests
+            assertThat(names.get(0).get(), is("Mikkel"));
+            assertThat(names.get(1).get(), is("Mathilde"));
+            assertThat(names.get(2).get(), is("Magnus"));
+            executor.shutdown();
+        } finally {
+            reactor.stop();
+        }
+    }
+
+    @Test
+    public void shouldPushRoomEventsOverMultiplexedConnection() throws Exception {
+        MultiplexingSocketReactor reactor = new MultiplexingSocketReactor();
+        reactor.initialize(serverInvoker, new ServerConfiguration("localhost", PUSH_TEST_PORT));
+        Thread reactorThread = new Thread(reactor);
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+
+        try {
+            MultiplexingClientRequestHandler crh = new MultiplexingClientRequestHandler();
+            crh.initialize(new ServerConfiguration("localhost", PUSH_TEST_PORT));
+            final BlockingQueue<JSONObject> received = new LinkedBlockingQueue<>();
+            crh.setEventSink(new EventSink() {
+                @Override
+                public boolean offer(JSONObject event) {
+                    return received.offer(event);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            Cave cave = new CaveProxy(crh);
+            awaitReactor(crh);
+
+            PlayerProxy mikkel = (PlayerProxy) cave.login("mikkel_aarskort", "123").getPlayer();
+            assertThat(mikkel.subscribeToRoomEvents(), is(true));
+            cave.login("mathilde_aarskort", "321").getPlayer().addMessage("Pushed to Mikkel");
+
+            JSONObject entered = received.poll(5, TimeUnit.SECONDS);
+            JSONObject message = received.poll(5, TimeUnit.SECONDS);
+            assertThat(entered.get(MarshalingKeys.EVENT_TYPE_KEY).toString(), is(MarshalingKeys.PLAYER_ENTERED_EVENT));
+            assertThat(message.get(MarshalingKeys.EVENT_MESSAGE_KEY).toString(), is("Pushed to Mikkel"));
+        } finally {
+            reactor.stop();
+        }
+    }
+
+    private static void awaitReactor(ClientRequestHandler crh) throws InterruptedException {
+        JSONObject request = Marshaling.createRequestObject("", "none",
+                MarshalingKeys.DESCRIBE_CONFIGURATION_METHOD_KEY, "");
+        for (int i = 0; i < 50; i++) {
+            try {
+                crh.sendRequestAndBlockUntilReply(request);
+                return;
+            } catch (CaveIPCException e) {
+                Thread.sleep(100);
+            }
+        }
+        fail("The reactor did not start listening");
+    }
+}
@@ -0,0 +1,160 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.domain.Player;
+import cloud.cave.domain.Region;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the bounded session cache evicts players by size and time, and
+ * notices sessions taken over by logins on other app servers.
+ *
+ * @author Rohde Fischer
+ */
+public class TestBoundedSessionCache {
+    private CaveStorage storage;
+    private FakeTicker ticker;
+    private BoundedSessionCache cache;
+
+    @Before
+    public void setup() {
+        storage = new FakeCaveStorage();
+        storage.initialize(null);
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s1"));
+        storage.updatePlayerRecord(new PlayerRecord("magnus", "Magnus", "grp1", Region.AARHUS, "(0,0,0)", "s2"));
+        storage.updatePlayerRecord(new PlayerRecord("mathilde", "Mathilde", "grp1", Region.AARHUS, "(0,0,0)", null));
+
+        ticker = new FakeTicker();
+        cache = new BoundedSessionCache(storage, null, 10, 60, 600, 1000, ticker);
+    }
+
+    @Test
+    public void shouldLoadMissingPlayersWithSession() {
+        assertThat(cache.get("mikkel").getSessionID(), is("s1"));
+        assertThat(cache.get("mathilde"), is(nullValue()));
+
+        cache.get("mikkel");
+        assertThat(cache.getStats().hitCount(), is(1L));
+        assertThat(cache.getStats().missCount(), is(2L));
+    }
+
+    @Test
+    public void shouldEvictIdleAndOldPlayers() {
+        cache.get("mikkel");
+        cache.get("magnus");
+
+        // Mikkel keeps being used, Magnus does not
+        for (int i = 0; i < 10; i++) {
+            ticker.advance(50, TimeUnit.SECONDS);
+            cache.get("mikkel");
+        }
+        assertThat(cache.size(), is(1L));
+
+        // But even Mikkel is evicted after the absolute time
+        ticker.advance(100, TimeUnit.SECONDS);
+        cache.get("magnus");
+        assertThat(cache.size(), is(1L));
+        assertThat(cache.getStats().evictionCount(), is(2L));
+    }
+
+    @Test
+    public void shouldBoundTheNumberOfPlayers() {
+        for (int i = 0; i < 20; i++) {
+            String id = "player" + i;
+            storage.updatePlayerRecord(new PlayerRecord(id, id, "grp1", Region.AARHUS, "(0,0,0)", "s" + i));
+            cache.get(id);
+        }
+        assertThat(cache.size(), is(lessThanOrEqualTo(10L)));
+        assertThat(cache.getStats().evictionCount(), is(greaterThanOrEqualTo(10L)));
+    }
+
+    @Test
+    public void shouldDetectRemoteTakeoverAfterVersionCheckInterval() {
+        Player cached = cache.get("mikkel");
+
+        // Mikkel logs in on another app server
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s3"));
+
+        // Within the interval the cached session is trusted
+        assertThat(cache.get("mikkel"), is(sameInstance(cached)));
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertThat(cache.get("mikkel").getSessionID(), is("s3"));
+        assertThat(cache.getTakeoverCount(), is(1L));
+
+        // And a logout elsewhere removes the player
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", null));
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertThat(cache.get("mikkel"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldRefreshOutdatedSessionAtOnce() {
+        cache.get("mikkel");
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s3"));
+
+        assertThat(cache.refresh("mikkel", "s3").getSessionID(), is("s3"));
+        assertThat(cache.get("mikkel").getSessionID(), is("s3"));
+    }
+
+    @Test
+    public void shouldRefuseOutdatedSessionOncePerInterval() {
+        final int[] reads = {0};
+        storage = new FakeCaveStorage() {
+            @Override
+            public PlayerRecord getPlayerByID(String playerID) {
+                reads[0]++;
+                return super.getPlayerByID(playerID);
+            }
+        };
+        storage.initialize(null);
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s1"));
+        cache = new BoundedSessionCache(storage, null, 10, 60, 600, 1000, ticker);
+        cache.get("mikkel");
+
+        // A client with an old session asks again and again
+        int readsBefore = reads[0];
+        for (int i = 0; i < 10; i++) {
+            assertThat(cache.refresh("mikkel", "s0").getSessionID(), is("s1"));
+        }
+        assertThat(reads[0] - readsBefore, is(1));
+    }
+
+    @Test
+    public void shouldNoticePlayerMovedOnAnotherServer() {
+        BoundedSessionCache other = new BoundedSessionCache(storage, null, 10, 60, 600, 1000, ticker);
+        Player here = cache.get("mikkel");
+        assertThat(other.get("mikkel").move(Direction.NORTH), is(true));
+
+        // Moving from the outdated position is refused, and the player is
+        // moved from where he really is instead, where there is no room east
+        assertThat(here.move(Direction.EAST), is(false));
+        assertThat(storage.getPlayerByID("mikkel").getPositionAsString(), is("(0,1,0)"));
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertThat(cache.get("mikkel").getPosition(), is("(0,1,0)"));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
+}
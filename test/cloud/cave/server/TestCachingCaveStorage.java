@@ -0,0 +1,89 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.SpyCaveStorage;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.invalidation.Invalidation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the rooms are read through the cache once, also when many
+ * threads ask at once, and that added rooms are seen.
+ *
+ * @author Rohde Fischer
+ */
+public class TestCachingCaveStorage {
+    private SpyCaveStorage spy;
+    private CachingCaveStorage storage;
+
+    @Before
+    public void setup() {
+        FakeCaveStorage fake = new FakeCaveStorage();
+        fake.initialize(null);
+        spy = new SpyCaveStorage(fake);
+        storage = new CachingCaveStorage(spy);
+    }
+
+    @Test
+    public void shouldLoadRoomOnceForConcurrentReaders() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService players = Executors.newFixedThreadPool(100);
+        try {
+            ArrayList<Future<RoomRecord>> reads = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                reads.add(players.submit(new Callable<RoomRecord>() {
+                    @Override
+                    public RoomRecord call() throws InterruptedException {
+                        start.await();
+                        return storage.getRoom("(0,0,0)");
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<RoomRecord> read : reads) {
+                assertThat(read.get(5, TimeUnit.SECONDS).description, containsString("brick building"));
+            }
+        } finally {
+            players.shutdown();
+        }
+
+        assertThat(spy.getRoomGetCount(), is(1));
+        assertThat(storage.getRoomStats().hitCount(), is(99L));
+        assertThat(storage.getRoomStats().hitRate(), is(closeTo(0.99, 0.001)));
+    }
+
+    @Test
+    public void shouldSeeRoomAddedAtEmptyPosition() {
+        assertThat(storage.getRoom("(0,2,0)"), is(nullValue()));
+        assertThat(storage.getRoom("(0,2,0)"), is(nullValue()));
+        assertThat(spy.getRoomGetCount(), is(1));
+        assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"), not(hasItem(Direction.NORTH)));
+
+        storage.addRoom("(0,2,0)", new RoomRecord("A dug room", new ArrayList<String>()));
+
+        assertThat(storage.getRoom("(0,2,0)").description, is("A dug room"));
+        assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"), hasItem(Direction.NORTH));
+        assertThat(storage.getSetOfExitsFromRoom("(0,2,0)"), hasItem(Direction.SOUTH));
+    }
+
+    @Test
+    public void shouldSeeRoomAddedOnOtherServer() {
+        assertThat(storage.getRoom("(0,2,0)"), is(nullValue()));
+
+        // Dug on another server, directly in the storage
+        spy.addRoom("(0,2,0)", new RoomRecord("A dug room", new ArrayList<String>()));
+        assertThat(storage.getRoom("(0,2,0)"), is(nullValue()));
+
+        storage.invalidate(Collections.singletonList(Invalidation.room("(0,2,0)")));
+        assertThat(storage.getRoom("(0,2,0)").description, is("A dug room"));
+    }
+}
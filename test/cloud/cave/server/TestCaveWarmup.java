@@ -0,0 +1,87 @@
+package cloud.cave.server;
+
+import cloud.cave.doubles.AllTestDoubleFactory;
+import cloud.cave.ipc.Invoker;
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.ipc.StatusCode;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the warmup of an app server, and that it answers pings as not ready
+ * until it has warmed up.
+ *
+ * @author Rohde Fischer
+ */
+public class TestCaveWarmup {
+    private StandardServerCave cave;
+    private StandardInvoker invoker;
+
+    @Before
+    public void setup() {
+        cave = new StandardServerCave(new AllTestDoubleFactory());
+        invoker = new StandardInvoker(cave);
+    }
+
+    @Test
+    public void shouldAnswerPingByReadiness() {
+        assertThat(ping(), is(StatusCode.OK));
+
+        cave.setReady(false);
+        assertThat(ping(), is(StatusCode.SERVER_NOT_READY));
+
+        cave.setReady(true);
+        assertThat(ping(), is(StatusCode.OK));
+    }
+
+    @Test
+    public void shouldPreloadOriginAndNeighbours() {
+        // Five of the seven rooms exist in the fake storage
+        assertThat(new CaveWarmup(cave, invoker).preloadHotRooms(), is(5));
+    }
+
+    @Test
+    public void shouldRunSyntheticRequestsWithoutPlayers() {
+        cave.setReady(false);
+        assertThat(new CaveWarmup(cave, invoker).run(100), is(100));
+        assertThat(cave.getStorage().computeCountOfActivePlayers(), is(0L));
+
+        // The synthetic sessions are gone, and leave no heartbeats behind
+        assertThat(cave.getCache().get(CaveWarmup.SYNTHETIC_PLAYER_PREFIX + "0"), is(nullValue()));
+        assertThat(cave.getSessionReaper().flushHeartbeats(), is(0));
+    }
+
+    @Test
+    public void shouldTurnPlayersAwayUntilReady() {
+        ReadinessGateInvoker gate = new ReadinessGateInvoker(cave, invoker);
+        cave.setReady(false);
+        assertThat(loginStatus(gate), is(StatusCode.SERVER_NOT_READY));
+        assertThat(gate.handleRequest(pingRequest()).get(MarshalingKeys.ERROR_CODE_KEY).toString(),
+                is(StatusCode.SERVER_NOT_READY));
+
+        // The warmup runs behind the gate meanwhile
+        assertThat(new CaveWarmup(cave, invoker).run(8), is(8));
+
+        cave.setReady(true);
+        assertThat(loginStatus(gate), is(StatusCode.OK));
+    }
+
+    private String ping() {
+        return invoker.handleRequest(pingRequest()).get(MarshalingKeys.ERROR_CODE_KEY).toString();
+    }
+
+    private static JSONObject pingRequest() {
+        return Marshaling.createRequestObject("", "none", MarshalingKeys.PING_METHOD_KEY, "");
+    }
+
+    private static String loginStatus(Invoker invoker) {
+        JSONObject request = Marshaling.createRequestObject("ignore-player-id", "ignore-session-id",
+                MarshalingKeys.LOGIN_METHOD_KEY, "mikkel_aarskort", "123");
+        return invoker.handleRequest(request).get(MarshalingKeys.ERROR_CODE_KEY).toString();
+    }
+}
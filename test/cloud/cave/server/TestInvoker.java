@@ -4,13 +4,20 @@ import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import org.json.simple.*;
 import org.junit.Test;
 
 import cloud.cave.common.CommonCaveTests;
+import cloud.cave.config.CaveServerFactory;
 import cloud.cave.domain.*;
+import cloud.cave.doubles.FactoryWithSharedStorage;
+import cloud.cave.doubles.FakeCaveStorage;
 import cloud.cave.ipc.*;
+import cloud.cave.server.service.ServerCaveStorage;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Ticker;
 
 /**
  * Testing of the StandardInvoker. Most of its behavior
@@ -56,7 +63,138 @@ public class TestInvoker {
         assertThat(myCaveDispatcher.getCount(), is(1));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldExecuteRequestWithSameIdempotencyKeyOnce() {
+        Cave cave = CommonCaveTests.createTestDoubledConfiguredCave();
+        StandardInvoker invoker = new StandardInvoker(cave);
+        Player player = cave.login("mikkel_aarskort", "123").getPlayer();
+        int before = player.getMessageList().size();
+
+        JSONObject requestJson = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.ADD_MESSAGE_METHOD_KEY, "Only once please");
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-1");
+
+        JSONObject reply = invoker.handleRequest(requestJson);
+        JSONObject retryReply = invoker.handleRequest(requestJson);
+
+        assertThat(retryReply, is(reply));
+        assertThat(player.getMessageList().size(), is(before + 1));
 
+        // A new key is a new request
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-2");
+        invoker.handleRequest(requestJson);
+        assertThat(player.getMessageList().size(), is(before + 2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldExecuteRequestRetriedOnAnotherServerOnce() {
+        // Two app servers sharing the storage, the retry reaching the second
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        CaveServerFactory factory = new FactoryWithSharedStorage(storage);
+        Cave cave1 = new StandardServerCave(factory);
+        Cave cave2 = new StandardServerCave(factory);
+        StandardInvoker invoker1 = new StandardInvoker(cave1);
+        StandardInvoker invoker2 = new StandardInvoker(cave2);
+
+        Player player = cave1.login("mikkel_aarskort", "123").getPlayer();
+        int before = player.getMessageList().size();
+
+        JSONObject requestJson = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.ADD_MESSAGE_METHOD_KEY, "Only once please");
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-1");
+
+        JSONObject reply = invoker1.handleRequest(requestJson);
+        JSONObject retryReply = invoker2.handleRequest(requestJson);
+
+        assertThat(retryReply, is(reply));
+        assertThat(player.getMessageList().size(), is(before + 1));
+
+        // A retry racing the original still executing elsewhere is told to come back
+        storage.claimRequest(player.getID() + ":key-2");
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-2");
+        reply = invoker2.handleRequest(requestJson);
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.SERVER_OVERLOADED));
+        assertThat(player.getMessageList().size(), is(before + 1));
+
+        // Once the original failed, the retry executes it
+        storage.completeRequest(player.getID() + ":key-2", null);
+        reply = invoker2.handleRequest(requestJson);
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+        assertThat(player.getMessageList().size(), is(before + 2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldTakeOverClaimOfServerThatCrashed() {
+        FakeCaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        FakeTicker ticker = new FakeTicker();
+        storage.setTicker(ticker);
+        Cave cave = new StandardServerCave(new FactoryWithSharedStorage(storage));
+        StandardInvoker invoker = new StandardInvoker(cave);
+        Player player = cave.login("mikkel_aarskort", "123").getPlayer();
+        int before = player.getMessageList().size();
+
+        // The server that claimed the request crashed before completing it
+        storage.claimRequest(player.getID() + ":key-1");
+        JSONObject requestJson = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.ADD_MESSAGE_METHOD_KEY, "Once the lease is over");
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-1");
+        JSONObject reply = invoker.handleRequest(requestJson);
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.SERVER_OVERLOADED));
+
+        ticker.advance(ServerCaveStorage.CLAIM_LEASE_SECONDS + 1, TimeUnit.SECONDS);
+        reply = invoker.handleRequest(requestJson);
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+        assertThat(player.getMessageList().size(), is(before + 1));
+
+        // A completed claim is never taken over
+        ticker.advance(ServerCaveStorage.CLAIM_LEASE_SECONDS + 1, TimeUnit.SECONDS);
+        assertThat(storage.claimRequest(player.getID() + ":key-1"), is(false));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldNotAnswerRetryOfAnotherSessionByStoredReply() {
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        CaveServerFactory factory = new FactoryWithSharedStorage(storage);
+        Cave cave1 = new StandardServerCave(factory);
+        Cave cave2 = new StandardServerCave(factory);
+        StandardInvoker invoker1 = new StandardInvoker(cave1);
+        StandardInvoker invoker2 = new StandardInvoker(cave2);
+
+        Player player = cave1.login("mikkel_aarskort", "123").getPlayer();
+        JSONObject requestJson = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.GET_POSITION_METHOD_KEY, "");
+        requestJson.put(MarshalingKeys.IDEMPOTENCY_KEY, "key-1");
+        assertThat(invoker1.handleRequest(requestJson).get(MarshalingKeys.ERROR_CODE_KEY).toString(),
+                is(StatusCode.OK));
+
+        // The player logs in again, so the retries of the old session are
+        // not answered, whether from the storage or from the server itself
+        cave2.login("mikkel_aarskort", "123");
+        assertThat(invoker2.handleRequest(requestJson).get(MarshalingKeys.ERROR_CODE_KEY).toString(),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+        assertThat(invoker1.handleRequest(requestJson).get(MarshalingKeys.ERROR_CODE_KEY).toString(),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
 }
 
 class MyCaveDispatcher extends CaveDispatcher {
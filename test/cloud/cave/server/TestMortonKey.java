@@ -0,0 +1,81 @@
+package cloud.cave.server;
+
+import cloud.cave.server.common.MortonKey;
+import cloud.cave.server.common.Point3;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the Morton keys of positions, and that a box is covered by the key
+ * ranges it is split into.
+ *
+ * @author Rohde Fischer
+ */
+public class TestMortonKey {
+    @Test
+    public void shouldDecodeWhatIsEncoded() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            Point3 position = new Point3(coordinate(random), coordinate(random), coordinate(random));
+            assertThat(MortonKey.decode(MortonKey.encode(position)), is(position));
+        }
+        Point3 corner = new Point3(MortonKey.MAX_COORDINATE, MortonKey.MIN_COORDINATE, MortonKey.MAX_COORDINATE);
+        assertThat(MortonKey.decode(MortonKey.encode(corner)), is(corner));
+        assertThat(MortonKey.fits(new Point3(MortonKey.MAX_COORDINATE + 1, 0, 0)), is(false));
+    }
+
+    @Test
+    public void shouldKeepNeighboursClose() {
+        long origin = MortonKey.encode(new Point3(0, 0, 0));
+        assertThat(MortonKey.encode(new Point3(1, 0, 0)) - origin, is(1L));
+        assertThat(MortonKey.encode(new Point3(0, 1, 0)) - origin, is(2L));
+        assertThat(MortonKey.encode(new Point3(0, 0, 1)) - origin, is(4L));
+    }
+
+    @Test
+    public void shouldCoverBoxByFewRanges() {
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            Point3 min = new Point3(random.nextInt(40) - 20, random.nextInt(40) - 20, random.nextInt(6) - 3);
+            Point3 max = new Point3(min.x() + random.nextInt(12), min.y() + random.nextInt(12), min.z() + random.nextInt(3));
+            List<MortonKey.Range> ranges = MortonKey.ranges(min, max, 8);
+            assertThat(ranges.size(), is(lessThanOrEqualTo(8)));
+            for (int x = min.x(); x <= max.x(); x++) {
+                for (int y = min.y(); y <= max.y(); y++) {
+                    for (int z = min.z(); z <= max.z(); z++) {
+                        assertThat(isCovered(ranges, MortonKey.encode(new Point3(x, y, z))), is(true));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldSplitBoxExactlyGivenEnoughRanges() {
+        Point3 min = new Point3(-3, -2, 0);
+        Point3 max = new Point3(4, 5, 1);
+        long keys = 0;
+        for (MortonKey.Range range : MortonKey.ranges(min, max, 1000)) {
+            keys += range.to - range.from + 1;
+        }
+        assertThat(keys, is(8L * 8 * 2));
+    }
+
+    private static boolean isCovered(List<MortonKey.Range> ranges, long key) {
+        for (MortonKey.Range range : ranges) {
+            if (key >= range.from && key <= range.to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int coordinate(Random random) {
+        return random.nextInt(MortonKey.MAX_COORDINATE - MortonKey.MIN_COORDINATE + 1) + MortonKey.MIN_COORDINATE;
+    }
+}
@@ -0,0 +1,101 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.SpyCaveStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the neighbourhood of a room moved to is read into the room
+ * cache, and that the prefetches of players moving on are cancelled and
+ * the ones too many dropped.
+ *
+ * @author Rohde Fischer
+ */
+public class TestNeighbourhoodPrefetcher {
+    private final CountDownLatch blocking = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private SpyCaveStorage spy;
+    private CachingCaveStorage storage;
+    private NeighbourhoodPrefetcher prefetcher;
+
+    @Before
+    public void setup() {
+        FakeCaveStorage fake = new FakeCaveStorage() {
+            @Override
+            public List<Direction> getSetOfExitsFromRoom(String positionString) {
+                // A room whose exits take until released, to keep the thread busy
+                if (positionString.equals("(9,9,9)")) {
+                    blocking.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getSetOfExitsFromRoom(positionString);
+            }
+        };
+        fake.initialize(null);
+        spy = new SpyCaveStorage(fake);
+        storage = new CachingCaveStorage(spy);
+        prefetcher = new NeighbourhoodPrefetcher(storage);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        prefetcher.stop();
+    }
+
+    @Test
+    public void shouldCacheNeighboursOfRoomMovedTo() {
+        prefetcher.start(1, 10);
+        prefetcher.moved("user-001", "(0,0,0)");
+        prefetcher.stop();
+
+        assertThat(prefetcher.getPrefetchedCount(), is(1L));
+        int roomGets = spy.getRoomGetCount();
+        assertThat(storage.getRoom("(0,1,0)").description, containsString("open forest"));
+        assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"), hasItem(Direction.SOUTH));
+        assertThat(storage.getRoom("(1,0,0)"), is(notNullValue()));
+        assertThat(spy.getRoomGetCount(), is(roomGets));
+        assertThat(storage.getExitStats().missCount(), is(5L));
+    }
+
+    @Test
+    public void shouldNotPrefetchUntilStarted() {
+        prefetcher.moved("user-001", "(0,0,0)");
+
+        assertThat(prefetcher.getPrefetchedCount(), is(0L));
+        assertThat(spy.getRoomGetCount(), is(0));
+    }
+
+    @Test
+    public void shouldCancelPrefetchOfRoomLeftAndDropWhenFull() throws InterruptedException {
+        prefetcher.start(1, 1);
+        // Keep the only thread busy, so the next prefetches wait
+        prefetcher.moved("user-blocker", "(9,9,9)");
+        blocking.await(5, TimeUnit.SECONDS);
+
+        prefetcher.moved("user-001", "(0,0,0)");
+        prefetcher.moved("user-001", "(0,1,0)");
+        assertThat(prefetcher.getCancelledCount(), is(1L));
+
+        prefetcher.moved("user-002", "(0,0,0)");
+        assertThat(prefetcher.getDroppedCount(), is(1L));
+
+        release.countDown();
+        prefetcher.stop();
+        assertThat(prefetcher.getPrefetchedCount(), is(2L));
+    }
+}
@@ -0,0 +1,104 @@
+package cloud.cave.server;
+
+import cloud.cave.common.CaveStorageException;
+import cloud.cave.domain.Region;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.PlayerRecordUpdate;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test that player records are updated by compare-and-set on their version,
+ * and that an update retries on top of the writes of others.
+ *
+ * @author Rohde Fischer
+ */
+public class TestOptimisticUpdate {
+    private FakeCaveStorage storage;
+
+    @Before
+    public void setup() {
+        storage = new FakeCaveStorage();
+        storage.initialize(null);
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s1"));
+    }
+
+    @Test
+    public void shouldOnlySetExpectedVersion() {
+        assertThat(storage.getPlayerByID("mikkel").getVersion(), is(1L));
+
+        PlayerRecord moved = new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,1,0)", "s1");
+        assertThat(storage.compareAndSetPlayerRecord(moved, 0), is(false));
+        assertThat(storage.compareAndSetPlayerRecord(moved, 1), is(true));
+        assertThat(storage.compareAndSetPlayerRecord(moved, 1), is(false));
+
+        assertThat(storage.getPlayerByID("mikkel").getVersion(), is(2L));
+        assertThat(storage.getPlayerByID("mikkel").getPositionAsString(), is("(0,1,0)"));
+
+        // Version 0 creates missing records
+        PlayerRecord magnus = new PlayerRecord("magnus", "Magnus", "grp1", Region.AARHUS, "(0,0,0)", "s2");
+        assertThat(storage.compareAndSetPlayerRecord(magnus, 0), is(true));
+        assertThat(storage.getPlayerByID("magnus").getVersion(), is(1L));
+    }
+
+    @Test
+    public void shouldRetryOnTopOfConcurrentWrite() {
+        PlayerRecord written = new PlayerRecordUpdate() {
+            private boolean interleaved;
+
+            @Override
+            protected PlayerRecord apply(PlayerRecord current) {
+                if (!interleaved) {
+                    // Another server logs Mikkel out between our read and write
+                    interleaved = true;
+                    storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS,
+                            current.getPositionAsString(), null));
+                }
+                return new PlayerRecord(current.getPlayerID(), current.getPlayerName(), current.getGroupName(),
+                        current.getRegion(), "(1,0,0)", current.getSessionId());
+            }
+        }.run(storage, "mikkel");
+
+        assertThat(written.getPositionAsString(), is("(1,0,0)"));
+        PlayerRecord stored = storage.getPlayerByID("mikkel");
+        assertThat(stored.getPositionAsString(), is("(1,0,0)"));
+        assertThat(stored.getSessionId(), is(nullValue()));
+        assertThat(stored.getVersion(), is(3L));
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() {
+        final int[] attempts = new int[1];
+        try {
+            new PlayerRecordUpdate() {
+                @Override
+                protected PlayerRecord apply(PlayerRecord current) {
+                    attempts[0]++;
+                    storage.updatePlayerRecord(current);
+                    return current;
+                }
+            }.run(storage, "mikkel");
+            fail("Should give up on a record that always changes");
+        } catch (CaveStorageException e) {
+            assertThat(attempts[0], is(PlayerRecordUpdate.MAX_ATTEMPTS));
+        }
+    }
+
+    @Test
+    public void shouldNotWriteWhenNothingToUpdate() {
+        PlayerRecord written = new PlayerRecordUpdate() {
+            @Override
+            protected PlayerRecord apply(PlayerRecord current) {
+                return null;
+            }
+        }.run(storage, "mikkel");
+
+        assertThat(written, is(nullValue()));
+        assertThat(storage.getPlayerByID("mikkel").getVersion(), is(1L));
+    }
+}
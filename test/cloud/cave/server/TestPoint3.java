@@ -0,0 +1,49 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Direction;
+import cloud.cave.server.common.Point3;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the parsing of position strings and the moves between positions.
+ *
+ * @author Rohde Fischer
+ */
+public class TestPoint3 {
+    @Test
+    public void shouldParseAndFormatPositionStrings() {
+        Point3 position = Point3.parseString("(-12,0,345)");
+        assertThat(position.x(), is(-12));
+        assertThat(position.y(), is(0));
+        assertThat(position.z(), is(345));
+        assertThat(position.getPositionString(), is("(-12,0,345)"));
+        assertThat(Point3.parseString("(2147483647,-2147483648,0)").getPositionString(),
+                is("(2147483647,-2147483648,0)"));
+    }
+
+    @Test
+    public void shouldRejectWhatIsNotAPosition() {
+        for (String notPosition : new String[]{"Wonderland", "(0,0)", "(0,0,0,0)", "(0,,0)", "(0,a,0)", "0,0,0",
+                "(0,0,-)", "(2147483648,0,0)"}) {
+            try {
+                Point3.parseString(notPosition);
+                throw new AssertionError("Parsed " + notPosition);
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), containsString(notPosition));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMoveToNewPositionLeavingTheOldOne() {
+        Point3 origin = new Point3(0, 0, 0);
+        assertThat(origin.translate(Direction.NORTH), is(new Point3(0, 1, 0)));
+        assertThat(origin.translate(Direction.WEST).getPositionString(), is("(-1,0,0)"));
+        assertThat(origin.translate(Direction.DOWN), is(new Point3(0, 0, -1)));
+        assertThat(origin.getPositionString(), is("(0,0,0)"));
+        assertThat(origin.translate(Direction.UP).hashCode(), is(new Point3(0, 0, 1).hashCode()));
+    }
+}
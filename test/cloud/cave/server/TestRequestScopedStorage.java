@@ -0,0 +1,105 @@
+package cloud.cave.server;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.domain.Direction;
+import cloud.cave.domain.Player;
+import cloud.cave.doubles.AllTestDoubleFactory;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.SpyCaveStorage;
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.ipc.StatusCode;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.service.CaveStorage;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the storage is read at most once per key while the invoker
+ * handles a request, and that writes are seen by the later reads of the
+ * same request.
+ *
+ * @author Rohde Fischer
+ */
+public class TestRequestScopedStorage {
+    private SpyCaveStorage spy;
+    private StandardServerCave cave;
+    private StandardInvoker invoker;
+    private Player mikkel;
+
+    @Before
+    public void setup() {
+        CaveServerFactory factory = new AllTestDoubleFactory() {
+            @Override
+            public CaveStorage createCaveStorage() {
+                CaveStorage storage = new FakeCaveStorage();
+                storage.initialize(null);
+                spy = new SpyCaveStorage(storage);
+                return spy;
+            }
+        };
+        cave = new StandardServerCave(factory);
+        invoker = new StandardInvoker(cave);
+        mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+    }
+
+    @Test
+    public void shouldReadPlayerOnceDuringMove() {
+        int playerReadsBefore = spy.getPlayerGetCount();
+
+        JSONObject reply = invoker.handleRequest(Marshaling.createRequestObject(mikkel.getID(),
+                mikkel.getSessionID(), MarshalingKeys.MOVE_METHOD_KEY, Direction.NORTH.toString()));
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+
+        // The move reads and writes the player, and the reply uses the new position
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(lessThanOrEqualTo(1)));
+        assertThat(reply.get(MarshalingKeys.RETURNVALUE_HEAD_KEY).toString(), is("true"));
+        assertThat(reply.get("position").toString(), is("(0,1,0)"));
+        assertThat(spy.getPlayerByID(mikkel.getID()).getPositionAsString(), is("(0,1,0)"));
+    }
+
+    @Test
+    public void shouldSeeOwnWritesWithinRequest() {
+        RequestScopedCaveStorage storage = cave.getStorage();
+        storage.beginUnitOfWork();
+        try {
+            assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"), not(hasItem(Direction.NORTH)));
+            assertThat(storage.getRoom("(0,2,0)"), is(nullValue()));
+
+            storage.addRoom("(0,2,0)", new RoomRecord("A dug room", new ArrayList<String>()));
+            assertThat(storage.getSetOfExitsFromRoom("(0,1,0)"), hasItem(Direction.NORTH));
+            assertThat(storage.getRoom("(0,2,0)").description, is("A dug room"));
+        } finally {
+            storage.endUnitOfWork();
+        }
+    }
+
+    @Test
+    public void shouldNotRememberOutsideRequests() {
+        RequestScopedCaveStorage storage = cave.getStorage();
+        int playerReadsBefore = spy.getPlayerGetCount();
+
+        storage.getPlayerByID(mikkel.getID());
+        storage.getPlayerByID(mikkel.getID());
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(2));
+
+        storage.beginUnitOfWork();
+        storage.getPlayerByID(mikkel.getID());
+        storage.getPlayerByID(mikkel.getID());
+        storage.endUnitOfWork();
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(3));
+        assertThat(storage.getAvoidedCallCount(), is(1L));
+
+        // A new unit of work reads again
+        storage.beginUnitOfWork();
+        storage.getPlayerByID(mikkel.getID());
+        storage.endUnitOfWork();
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(4));
+    }
+}
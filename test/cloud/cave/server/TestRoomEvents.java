@@ -0,0 +1,178 @@
+package cloud.cave.server;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.junit.*;
+
+import cloud.cave.client.CaveProxy;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+
+/**
+ * Test that subscribers of a room get the events pushed when players
+ * enter and leave the room or add messages to its wall.
+ *
+ * @author Rohde Fischer
+ */
+public class TestRoomEvents {
+    private StandardInvoker invoker;
+    private RecordingEventSink mikkelSink;
+    private Player mikkel;
+    private Cave cave;
+
+    @Before
+    public void setup() {
+        StandardServerCave caveServer = new StandardServerCave(new AllTestDoubleFactory());
+        invoker = new StandardInvoker(caveServer);
+        cave = new CaveProxy(new LocalMethodCallClientRequestHandler(invoker));
+
+        mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        mikkelSink = new RecordingEventSink(100);
+        JSONObject reply = subscribe(mikkel, mikkelSink);
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(), is(StatusCode.OK));
+    }
+
+    private JSONObject subscribe(Player player, EventSink sink) {
+        JSONObject request = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.SUBSCRIBE_ROOM_EVENTS_METHOD_KEY, "");
+        return invoker.handleRequest(request, sink);
+    }
+
+    @Test
+    public void shouldPushArrivalsMessagesAndDepartures() {
+        Player mathilde = cave.login("mathilde_aarskort", "321").getPlayer();
+        mathilde.addMessage("Hi Mikkel");
+        mathilde.move(Direction.NORTH);
+
+        assertThat(mikkelSink.events.size(), is(3));
+        assertEvent(mikkelSink.events.get(0), MarshalingKeys.PLAYER_ENTERED_EVENT, "Mathilde");
+        assertEvent(mikkelSink.events.get(1), MarshalingKeys.MESSAGE_ADDED_EVENT, "Mathilde");
+        assertThat(mikkelSink.events.get(1).get(MarshalingKeys.EVENT_MESSAGE_KEY).toString(), is("Hi Mikkel"));
+        assertEvent(mikkelSink.events.get(2), MarshalingKeys.PLAYER_LEFT_EVENT, "Mathilde");
+
+        // Mikkel does not get events about himself
+        mikkel.addMessage("Bye Mathilde");
+        assertThat(mikkelSink.events.size(), is(3));
+    }
+
+    @Test
+    public void shouldFollowSubscriberToNewRoom() {
+        mikkel.move(Direction.NORTH);
+
+        Player mathilde = cave.login("mathilde_aarskort", "321").getPlayer();
+        mathilde.addMessage("Nobody here");
+        assertThat(mikkelSink.events.size(), is(0));
+
+        mathilde.move(Direction.NORTH);
+        assertThat(mikkelSink.events.size(), is(1));
+        assertEvent(mikkelSink.events.get(0), MarshalingKeys.PLAYER_ENTERED_EVENT, "Mathilde");
+        assertThat(mikkelSink.events.get(0).get(MarshalingKeys.EVENT_POSITION_KEY).toString(), is("(0,1,0)"));
+    }
+
+    @Test
+    public void shouldForgetRoomsWithoutSubscribers() throws Exception {
+        final RoomEventHub hub = new RoomEventHub();
+        hub.subscribe("mikkel", "(0,0,0)", new RecordingEventSink(10));
+        hub.moveSubscription("mikkel", "(0,1,0)");
+        assertThat(hub.getRoomCount(), is(1));
+        hub.unsubscribe("mikkel");
+        assertThat(hub.getRoomCount(), is(0));
+
+        // A player joining a room while the last one leaves it is kept
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final String playerID = "player" + t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        hub.subscribe(playerID, "(0,0,0)", new RecordingEventSink(0));
+                        hub.unsubscribe(playerID);
+                    }
+                    hub.subscribe(playerID, "(0,0,0)", new RecordingEventSink(0));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(hub.getSubscriberCount("(0,0,0)"), is(4));
+        assertThat(hub.getRoomCount(), is(1));
+    }
+
+    @Test
+    public void shouldDisconnectSlowConsumer() {
+        Player mathilde = cave.login("mathilde_aarskort", "321").getPlayer();
+        RecordingEventSink slowSink = new RecordingEventSink(1);
+        subscribe(mathilde, slowSink);
+
+        mikkel.addMessage("One");
+        mikkel.addMessage("Two");
+
+        assertThat(slowSink.isOpen(), is(false));
+        assertThat(slowSink.events.size(), is(1));
+
+        // Later events are not offered to the closed sink
+        mikkel.addMessage("Three");
+        assertThat(slowSink.offered, is(2));
+    }
+
+    @Test
+    public void shouldRejectSubscriptionWithExpiredSession() {
+        Player oldMathilde = cave.login("mathilde_aarskort", "321").getPlayer();
+        cave.login("mathilde_aarskort", "321");
+
+        JSONObject reply = subscribe(oldMathilde, new RecordingEventSink(10));
+        assertThat(reply.get(MarshalingKeys.ERROR_CODE_KEY).toString(),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    private static void assertEvent(JSONObject event, String type, String playerName) {
+        assertThat(event.get(MarshalingKeys.EVENT_TYPE_KEY).toString(), is(type));
+        assertThat(event.get(MarshalingKeys.EVENT_PLAYER_NAME_KEY).toString(), is(playerName));
+    }
+}
+
+/**
+ * An event sink that records the events, and rejects events beyond its
+ * capacity like a slow consumer.
+ */
+class RecordingEventSink implements EventSink {
+    final List<JSONObject> events = new ArrayList<>();
+    private final int capacity;
+    private boolean open = true;
+    int offered = 0;
+
+    RecordingEventSink(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(JSONObject event) {
+        offered++;
+        if (!open || events.size() >= capacity) {
+            return false;
+        }
+        events.add(event);
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,120 @@
+package cloud.cave.server;
+
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.SpyCaveStorage;
+import cloud.cave.server.common.RoomRecord;
+import cloud.cave.server.common.ScalableBloomFilter;
+import cloud.cave.server.invalidation.Invalidation;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the lookups of positions without a room are answered by the
+ * Bloom filter, once verified, and that the rooms added, here or elsewhere,
+ * are found.
+ *
+ * @author Rohde Fischer
+ */
+public class TestRoomFilterCaveStorage {
+    private SpyCaveStorage spy;
+    private RoomFilterCaveStorage storage;
+    private FakeTicker ticker;
+
+    @Before
+    public void setup() {
+        FakeCaveStorage fake = new FakeCaveStorage();
+        fake.initialize(null);
+        spy = new SpyCaveStorage(fake);
+        ticker = new FakeTicker();
+        storage = new RoomFilterCaveStorage(spy, 100, 0.01, 60, ticker);
+    }
+
+    @Test
+    public void shouldAnswerMissingRoomsWithoutStorage() {
+        assertThat(storage.getRoom("(0,0,0)").description, containsString("brick building"));
+        assertThat(spy.getRoomGetCount(), is(1));
+
+        // The first lookup of a position without a room verifies it
+        assertThat(storage.getRoom("(7,7,7)"), is(nullValue()));
+        assertThat(spy.getRoomGetCount(), is(2));
+        assertThat(storage.getRoom("(7,7,7)"), is(nullValue()));
+        assertThat(spy.getRoomGetCount(), is(2));
+
+        assertThat(storage.getRooms(Arrays.asList("(0,1,0)", "(7,7,8)")).keySet(), contains("(0,1,0)"));
+        assertThat(spy.getRoomGetCount(), is(4));
+        assertThat(storage.getRooms(Arrays.asList("(0,1,0)", "(7,7,8)")).keySet(), contains("(0,1,0)"));
+        assertThat(spy.getRoomGetCount(), is(5));
+        assertThat(storage.getNegativeCount() + storage.getFalsePositiveCount(), is(2L));
+        assertThat(storage.getFilterSizeInBytes(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void shouldFindRoomsAddedHereAndElsewhere() {
+        storage.addRoom("(0,2,0)", new RoomRecord("A dug room", new ArrayList<String>()));
+        assertThat(storage.getRoom("(0,2,0)").description, is("A dug room"));
+
+        // Dug on another server, directly in the storage
+        spy.addRoom("(0,3,0)", new RoomRecord("Another dug room", new ArrayList<String>()));
+        storage.invalidate(Collections.singletonList(Invalidation.room("(0,3,0)")));
+        assertThat(storage.getRoom("(0,3,0)").description, is("Another dug room"));
+    }
+
+    @Test
+    public void shouldFindRoomsWhoseInvalidationWasLost() {
+        assertThat(storage.getRoom("(0,3,0)"), is(nullValue()));
+
+        // Dug on another server, but the invalidation never arrives
+        spy.addRoom("(0,3,0)", new RoomRecord("Another dug room", new ArrayList<String>()));
+        assertThat(storage.getRoom("(0,3,0)"), is(nullValue()));
+        assertThat(storage.roomsExist(Arrays.asList("(0,3,0)")).isEmpty(), is(true));
+
+        // Verified again once the interval is over
+        ticker.advance(61, TimeUnit.SECONDS);
+        assertThat(storage.roomsExist(Arrays.asList("(0,3,0)")), contains("(0,3,0)"));
+        assertThat(storage.getMissedRoomCount(), is(1L));
+        int reads = spy.getRoomGetCount();
+        assertThat(storage.getRoom("(0,3,0)").description, is("Another dug room"));
+        assertThat(spy.getRoomGetCount(), is(reads + 1));
+    }
+
+    @Test
+    public void shouldGrowKeepingFalsePositivesLow() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("(" + i + ",0,0)");
+        }
+        assertThat(filter.getStageCount(), is(greaterThan(1)));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertThat(filter.mightContain("(" + i + ",0,0)"), is(true));
+            if (filter.mightContain("(0," + i + ",1)")) {
+                falsePositives++;
+            }
+        }
+        // Bounded by twice the probability of the first stage
+        assertThat(falsePositives, is(lessThan(300)));
+        assertThat(filter.getExpectedFalsePositiveProbability(), is(lessThan(0.02)));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
+}
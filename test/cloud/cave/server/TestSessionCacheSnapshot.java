@@ -0,0 +1,96 @@
+package cloud.cave.server;
+
+import cloud.cave.domain.Player;
+import cloud.cave.domain.Region;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.SpyCaveStorage;
+import cloud.cave.server.common.PlayerRecord;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that a snapshot of the bounded session cache warms a new cache with
+ * the players whose sessions are still valid, reading each hot room once.
+ *
+ * @author Rohde Fischer
+ */
+public class TestSessionCacheSnapshot {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpyCaveStorage storage;
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        FakeCaveStorage fake = new FakeCaveStorage();
+        fake.initialize(null);
+        storage = new SpyCaveStorage(fake);
+        storage.updatePlayerRecord(new PlayerRecord("mikkel", "Mikkel", "grp1", Region.AARHUS, "(0,0,0)", "s1"));
+        storage.updatePlayerRecord(new PlayerRecord("magnus", "Magnus", "grp1", Region.AARHUS, "(0,0,0)", "s2"));
+        storage.updatePlayerRecord(new PlayerRecord("mathilde", "Mathilde", "grp1", Region.AARHUS, "(0,1,0)", "s3"));
+        file = new File(folder.getRoot(), "sessions.snapshot");
+    }
+
+    @Test
+    public void shouldRehydrateValidPlayers() throws IOException {
+        BoundedSessionCache before = newCache();
+        before.get("mikkel");
+        before.get("magnus");
+        before.get("mathilde");
+        assertThat(new SessionCacheSnapshot(before, storage, file).write(), is(3));
+
+        // While the server is down, Mathilde logs in elsewhere
+        storage.updatePlayerRecord(new PlayerRecord("mathilde", "Mathilde", "grp1", Region.AARHUS, "(0,1,0)", "s4"));
+
+        BoundedSessionCache after = newCache();
+        int roomReads = storage.getRoomGetCount();
+        assertThat(new SessionCacheSnapshot(after, storage, file).rehydrate(), is(2));
+
+        // The room of Mikkel and Magnus is read once for both
+        assertThat(storage.getRoomGetCount() - roomReads, is(2));
+        assertThat(after.size(), is(2L));
+        assertThat(after.get("mikkel").getSessionID(), is("s1"));
+        assertThat(after.get("magnus").getShortRoomDescription(), containsString("brick building"));
+        assertThat(storage.getRoomGetCount() - roomReads, is(2));
+        assertThat(after.getStats().hitCount(), is(2L));
+    }
+
+    @Test
+    public void shouldNotReplacePlayersLoadedMeanwhile() throws IOException {
+        BoundedSessionCache before = newCache();
+        before.get("mikkel");
+        new SessionCacheSnapshot(before, storage, file).write();
+
+        BoundedSessionCache after = newCache();
+        Player loaded = after.get("mikkel");
+        assertThat(new SessionCacheSnapshot(after, storage, file).rehydrate(), is(0));
+        assertThat(after.get("mikkel"), is(sameInstance(loaded)));
+    }
+
+    @Test
+    public void shouldIgnoreMissingOrBrokenSnapshot() throws IOException {
+        BoundedSessionCache cache = newCache();
+        assertThat(new SessionCacheSnapshot(cache, storage, file).rehydrate(), is(0));
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a snapshot".getBytes("UTF-8"));
+        }
+        assertThat(new SessionCacheSnapshot(cache, storage, file).rehydrate(), is(0));
+        assertThat(cache.size(), is(0L));
+    }
+
+    private BoundedSessionCache newCache() {
+        return new BoundedSessionCache(storage, null, 10, 60, 600, 1000, Ticker.systemTicker());
+    }
+}
@@ -0,0 +1,135 @@
+package cloud.cave.server;
+
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.domain.Player;
+import cloud.cave.doubles.AllTestDoubleFactory;
+import cloud.cave.doubles.FakeCaveStorage;
+import cloud.cave.doubles.FactoryWithSharedStorage;
+import cloud.cave.ipc.Marshaling;
+import cloud.cave.ipc.MarshalingKeys;
+import cloud.cave.ipc.StatusCode;
+import cloud.cave.service.CaveStorage;
+import com.google.common.base.Ticker;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test that the heartbeats of requests keep the sessions alive, and that
+ * the players idle too long are logged out.
+ *
+ * @author Rohde Fischer
+ */
+public class TestSessionReaper {
+    private FakeCaveStorage storage;
+    private FakeTicker ticker;
+    private StandardServerCave cave;
+    private StandardInvoker invoker;
+    private SessionReaper reaper;
+
+    @Before
+    public void setup() {
+        storage = new FakeCaveStorage();
+        storage.initialize(null);
+        ticker = new FakeTicker();
+        storage.setTicker(ticker);
+        CaveServerFactory factory = new AllTestDoubleFactory() {
+            @Override
+            public CaveStorage createCaveStorage() {
+                return storage;
+            }
+        };
+        cave = new StandardServerCave(factory);
+        invoker = new StandardInvoker(cave);
+        reaper = cave.getSessionReaper();
+    }
+
+    @Test
+    public void shouldLogOutIdlePlayersOnly() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        Player magnus = cave.login("magnus_aarskort", "312").getPlayer();
+        assertThat(storage.computeCountOfActivePlayers(), is(2L));
+        // The logins wrote their heartbeats themselves
+        assertThat(reaper.flushHeartbeats(), is(0));
+
+        // Mikkel keeps making requests, Magnus has crashed
+        for (int i = 0; i < 3; i++) {
+            ticker.advance(10, TimeUnit.MINUTES);
+            assertThat(request(mikkel), is(StatusCode.OK));
+            assertThat(reaper.reap(30 * 60), is(0));
+        }
+        ticker.advance(10, TimeUnit.MINUTES);
+        assertThat(reaper.reap(30 * 60), is(1));
+
+        assertThat(storage.computeCountOfActivePlayers(), is(1L));
+        assertThat(storage.getPlayerByID(mikkel.getID()).isInCave(), is(true));
+        assertThat(storage.getPlayerByID(magnus.getID()).isInCave(), is(false));
+        assertThat(request(magnus), is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    @Test
+    public void shouldBatchHeartbeats() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        Player magnus = cave.login("magnus_aarskort", "312").getPlayer();
+
+        for (int i = 0; i < 10; i++) {
+            request(mikkel);
+            request(magnus);
+        }
+        // Twenty requests by two players make two heartbeats in one write
+        assertThat(reaper.flushHeartbeats(), is(2));
+        assertThat(reaper.flushHeartbeats(), is(0));
+    }
+
+    @Test
+    public void shouldIgnoreHeartbeatsOfLoggedOutPlayers() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        request(mikkel);
+        cave.logout(mikkel.getID());
+
+        reaper.flushHeartbeats();
+        ticker.advance(1, TimeUnit.HOURS);
+        assertThat(storage.computeListOfIdlePlayers(60), is(empty()));
+        assertThat(reaper.reap(60), is(0));
+    }
+
+    @Test
+    public void shouldRemoveHeartbeatsOfPlayersLoggedOutElsewhere() {
+        StandardServerCave otherCave = new StandardServerCave(new FactoryWithSharedStorage(storage));
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        request(mikkel);
+
+        // Logged out on another server before this one batched the heartbeat
+        otherCave.logout(mikkel.getID());
+        assertThat(reaper.flushHeartbeats(), is(1));
+
+        ticker.advance(1, TimeUnit.HOURS);
+        assertThat(storage.computeListOfIdlePlayers(60), contains(mikkel.getID()));
+        assertThat(reaper.reap(60), is(0));
+        assertThat(storage.computeListOfIdlePlayers(60), is(empty()));
+    }
+
+    private String request(Player player) {
+        JSONObject request = Marshaling.createRequestObject(player.getID(), player.getSessionID(),
+                MarshalingKeys.GET_POSITION_METHOD_KEY, "");
+        return invoker.handleRequest(request).get(MarshalingKeys.ERROR_CODE_KEY).toString();
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cloud.cave.server;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.json.simple.JSONObject;
+import org.junit.*;
+
+import cloud.cave.client.CaveProxy;
+import cloud.cave.config.CaveServerFactory;
+import cloud.cave.domain.*;
+import cloud.cave.doubles.*;
+import cloud.cave.ipc.*;
+import cloud.cave.service.CaveStorage;
+import cloud.cave.service.WeatherService;
+
+/**
+ * Test that requests with a signed session token are verified without
+ * reading the player from the storage, and that the last login still
+ * overrules the earlier sessions.
+ *
+ * @author Rohde Fischer
+ */
+public class TestSessionTokens {
+    private SpyCaveStorage spy;
+    private CaveServerFactory factory;
+    private StandardInvoker invoker;
+    private Cave cave;
+
+    @Before
+    public void setup() {
+        CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        spy = new SpyCaveStorage(storage);
+        factory = new AllTestDoubleFactory() {
+            @Override
+            public CaveStorage createCaveStorage() {
+                return spy;
+            }
+
+            @Override
+            public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
+                return new DatabaseCache(storage, weatherService);
+            }
+
+            @Override
+            public SessionTokenService createSessionTokenService(CaveStorage storage) {
+                return new SessionTokenService("a secret shared by the servers", storage);
+            }
+        };
+        invoker = new StandardInvoker(new StandardServerCave(factory));
+        cave = new CaveProxy(new LocalMethodCallClientRequestHandler(invoker));
+    }
+
+    @Test
+    public void shouldNotReadStorageToVerifyToken() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        assertThat(SessionTokenService.isToken(mikkel.getSessionID()), is(true));
+
+        int playerReadsBefore = spy.getPlayerGetCount();
+        int roomReadsBefore = spy.getRoomGetCount();
+        assertThat(request(mikkel.getID(), mikkel.getSessionID(), MarshalingKeys.GET_EXITSET_METHOD_KEY),
+                is(StatusCode.OK));
+
+        // The player of the login serves the token, neither the session,
+        // the player record nor the room are read
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(0));
+        assertThat(spy.getRoomGetCount() - roomReadsBefore, is(0));
+    }
+
+    @Test
+    public void shouldReadPlayerOnlyForFirstTokenRequestOnAnotherServer() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        invoker = new StandardInvoker(new StandardServerCave(factory));
+
+        int playerReadsBefore = spy.getPlayerGetCount();
+        int roomReadsBefore = spy.getRoomGetCount();
+        assertThat(request(mikkel.getID(), mikkel.getSessionID()), is(StatusCode.OK));
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(1));
+        assertThat(spy.getRoomGetCount() - roomReadsBefore, is(1));
+
+        // The following requests of the token reuse the player read
+        playerReadsBefore = spy.getPlayerGetCount();
+        roomReadsBefore = spy.getRoomGetCount();
+        for (String methodKey : new String[]{MarshalingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY,
+                MarshalingKeys.GET_LONG_ROOM_DESCRIPTION_METHOD_KEY, MarshalingKeys.GET_EXITSET_METHOD_KEY,
+                MarshalingKeys.GET_POSITION_METHOD_KEY, MarshalingKeys.GET_REGION_METHOD_KEY}) {
+            assertThat(request(mikkel.getID(), mikkel.getSessionID(), methodKey), is(StatusCode.OK));
+        }
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(0));
+        assertThat(spy.getRoomGetCount() - roomReadsBefore, is(0));
+    }
+
+    @Test
+    public void shouldRevokeTokenOnSecondLogin() {
+        Player oldMikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        Player newMikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+
+        assertThat(request(newMikkel.getID(), newMikkel.getSessionID()), is(StatusCode.OK));
+        assertThat(request(oldMikkel.getID(), oldMikkel.getSessionID()),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    @Test
+    public void shouldRevokeTokenOnLogout() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        cave.logout(mikkel.getID());
+
+        assertThat(request(mikkel.getID(), mikkel.getSessionID()),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    @Test
+    public void shouldRejectTamperedToken() {
+        Player mikkel = cave.login("mikkel_aarskort", "123").getPlayer();
+        Player mathilde = cave.login("mathilde_aarskort", "321").getPlayer();
+
+        // Mathilde's valid token does not give access to Mikkel
+        assertThat(request(mikkel.getID(), mathilde.getSessionID()),
+                is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+
+        String token = mikkel.getSessionID();
+        String tampered = token.substring(0, token.length() - 2) + (token.endsWith("A") ? "BB" : "AA");
+        assertThat(request(mikkel.getID(), tampered), is(StatusCode.SERVER_PLAYER_SESSION_EXPIRED_FAILURE));
+    }
+
+    private String request(String playerID, String sessionID) {
+        return request(playerID, sessionID, MarshalingKeys.GET_SHORT_ROOM_DESCRIPTION_METHOD_KEY);
+    }
+
+    private String request(String playerID, String sessionID, String methodKey) {
+        JSONObject request = Marshaling.createRequestObject(playerID, sessionID, methodKey, "");
+        return invoker.handleRequest(request).get(MarshalingKeys.ERROR_CODE_KEY).toString();
+    }
+}
@@ -3,8 +3,6 @@ package cloud.cave.server;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
-import java.util.List;
-
 import org.junit.*;
 
 import cloud.cave.config.CaveServerFactory;
@@ -49,9 +47,13 @@ public class TestStorageAccess {
         Player p1 = loginResult.getPlayer();
         assertNotNull(p1);
 
-        // assert the number of database updates and queries
+        // assert the number of database updates and queries: the login
+        // is a single write, returning the player, and a read of the room
         assertThat(spy.getPlayerUpdateCount(), is(1));
-        assertThat(spy.getPlayerGetCount(), is(2));
+        assertThat(spy.getPlayerGetCount(), is(0));
+        assertThat(spy.getRoomGetCount(), is(1));
+        assertThat(p1.getPosition(), is("(0,0,0)"));
+        assertThat(spy.getPlayerGetCount(), is(0));
 
         // assert the number of updates and queries
 
@@ -62,93 +64,55 @@ public class TestStorageAccess {
         spy.setTracingTo(false);
 
         assertThat(spy.getPlayerUpdateCount(), is(1)); // no updates
-        assertThat(spy.getPlayerGetCount(), is(3)); // and a single query extra
+        assertThat(spy.getPlayerGetCount(), is(0)); // and no queries of the player
 
         LogoutResult result = cave.logout(p1.getID());
         assertNotNull("The result of the logout is null", result);
         assertEquals(LogoutResult.SUCCESS, result);
     }
 
-}
-
-
-class SpyCaveStorage implements CaveStorage {
-
-    private CaveStorage decoratee;
-    private boolean traceOn;
-
-    public SpyCaveStorage(CaveStorage decoratee) {
-        super();
-        this.decoratee = decoratee;
-        traceOn = false;
-    }
-
-    public void setTracingTo(boolean b) {
-        traceOn = b;
-    }
-
-    public RoomRecord getRoom(String positionString) {
-        return decoratee.getRoom(positionString);
-    }
-
-
-    public boolean addRoom(String positionString, RoomRecord description) {
-        return decoratee.addRoom(positionString, description);
-    }
-
-
-    public void initialize(ServerConfiguration config) {
-        decoratee.initialize(config);
-    }
-
-
-    public List<Direction> getSetOfExitsFromRoom(String positionString) {
-        return decoratee.getSetOfExitsFromRoom(positionString);
-    }
-
-
-    private int getCount = 0;
-
-    @SuppressWarnings("static-access")
-    public PlayerRecord getPlayerByID(String playerID) {
-        getCount++;
-        if (traceOn) Thread.currentThread().dumpStack();
-        return decoratee.getPlayerByID(playerID);
-    }
-
-    public int getPlayerGetCount() {
-        return getCount;
-    }
-
-    public void disconnect() {
-        decoratee.disconnect();
-    }
-
-
-    private int updateCount = 0;
-
-    public void updatePlayerRecord(PlayerRecord record) {
-        updateCount++;
-        decoratee.updatePlayerRecord(record);
-    }
-
-    public int getPlayerUpdateCount() {
-        return updateCount;
-    }
-
+    @Test
+    public void shouldMoveByASingleWriteWithoutReadingThePlayer() {
+        Player p1 = cave.login("magnus_aarskort", "312").getPlayer();
+        int updatesBefore = spy.getPlayerUpdateCount();
+        int readsBefore = spy.getPlayerGetCount();
 
-    public ServerConfiguration getConfiguration() {
-        return decoratee.getConfiguration();
+        assertThat(p1.move(Direction.NORTH), is(true));
+        assertThat(spy.getPlayerUpdateCount() - updatesBefore, is(1));
+        assertThat(spy.getPlayerGetCount() - readsBefore, is(0));
+        assertThat(spy.getPlayerByID(p1.getID()).getPositionAsString(), is("(0,1,0)"));
+        assertThat(spy.getPlayerByID(p1.getID()).isInCave(), is(true));
     }
 
+    @Test
+    public void shouldLogOutByASingleWriteWithoutReadingThePlayer() {
+        Player p1 = cave.login("magnus_aarskort", "312").getPlayer();
+        int updatesBefore = spy.getPlayerUpdateCount();
+        int readsBefore = spy.getPlayerGetCount();
 
-    public List<PlayerRecord> computeListOfPlayersAt(String positionString, int offset) {
-        return decoratee.computeListOfPlayersAt(positionString, offset);
+        assertThat(cave.logout(p1.getID()), is(LogoutResult.SUCCESS));
+        assertThat(spy.getPlayerUpdateCount() - updatesBefore, is(1));
+        assertThat(spy.getPlayerGetCount() - readsBefore, is(0));
+        assertThat(spy.getPlayerByID(p1.getID()).isInCave(), is(false));
+        assertThat(cave.logout(p1.getID()), is(LogoutResult.PLAYER_NOT_IN_CAVE));
     }
 
-
-    public long computeCountOfActivePlayers() {
-        return decoratee.computeCountOfActivePlayers();
+    @Test
+    public void shouldReadOnlyTheRoomOnRepeatedLogin() {
+        Player p1 = cave.login("magnus_aarskort", "312").getPlayer();
+        p1.move(Direction.NORTH);
+        cave.logout(p1.getID());
+
+        // The room at the position known from the logout is prefetched
+        // during the lookup
+        int playerReadsBefore = spy.getPlayerGetCount();
+        int roomReadsBefore = spy.getRoomGetCount();
+        Login second = cave.login("magnus_aarskort", "312");
+        assertThat(second.getResultCode(), is(LoginResult.LOGIN_SUCCESS));
+        assertThat(spy.getPlayerGetCount() - playerReadsBefore, is(0));
+        assertThat(spy.getRoomGetCount() - roomReadsBefore, is(1));
+        assertThat(second.getPlayer().getPosition(), is("(0,1,0)"));
+        assertThat(second.getPlayer().getShortRoomDescription(), containsString("open forest"));
     }
 
 }
@@ -0,0 +1,131 @@
+package cloud.cave.server.invalidation;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.*;
+
+import cloud.cave.domain.Player;
+import cloud.cave.doubles.*;
+import cloud.cave.server.*;
+import cloud.cave.service.CaveStorage;
+import cloud.cave.service.WeatherService;
+
+/**
+ * Test that the invalidation bus batches and coalesces invalidations, and
+ * that a login on one server drops the cached session on the others.
+ *
+ * @author Rohde Fischer
+ */
+public class TestInvalidationBus {
+    private InProcessInvalidationBus bus;
+    private RecordingListener serverA;
+    private RecordingListener serverB;
+
+    @Before
+    public void setup() {
+        // A long flush delay, so only explicit flushes deliver
+        bus = new InProcessInvalidationBus(60000);
+        serverA = new RecordingListener();
+        serverB = new RecordingListener();
+        bus.subscribe("A", serverA);
+        bus.subscribe("B", serverB);
+    }
+
+    @After
+    public void tearDown() {
+        bus.close();
+    }
+
+    @Test
+    public void shouldCoalesceBatchAndSkipOrigin() {
+        bus.publish("A", Invalidation.session("mikkel"));
+        bus.publish("A", Invalidation.room("(0,1,0)"));
+        bus.publish("A", Invalidation.session("mikkel"));
+        assertThat(serverB.batches.size(), is(0));
+
+        bus.flush();
+        assertThat(serverA.batches.size(), is(0));
+        assertThat(serverB.batches.size(), is(1));
+        assertThat(serverB.batches.get(0).size(), is(2));
+        assertThat(serverB.batches.get(0).get(0), is(Invalidation.session("mikkel")));
+    }
+
+    @Test
+    public void shouldDeliverToAllWhenPublishedByBothOrigins() {
+        bus.publish("A", Invalidation.session("mikkel"));
+        bus.publish("B", Invalidation.session("mikkel"));
+        bus.flush();
+
+        assertThat(serverA.batches.size(), is(1));
+        assertThat(serverB.batches.size(), is(1));
+    }
+
+    @Test
+    public void shouldFlushFullBatchAtOnce() {
+        for (int i = 0; i < BatchingInvalidationBus.MAX_BATCH_SIZE; i++) {
+            bus.publish("A", Invalidation.room("(" + i + ",0,0)"));
+        }
+        assertThat(serverB.batches.size(), is(1));
+        assertThat(serverB.batches.get(0).size(), is(BatchingInvalidationBus.MAX_BATCH_SIZE));
+    }
+
+    @Test
+    public void shouldEncodeAndDecode() {
+        Invalidation room = Invalidation.room("(0,-1,2)");
+        assertThat(room.encode(), is("R:(0,-1,2)"));
+        assertThat(Invalidation.decode(room.encode()), is(room));
+        assertThat(Invalidation.decode("S:mikkel:x").getKey(), is("mikkel:x"));
+    }
+
+    @Test
+    public void shouldDropSessionCachedByOtherServerOnLogin() {
+        final CaveStorage storage = new FakeCaveStorage();
+        storage.initialize(null);
+        final InvalidationBus sharedBus = new InProcessInvalidationBus(0);
+        final List<BoundedSessionCache> caches = new ArrayList<>();
+        AllTestDoubleFactory factory = new AllTestDoubleFactory() {
+            @Override
+            public CaveStorage createCaveStorage() {
+                return storage;
+            }
+
+            @Override
+            public PlayerSessionCache createPlayerSessionCache(CaveStorage storage, WeatherService weatherService) {
+                BoundedSessionCache cache = new BoundedSessionCache(storage, weatherService);
+                caches.add(cache);
+                return cache;
+            }
+
+            @Override
+            public InvalidationBus createInvalidationBus() {
+                return sharedBus;
+            }
+        };
+        StandardServerCave caveA = new StandardServerCave(factory);
+        StandardServerCave caveB = new StandardServerCave(factory);
+
+        Player onB = caveB.login("mikkel_aarskort", "123").getPlayer();
+        assertThat(caches.get(1).size(), is(1L));
+
+        Player onA = caveA.login("mikkel_aarskort", "123").getPlayer();
+        assertThat(caches.get(0).size(), is(1L));
+        assertThat(caches.get(1).size(), is(0L));
+
+        // So server B reads the new session at once
+        assertThat(caveB.getCache().get(onB.getID()).getSessionID(), is(onA.getSessionID()));
+    }
+
+    private static class RecordingListener implements InvalidationListener {
+        final List<List<Invalidation>> batches = new ArrayList<>();
+
+        @Override
+        public void invalidate(Collection<Invalidation> batch) {
+            batches.add(new ArrayList<>(batch));
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package cloud.cave.server.service;
 
 import cloud.cave.common.CaveStorageException;
+import cloud.cave.domain.Direction;
 import cloud.cave.domain.Region;
 import cloud.cave.doubles.mongo.FakeMongoSetup;
+import cloud.cave.server.common.PlayerPageRecord;
 import cloud.cave.server.common.PlayerRecord;
+import cloud.cave.server.common.Point3;
 import cloud.cave.server.common.RoomRecord;
 import cloud.cave.server.common.ServerConfiguration;
+import cloud.cave.server.common.SessionStartRecord;
 import com.mongodb.MongoSocketOpenException;
 import com.mongodb.MongoSocketReadException;
 import com.mongodb.MongoSocketWriteException;
@@ -16,6 +20,7 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Random;
 
 import static org.hamcrest.Matchers.*;
@@ -200,6 +205,102 @@ public class TestServerCaveStorage {
         assertThat(caveStorage.getSetOfExitsFromRoom("(0,0,0)"), is(notNullValue()));
     }
 
+    @Test
+    public void shouldDecodeExitMaskOfRoom() {
+        // The fake room has the mask of north and east
+        assertThat(caveStorage.getSetOfExitsFromRoom("(0,0,0)"), contains(Direction.NORTH, Direction.EAST));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnBackfillExitMasks() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.backfillExitMasks(2);
+            }
+        });
+    }
+
+    @Test
+    public void shouldBackfillExitMasksInBatches() {
+        assertThat(caveStorage.backfillExitMasks(2), is(3L));
+    }
+
+    @Test
+    public void shouldGetRoomsInBoxLeavingOutRoomsOutside() {
+        // Only the first fake room has coordinates, the others are outside
+        caveStorage.migratePositions(2, 1000);
+        Map<String, RoomRecord> rooms = caveStorage.getRoomsInBox(new Point3(-1, -1, 0), new Point3(1, 1, 0));
+        assertThat(rooms.keySet(), contains("(0,0,0)"));
+        assertThat(caveStorage.getRoomsInBox(new Point3(5, 5, 5), new Point3(6, 6, 6)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnCheckMigrations() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.checkMigrations();
+            }
+        });
+    }
+
+    @Test
+    public void shouldCheckMigrationsWhenNoException() {
+        caveStorage.initialize(config);
+        assertThat(caveStorage.checkMigrations(), is(false));
+
+        // The flags switched by the jobs are not counted again
+        caveStorage.migratePositions(2, 1000);
+        caveStorage.migrateSessions(1, 1000);
+        assertThat(caveStorage.checkMigrations(), is(true));
+    }
+
+    @Test
+    public void shouldGetRoomsInBoxByPositionUntilMigrated() {
+        // The fake rooms without coordinates are found by their position
+        Map<String, RoomRecord> rooms = caveStorage.getRoomsInBox(new Point3(-1, -1, 0), new Point3(1, 1, 0));
+        assertThat(rooms.keySet(), containsInAnyOrder("(0,0,0)", "(1,0,0)", "(0,1,0)"));
+        assertThat(rooms.get("(1,0,0)").description, is("Second room"));
+        assertThat(caveStorage.getRoomsInBox(new Point3(5, 5, 5), new Point3(6, 6, 6)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldFindNoCollectionScansWhenIndexed() {
+        assertThat(caveStorage.findCollectionScans(), is(empty()));
+    }
+
+    @Test
+    public void shouldFindQueriesScanningUnindexedCollection() {
+        mongoSetup.setUnindexedCollection(ServerCaveStorage.COLLECTION_MESSAGES);
+        assertThat(caveStorage.findCollectionScans(), hasSize(1));
+        assertThat(caveStorage.findCollectionScans().get(0).getName(), is("getMessages"));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnMigratePositions() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.migratePositions(2, 1000);
+            }
+        });
+    }
+
+    @Test
+    public void shouldMigrateRoomsAndSkipPlayersAtMadeUpPlaces() {
+        // The fake players are in places like Wonderland, not positions
+        assertThat(caveStorage.migratePositions(2, 1000), is(3L));
+        assertThat(caveStorage.computeListOfPlayersAt("(0,0,0)", 0), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldMigrateSessionsOfPlayersInCave() {
+        // One player for each of the two sessions
+        assertThat(caveStorage.migrateSessions(1, 1000), is(2L));
+        assertThat(caveStorage.computePageOfPlayersAt("Wonderland", null, 10).getPlayers().size(), is(2));
+    }
+
     @Test
     public void shouldHandleExceptionsOnGetPlayerByID() {
         performExceptions(new IDelegate() {
@@ -264,7 +365,212 @@ public class TestServerCaveStorage {
 
     @Test
     public void shouldComputeCountOfActivePlayersWhenNoException() {
-        assertThat(caveStorage.computeCountOfActivePlayers(), is(notNullValue()));
+        assertThat(caveStorage.computeCountOfActivePlayers(), is(2L));
+    }
+
+    @Test
+    public void shouldCountPlayersInCaveByFlagOnceMigrated() {
+        caveStorage.migrateSessions(1, 1000);
+        // Only Alice has the flag set, whatever the heartbeats say
+        assertThat(caveStorage.computeCountOfActivePlayers(), is(1L));
+    }
+
+    @Test
+    public void shouldOnlyListPlayersWithSession() {
+        // The queen has no session in the sessions collection
+        assertThat(caveStorage.computeListOfPlayersAt("Wonderland", 0).size(), is(2));
+        assertThat(caveStorage.computeListOfPlayersAt("Wonderland", 0).get(0).getSessionId(), is("318"));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnUpdatePlayerPosition() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.updatePlayerPosition("alice", "(0,0,0)", "(0,1,0)");
+            }
+        });
+    }
+
+    @Test
+    public void shouldUpdatePlayerPositionWhenNoException() {
+        assertThat(caveStorage.updatePlayerPosition("alice", "(0,0,0)", "(0,1,0)"), is(true));
+    }
+
+    @Test
+    public void shouldOnlyPagePlayersWithSession() {
+        PlayerPageRecord page = caveStorage.computePageOfPlayersAt("Wonderland", null, 10);
+        assertThat(page.getPlayers().size(), is(2));
+        assertThat(page.getLastPlayerID(), is(notNullValue()));
+        assertThat(page.hasMore(), is(false));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnTouchSessions() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.touchSessions(Arrays.asList("alice", "queen"));
+            }
+        });
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnComputeListOfIdlePlayers() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.computeListOfIdlePlayers(60);
+            }
+        });
+    }
+
+    @Test
+    public void shouldComputeListOfIdlePlayersWhenNoException() {
+        assertThat(caveStorage.computeListOfIdlePlayers(60), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnRemoveIdleSessions() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.removeIdleSessions(Arrays.asList("queen"), 60);
+            }
+        });
+    }
+
+    @Test
+    public void shouldRemoveIdleSessionsWhenNoException() {
+        caveStorage.removeIdleSessions(Arrays.asList("queen"), 60);
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnCompareAndSetPlayerRecord() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.compareAndSetPlayerRecord(
+                        new PlayerRecord("alice", "Alice", "curious", Region.AARHUS, "(0,0,0)", "42"), 3);
+            }
+        });
+    }
+
+    @Test
+    public void shouldNotCompareAndSetOnOtherVersion() {
+        // The fake collection matches no record on replace
+        assertThat(caveStorage.compareAndSetPlayerRecord(
+                new PlayerRecord("alice", "Alice", "curious", Region.AARHUS, "(0,0,0)", "42"), 3), is(false));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnStartPlayerSession() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.startPlayerSession(
+                        new PlayerRecord("jabbeerwocky", "Jabberwocky", "evil", Region.COPENHAGEN, "(0,0,0)", "319"));
+            }
+        });
+    }
+
+    @Test
+    public void shouldStartPlayerSessionWhenNoException() {
+        SessionStartRecord started = caveStorage.startPlayerSession(
+                new PlayerRecord("jabbeerwocky", "Jabberwocky", "evil", Region.COPENHAGEN, "(0,0,0)", "319"));
+
+        // The stored position is kept, the session replaced
+        assertThat(started.getPlayer().getPositionAsString(), is("Wonderland"));
+        assertThat(started.getPlayer().getSessionId(), is("319"));
+        assertThat(started.wasAlreadyInCave(), is(true));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnEndPlayerSession() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.endPlayerSession("jabbeerwocky");
+            }
+        });
+    }
+
+    @Test
+    public void shouldEndPlayerSessionWhenNoException() {
+        PlayerRecord ended = caveStorage.endPlayerSession("jabbeerwocky");
+
+        // The profile and position are kept, the session ended
+        assertThat(ended.getPlayerName(), is("Jabberwocky"));
+        assertThat(ended.getPositionAsString(), is("Wonderland"));
+        assertThat(ended.isInCave(), is(false));
+        assertThat(ended.getVersion(), is(1L));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnBatchedReads() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.getRooms(Arrays.asList("(0,0,0)", "(1,0,0)"));
+            }
+        });
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.roomsExist(Arrays.asList("(0,0,0)", "(1,0,0)"));
+            }
+        });
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.getPlayersByIDs(Arrays.asList("alice", "queen"));
+            }
+        });
+    }
+
+    @Test
+    public void shouldJoinSessionsOfBatchedPlayers() {
+        Map<String, PlayerRecord> players = caveStorage.getPlayersByIDs(Arrays.asList("alice", "queen"));
+        // The fake collections return all documents. Alice and the queen
+        // carry their session, the queen's left behind by a logout
+        assertThat(players.get("alice").getSessionId(), is("42"));
+        assertThat(players.get("queen").isInCave(), is(false));
+        // The jabberwocky is not migrated, its session is joined
+        assertThat(caveStorage.getPlayersByIDs(Arrays.asList("jabbeerwocky")).get("jabbeerwocky").getSessionId(),
+                is("318"));
+        assertThat(caveStorage.getRooms(Arrays.asList("(0,0,0)")).get("(0,0,0)").description, is("First room"));
+        assertThat(caveStorage.roomsExist(Arrays.asList("(0,0,0)", "(5,5,5)")), contains("(0,0,0)"));
+        assertThat(caveStorage.getRooms(new LinkedList<String>()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldHandleExceptionsOnRequests() {
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.claimRequest("alice:key");
+            }
+        });
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.getRequestReply("alice:key");
+            }
+        });
+        performExceptions(new IDelegate() {
+            @Override
+            public void run() {
+                caveStorage.completeRequest("alice:key", null);
+            }
+        });
+    }
+
+    @Test
+    public void shouldClaimRequestsWhenNoException() {
+        assertThat(caveStorage.claimRequest("alice:key"), is(true));
+        assertThat(caveStorage.getRequestReply("alice:key"), is("{\"error-code\":\"OK\"}"));
+        caveStorage.completeRequest("alice:key", "{\"error-code\":\"OK\"}");
+        caveStorage.completeRequest("alice:key", null);
     }
 
     ServerConfiguration config = new ServerConfiguration("foo", 42);
@@ -194,4 +194,59 @@ public class TestStorage {
         p = storage.getPlayerByID(id2);
         assertThat(p.getPlayerName(), is("MrLongName"));
     }
+
+    @Test
+    public void shouldGetSeveralRoomsAndPlayersAtOnce() {
+        addPlayerRecordToStorageForSubscription(sub1, "session1");
+        addPlayerRecordToStorageForSubscription(sub2, "session2");
+
+        Map<String, PlayerRecord> players = storage.getPlayersByIDs(Arrays.asList(id1, id2, "unknown"));
+        assertThat(players.size(), is(2));
+        assertThat(players.get(id1).getPlayerName(), is("Tutmosis"));
+        assertThat(players.get(id2).getPlayerName(), is("MrLongName"));
+
+        List<String> positions = Arrays.asList(p000.getPositionString(), "(0,1,0)", p876.getPositionString());
+        Map<String, RoomRecord> rooms = storage.getRooms(positions);
+        assertThat(rooms.keySet(), is((Set<String>) new HashSet<>(Arrays.asList("(0,0,0)", "(0,1,0)"))));
+        assertThat(rooms.get("(0,1,0)").description, containsString("open forest"));
+        assertThat(storage.roomsExist(positions), is(rooms.keySet()));
+    }
+
+    @Test
+    public void shouldPageThroughRoomPositions() {
+        assertThat(storage.getRoomPositions(null, 2), is(Arrays.asList("(-1,0,0)", "(0,0,0)")));
+        assertThat(storage.getRoomPositions("(0,0,0)", 2), is(Arrays.asList("(0,0,1)", "(0,1,0)")));
+        assertThat(storage.getRoomPositions("(0,1,0)", 2), is(Arrays.asList("(1,0,0)")));
+        assertThat(storage.getRoomPositions("(1,0,0)", 2).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldGetRoomsInBox() {
+        Map<String, RoomRecord> rooms = storage.getRoomsInBox(new Point3(-1, 0, 0), new Point3(0, 1, 0));
+        assertThat(rooms.keySet(), is((Set<String>) new HashSet<>(Arrays.asList("(-1,0,0)", "(0,0,0)", "(0,1,0)"))));
+        assertThat(storage.getRoomsInBox(new Point3(5, 5, 5), new Point3(6, 6, 6)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldPagePlayersHereAfterTheLastRead() {
+        addPlayerRecordToStorageForSubscription(sub1, "session1");
+        addPlayerRecordToStorageForSubscription(sub2, "session2");
+        SubscriptionRecord sub3 = new SubscriptionRecord("id03", "Nefertiti", "grp03", Region.AARHUS);
+        addPlayerRecordToStorageForSubscription(sub3, "session3");
+        updatePlayerPosition(id1, p273.getPositionString());
+        updatePlayerPosition(id2, p273.getPositionString());
+        updatePlayerPosition("id03", p273.getPositionString());
+
+        // In the order of the ids
+        PlayerPageRecord page = storage.computePageOfPlayersAt(p273.getPositionString(), null, 2);
+        assertThat(page.getPlayers().size(), is(2));
+        assertThat(page.getPlayers().get(0).getPlayerID(), is(id2));
+        assertThat(page.getLastPlayerID(), is(id1));
+        assertThat(page.hasMore(), is(true));
+
+        page = storage.computePageOfPlayersAt(p273.getPositionString(), page.getLastPlayerID(), 2);
+        assertThat(page.getPlayers().size(), is(1));
+        assertThat(page.getPlayers().get(0).getPlayerID(), is("id03"));
+        assertThat(page.hasMore(), is(false));
+    }
 }